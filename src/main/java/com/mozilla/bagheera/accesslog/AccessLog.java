@@ -0,0 +1,246 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.accesslog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import com.mozilla.bagheera.util.ClientAddress;
+import com.mozilla.bagheera.util.WildcardProperties;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Binary access log. Request threads write fixed-layout records (see
+ * {@link AccessLogRecord}) into a lock-free ring buffer, and a single writer
+ * thread moves them to files in batches, so logging a request never waits on
+ * a lock or on the disk. Records are dropped and counted when the ring is
+ * full.
+ *
+ * Files are named access-yyyyMMdd-HHmmss-SSS.log and start over each day and
+ * whenever they would grow past the maximum size. Each file is a 4 byte
+ * header followed by records; {@link AccessLogReader} prints them.
+ */
+public class AccessLog implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(AccessLog.class);
+
+    public static final String ENABLE = "accesslog.enable";
+    public static final String DIR = "accesslog.dir";
+    public static final String BUFFER_RECORDS = "accesslog.buffer.records";
+    public static final String RECORD_BYTES = "accesslog.record.bytes";
+    public static final String MAX_FILE_BYTES = "accesslog.max.file.bytes";
+
+    static final byte[] MAGIC = { 'B', 'A', 'L', 1 };
+
+    private static final int WRITE_BUFFER_BYTES = 256 * 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MILLIS_PER_DAY = TimeUnit.DAYS.toMillis(1);
+
+    private final File dir;
+    private final long maxFileBytes;
+    private final RecordRingBuffer ring;
+    private final Thread writer;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Meter droppedMeter;
+    private final Meter writtenMeter;
+    private volatile boolean closed;
+
+    // Only touched by the writer thread
+    private final ByteBuffer writeBuffer;
+    private final TimeZone timeZone = TimeZone.getDefault();
+    private final SimpleDateFormat fileDateFormat = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS");
+    private FileChannel channel;
+    private long fileBytes;
+    private long fileDay;
+    private long fileTime;
+    private boolean failing;
+
+    public static boolean isEnabled(WildcardProperties props) {
+        return Boolean.parseBoolean(props.getProperty(ENABLE, "false"));
+    }
+
+    public AccessLog(WildcardProperties props) {
+        this(new File(props.getProperty(DIR, System.getProperty("bagheera.log.dir", "logs"))),
+             Integer.parseInt(props.getProperty(BUFFER_RECORDS, "65536")),
+             Integer.parseInt(props.getProperty(RECORD_BYTES, "256")),
+             Long.parseLong(props.getProperty(MAX_FILE_BYTES, "268435456")));
+    }
+
+    /**
+     * @param bufferRecords how many records can wait for the writer (rounded up to a power of two)
+     * @param recordBytes the most bytes a record may take; longer namespaces and ids are truncated
+     * @param maxFileBytes the size at which a new file is started
+     */
+    public AccessLog(File dir, int bufferRecords, int recordBytes, long maxFileBytes) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("Could not create access log directory: " + dir);
+        }
+        this.dir = dir;
+        this.maxFileBytes = maxFileBytes;
+        this.ring = new RecordRingBuffer(Integer.highestOneBit(Math.max(1, bufferRecords - 1)) << 1, recordBytes);
+        this.writeBuffer = ByteBuffer.allocate(Math.max(WRITE_BUFFER_BYTES, recordBytes));
+        this.droppedMeter = Metrics.newMeter(new MetricName("bagheera", "accesslog", "dropped"), "records", TimeUnit.SECONDS);
+        this.writtenMeter = Metrics.newMeter(new MetricName("bagheera", "accesslog", "written"), "records", TimeUnit.SECONDS);
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                writeRecords();
+            }
+        }, "bagheera-accesslog-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Adds a record for a request, unless the log is full or closed.
+     *
+     * @param operation AccessLogRecord.PUT, PUT_BATCH or DELETE
+     * @param address the client's address (may be null)
+     * @return false if the record was dropped
+     */
+    public boolean log(byte operation, ClientAddress address, String namespace, String id) {
+        if (closed) {
+            return false;
+        }
+        long position = ring.claim();
+        if (position < 0) {
+            dropped.incrementAndGet();
+            droppedMeter.mark();
+            return false;
+        }
+        try {
+            AccessLogRecord.encode(ring.getSlots(), ring.getOffset(position), ring.getSlotSize(),
+                                   System.currentTimeMillis(), operation,
+                                   address == null ? null : address.getAddress(), namespace, id);
+        } finally {
+            ring.publish(position);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of records dropped because the ring buffer was full
+     *         or the files couldn't be written
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private void writeRecords() {
+        while (true) {
+            // Look at closed before draining so nothing logged before close is left behind
+            boolean closing = closed;
+            int count = ring.drainTo(writeBuffer);
+            if (count > 0) {
+                writeBuffer.flip();
+                write(count);
+                writeBuffer.clear();
+            } else if (closing) {
+                break;
+            } else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        closeFile();
+    }
+
+    private void write(int count) {
+        long now = System.currentTimeMillis();
+        try {
+            long day = (now + timeZone.getOffset(now)) / MILLIS_PER_DAY;
+            if (channel != null && (day != fileDay || fileBytes + writeBuffer.remaining() > maxFileBytes)) {
+                closeFile();
+            }
+            if (channel == null) {
+                openFile(now);
+                fileDay = day;
+            }
+            while (writeBuffer.hasRemaining()) {
+                fileBytes += channel.write(writeBuffer);
+            }
+            writtenMeter.mark(count);
+            if (failing) {
+                LOG.info("Writing access log again");
+                failing = false;
+            }
+        } catch (IOException e) {
+            dropped.addAndGet(count);
+            droppedMeter.mark(count);
+            if (!failing) {
+                LOG.error("Error writing access log, dropping records until it can be written", e);
+                failing = true;
+            }
+            closeFile();
+        }
+    }
+
+    private void openFile(long now) throws IOException {
+        // Names always move forward so they sort in the order the files were written
+        fileTime = Math.max(now, fileTime + 1);
+        File file = new File(dir, "access-" + fileDateFormat.format(new Date(fileTime)) + ".log");
+        while (file.exists()) {
+            fileTime++;
+            file = new File(dir, "access-" + fileDateFormat.format(new Date(fileTime)) + ".log");
+        }
+        channel = new FileOutputStream(file).getChannel();
+        ByteBuffer header = ByteBuffer.wrap(MAGIC);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        fileBytes = MAGIC.length;
+    }
+
+    private void closeFile() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.error("Error closing access log file", e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Writes the records logged so far and stops the writer thread.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
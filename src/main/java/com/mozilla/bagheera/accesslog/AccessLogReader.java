@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.accesslog;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Reads access log files written by {@link AccessLog}.
+ *
+ * Run as a program to print the records of the given files in the form of
+ * the old log4j access lines:
+ *
+ *   java -cp bagheera.jar com.mozilla.bagheera.accesslog.AccessLogReader logs/access-*.log
+ */
+public class AccessLogReader implements Closeable {
+
+    private final DataInputStream in;
+    private byte[] buf = new byte[1024];
+
+    public AccessLogReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(in);
+        byte[] magic = new byte[AccessLog.MAGIC.length];
+        this.in.readFully(magic);
+        if (!Arrays.equals(magic, AccessLog.MAGIC)) {
+            throw new IOException("Not an access log file");
+        }
+    }
+
+    /**
+     * Reads the next record into record.
+     *
+     * @return false at the end of the file
+     * @throws EOFException if the file ends in the middle of a record
+     */
+    public boolean next(AccessLogRecord record) throws IOException {
+        int high = in.read();
+        if (high < 0) {
+            return false;
+        }
+        int length = (high << 8) | in.readUnsignedByte();
+        if (length < AccessLogRecord.MIN_RECORD_LENGTH) {
+            throw new IOException("Corrupt access log record of length " + length);
+        }
+        if (length > buf.length) {
+            buf = new byte[length];
+        }
+        buf[0] = (byte)high;
+        buf[1] = (byte)length;
+        in.readFully(buf, 2, length - 2);
+        record.decode(buf, 0);
+        return true;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: " + AccessLogReader.class.getName() + " <access log file>...");
+            System.exit(1);
+        }
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
+        AccessLogRecord record = new AccessLogRecord();
+        for (String path : args) {
+            AccessLogReader reader = new AccessLogReader(new BufferedInputStream(new FileInputStream(path)));
+            try {
+                while (reader.next(record)) {
+                    System.out.println(dateFormat.format(new Date(record.getTimestamp())) + " " + record);
+                }
+            } catch (EOFException e) {
+                System.err.println(path + " ends with a partial record");
+            } finally {
+                reader.close();
+            }
+        }
+    }
+}
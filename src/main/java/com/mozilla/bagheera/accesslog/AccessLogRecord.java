@@ -0,0 +1,240 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.accesslog;
+
+import java.io.UnsupportedEncodingException;
+
+import com.mozilla.bagheera.util.IpAddressParser;
+
+/**
+ * One access log record. Records have a fixed layout so request threads can
+ * write them straight into a ring buffer slot (big-endian):
+ *
+ *   length       2 bytes, the whole record including this field
+ *   timestamp    8 bytes, milliseconds since the epoch
+ *   operation    1 byte (PUT, PUT_BATCH or DELETE)
+ *   flags        1 byte (TRUNCATED)
+ *   address      1 byte length (0, 4 or 16) and the client address bytes
+ *   namespace    2 byte length and UTF-8 bytes
+ *   id           2 byte length and UTF-8 bytes
+ *
+ * A namespace or id that doesn't fit in the slot is cut short and the
+ * record is flagged as truncated.
+ */
+public class AccessLogRecord {
+
+    public static final byte PUT = 1;
+    public static final byte PUT_BATCH = 2;
+    public static final byte DELETE = 3;
+
+    public static final byte TRUNCATED = 1;
+
+    static final int HEADER_LENGTH = 12;
+    static final int MAX_ADDRESS_LENGTH = 16;
+    // Header, no address and two empty strings
+    static final int MIN_RECORD_LENGTH = HEADER_LENGTH + 1 + 2 + 2;
+    static final int MIN_SLOT_SIZE = MIN_RECORD_LENGTH + MAX_ADDRESS_LENGTH;
+    static final int MAX_SLOT_SIZE = 0xFFFF;
+
+    private long timestamp;
+    private byte operation;
+    private byte flags;
+    private byte[] address;
+    private String namespace;
+    private String id;
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public byte getOperation() {
+        return operation;
+    }
+
+    public boolean isTruncated() {
+        return (flags & TRUNCATED) != 0;
+    }
+
+    /**
+     * @return the 4 or 16 address bytes, or null if the address wasn't known
+     */
+    public byte[] getAddress() {
+        return address;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the name the operation had in the old log4j access lines
+     */
+    public static String getOperationName(byte operation) {
+        switch (operation) {
+            case PUT:
+                return "HTTP_PUT";
+            case PUT_BATCH:
+                return "HTTP_PUT_BATCH";
+            case DELETE:
+                return "HTTP_DELETE";
+            default:
+                return "UNKNOWN_" + operation;
+        }
+    }
+
+    static int getLength(byte[] buf, int offset) {
+        return ((buf[offset] & 0xFF) << 8) | (buf[offset + 1] & 0xFF);
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    private static void putShort(byte[] buf, int offset, int value) {
+        buf[offset] = (byte)(value >>> 8);
+        buf[offset + 1] = (byte)value;
+    }
+
+    /**
+     * Writes as much of the string as fits before end as UTF-8, after a
+     * 2 byte length. Unpaired surrogates are written as '?'.
+     *
+     * @return the number of chars written
+     */
+    private static int putString(byte[] buf, int offset, int end, String s) {
+        int pos = offset + 2;
+        int n = length(s);
+        int i = 0;
+        for (; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (pos + 1 > end) {
+                    break;
+                }
+                buf[pos++] = (byte)c;
+            } else if (c < 0x800) {
+                if (pos + 2 > end) {
+                    break;
+                }
+                buf[pos++] = (byte)(0xC0 | (c >> 6));
+                buf[pos++] = (byte)(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                if (pos + 4 > end) {
+                    break;
+                }
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte)(0xF0 | (cp >> 18));
+                buf[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+                buf[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+                buf[pos++] = (byte)(0x80 | (cp & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                if (pos + 1 > end) {
+                    break;
+                }
+                buf[pos++] = '?';
+            } else {
+                if (pos + 3 > end) {
+                    break;
+                }
+                buf[pos++] = (byte)(0xE0 | (c >> 12));
+                buf[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte)(0x80 | (c & 0x3F));
+            }
+        }
+        putShort(buf, offset, pos - offset - 2);
+        return i;
+    }
+
+    /**
+     * Writes a record into buf without allocating.
+     *
+     * @param capacity the most bytes the record may take
+     * @return the length of the record
+     */
+    static int encode(byte[] buf, int offset, int capacity, long timestamp, byte operation,
+                      byte[] address, String namespace, String id) {
+        int end = offset + capacity;
+        int pos = offset + 2;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buf[pos++] = (byte)(timestamp >>> shift);
+        }
+        buf[pos++] = operation;
+        int flagsOffset = pos++;
+        int addressLength = address == null || address.length > MAX_ADDRESS_LENGTH ? 0 : address.length;
+        buf[pos++] = (byte)addressLength;
+        if (addressLength > 0) {
+            System.arraycopy(address, 0, buf, pos, addressLength);
+            pos += addressLength;
+        }
+        // Leave room for the id's length
+        boolean truncated = putString(buf, pos, end - 2, namespace) < length(namespace);
+        pos += 2 + getLength(buf, pos);
+        truncated |= putString(buf, pos, end, id) < length(id);
+        pos += 2 + getLength(buf, pos);
+        buf[flagsOffset] = truncated ? TRUNCATED : 0;
+        putShort(buf, offset, pos - offset);
+        return pos - offset;
+    }
+
+    /**
+     * Reads the record at offset into this one.
+     */
+    void decode(byte[] buf, int offset) throws UnsupportedEncodingException {
+        int pos = offset + 2;
+        long ts = 0;
+        for (int i = 0; i < 8; i++) {
+            ts = (ts << 8) | (buf[pos++] & 0xFF);
+        }
+        timestamp = ts;
+        operation = buf[pos++];
+        flags = buf[pos++];
+        int addressLength = buf[pos++] & 0xFF;
+        if (addressLength > 0) {
+            address = new byte[addressLength];
+            System.arraycopy(buf, pos, address, 0, addressLength);
+            pos += addressLength;
+        } else {
+            address = null;
+        }
+        int length = getLength(buf, pos);
+        namespace = new String(buf, pos + 2, length, "UTF-8");
+        pos += 2 + length;
+        length = getLength(buf, pos);
+        id = new String(buf, pos + 2, length, "UTF-8");
+    }
+
+    /**
+     * Formats the record the way the log4j access lines were.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("IP ");
+        sb.append(address == null ? "-" : IpAddressParser.format(address));
+        sb.append(' ').append(namespace).append(' ').append(getOperationName(operation)).append(' ').append(id);
+        if (isTruncated()) {
+            sb.append(" (truncated)");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.accesslog;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free ring of fixed-size record slots for many writers and
+ * a single reader. All slots share one byte array; each slot has a sequence
+ * number that says whether it is free for the writer claiming position p
+ * (sequence == p), holds a published record (sequence == p + 1), or still
+ * holds a record from the last lap that hasn't been read (the ring is full).
+ *
+ * Writers claim a position, fill in its slot and publish it. Records start
+ * with their length as an unsigned short (see {@link AccessLogRecord}).
+ */
+class RecordRingBuffer {
+
+    private final int capacity;
+    private final int mask;
+    private final int slotSize;
+    private final byte[] slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // Only touched by the reader
+    private long head;
+
+    /**
+     * @param capacity the number of slots, a power of two
+     */
+    RecordRingBuffer(int capacity, int slotSize) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        if (slotSize < AccessLogRecord.MIN_SLOT_SIZE || slotSize > AccessLogRecord.MAX_SLOT_SIZE) {
+            throw new IllegalArgumentException("Slot size must be between " + AccessLogRecord.MIN_SLOT_SIZE +
+                                               " and " + AccessLogRecord.MAX_SLOT_SIZE + ": " + slotSize);
+        }
+        if ((long)capacity * slotSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Ring buffer too large: " + capacity + " slots of " + slotSize + " bytes");
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.slotSize = slotSize;
+        this.slots = new byte[capacity * slotSize];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    int getSlotSize() {
+        return slotSize;
+    }
+
+    byte[] getSlots() {
+        return slots;
+    }
+
+    int getOffset(long position) {
+        return (int)(position & mask) * slotSize;
+    }
+
+    /**
+     * @return the position of a free slot, or -1 if the ring is full
+     */
+    long claim() {
+        while (true) {
+            long position = tail.get();
+            long sequence = sequences.get((int)(position & mask));
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+            } else if (sequence < position) {
+                return -1;
+            }
+            // Otherwise another writer took the position first
+        }
+    }
+
+    /**
+     * Hands a claimed slot over to the reader.
+     */
+    void publish(long position) {
+        sequences.lazySet((int)(position & mask), position + 1);
+    }
+
+    /**
+     * Moves published records, in order, into out until it has no room for
+     * the next one. Only called by the reader.
+     *
+     * @return the number of records moved
+     */
+    int drainTo(ByteBuffer out) {
+        int count = 0;
+        while (true) {
+            int index = (int)(head & mask);
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            int offset = index * slotSize;
+            int length = AccessLogRecord.getLength(slots, offset);
+            if (length > out.remaining()) {
+                break;
+            }
+            out.put(slots, offset, length);
+            sequences.lazySet(index, head + capacity);
+            head++;
+            count++;
+        }
+        return count;
+    }
+}
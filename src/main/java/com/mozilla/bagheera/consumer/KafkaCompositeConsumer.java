@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.consumer;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.log4j.Logger;
+
+import com.mozilla.bagheera.cli.App;
+import com.mozilla.bagheera.cli.OptionFactory;
+import com.mozilla.bagheera.metrics.MetricsManager;
+import com.mozilla.bagheera.sink.CompositeSink;
+import com.mozilla.bagheera.sink.KeyValueSinkFactory;
+import com.mozilla.bagheera.sink.SinkConfiguration;
+import com.mozilla.bagheera.util.ShutdownHook;
+
+/**
+ * Kafka consumer storing every message to several sinks at once (e.g. both
+ * HBase and HDFS), so each message is only fetched, decoded and validated
+ * once. Takes the options of the HBase and SequenceFile consumers for the
+ * sinks that use them.
+ */
+public final class KafkaCompositeConsumer extends App {
+
+    private static final Logger LOG = Logger.getLogger(KafkaCompositeConsumer.class);
+
+    public static void main(String[] args) {
+        OptionFactory optFactory = OptionFactory.getInstance();
+        Options options = KafkaConsumer.getOptions();
+        options.addOption(optFactory.create("s", "sinks", true, "Comma separated sinks to store to (hbase, hdfs, logger, replay or a sink class name).").required());
+        options.addOption(optFactory.create("qs", "queuesize", true, "Batches each sink can have waiting."));
+        // HBase sink
+        options.addOption(optFactory.create("tbl", "table", true, "HBase table name."));
+        options.addOption(optFactory.create("f", "family", true, "Column family."));
+        options.addOption(optFactory.create("q", "qualifier", true, "Column qualifier."));
+        options.addOption(optFactory.create("bs", "batchsize", true, "Batch size (number of messages per HBase flush)."));
+        options.addOption(optFactory.create("pd", "prefixdate", false, "Prefix key with salted date."));
+        // SequenceFile sink
+        options.addOption(optFactory.create("o", "output", true, "HDFS base path for output."));
+        options.addOption(optFactory.create("df", "dateformat", true, "Date format for the date subdirectories."));
+        options.addOption(optFactory.create("fs", "filesize", true, "Max file size for output files."));
+        options.addOption(optFactory.create("ub", "usebytes", false, "Use BytesWritable for value rather than Text."));
+        options.addOption(optFactory.create("ts", "addtimestamp", false, "Adds bagheera timestamp to the json"));
+
+        CommandLineParser parser = new GnuParser();
+        ShutdownHook sh = ShutdownHook.getInstance();
+        try {
+            // Parse command line options
+            CommandLine cmd = parser.parse(options, args);
+
+            final KafkaConsumer consumer = KafkaConsumer.fromOptions(cmd);
+            sh.addFirst(consumer);
+
+            // Every sink gets the whole configuration and picks its own settings out of it
+            SinkConfiguration sinkConfig = new SinkConfiguration();
+            sinkConfig.setString(CompositeSink.SINKS, cmd.getOptionValue("sinks"));
+            if (cmd.hasOption("queuesize")) {
+                sinkConfig.setInt(CompositeSink.QUEUE_SIZE, Integer.parseInt(cmd.getOptionValue("queuesize")));
+            }
+            if (cmd.hasOption("table")) {
+                sinkConfig.setString("hbasesink.hbase.tablename", cmd.getOptionValue("table"));
+            }
+            if (cmd.hasOption("numthreads")) {
+                sinkConfig.setInt("hbasesink.hbase.numthreads", Integer.parseInt(cmd.getOptionValue("numthreads")));
+            }
+            if (cmd.hasOption("batchsize")) {
+                sinkConfig.setInt("hbasesink.hbase.batchsize", Integer.parseInt(cmd.getOptionValue("batchsize")));
+            }
+            sinkConfig.setString("hbasesink.hbase.column.family", cmd.getOptionValue("family", "data"));
+            sinkConfig.setString("hbasesink.hbase.column.qualifier", cmd.getOptionValue("qualifier", "json"));
+            sinkConfig.setBoolean("hbasesink.hbase.rowkey.prefixdate", cmd.hasOption("prefixdate"));
+            sinkConfig.setString("hdfssink.hdfs.basedir.path", cmd.getOptionValue("output", "/bagheera"));
+            sinkConfig.setString("hdfssink.hdfs.date.format", cmd.getOptionValue("dateformat", "yyyy-MM-dd"));
+            sinkConfig.setLong("hdfssink.hdfs.max.filesize", Long.parseLong(cmd.getOptionValue("filesize", "536870912")));
+            sinkConfig.setBoolean("hdfssink.hdfs.usebytes", cmd.hasOption("usebytes"));
+            sinkConfig.setBoolean("hdfssink.hdfs.addtimestamp", cmd.hasOption("addtimestamp"));
+            KeyValueSinkFactory sinkFactory = KeyValueSinkFactory.getInstance(CompositeSink.class, sinkConfig);
+            sh.addLast(sinkFactory);
+
+            // Set the sink factory for consumer storage
+            consumer.setSinkFactory(sinkFactory);
+
+            prepareHealthChecks();
+
+            // Initialize metrics collection, reporting, etc.
+            final MetricsManager manager = MetricsManager.getDefaultMetricsManager();
+
+            // Begin polling
+            consumer.poll();
+        } catch (ParseException e) {
+            LOG.error("Error parsing command line options", e);
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp(KafkaCompositeConsumer.class.getName(), options);
+        } catch (NumberFormatException e) {
+            LOG.error("Failed to parse numeric option", e);
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
@@ -37,8 +38,11 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.zip.DataFormatException;
 
 import kafka.consumer.ConsumerConfig;
+import kafka.consumer.ConsumerIterator;
+import kafka.consumer.ConsumerTimeoutException;
 import kafka.consumer.KafkaStream;
 import kafka.consumer.Whitelist;
 import kafka.javaapi.consumer.ConsumerConnector;
@@ -49,15 +53,18 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
 import org.apache.log4j.Logger;
 
-import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
 import com.mozilla.bagheera.BagheeraProto.BagheeraMessage.Operation;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage.PayloadEncoding;
 import com.mozilla.bagheera.cli.OptionFactory;
 import com.mozilla.bagheera.consumer.validation.JsonValidator;
 import com.mozilla.bagheera.consumer.validation.ValidationPipeline;
+import com.mozilla.bagheera.serializer.DecodedMessage;
 import com.mozilla.bagheera.sink.KeyValueSink;
 import com.mozilla.bagheera.sink.KeyValueSinkFactory;
+import com.mozilla.bagheera.sink.RecordBatch;
+import com.mozilla.bagheera.util.PayloadInflater;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Meter;
 import com.yammer.metrics.core.MetricName;
@@ -67,6 +74,14 @@ public class KafkaConsumer implements Consumer {
     private static final Logger LOG = Logger.getLogger(KafkaConsumer.class);
     
     protected static final int DEFAULT_NUM_THREADS = 2;
+    // Payloads stored compressed may inflate to at most this many bytes
+    public static final String MAX_INFLATED_LENGTH = "consumer.max.inflated.length";
+    // Most messages handed to a sink in one batch
+    public static final String BATCH_SIZE = "consumer.batch.size";
+    // How long a fetching thread waits for more messages before handing over a partial batch
+    public static final String CONSUMER_TIMEOUT_MS = "consumer.timeout.ms";
+    protected static final String DEFAULT_CONSUMER_TIMEOUT_MS = "100";
+    protected static final String AUTOCOMMIT_ENABLE = "autocommit.enable";
 
     protected ExecutorService executor;
     protected List<Future<Void>> workers;
@@ -74,6 +89,13 @@ public class KafkaConsumer implements Consumer {
     protected List<KafkaStream<Message>> streams;
     protected KeyValueSinkFactory sinkFactory;
     protected ValidationPipeline validationPipeline;
+    protected PayloadInflater payloadInflater;
+    protected int maxInflatedLength;
+    protected int batchSize;
+    // Stores messages on separate threads when consumer.sink.threads is set
+    protected SinkStage sinkStage;
+    // Commits offsets after flushing the sinks when consumer.commit.mode is flush
+    protected OffsetCommitter offsetCommitter;
     
     protected Meter consumed;
     protected Meter invalidMessageMeter;
@@ -84,12 +106,40 @@ public class KafkaConsumer implements Consumer {
     
     public KafkaConsumer(String topic, Properties props, int numThreads) {
         LOG.info("# of threads: " + numThreads);
-        executor = Executors.newFixedThreadPool(numThreads);
-        workers = new ArrayList<Future<Void>>(numThreads);
+        batchSize = Math.max(1, Integer.parseInt(props.getProperty(BATCH_SIZE, "100")));
+        boolean flushCommits = OffsetCommitter.isEnabled(props);
+        if ((batchSize > 1 || flushCommits) && !props.containsKey(CONSUMER_TIMEOUT_MS)) {
+            // Without a timeout a partial batch (or a checkpoint) would wait for the next message to be fetched
+            props.setProperty(CONSUMER_TIMEOUT_MS, DEFAULT_CONSUMER_TIMEOUT_MS);
+        }
+        if (flushCommits) {
+            props.setProperty(AUTOCOMMIT_ENABLE, "false");
+            offsetCommitter = new OffsetCommitter(topic, props, new OffsetCommitter.Checkpoint() {
+                @Override
+                public void run() throws IOException, InterruptedException {
+                    checkpoint();
+                }
+            });
+            LOG.info("Committing offsets after flushing the sinks");
+        }
+        if (SinkStage.getThreads(props) > 0) {
+            sinkStage = new SinkStage(topic, props, new SinkStage.HandlerFactory() {
+                @Override
+                public SinkStage.Handler newHandler() {
+                    return new SinkWriter();
+                }
+            });
+            LOG.info("# of sink threads: " + sinkStage.getThreadCount());
+        }
+        int totalThreads = numThreads + (sinkStage == null ? 0 : sinkStage.getThreadCount());
+        executor = Executors.newFixedThreadPool(totalThreads + (offsetCommitter == null ? 0 : 1));
+        workers = new ArrayList<Future<Void>>(totalThreads);
         
         ConsumerConfig consumerConfig = new ConsumerConfig(props);
         consumerConnector = kafka.consumer.Consumer.createJavaConsumerConnector(consumerConfig);
         streams = consumerConnector.createMessageStreamsByFilter(new Whitelist(topic), numThreads);
+        payloadInflater = new PayloadInflater(totalThreads);
+        maxInflatedLength = Integer.parseInt(props.getProperty(MAX_INFLATED_LENGTH, "10485760"));
         
         consumed = Metrics.newMeter(new MetricName("bagheera", "consumer", topic + ".consumed"), "messages", TimeUnit.SECONDS);
         invalidMessageMeter = Metrics.newMeter(new MetricName("bagheera", "consumer", topic + ".invalid"), "messages", TimeUnit.SECONDS);
@@ -106,6 +156,10 @@ public class KafkaConsumer implements Consumer {
     @Override
     public void close() {
         LOG.info("Shutting down!");
+        if (offsetCommitter != null) {
+            // Commit what has been fetched so far; the fetch threads stay paused until they're interrupted
+            offsetCommitter.close(5000);
+        }
         if (executor != null) {
             // Regular shutdown doesn't do much for us here since
             // these are long running threads
@@ -131,46 +185,95 @@ public class KafkaConsumer implements Consumer {
                     LOG.info("Shutting down consumer connector!");
                     consumerConnector.shutdown();
                 }
+                payloadInflater.close();
             }
         } 
     }
     
     @Override
     public void poll() {
-        final CountDownLatch latch = new CountDownLatch(streams.size());
+        final int numWorkers = streams.size() + (sinkStage == null ? 0 : sinkStage.getThreadCount()) +
+                               (offsetCommitter == null ? 0 : 1);
+        final CountDownLatch latch = new CountDownLatch(numWorkers);
+        if (offsetCommitter != null) {
+            for (int i = 0; i < streams.size(); i++) {
+                offsetCommitter.register();
+            }
+            workers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    try {
+                        offsetCommitter.call();
+                    } catch (IOException e) {
+                        LOG.error("Error committing offsets, stopping", e);
+                    } catch (InterruptedException e) {
+                        LOG.info("Offset committer stopped");
+                    } finally {
+                        latch.countDown();
+                    }
+                    return null;
+                }
+            }));
+        }
+        if (sinkStage != null) {
+            for (final Callable<Void> sinkWorker : sinkStage.getWorkers()) {
+                workers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        try {
+                            sinkWorker.call();
+                        } catch (IOException e) {
+                            LOG.error("IO error while storing to data sink", e);
+                        } catch (Exception e) {
+                            LOG.error("Error in sink worker", e);
+                        } finally {
+                            latch.countDown();
+                        }
+                        return null;
+                    }
+                }));
+            }
+        }
         for (final KafkaStream<Message> stream : streams) {  
             workers.add(executor.submit(new Callable<Void>() {
                 @Override
                 public Void call() {                  
+                    SinkWriter writer = sinkStage == null ? new SinkWriter() : null;
                     try {
-                        for (MessageAndMetadata<Message> mam : stream) {
-                            BagheeraMessage bmsg = BagheeraMessage.parseFrom(ByteString.copyFrom(mam.message().payload()));
-                            // get the sink for this message's namespace 
-                            // (typically only one sink unless a regex pattern was used to listen to multiple topics)
-                            KeyValueSink sink = sinkFactory.getSink(bmsg.getNamespace());
-                            if (sink == null) {
-                                LOG.error("Could not obtain sink for namespace: " + bmsg.getNamespace());
-                                break;
-                            }
-                            if (bmsg.getOperation() == Operation.CREATE_UPDATE && 
-                                bmsg.hasId() && bmsg.hasPayload()) {
-                                if (validationPipeline == null ||
-                                    validationPipeline.isValid(bmsg.getPayload().toByteArray())) {
-                                    if (bmsg.hasTimestamp()) {
-                                        sink.store(bmsg.getId(), bmsg.getPayload().toByteArray(), bmsg.getTimestamp());
+                        ConsumerIterator<Message> iter = stream.iterator();
+                        while (true) {
+                            try {
+                                while (!isCheckpointRequested()) {
+                                    if (!iter.hasNext()) {
+                                        return null;
+                                    }
+                                    MessageAndMetadata<Message> mam = iter.next();
+                                    // The payload is left in the fetched message set's buffer rather than copied
+                                    DecodedMessage msg = DecodedMessage.decode(mam.message());
+                                    String namespace = msg.getEnvelope().getNamespace();
+                                    // get the sink for this message's namespace 
+                                    // (typically only one sink unless a regex pattern was used to listen to multiple topics)
+                                    KeyValueSink sink = sinkFactory.getSink(namespace);
+                                    if (sink == null) {
+                                        LOG.error("Could not obtain sink for namespace: " + namespace);
+                                        return null;
+                                    }
+                                    if (writer != null) {
+                                        writer.handle(msg, sink);
                                     } else {
-                                        sink.store(bmsg.getId(), bmsg.getPayload().toByteArray());
+                                        sinkStage.put(msg, sink);
                                     }
-                                } else {
-                                    invalidMessageMeter.mark();
-                                    // TODO: sample out an example payload
-                                    LOG.warn("Invalid payload for namespace: " + bmsg.getNamespace());
                                 }
-                            } else if (bmsg.getOperation() == Operation.DELETE &&
-                                bmsg.hasId()) {
-                                sink.delete(bmsg.getId());
+                            } catch (ConsumerTimeoutException e) {
+                                // Everything fetched so far has been read
+                            }
+                            if (writer != null) {
+                                writer.flush();
+                            }
+                            if (isCheckpointRequested()) {
+                                // Everything this thread fetched has been handed to the sinks
+                                offsetCommitter.pause();
                             }
-                            consumed.mark();            
                         }
                     } catch (InvalidProtocolBufferException e) {
                         LOG.error("Invalid protocol buffer in data stream", e);
@@ -178,7 +281,19 @@ public class KafkaConsumer implements Consumer {
                         LOG.error("Message ID was not in UTF-8 encoding", e);
                     } catch (IOException e) {
                         LOG.error("IO error while storing to data sink", e);
+                    } catch (InterruptedException e) {
+                        LOG.info("Interrupted while waiting for a sink worker or a checkpoint");
                     } finally {
+                        try {
+                            if (writer != null) {
+                                writer.flush();
+                            }
+                        } catch (IOException e) {
+                            LOG.error("IO error while storing to data sink", e);
+                        }
+                        if (offsetCommitter != null) {
+                            offsetCommitter.deregister();
+                        }
                     	latch.countDown();
                     }
                     
@@ -192,7 +307,7 @@ public class KafkaConsumer implements Consumer {
         try {
             while (true) {
                 latch.await(10, TimeUnit.SECONDS);
-                if (latch.getCount() != streams.size()) {
+                if (latch.getCount() != numWorkers) {
                     // we have a dead thread and should exit
                     break;
                 }
@@ -219,6 +334,133 @@ public class KafkaConsumer implements Consumer {
        }
     }
     
+    private boolean isCheckpointRequested() {
+        return offsetCommitter != null && offsetCommitter.isRequested();
+    }
+
+    /**
+     * Stores everything the fetch threads have handed over, flushes every
+     * sink and commits the offsets. Only called while the fetch threads are
+     * paused.
+     */
+    protected void checkpoint() throws IOException, InterruptedException {
+        if (sinkStage != null) {
+            sinkStage.flush();
+        }
+        for (KeyValueSink sink : sinkFactory.getSinks()) {
+            sink.flush();
+        }
+        consumerConnector.commitOffsets();
+    }
+
+    /**
+     * Collects runs of stores or deletes to the same sink into a batch, and
+     * hands the batch to the sink once it is full, once the next message
+     * needs a different batch or when flushed. Each thread has its own.
+     */
+    protected class SinkWriter implements SinkStage.Handler {
+
+        private final RecordBatch batch = new RecordBatch(batchSize);
+        private KeyValueSink batchSink;
+        private boolean batchDeletes;
+        private int messages;
+
+        @Override
+        public void handle(DecodedMessage msg, KeyValueSink sink) throws IOException {
+            BagheeraMessage bmsg = msg.getEnvelope();
+            if (bmsg.getOperation() == Operation.CREATE_UPDATE && 
+                bmsg.hasId() && msg.hasPayload()) {
+                ByteBuffer payload = getPayload(msg);
+                if (payload == null) {
+                    invalidMessageMeter.mark();
+                } else if (validationPipeline == null ||
+                    validationPipeline.isValid(payload)) {
+                    startBatch(sink, false);
+                    int offset = payload.arrayOffset() + payload.position();
+                    if (bmsg.hasTimestamp()) {
+                        batch.add(bmsg.getId(), payload.array(), offset, payload.remaining(), bmsg.getTimestamp());
+                    } else {
+                        batch.add(bmsg.getId(), payload.array(), offset, payload.remaining());
+                    }
+                } else {
+                    invalidMessageMeter.mark();
+                    // TODO: sample out an example payload
+                    LOG.warn("Invalid payload for namespace: " + bmsg.getNamespace());
+                }
+            } else if (bmsg.getOperation() == Operation.DELETE) {
+                if (bmsg.getDeleteIdCount() > 0) {
+                    startBatch(sink, true);
+                    for (String deleteId : bmsg.getDeleteIdList()) {
+                        batch.addKey(deleteId);
+                    }
+                } else if (bmsg.hasId()) {
+                    startBatch(sink, true);
+                    batch.addKey(bmsg.getId());
+                }
+            }
+            messages++;
+            if (batch.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        /**
+         * Hands over the current batch first if the next record doesn't belong in it.
+         */
+        private void startBatch(KeyValueSink sink, boolean deletes) throws IOException {
+            if (!batch.isEmpty() && (sink != batchSink || deletes != batchDeletes)) {
+                handOver();
+            }
+            batchSink = sink;
+            batchDeletes = deletes;
+        }
+
+        private void handOver() throws IOException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                if (batchDeletes) {
+                    batchSink.deleteBatch(batch);
+                } else {
+                    batchSink.storeBatch(batch);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            handOver();
+            if (messages > 0) {
+                consumed.mark(messages);
+                messages = 0;
+            }
+        }
+    }
+
+    /**
+     * @return the message's payload between the position and limit of a heap
+     *         buffer that must not be modified: a view of the message's own
+     *         buffer, or the inflated payload if the server stored it
+     *         compressed. Null if it couldn't be inflated.
+     */
+    protected ByteBuffer getPayload(DecodedMessage msg) {
+        BagheeraMessage bmsg = msg.getEnvelope();
+        PayloadEncoding encoding = bmsg.getPayloadEncoding();
+        if (encoding == PayloadEncoding.IDENTITY) {
+            return ByteBuffer.wrap(msg.getPayloadArray(), msg.getPayloadOffset(), msg.getPayloadLength());
+        }
+        try {
+            return payloadInflater.inflate(msg.getPayloadArray(), msg.getPayloadOffset(), msg.getPayloadLength(),
+                                           encoding == PayloadEncoding.GZIP, maxInflatedLength);
+        } catch (DataFormatException e) {
+            LOG.warn("Could not inflate payload " + bmsg.getId() + " for namespace " + bmsg.getNamespace() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Get the set of common command-line options for a Kafka consumer
      * @return
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.consumer;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
+
+/**
+ * Commits a consumer's offsets only once everything consumed up to them has
+ * been durably stored, instead of letting the connector commit them on a
+ * timer while messages may still be waiting in the sinks.
+ *
+ * Kafka 0.7 commits the offsets of all of a connector's partitions at once,
+ * so every commit.interval.ms each fetch thread is paused between messages
+ * once it has handed everything it fetched to the sinks. While they are all
+ * paused the checkpoint flushes the sinks and commits the offsets, then lets
+ * them go on. Once a checkpoint fails (or a fetch thread stops) nothing is
+ * committed anymore, and the messages since the last commit are consumed
+ * again after a restart.
+ */
+public class OffsetCommitter implements Callable<Void> {
+
+    private static final Logger LOG = Logger.getLogger(OffsetCommitter.class);
+
+    // "auto" lets the connector commit on its own, "flush" commits after the sinks have been flushed
+    public static final String COMMIT_MODE = "consumer.commit.mode";
+    public static final String COMMIT_INTERVAL_MS = "consumer.commit.interval.ms";
+    public static final String FLUSH_MODE = "flush";
+
+    /**
+     * Stores everything handed to the sinks and commits the offsets. Runs
+     * while every fetch thread is paused.
+     */
+    public interface Checkpoint {
+        public void run() throws IOException, InterruptedException;
+    }
+
+    private final long intervalMillis;
+    private final Checkpoint checkpoint;
+    private final Timer commitTimer;
+
+    // Fetch threads taking part, and how many of them are paused
+    private int parties;
+    private int paused;
+    // Bumped at the end of every checkpoint to let the paused threads go
+    private long generation;
+    private volatile boolean requested;
+    private boolean failed;
+    private boolean closed;
+
+    public static boolean isEnabled(Properties props) {
+        return FLUSH_MODE.equals(props.getProperty(COMMIT_MODE, "auto"));
+    }
+
+    public OffsetCommitter(String topic, Properties props, Checkpoint checkpoint) {
+        this(topic, Long.parseLong(props.getProperty(COMMIT_INTERVAL_MS, "10000")), checkpoint);
+    }
+
+    public OffsetCommitter(String topic, long intervalMillis, Checkpoint checkpoint) {
+        this.intervalMillis = intervalMillis;
+        this.checkpoint = checkpoint;
+        this.commitTimer = Metrics.newTimer(new MetricName("bagheera", "consumer", topic + ".commit.time"),
+                                            TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Adds a fetch thread. Every fetch thread has to be registered before
+     * any of them starts fetching.
+     */
+    public synchronized void register() {
+        parties++;
+    }
+
+    /**
+     * Removes a fetch thread that has stopped. Unless the committer is
+     * closed the thread may have fetched messages it couldn't store, so
+     * nothing is committed from then on.
+     */
+    public synchronized void deregister() {
+        parties--;
+        if (!closed && !failed) {
+            LOG.warn("Fetch thread stopped, no more offsets will be committed");
+            failed = true;
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return true if the fetch threads should hand over what they have fetched and pause
+     */
+    public boolean isRequested() {
+        return requested;
+    }
+
+    /**
+     * Pauses a fetch thread that has handed everything it fetched to the
+     * sinks until the checkpoint is done. Once the committer is closed the
+     * thread stays paused until it is interrupted.
+     *
+     * @throws IOException if the checkpoint failed
+     */
+    public synchronized void pause() throws InterruptedException, IOException {
+        long current = generation;
+        paused++;
+        notifyAll();
+        try {
+            while (generation == current || closed) {
+                wait();
+            }
+        } finally {
+            paused--;
+        }
+        if (failed) {
+            throw new IOException("Offsets can't be committed after a failed checkpoint");
+        }
+    }
+
+    /**
+     * Pauses the fetch threads, runs the checkpoint and lets them go on.
+     *
+     * @param timeoutMillis how long to wait for the fetch threads to pause, 0 to wait as long as it takes
+     * @return true if the offsets were committed
+     * @throws IOException if the checkpoint failed, or an earlier one did
+     */
+    public synchronized boolean checkpoint(long timeoutMillis) throws InterruptedException, IOException {
+        if (closed) {
+            return false;
+        }
+        return runCheckpoint(timeoutMillis, false);
+    }
+
+    private boolean runCheckpoint(long timeoutMillis, boolean last) throws InterruptedException, IOException {
+        if (failed) {
+            throw new IOException("Offsets can't be committed after a failed checkpoint");
+        }
+        requested = true;
+        try {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (paused < parties) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (timeoutMillis <= 0) {
+                    wait();
+                } else if (remaining > 0) {
+                    wait(remaining);
+                } else {
+                    return false;
+                }
+            }
+            if (failed) {
+                throw new IOException("A fetch thread stopped before the checkpoint");
+            }
+            TimerContext context = commitTimer.time();
+            try {
+                checkpoint.run();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            } finally {
+                context.stop();
+            }
+            return true;
+        } finally {
+            requested = false;
+            if (!last) {
+                generation++;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Runs a checkpoint every interval until one fails or the thread is interrupted.
+     */
+    @Override
+    public Void call() throws IOException, InterruptedException {
+        while (true) {
+            Thread.sleep(intervalMillis);
+            checkpoint(0);
+        }
+    }
+
+    /**
+     * Commits everything stored so far one last time and stops committing.
+     * The fetch threads are left paused until they are interrupted, so
+     * nothing is fetched past the last commit.
+     *
+     * @param timeoutMillis how long to wait for the fetch threads to pause
+     */
+    public synchronized void close(long timeoutMillis) {
+        if (closed) {
+            return;
+        }
+        try {
+            if (!failed && runCheckpoint(timeoutMillis, true)) {
+                LOG.info("Committed offsets before shutting down");
+            } else {
+                LOG.warn("Could not commit offsets before shutting down, messages since the last commit will be consumed again");
+            }
+        } catch (IOException e) {
+            LOG.error("Error committing offsets before shutting down", e);
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while committing offsets before shutting down");
+            Thread.currentThread().interrupt();
+        } finally {
+            closed = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.consumer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.mozilla.bagheera.serializer.DecodedMessage;
+import com.mozilla.bagheera.sink.KeyValueSink;
+import com.mozilla.bagheera.util.BoundedRing;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Sink workers that write messages decoded by the fetch threads, so a slow
+ * flush only holds up the fetch threads once a worker's ring is full, and
+ * more threads can write to the sinks than there are Kafka streams.
+ *
+ * Each worker drains its own bounded ring. Messages are sent to a worker by
+ * the hash of their id, so messages with the same id are stored in the
+ * order they were fetched.
+ */
+public class SinkStage {
+
+    private static final Logger LOG = Logger.getLogger(SinkStage.class);
+
+    // Number of sink worker threads (0 stores messages on the fetch threads)
+    public static final String THREADS = "consumer.sink.threads";
+    // Messages each sink worker can have waiting
+    public static final String QUEUE_SIZE = "consumer.sink.queue.size";
+
+    /**
+     * Stores messages for one worker, possibly holding them back to store
+     * them together.
+     */
+    public interface Handler {
+        public void handle(DecodedMessage msg, KeyValueSink sink) throws IOException;
+        // Called whenever the worker's ring is empty, to store anything held back
+        public void flush() throws IOException;
+    }
+
+    public interface HandlerFactory {
+        public Handler newHandler();
+    }
+
+    private static class Entry {
+        final DecodedMessage msg;
+        final KeyValueSink sink;
+        // Set on the entries flush() puts in each ring instead of a message
+        final CountDownLatch flushed;
+
+        Entry(DecodedMessage msg, KeyValueSink sink) {
+            this(msg, sink, null);
+        }
+
+        Entry(DecodedMessage msg, KeyValueSink sink, CountDownLatch flushed) {
+            this.msg = msg;
+            this.sink = sink;
+            this.flushed = flushed;
+        }
+    }
+
+    private final HandlerFactory handlerFactory;
+    private final List<BoundedRing<Entry>> rings;
+    private final Meter fullMeter;
+    private final AtomicInteger stoppedWorkers = new AtomicInteger();
+
+    public static int getThreads(Properties props) {
+        return Integer.parseInt(props.getProperty(THREADS, "0"));
+    }
+
+    public SinkStage(String topic, Properties props, HandlerFactory handlerFactory) {
+        this(topic, getThreads(props), Integer.parseInt(props.getProperty(QUEUE_SIZE, "1024")), handlerFactory);
+    }
+
+    /**
+     * @param topic names the metrics
+     * @param queueSize the number of messages each worker can have waiting
+     * @param handlerFactory makes a handler for each worker
+     */
+    public SinkStage(String topic, int numThreads, int queueSize, HandlerFactory handlerFactory) {
+        if (numThreads <= 0) {
+            throw new IllegalArgumentException("Sink stage needs at least one thread");
+        }
+        this.handlerFactory = handlerFactory;
+        this.rings = new ArrayList<BoundedRing<Entry>>(numThreads);
+        for (int i = 0; i < numThreads; i++) {
+            final BoundedRing<Entry> ring = new BoundedRing<Entry>(queueSize);
+            rings.add(ring);
+            Metrics.newGauge(new MetricName("bagheera", "consumer", topic + ".sink.queue." + i), new Gauge<Integer>() {
+                @Override
+                public Integer value() {
+                    return ring.size();
+                }
+            });
+        }
+        Metrics.newGauge(new MetricName("bagheera", "consumer", topic + ".sink.queued"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return getQueuedCount();
+            }
+        });
+        fullMeter = Metrics.newMeter(new MetricName("bagheera", "consumer", topic + ".sink.queue.full"), "messages", TimeUnit.SECONDS);
+    }
+
+    public int getThreadCount() {
+        return rings.size();
+    }
+
+    /**
+     * @return the number of messages waiting for the sink workers
+     */
+    public int getQueuedCount() {
+        int queued = 0;
+        for (BoundedRing<Entry> ring : rings) {
+            queued += ring.size();
+        }
+        return queued;
+    }
+
+    /**
+     * Hands a message to the worker for its id, waiting while that worker's
+     * ring is full.
+     */
+    public void put(DecodedMessage msg, KeyValueSink sink) throws InterruptedException {
+        BoundedRing<Entry> ring = rings.get((msg.getEnvelope().getId().hashCode() & Integer.MAX_VALUE) % rings.size());
+        Entry entry = new Entry(msg, sink);
+        if (!ring.offer(entry)) {
+            fullMeter.mark();
+            ring.put(entry);
+        }
+    }
+
+    /**
+     * Waits until every worker has stored the messages put before this call
+     * and flushed its handler. Nothing may be put meanwhile.
+     *
+     * @throws IOException if a worker stopped before it got to them
+     */
+    public void flush() throws IOException, InterruptedException {
+        CountDownLatch flushed = new CountDownLatch(rings.size());
+        Entry marker = new Entry(null, null, flushed);
+        for (BoundedRing<Entry> ring : rings) {
+            while (!ring.offer(marker)) {
+                checkWorkers();
+                Thread.sleep(1);
+            }
+        }
+        while (!flushed.await(1, TimeUnit.SECONDS)) {
+            checkWorkers();
+        }
+    }
+
+    private void checkWorkers() throws IOException {
+        if (stoppedWorkers.get() > 0) {
+            throw new IOException("A sink worker has stopped, waiting messages can't be stored");
+        }
+    }
+
+    private static void handle(Handler handler, Entry entry) throws IOException {
+        if (entry.flushed != null) {
+            handler.flush();
+            entry.flushed.countDown();
+        } else {
+            handler.handle(entry.msg, entry.sink);
+        }
+    }
+
+    /**
+     * @return the worker tasks, one per ring; they run until interrupted or
+     *         until a message can't be stored
+     */
+    public List<Callable<Void>> getWorkers() {
+        List<Callable<Void>> workers = new ArrayList<Callable<Void>>(rings.size());
+        for (final BoundedRing<Entry> ring : rings) {
+            final Handler handler = handlerFactory.newHandler();
+            workers.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    try {
+                        while (true) {
+                            Entry entry = ring.take();
+                            do {
+                                handle(handler, entry);
+                            } while ((entry = ring.poll()) != null);
+                            handler.flush();
+                        }
+                    } catch (InterruptedException e) {
+                        // Store what has already been fetched before stopping
+                        Entry entry;
+                        int remaining = 0;
+                        while ((entry = ring.poll()) != null) {
+                            handle(handler, entry);
+                            remaining++;
+                        }
+                        handler.flush();
+                        LOG.info("Sink worker stopped after storing " + remaining + " waiting messages");
+                    } finally {
+                        stoppedWorkers.incrementAndGet();
+                    }
+                    return null;
+                }
+            });
+        }
+        return workers;
+    }
+}
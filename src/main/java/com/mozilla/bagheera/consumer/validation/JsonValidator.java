@@ -20,8 +20,11 @@
 package com.mozilla.bagheera.consumer.validation;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.apache.log4j.Logger;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParseException;
@@ -34,11 +37,16 @@ public class JsonValidator implements Validator {
     private final JsonFactory jsonFactory = new JsonFactory();
     
     @Override
-    public boolean isValid(byte[] data) {
+    public boolean isValid(ByteBuffer data) {
         boolean isValid = false;
         JsonParser parser = null;
         try {
-            parser = jsonFactory.createJsonParser(data);
+            if (data.hasArray()) {
+                parser = jsonFactory.createJsonParser(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            } else {
+                // Read-only and direct buffers are read in place
+                parser = jsonFactory.createJsonParser(new ChannelBufferInputStream(ChannelBuffers.wrappedBuffer(data)));
+            }
             while (parser.nextToken() != null) {
                 // noop
             }
@@ -19,6 +19,7 @@
  */
 package com.mozilla.bagheera.consumer.validation;
 
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -35,6 +36,10 @@ public class ValidationPipeline {
     }
     
     public boolean isValid(byte[] data) {
+        return isValid(ByteBuffer.wrap(data));
+    }
+
+    public boolean isValid(ByteBuffer data) {
         boolean valid = false;
         for (Validator validator : validators) {
             valid = validator.isValid(data);
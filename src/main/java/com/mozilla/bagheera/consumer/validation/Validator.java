@@ -19,8 +19,14 @@
  */
 package com.mozilla.bagheera.consumer.validation;
 
+import java.nio.ByteBuffer;
+
 public interface Validator {
 
-    public boolean isValid(byte[] data);
+    /**
+     * @param data the bytes between the buffer's position and limit, which
+     *             are left where they are
+     */
+    public boolean isValid(ByteBuffer data);
     
 }
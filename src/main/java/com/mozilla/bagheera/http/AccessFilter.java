@@ -19,35 +19,58 @@
  */
 package com.mozilla.bagheera.http;
 
-import java.net.InetSocketAddress;
-
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 
 import com.mozilla.bagheera.util.HttpUtil;
 import com.mozilla.bagheera.util.WildcardProperties;
+import com.mozilla.bagheera.validation.NamespacePolicies;
+import com.mozilla.bagheera.validation.NamespacePolicy;
+import com.mozilla.bagheera.validation.NamespacePolicyStore;
 import com.mozilla.bagheera.validation.Validator;
 
 public class AccessFilter extends SimpleChannelUpstreamHandler {
 
-    private static final String ALLOW_DELETE_ACCESS = ".allow.delete.access";
-    private static final String ID_VALIDATION = ".id.validation";
+    static final String ID_VALIDATION = NamespacePolicy.ID_VALIDATION;
     
     private final Validator validator;
-    private final WildcardProperties props;
+    private final NamespacePolicyStore policies;
+    private final int maxContentLength;
+
+    // Set while the remaining chunks of a rejected request are being dropped
+    private volatile boolean discardChunks = false;
     
     public AccessFilter(Validator validator, WildcardProperties props) {
+        this(validator, props, -1);
+    }
+
+    /**
+     * @param maxContentLength requests declaring a larger Content-Length are rejected
+     *        (-1 to leave that to the aggregator)
+     */
+    public AccessFilter(Validator validator, WildcardProperties props, int maxContentLength) {
+        this(validator, new NamespacePolicyStore(new NamespacePolicies(props, maxContentLength)), maxContentLength);
+    }
+
+    /**
+     * @param policies the per-namespace settings, which may change while the filter is in use
+     */
+    public AccessFilter(Validator validator, NamespacePolicyStore policies, int maxContentLength) {
         this.validator = validator;
-        this.props = props;
-    }    
+        this.policies = policies;
+        this.maxContentLength = maxContentLength;
+    }
 
     private String buildErrorMessage(String msg, HttpRequest request, MessageEvent e) {
         return String.format("%s: %s %s - \"%s\" \"%s\"", msg, request.getMethod().getName(), request.getUri(), 
-                             HttpUtil.getRemoteAddr(request, ((InetSocketAddress)e.getChannel().getRemoteAddress()).toString()), 
+                             ClientAddressFilter.getClientAddress(request, e.getChannel()), 
                              request.getHeader(HttpUtil.USER_AGENT));
     }
     
@@ -56,13 +79,32 @@ public class AccessFilter extends SimpleChannelUpstreamHandler {
         Object msg = e.getMessage();
         if (msg instanceof BagheeraHttpRequest) {
             BagheeraHttpRequest request = (BagheeraHttpRequest)msg;
+            // This filter runs on the request head before the body is aggregated, so if the
+            // request gets rejected below the rest of its body is dropped as it arrives.
+            discardChunks = request.isChunked();
+            // Check declared Content-Length
+            if (maxContentLength > 0 && HttpHeaders.getContentLength(request, -1) > maxContentLength) {
+                throw new TooLongFrameException(buildErrorMessage("HTTP content length exceeded: " + maxContentLength + " bytes", request, e));
+            }
             // Check Namespace
-            if (request.getNamespace() == null || !validator.isValidNamespace(request.getNamespace())) {
+            NamespacePolicy policy = null;
+            if (request.getNamespace() != null && validator.isValidNamespace(request.getNamespace())) {
+                policy = policies.getPolicy(request.getNamespace());
+            }
+            if (policy == null) {
                 throw new InvalidPathException(buildErrorMessage("Tried to access invalid resource", request, e));
             }
-            // Check Id
-            boolean validateId = Boolean.parseBoolean(props.getWildcardProperty(request.getNamespace() + ID_VALIDATION, "true"));
-            if (request.getId() != null && validateId && !validator.isValidId(request.getId())) {
+            // Check the namespace's own limit on the declared Content-Length
+            int nsMaxContentLength = policy.getMaxContentLength();
+            if (nsMaxContentLength > 0 && HttpHeaders.getContentLength(request, -1) > nsMaxContentLength) {
+                throw new TooLongFrameException(buildErrorMessage("HTTP content length exceeded: " + nsMaxContentLength + " bytes", request, e));
+            }
+            // Check Id (the ids in a batch are checked per document by the SubmissionHandler)
+            if (request.isBatch()) {
+                if (request.getMethod() != HttpMethod.POST && request.getMethod() != HttpMethod.PUT) {
+                    throw new HttpSecurityException(buildErrorMessage("Tried to access invalid method for batch resource", request, e));
+                }
+            } else if (request.getId() != null && policy.isIdValidation() && !validator.isValidId(request.getId())) {
                 throw new InvalidPathException(buildErrorMessage("Submitted an invalid ID", request, e));
             } 
             // Check POST/GET/DELETE Access
@@ -71,14 +113,18 @@ public class AccessFilter extends SimpleChannelUpstreamHandler {
             } else if (request.getMethod() == HttpMethod.GET) {
                 throw new HttpSecurityException(buildErrorMessage("Tried to access GET method for resource", request, e));
             } else if (request.getMethod() == HttpMethod.DELETE) {
-                boolean allowDelAccess = Boolean.parseBoolean(props.getWildcardProperty(request.getNamespace() + ALLOW_DELETE_ACCESS, "false"));
-                if (!allowDelAccess) {
+                if (!policy.isAllowDeleteAccess()) {
                     throw new HttpSecurityException(buildErrorMessage("Tried to access DELETE method for resource", request, e));
                 }
             } else {
                 throw new HttpSecurityException(buildErrorMessage("Tried to access invalid method for resource", request, e));
             }
+            discardChunks = false;
             Channels.fireMessageReceived(ctx, request, e.getRemoteAddress());
+        } else if (discardChunks && msg instanceof HttpChunk) {
+            if (((HttpChunk)msg).isLast()) {
+                discardChunks = false;
+            }
         } else {
             ctx.sendUpstream(e);
         }
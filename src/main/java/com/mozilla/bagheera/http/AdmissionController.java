@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mozilla.bagheera.producer.Producer;
+import com.mozilla.bagheera.producer.QueueingProducer;
+import com.mozilla.bagheera.util.WildcardProperties;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Decides whether the server can take on another request. Shared by all
+ * connections.
+ *
+ * A request is turned away when admitting it would take the bytes of all
+ * requests in flight over the limit, when the producer's queue is too deep,
+ * or when recent produce latency is too high. Each limit is off when it is 0.
+ */
+public class AdmissionController {
+
+    public static final String MAX_INFLIGHT_BYTES = "admission.max.inflight.bytes";
+    public static final String MAX_QUEUE_DEPTH = "admission.max.queue.depth";
+    public static final String MAX_LATENCY_MS = "admission.max.latency.ms";
+    public static final String RETRY_AFTER_SECONDS = "admission.retry.after.seconds";
+
+    // Latency samples older than this no longer count as recent. This also
+    // lets requests through again after everything has been shed for a while.
+    private static final long LATENCY_WINDOW_MILLIS = 1000L;
+    // Weight of a new latency sample (1/8, like TCP's smoothed RTT)
+    private static final int LATENCY_SHIFT = 3;
+
+    private final long maxInFlightBytes;
+    private final long maxQueueDepth;
+    private final long maxLatencyMillis;
+    private final int retryAfterSeconds;
+    private final QueueingProducer queueingProducer;
+
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final AtomicLong latencyMicros = new AtomicLong();
+    private volatile long lastLatencyMillis = 0;
+
+    public AdmissionController(WildcardProperties props, Producer producer) {
+        this(Long.parseLong(props.getProperty(MAX_INFLIGHT_BYTES, "268435456")),
+             Long.parseLong(props.getProperty(MAX_QUEUE_DEPTH, "0")),
+             Long.parseLong(props.getProperty(MAX_LATENCY_MS, "0")),
+             Integer.parseInt(props.getProperty(RETRY_AFTER_SECONDS, "5")),
+             producer);
+    }
+
+    public AdmissionController(long maxInFlightBytes, long maxQueueDepth, long maxLatencyMillis,
+                               int retryAfterSeconds, Producer producer) {
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.maxQueueDepth = maxQueueDepth;
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.queueingProducer = producer instanceof QueueingProducer ? (QueueingProducer)producer : null;
+
+        Metrics.newGauge(new MetricName("bagheera", "admission", "inflight.bytes"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return inFlightBytes.get();
+            }
+        });
+        Metrics.newGauge(new MetricName("bagheera", "admission", "produce.latency.ms"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return getLatencyMillis();
+            }
+        });
+    }
+
+    /**
+     * @return true if the server is too busy to take on anything new
+     */
+    public boolean isOverloaded() {
+        if (maxQueueDepth > 0 && queueingProducer != null && queueingProducer.getQueueDepth() >= maxQueueDepth) {
+            return true;
+        }
+        return maxLatencyMillis > 0 && getLatencyMillis() >= maxLatencyMillis;
+    }
+
+    /**
+     * Admits a request whose body is expected to be the given size. Admitted
+     * bytes must be handed back with release once the request is done.
+     *
+     * @return false if the request should be shed
+     */
+    public boolean tryAcquire(long bytes) {
+        if (isOverloaded()) {
+            return false;
+        }
+        if (maxInFlightBytes <= 0) {
+            inFlightBytes.addAndGet(bytes);
+            return true;
+        }
+        while (true) {
+            long current = inFlightBytes.get();
+            // A single request is let in when nothing else is in flight, however large
+            if (current > 0 && current + bytes > maxInFlightBytes) {
+                return false;
+            }
+            if (inFlightBytes.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Counts more bytes for a request that has already been admitted,
+     * whatever the limit.
+     */
+    public void acquire(long bytes) {
+        inFlightBytes.addAndGet(bytes);
+    }
+
+    public void release(long bytes) {
+        inFlightBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * Adds a sample of how long the producer took to take a message.
+     */
+    public void recordLatency(long millis) {
+        long sample = millis * 1000L;
+        while (true) {
+            long current = latencyMicros.get();
+            long updated = current == 0 ? sample : current + ((sample - current) >> LATENCY_SHIFT);
+            if (latencyMicros.compareAndSet(current, updated)) {
+                break;
+            }
+        }
+        lastLatencyMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the smoothed produce latency, or 0 if there were no recent sends
+     */
+    public long getLatencyMillis() {
+        if (System.currentTimeMillis() - lastLatencyMillis > LATENCY_WINDOW_MILLIS) {
+            return 0;
+        }
+        return latencyMicros.get() / 1000L;
+    }
+
+    public long getInFlightBytes() {
+        return inFlightBytes.get();
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
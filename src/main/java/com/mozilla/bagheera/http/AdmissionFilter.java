@@ -0,0 +1,193 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.http;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+
+import com.mozilla.bagheera.metrics.MetricsManager;
+import com.mozilla.bagheera.validation.NamespacePolicy;
+import com.mozilla.bagheera.validation.NamespacePolicyStore;
+import com.mozilla.bagheera.validation.Validator;
+
+/**
+ * Asks the AdmissionController whether to take on each request as soon as its
+ * head arrives, before the body is read. Shed requests are answered with 503
+ * and a Retry-After header by the SubmissionHandler.
+ *
+ * The bytes admitted for a request travel with it as an Admission, which the
+ * SubmissionHandler hands back when it writes the request's response. Only
+ * requests admitted here are handed back that way, so responses to anything
+ * else (GET /, requests shed or broken before they got here) can't free
+ * another request's bytes. Whatever hasn't been handed back when the
+ * connection closes is handed back then.
+ */
+public class AdmissionFilter extends SimpleChannelUpstreamHandler {
+
+    /**
+     * The bytes admitted for one request, handed back to the controller once.
+     */
+    public static class Admission {
+        private final AdmissionController controller;
+        private long bytes;
+        private volatile boolean released = false;
+
+        Admission(AdmissionController controller, long bytes) {
+            this.controller = controller;
+            this.bytes = bytes;
+        }
+
+        public synchronized long getBytes() {
+            return bytes;
+        }
+
+        public boolean isReleased() {
+            return released;
+        }
+
+        /**
+         * Counts more bytes for the request, for instance once its body has
+         * been inflated. The request is already admitted, so this can take
+         * the controller over its limit, which sheds the requests after it.
+         */
+        public synchronized void grow(long moreBytes) {
+            if (!released && moreBytes > 0) {
+                controller.acquire(moreBytes);
+                bytes += moreBytes;
+            }
+        }
+
+        /**
+         * Hands the bytes back, unless that has been done already.
+         */
+        public synchronized void release() {
+            if (!released) {
+                released = true;
+                controller.release(bytes);
+            }
+        }
+    }
+
+    private final AdmissionController controller;
+    private final Validator validator;
+    private final MetricsManager metricsManager;
+    private final NamespacePolicyStore policies;
+    private final int maxContentLength;
+
+    // Admissions on this connection that may not have been released yet, in
+    // request order
+    private final Queue<Admission> admitted = new ConcurrentLinkedQueue<Admission>();
+
+    // Set while the remaining chunks of a shed request are being dropped
+    private volatile boolean discardChunks = false;
+
+    public AdmissionFilter(AdmissionController controller, Validator validator, MetricsManager metricsManager, int maxContentLength) {
+        this(controller, validator, metricsManager, null, maxContentLength);
+    }
+
+    /**
+     * @param policies for the per-namespace limits, or null to always use maxContentLength
+     * @param maxContentLength the size assumed for requests of unknown length
+     *        whose namespace doesn't set a smaller one
+     */
+    public AdmissionFilter(AdmissionController controller, Validator validator, MetricsManager metricsManager,
+                           NamespacePolicyStore policies, int maxContentLength) {
+        this.controller = controller;
+        this.validator = validator;
+        this.metricsManager = metricsManager;
+        this.policies = policies;
+        this.maxContentLength = maxContentLength;
+    }
+
+    private int getMaxContentLength(BagheeraHttpRequest request) {
+        if (policies != null) {
+            NamespacePolicy policy = policies.getPolicy(request.getNamespace());
+            if (policy != null && policy.getMaxContentLength() > 0) {
+                return Math.min(maxContentLength, policy.getMaxContentLength());
+            }
+        }
+        return maxContentLength;
+    }
+
+    private void updateShedMetrics(String namespace) {
+        if (metricsManager == null) {
+            return;
+        }
+        // Namespaces haven't been checked yet at this point
+        if (namespace != null && validator.isValidNamespace(namespace)) {
+            metricsManager.getHttpMetricForNamespace(namespace).updateShedMetrics();
+        }
+        metricsManager.getGlobalHttpMetric().updateShedMetrics();
+    }
+
+    /* (non-Javadoc)
+     * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#messageReceived(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.MessageEvent)
+     */
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Object msg = e.getMessage();
+        if (msg instanceof BagheeraHttpRequest) {
+            BagheeraHttpRequest request = (BagheeraHttpRequest)msg;
+            long bytes = HttpHeaders.getContentLength(request, request.isChunked() ? getMaxContentLength(request) : 0);
+            if (!controller.tryAcquire(bytes)) {
+                discardChunks = request.isChunked();
+                updateShedMetrics(request.getNamespace());
+                throw new ServiceUnavailableException("Shed request for " + request.getUri() + ", " +
+                                                      controller.getInFlightBytes() + " bytes in flight, produce latency " +
+                                                      controller.getLatencyMillis() + "ms",
+                                                      controller.getRetryAfterSeconds());
+            }
+            Admission admission = new Admission(controller, bytes);
+            // Responses come in request order, so released admissions pile up at the head
+            while (admitted.peek() != null && admitted.peek().isReleased()) {
+                admitted.poll();
+            }
+            admitted.add(admission);
+            request.setAdmission(admission);
+            discardChunks = false;
+            ctx.sendUpstream(e);
+        } else if (discardChunks && msg instanceof HttpChunk) {
+            if (((HttpChunk)msg).isLast()) {
+                discardChunks = false;
+            }
+        } else {
+            ctx.sendUpstream(e);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#channelClosed(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelStateEvent)
+     */
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        Admission admission;
+        while ((admission = admitted.poll()) != null) {
+            admission.release();
+        }
+        ctx.sendUpstream(e);
+    }
+}
@@ -20,6 +20,7 @@
 
 package com.mozilla.bagheera.http;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
@@ -36,9 +37,12 @@ import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 
 import com.mozilla.bagheera.cli.App;
 import com.mozilla.bagheera.metrics.MetricsManager;
+import com.mozilla.bagheera.producer.BatchingKafkaProducer;
 import com.mozilla.bagheera.producer.KafkaProducer;
 import com.mozilla.bagheera.producer.Producer;
+import com.mozilla.bagheera.producer.SpoolingProducer;
 import com.mozilla.bagheera.util.WildcardProperties;
+import com.mozilla.bagheera.validation.NamespacePolicyStore;
 
 /**
  * Front-end class to a Bagheera server instance.
@@ -68,23 +72,27 @@ public class Bagheera extends App {
         public final NioServerSocketChannelFactory channelFactory;
         public final Channel channel;
         public final ChannelGroup channelGroup;
+        public final HttpServerPipelineFactory pipelineFactory;
 
         public BagheeraServerState(final int port,
                                    final Producer producer,
                                    final NioServerSocketChannelFactory channelFactory,
                                    final Channel channel,
-                                   final ChannelGroup channelGroup) {
+                                   final ChannelGroup channelGroup,
+                                   final HttpServerPipelineFactory pipelineFactory) {
             this.port = port;
             this.producer = producer;
             this.channelFactory = channelFactory;
             this.channel = channel;
             this.channelGroup = channelGroup;
+            this.pipelineFactory = pipelineFactory;
         }
 
         public void close() {
             // Close our channels.
             this.channelGroup.close().awaitUninterruptibly();
             this.channel.close().awaitUninterruptibly();
+            this.pipelineFactory.releaseExternalResources();
 
             // The caller is responsible for releasing resources from the channel factory.
 
@@ -124,11 +132,12 @@ public class Bagheera extends App {
         server.setPipelineFactory(pipeFactory);
         server.setOption("tcpNoDelay", tcpNoDelay);
 
-        // Disable keep-alive so client connections don't hang around.
-        server.setOption("keepAlive", false);
+        // Only use TCP keep-alive when HTTP connections are allowed to persist;
+        // idle HTTP connections are closed by the pipeline's idle timeout.
+        server.setOption("child.keepAlive", pipeFactory.isKeepAlive());
 
         final Channel channel = server.bind(new InetSocketAddress(port));
-        return new BagheeraServerState(port, producer, channelFactory, channel, channelGroup);
+        return new BagheeraServerState(port, producer, channelFactory, channel, channelGroup, pipeFactory);
     }
 
     /**
@@ -142,7 +151,7 @@ public class Bagheera extends App {
         // Initalize properties and producer.
         final WildcardProperties props = getDefaultProperties();
         final Properties kafkaProps = getDefaultKafkaProperties();
-        final Producer producer = new KafkaProducer(kafkaProps);
+        final Producer producer = createProducer(kafkaProps);
         final MetricsManager manager = MetricsManager.getDefaultMetricsManager();
 
         final BagheeraServerState server = startServer(port,
@@ -153,6 +162,13 @@ public class Bagheera extends App {
                                                        Bagheera.class.getName(),
                                                        manager);
 
+        // Pick up namespace changes without a restart when the properties are a plain file
+        final long reloadIntervalMillis = Long.parseLong(props.getProperty(NamespacePolicyStore.RELOAD_INTERVAL_MS, "10000"));
+        final URL propUrl = Bagheera.class.getResource(PROPERTIES_RESOURCE_NAME);
+        if (reloadIntervalMillis > 0 && "file".equals(propUrl.getProtocol())) {
+            server.pipelineFactory.getPolicyStore().startReloading(new File(propUrl.toURI()), reloadIntervalMillis);
+        }
+
         Runtime.getRuntime().addShutdownHook(new Thread() {
            @Override
            public void run() {
@@ -162,6 +178,22 @@ public class Bagheera extends App {
         });
     }
 
+    /**
+     * Creates the Kafka producer described by the given properties.
+     */
+    protected static Producer createProducer(Properties kafkaProps) throws IOException {
+        Producer producer;
+        if (BatchingKafkaProducer.isEnabled(kafkaProps)) {
+            producer = new BatchingKafkaProducer(kafkaProps);
+        } else {
+            producer = new KafkaProducer(kafkaProps);
+        }
+        if (SpoolingProducer.isEnabled(kafkaProps)) {
+            producer = new SpoolingProducer(producer, kafkaProps);
+        }
+        return producer;
+    }
+
     protected static Properties getDefaultKafkaProperties() throws Exception {
         final Properties props = new Properties();
         final URL propUrl = Bagheera.class.getResource(KAFKA_PROPERTIES_RESOURCE_NAME);
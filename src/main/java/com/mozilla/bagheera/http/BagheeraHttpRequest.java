@@ -19,93 +19,96 @@
  */
 package com.mozilla.bagheera.http;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.UUID;
-import java.util.regex.Pattern;
 
 import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpVersion;
 
-public class BagheeraHttpRequest extends DefaultHttpRequest {
+import com.mozilla.bagheera.util.ClientAddress;
+import com.mozilla.bagheera.util.IdGenerator;
 
-    // API Version
-    private static final Pattern VERSION_PATTERN = Pattern.compile("^[0-9]+([.][0-9]+)?$");
+public class BagheeraHttpRequest extends DefaultHttpRequest {
 
     // REST path indices
     public static final int ENDPOINT_PATH_IDX = 0;
     public static final int NAMESPACE_PATH_IDX = 1;
     public static final int ID_PATH_IDX = 2;
 
-    private final String apiVersion;
-    private final String endpoint;
-    private final String namespace;
-    private final String id;
-    private final List<String> partitions;
+    private final PathRouter path;
+    private String id;
+    private ClientAddress clientAddress;
+    private AdmissionFilter.Admission admission;
 
     public BagheeraHttpRequest(HttpVersion httpVersion, HttpMethod method, String uri) {
-        this(httpVersion, method, uri, new PathDecoder(uri));
+        super(httpVersion, method, uri);
+        path = new PathRouter(uri);
     }
 
     public BagheeraHttpRequest(HttpRequest request) {
         this(request.getProtocolVersion(), request.getMethod(), request.getUri());
     }
 
-    public BagheeraHttpRequest(HttpVersion httpVersion, HttpMethod method, String uri,
-                               PathDecoder pathDecoder) {
-        super(httpVersion, method, uri);
-        int idxOffset = 0;
-
-        String apiVersionIn = pathDecoder.getPathElement(0);
-        // If API version is in the path then offset the path indices
-        if (isApiVersion(apiVersionIn)) {
-            idxOffset = 1;
-            apiVersion = apiVersionIn;
-        } else {
-            apiVersion = null;
-        }
-        endpoint = pathDecoder.getPathElement(ENDPOINT_PATH_IDX + idxOffset);
-        namespace = pathDecoder.getPathElement(NAMESPACE_PATH_IDX + idxOffset);
-        String incomingId = pathDecoder.getPathElement(ID_PATH_IDX + idxOffset);
-        if (incomingId == null) {
-            incomingId = UUID.randomUUID().toString();
-        }
-        id = incomingId;
-
-        int partitionOffset = idxOffset + 3;
-        int numPartitions = pathDecoder.size() - partitionOffset;
-        if (numPartitions < 0) {
-            numPartitions = 0;
-        }
-        partitions = new ArrayList<String>(numPartitions);
-        for (int i = partitionOffset; i < pathDecoder.size(); i++) {
-            partitions.add(pathDecoder.getPathElement(i));
-        }
-    }
-
     public boolean isApiVersion(String possibleApiVersion) {
-        return VERSION_PATTERN.matcher(possibleApiVersion).matches();
+        return PathRouter.isApiVersion(possibleApiVersion, 0, possibleApiVersion.length());
     }
 
     public String getEndpoint() {
-        return endpoint;
+        return path.getEndpoint();
     }
 
     public String getNamespace() {
-        return namespace;
+        return path.getNamespace();
     }
 
+    /**
+     * @return the id in the path, or a generated one if the path doesn't have one
+     */
     public String getId() {
+        if (id == null) {
+            id = path.getId();
+            if (id == null) {
+                id = IdGenerator.getDefault().nextId();
+            }
+        }
         return id;
     }
 
     public String getApiVersion() {
-        return apiVersion;
+        return path.getApiVersion();
     }
 
     public List<String> getPartitions() {
-        return partitions;
+        return path.getPartitions();
+    }
+
+    /**
+     * @return the client address worked out by the ClientAddressFilter, or null
+     */
+    public ClientAddress getClientAddress() {
+        return clientAddress;
+    }
+
+    public void setClientAddress(ClientAddress clientAddress) {
+        this.clientAddress = clientAddress;
+    }
+
+    /**
+     * @return the bytes the AdmissionFilter admitted for this request, or null
+     */
+    public AdmissionFilter.Admission getAdmission() {
+        return admission;
+    }
+
+    public void setAdmission(AdmissionFilter.Admission admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * @return true if this request carries a batch of documents rather than a single document
+     */
+    public boolean isBatch() {
+        return SubmissionHandler.BATCH_ID.equals(path.getId());
     }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.http;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+import com.mozilla.bagheera.util.CidrBlock;
+import com.mozilla.bagheera.util.ClientAddress;
+import com.mozilla.bagheera.util.HttpUtil;
+
+/**
+ * Works out the client address of each request once, as soon as its head
+ * arrives, so the filters and the SubmissionHandler don't each parse
+ * X-Forwarded-For again. Forwarded addresses are only followed through the
+ * configured trusted proxies (see HttpUtil.getClientAddress).
+ */
+public class ClientAddressFilter extends SimpleChannelUpstreamHandler {
+
+    public static final String TRUSTED_PROXIES = "trusted.proxies";
+
+    private final List<CidrBlock> trustedProxies;
+
+    public ClientAddressFilter(List<CidrBlock> trustedProxies) {
+        this.trustedProxies = trustedProxies;
+    }
+
+    /**
+     * @return the address found by the filter, or failing that the first
+     *         forwarded address or the channel's peer
+     */
+    public static ClientAddress getClientAddress(HttpRequest request, Channel channel) {
+        if (request instanceof BagheeraHttpRequest) {
+            BagheeraHttpRequest bagheeraRequest = (BagheeraHttpRequest)request;
+            ClientAddress clientAddress = bagheeraRequest.getClientAddress();
+            if (clientAddress == null) {
+                clientAddress = HttpUtil.getClientAddress(request, (InetSocketAddress)channel.getRemoteAddress(),
+                                                          HttpUtil.NO_TRUSTED_PROXIES);
+                bagheeraRequest.setClientAddress(clientAddress);
+            }
+            return clientAddress;
+        }
+        return HttpUtil.getClientAddress(request, (InetSocketAddress)channel.getRemoteAddress(), HttpUtil.NO_TRUSTED_PROXIES);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#messageReceived(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.MessageEvent)
+     */
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof BagheeraHttpRequest) {
+            BagheeraHttpRequest request = (BagheeraHttpRequest)e.getMessage();
+            request.setClientAddress(HttpUtil.getClientAddress(request, (InetSocketAddress)e.getChannel().getRemoteAddress(),
+                                                               trustedProxies));
+        }
+        ctx.sendUpstream(e);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.http;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMessage;
+
+import com.mozilla.bagheera.util.PayloadInflater;
+import com.mozilla.bagheera.util.PayloadTooLargeException;
+import com.mozilla.bagheera.validation.NamespacePolicy;
+import com.mozilla.bagheera.validation.NamespacePolicyStore;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
+
+/**
+ * Inflates gzip and deflate encoded request bodies with pooled Inflaters.
+ *
+ * The body is inflated into a buffer that only grows as far as the
+ * namespace's max.inflated.length, so a small compressed body can't blow up
+ * into an arbitrarily large one: the request is answered with a 413 as soon
+ * as the limit is passed. Corrupt bodies are answered with a 400.
+ *
+ * Single documents for namespaces with compressed.passthrough are passed on
+ * still compressed, Content-Encoding and all; they are stored with their
+ * encoding and only inflated by the consumers.
+ *
+ * What a body grows by when it is inflated is added to the bytes admitted
+ * for its request, so the admission limit covers inflated bodies too.
+ *
+ * Shared by all pipelines, and placed after the execution stage (when there
+ * is one) so inflating doesn't hold up the I/O threads.
+ */
+public class ContentInflater extends SimpleChannelUpstreamHandler {
+
+    // The most Inflaters of each kind (zlib and raw deflate) kept for reuse
+    public static final String POOL_SIZE = "inflater.pool.size";
+
+    private final NamespacePolicyStore policies;
+    private final PayloadInflater payloadInflater;
+
+    private final Timer inflateTime;
+    private final Histogram compressionRatio;
+    private final Meter tooLarge;
+    private final Meter invalid;
+    private final Meter passedThrough;
+
+    public ContentInflater(NamespacePolicyStore policies, int poolSize) {
+        this.policies = policies;
+        this.payloadInflater = new PayloadInflater(poolSize);
+
+        inflateTime = Metrics.newTimer(new MetricName("bagheera", "inflater", "inflate.time"), TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
+        // Inflated size per 100 compressed bytes
+        compressionRatio = Metrics.newHistogram(new MetricName("bagheera", "inflater", "compression.ratio.percent"), false);
+        tooLarge = Metrics.newMeter(new MetricName("bagheera", "inflater", "too.large"), "requests", TimeUnit.SECONDS);
+        invalid = Metrics.newMeter(new MetricName("bagheera", "inflater", "invalid"), "requests", TimeUnit.SECONDS);
+        passedThrough = Metrics.newMeter(new MetricName("bagheera", "inflater", "passed.through"), "requests", TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return whether the content encoding is one this handler inflates
+     */
+    static boolean isGzip(String contentEncoding) {
+        return "gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding);
+    }
+
+    static boolean isDeflate(String contentEncoding) {
+        return "deflate".equalsIgnoreCase(contentEncoding) || "x-deflate".equalsIgnoreCase(contentEncoding);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#messageReceived(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.MessageEvent)
+     */
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Object msg = e.getMessage();
+        if (!(msg instanceof HttpMessage)) {
+            ctx.sendUpstream(e);
+            return;
+        }
+        HttpMessage m = (HttpMessage) msg;
+        String contentEncoding = m.getHeader(HttpHeaders.Names.CONTENT_ENCODING);
+        if (contentEncoding == null || !m.getContent().readable()) {
+            ctx.sendUpstream(e);
+            return;
+        }
+        contentEncoding = contentEncoding.trim();
+        boolean gzip = isGzip(contentEncoding);
+        if (!gzip && !isDeflate(contentEncoding)) {
+            // Identity, or an encoding we pass on as is
+            ctx.sendUpstream(e);
+            return;
+        }
+        NamespacePolicy policy = getPolicy(m);
+        if (policy != null && policy.isCompressedPassthrough() && !((BagheeraHttpRequest)m).isBatch()) {
+            passedThrough.mark();
+            ctx.sendUpstream(e);
+            return;
+        }
+
+        int compressedLength = m.getContent().readableBytes();
+        int maxInflatedLength = policy != null ? policy.getMaxInflatedLength() : policies.get().getDefaultMaxInflatedLength();
+        ChannelBuffer inflated;
+        TimerContext timerContext = inflateTime.time();
+        try {
+            inflated = inflate(m.getContent(), gzip, maxInflatedLength);
+        } catch (TooLongFrameException ex) {
+            tooLarge.mark();
+            throw ex;
+        } catch (DataFormatException ex) {
+            invalid.mark();
+            throw ex;
+        } finally {
+            timerContext.stop();
+        }
+        compressionRatio.update(inflated.readableBytes() * 100L / compressedLength);
+        if (m instanceof BagheeraHttpRequest) {
+            AdmissionFilter.Admission admission = ((BagheeraHttpRequest)m).getAdmission();
+            if (admission != null) {
+                admission.grow(inflated.readableBytes() - compressedLength);
+            }
+        }
+
+        m.setContent(inflated);
+        m.removeHeader(HttpHeaders.Names.CONTENT_ENCODING);
+        m.setHeader(HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(inflated.readableBytes()));
+        Channels.fireMessageReceived(ctx, m, e.getRemoteAddress());
+    }
+
+    private NamespacePolicy getPolicy(HttpMessage m) {
+        return m instanceof BagheeraHttpRequest ? policies.getPolicy(((BagheeraHttpRequest)m).getNamespace()) : null;
+    }
+
+    /**
+     * Inflates a gzip or deflate (zlib, or raw deflate) encoded body.
+     *
+     * @param maxInflatedLength the most bytes the body may inflate to, or -1 for no limit
+     * @throws TooLongFrameException as soon as the body inflates past maxInflatedLength
+     * @throws DataFormatException if the body is corrupt or truncated
+     */
+    ChannelBuffer inflate(ChannelBuffer content, boolean gzip, int maxInflatedLength)
+        throws TooLongFrameException, DataFormatException {
+        byte[] in;
+        int offset;
+        int length = content.readableBytes();
+        if (content.hasArray()) {
+            in = content.array();
+            offset = content.arrayOffset() + content.readerIndex();
+        } else {
+            in = new byte[length];
+            content.getBytes(content.readerIndex(), in);
+            offset = 0;
+        }
+        try {
+            ByteBuffer inflated = payloadInflater.inflate(in, offset, length, gzip, maxInflatedLength);
+            return ChannelBuffers.wrappedBuffer(inflated);
+        } catch (PayloadTooLargeException ex) {
+            throw new TooLongFrameException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Ends the pooled Inflaters.
+     */
+    public void releaseExternalResources() {
+        payloadInflater.close();
+    }
+}
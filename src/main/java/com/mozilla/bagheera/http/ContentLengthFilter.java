@@ -26,24 +26,52 @@ import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.handler.codec.frame.TooLongFrameException;
 import org.jboss.netty.handler.codec.http.HttpMessage;
 
+import com.mozilla.bagheera.validation.NamespacePolicy;
+import com.mozilla.bagheera.validation.NamespacePolicyStore;
+
+/**
+ * Checks the size of aggregated requests, including chunked ones that
+ * didn't declare a Content-Length, against maxContentLength and against the
+ * limit of the request's namespace.
+ */
 public class ContentLengthFilter extends SimpleChannelUpstreamHandler {
  
+    private final NamespacePolicyStore policies;
     private final int maxContentLength;
     
     public ContentLengthFilter(int maxContentLength) {
+        this(null, maxContentLength);
+    }
+
+    /**
+     * @param policies for the per-namespace limits, or null to only check maxContentLength
+     */
+    public ContentLengthFilter(NamespacePolicyStore policies, int maxContentLength) {
         if (maxContentLength <= 0) {
             throw new IllegalArgumentException("maxContentLength must be a positive integer: " + maxContentLength);
         }
+        this.policies = policies;
         this.maxContentLength = maxContentLength;
     }
+
+    private int getMaxContentLength(HttpMessage m) {
+        if (policies != null && m instanceof BagheeraHttpRequest) {
+            NamespacePolicy policy = policies.getPolicy(((BagheeraHttpRequest)m).getNamespace());
+            if (policy != null && policy.getMaxContentLength() > 0) {
+                return Math.min(maxContentLength, policy.getMaxContentLength());
+            }
+        }
+        return maxContentLength;
+    }
     
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
         Object msg = e.getMessage();
         if (msg instanceof HttpMessage) {
             HttpMessage m = (HttpMessage) msg;
-            if (m.getContent().readableBytes() > maxContentLength) {
-                throw new TooLongFrameException("HTTP content length exceeded: " + maxContentLength + " bytes.");
+            int limit = getMaxContentLength(m);
+            if (m.getContent().readableBytes() > limit) {
+                throw new TooLongFrameException("HTTP content length exceeded: " + limit + " bytes.");
             }
             Channels.fireMessageReceived(ctx, m, e.getRemoteAddress());
         } else {
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.http;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpMessage;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.jboss.netty.util.DefaultObjectSizeEstimator;
+
+import com.mozilla.bagheera.util.WildcardProperties;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * Optionally moves request handling off the I/O threads onto a thread pool,
+ * so a slow producer, log appender or DNS lookup only holds up requests and
+ * not socket reads.
+ *
+ * Events of a channel are run in order, and the pool stops reading from a
+ * channel (or from all of them) once too many bytes of requests are waiting.
+ * The time requests spend waiting for a thread and being handled are kept
+ * in separate timers.
+ */
+public class ExecutionStage {
+
+    public static final String EXECUTOR_ENABLE = "executor.enable";
+    public static final String EXECUTOR_THREADS = "executor.threads";
+    public static final String EXECUTOR_MAX_CHANNEL_MEMORY = "executor.max.channel.memory";
+    public static final String EXECUTOR_MAX_TOTAL_MEMORY = "executor.max.total.memory";
+
+    // Rough size of a request's headers and objects apart from its content
+    private static final int HTTP_MESSAGE_OVERHEAD = 512;
+
+    private final OrderedMemoryAwareThreadPoolExecutor executor;
+    private final ExecutionHandler executionHandler;
+    private final Timer queueTime;
+    private final Timer serviceTime;
+
+    /**
+     * The default estimator only looks at the fields of a request, not at the
+     * size of its content.
+     */
+    static class HttpMessageSizeEstimator extends DefaultObjectSizeEstimator {
+        @Override
+        public int estimateSize(Object o) {
+            if (o instanceof MessageEvent) {
+                return estimateSize(((MessageEvent)o).getMessage());
+            }
+            if (o instanceof HttpMessage) {
+                return HTTP_MESSAGE_OVERHEAD + ((HttpMessage)o).getContent().readableBytes();
+            }
+            return super.estimateSize(o);
+        }
+    }
+
+    public static boolean isEnabled(WildcardProperties props) {
+        return Boolean.parseBoolean(props.getProperty(EXECUTOR_ENABLE, "false"));
+    }
+
+    public ExecutionStage(WildcardProperties props) {
+        int threads = Integer.parseInt(props.getProperty(EXECUTOR_THREADS,
+                                                         String.valueOf(Runtime.getRuntime().availableProcessors() * 4)));
+        long maxChannelMemory = Long.parseLong(props.getProperty(EXECUTOR_MAX_CHANNEL_MEMORY, "4194304"));
+        long maxTotalMemory = Long.parseLong(props.getProperty(EXECUTOR_MAX_TOTAL_MEMORY, "134217728"));
+        executor = new OrderedMemoryAwareThreadPoolExecutor(threads, maxChannelMemory, maxTotalMemory,
+                                                            60, TimeUnit.SECONDS,
+                                                            new HttpMessageSizeEstimator(),
+                                                            Executors.defaultThreadFactory());
+        executionHandler = new ExecutionHandler(executor);
+
+        queueTime = Metrics.newTimer(new MetricName("bagheera", "executor", "queue.time"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        serviceTime = Metrics.newTimer(new MetricName("bagheera", "executor", "service.time"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        Metrics.newGauge(new MetricName("bagheera", "executor", "active.threads"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return executor.getActiveCount();
+            }
+        });
+        Metrics.newGauge(new MetricName("bagheera", "executor", "queued.tasks"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return executor.getQueue().size();
+            }
+        });
+    }
+
+    /**
+     * Adds the execution handler to the end of the pipeline, between a pair
+     * of handlers that time each request's wait and handling. Everything
+     * added to the pipeline afterwards runs on the pool.
+     */
+    public void addTo(ChannelPipeline pipeline) {
+        // Enqueue times of the requests waiting in the pool, in channel order
+        final Queue<Long> enqueued = new ConcurrentLinkedQueue<Long>();
+        pipeline.addLast("executionEnqueue", new SimpleChannelUpstreamHandler() {
+            @Override
+            public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+                enqueued.add(System.nanoTime());
+                ctx.sendUpstream(e);
+            }
+        });
+        pipeline.addLast("execution", executionHandler);
+        pipeline.addLast("executionTimer", new SimpleChannelUpstreamHandler() {
+            @Override
+            public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+                long start = System.nanoTime();
+                Long enqueuedAt = enqueued.poll();
+                if (enqueuedAt != null) {
+                    queueTime.update(start - enqueuedAt, TimeUnit.NANOSECONDS);
+                }
+                try {
+                    ctx.sendUpstream(e);
+                } finally {
+                    serviceTime.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
+            }
+        });
+    }
+
+    public void releaseExternalResources() {
+        executionHandler.releaseExternalResources();
+    }
+}
@@ -20,28 +20,49 @@
 package com.mozilla.bagheera.http;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
-import org.jboss.netty.handler.codec.http.HttpContentDecompressor;
 import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.timeout.IdleStateHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 
+import com.mozilla.bagheera.accesslog.AccessLog;
+import com.mozilla.bagheera.http.json.JsonFilter;
 import com.mozilla.bagheera.metrics.MetricsManager;
 import com.mozilla.bagheera.producer.Producer;
+import com.mozilla.bagheera.util.CidrBlock;
+import com.mozilla.bagheera.util.IdGenerator;
 import com.mozilla.bagheera.util.WildcardProperties;
+import com.mozilla.bagheera.validation.NamespacePolicies;
+import com.mozilla.bagheera.validation.NamespacePolicyStore;
 import com.mozilla.bagheera.validation.Validator;
 
 public class HttpServerPipelineFactory implements ChannelPipelineFactory {
     
     private final WildcardProperties props;    
-    private final int maxContentLength;
+    private final NamespacePolicyStore policies;
     private final Validator validator;
     private final Producer producer;
     private final ChannelGroup channelGroup;
     private final MetricsManager metricsManager;
+    private final boolean keepAlive;
+    private final int maxKeepAliveRequests;
+    private final long idleTimeoutMillis;
+    private final Timer idleTimer;
+    private final AdmissionController admissionController;
+    private final RateLimiter rateLimiter;
+    private final ExecutionStage executionStage;
+    private final ContentInflater contentInflater;
+    private final JsonFilter jsonFilter;
+    private final List<CidrBlock> trustedProxies;
+    private final AccessLog accessLog;
     
     public HttpServerPipelineFactory(WildcardProperties props,
                                      Producer producer,
@@ -53,11 +74,55 @@ public class HttpServerPipelineFactory implements ChannelPipelineFactory {
         if (validNsStr == null || validNsStr.length() == 0) {
             throw new IllegalArgumentException("No valid.namespaces in properties");
         }
-        this.validator = new Validator(validNsStr.split(","));
-        this.maxContentLength = Integer.parseInt(props.getProperty("max.content.length","1048576"));
+        int maxContentLength = Integer.parseInt(props.getProperty("max.content.length","1048576"));
+        this.policies = new NamespacePolicyStore(new NamespacePolicies(props, maxContentLength));
+        this.validator = new Validator(policies);
         this.producer = producer;
         this.channelGroup = channelGroup;
         this.metricsManager = metricsManager;
+        this.keepAlive = Boolean.parseBoolean(props.getProperty("keepalive.enable", "false"));
+        this.maxKeepAliveRequests = Integer.parseInt(props.getProperty("keepalive.max.requests", "1000"));
+        this.idleTimeoutMillis = Long.parseLong(props.getProperty("keepalive.idle.timeout.ms", "15000"));
+        this.idleTimer = (keepAlive && idleTimeoutMillis > 0) ? new HashedWheelTimer() : null;
+        this.admissionController = new AdmissionController(props, producer);
+        this.rateLimiter = new RateLimiter(policies, Integer.parseInt(props.getProperty(RateLimiter.MAX_CLIENTS, "100000")));
+        this.executionStage = ExecutionStage.isEnabled(props) ? new ExecutionStage(props) : null;
+        this.contentInflater = new ContentInflater(policies,
+                                                   Integer.parseInt(props.getProperty(ContentInflater.POOL_SIZE,
+                                                                                      String.valueOf(Runtime.getRuntime().availableProcessors() * 4))));
+        this.jsonFilter = new JsonFilter(validator);
+        this.trustedProxies = CidrBlock.parseList(props.getProperty(ClientAddressFilter.TRUSTED_PROXIES));
+        this.accessLog = AccessLog.isEnabled(props) ? new AccessLog(props) : null;
+        IdGenerator.setDefault(new IdGenerator(Boolean.parseBoolean(props.getProperty(IdGenerator.TIME_ORDERED, "false"))));
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @return the namespace policies used by the pipelines, which can be swapped at any time
+     */
+    public NamespacePolicyStore getPolicyStore() {
+        return policies;
+    }
+
+    /**
+     * Stops the idle connection timer, the request thread pool and policy
+     * reloading, frees the pooled inflaters and writes out the access log.
+     */
+    public void releaseExternalResources() {
+        policies.close();
+        if (idleTimer != null) {
+            idleTimer.stop();
+        }
+        if (executionStage != null) {
+            executionStage.releaseExternalResources();
+        }
+        contentInflater.releaseExternalResources();
+        if (accessLog != null) {
+            accessLog.close();
+        }
     }
     
     /* (non-Javadoc)
@@ -65,16 +130,38 @@ public class HttpServerPipelineFactory implements ChannelPipelineFactory {
      */
     public ChannelPipeline getPipeline() throws Exception {
         ChannelPipeline pipeline = Channels.pipeline();
+        // Bodies are aggregated up to the largest namespace limit (of the
+        // policies current when the connection was opened) and each
+        // namespace's own limit is applied by the access and length filters.
+        int aggregateLength = policies.get().getLargestMaxContentLength();
         
         pipeline.addLast("decoder", new BagheeraHttpRequestDecoder());
-        pipeline.addLast("aggregator", new HttpChunkAggregator(maxContentLength));
-        pipeline.addLast("contentLengthFilter", new ContentLengthFilter(maxContentLength));
+        // The encoder only handles downstream events so it is placed ahead of
+        // the keep-alive handler, which then sees responses before they are encoded.
+        pipeline.addLast("encoder", new HttpResponseEncoder());
+        if (idleTimer != null) {
+            pipeline.addLast("idleState", new IdleStateHandler(idleTimer, 0, 0, idleTimeoutMillis, TimeUnit.MILLISECONDS));
+        }
+        pipeline.addLast("keepAlive", new KeepAliveHandler(keepAlive, maxKeepAliveRequests,
+                                                           metricsManager != null ? metricsManager.getConnectionMetric() : null));
+        // Admission checks run on the request head so rejected bodies are never buffered
         pipeline.addLast("rootResponse", new RootResponse());
-        pipeline.addLast("accessFilter", new AccessFilter(validator, props));
+        pipeline.addLast("clientAddress", new ClientAddressFilter(trustedProxies));
+        pipeline.addLast("admissionFilter", new AdmissionFilter(admissionController, validator, metricsManager, policies, aggregateLength));
+        pipeline.addLast("accessFilter", new AccessFilter(validator, policies, aggregateLength));
+        pipeline.addLast("rateLimitFilter", new RateLimitFilter(rateLimiter, metricsManager, trustedProxies));
+        pipeline.addLast("aggregator", new HttpChunkAggregator(aggregateLength));
+        pipeline.addLast("contentLengthFilter", new ContentLengthFilter(policies, aggregateLength));
         pipeline.addLast("encodingCorrector", new ContentEncodingCorrector());
-        pipeline.addLast("inflater", new HttpContentDecompressor());
-        pipeline.addLast("encoder", new HttpResponseEncoder());
-        pipeline.addLast("handler", new SubmissionHandler(validator, producer, this.channelGroup, this.metricsManager));
+        // Producing can block, so optionally hand complete requests to a thread pool
+        if (executionStage != null) {
+            executionStage.addTo(pipeline);
+        }
+        // Inflating and JSON checks are CPU work on whole bodies, kept off the I/O threads
+        pipeline.addLast("inflater", contentInflater);
+        pipeline.addLast("jsonFilter", jsonFilter);
+        pipeline.addLast("handler", new SubmissionHandler(validator, props, producer, this.channelGroup, this.metricsManager,
+                                                             admissionController, policies, accessLog));
         
         return pipeline;
     }
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.http;
+
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONNECTION;
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONTENT_LENGTH;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.timeout.IdleStateAwareChannelHandler;
+import org.jboss.netty.handler.timeout.IdleStateEvent;
+
+import com.mozilla.bagheera.metrics.ConnectionMetric;
+
+/**
+ * Decides per response whether the connection stays open. It sits right
+ * after the request decoder so that it sees every request head, and after
+ * the response encoder (in downstream order) so that it sees every response.
+ *
+ * Pipelined requests are answered in the order they arrive, so the
+ * keep-alive decision for each request is queued and taken off the queue by
+ * the matching response.
+ */
+public class KeepAliveHandler extends IdleStateAwareChannelHandler {
+
+    private final boolean enabled;
+    private final int maxRequests;
+    private final ConnectionMetric connectionMetric;
+
+    private final Queue<Boolean> pending = new ConcurrentLinkedQueue<Boolean>();
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    /**
+     * @param enabled whether persistent connections are allowed at all
+     * @param maxRequests the maximum number of requests served per connection (0 for unlimited)
+     * @param connectionMetric may be null
+     */
+    public KeepAliveHandler(boolean enabled, int maxRequests, ConnectionMetric connectionMetric) {
+        this.enabled = enabled;
+        this.maxRequests = maxRequests;
+        this.connectionMetric = connectionMetric;
+    }
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        if (connectionMetric != null) {
+            connectionMetric.connectionOpened();
+        }
+        super.channelOpen(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        if (connectionMetric != null) {
+            connectionMetric.connectionClosed(requestCount.get());
+        }
+        super.channelClosed(ctx, e);
+    }
+
+    @Override
+    public void channelIdle(ChannelHandlerContext ctx, IdleStateEvent e) throws Exception {
+        // Only close connections that have nothing outstanding
+        if (pending.isEmpty()) {
+            if (connectionMetric != null) {
+                connectionMetric.connectionIdleClosed();
+            }
+            e.getChannel().close();
+        }
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Object msg = e.getMessage();
+        if (msg instanceof HttpRequest) {
+            int count = requestCount.incrementAndGet();
+            boolean keepAlive = enabled && HttpHeaders.isKeepAlive((HttpRequest) msg) &&
+                                (maxRequests <= 0 || count < maxRequests);
+            pending.add(keepAlive);
+            if (count > 1 && connectionMetric != null) {
+                connectionMetric.connectionReused();
+            }
+        }
+        ctx.sendUpstream(e);
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Object msg = e.getMessage();
+        if (msg instanceof HttpResponse) {
+            HttpResponse response = (HttpResponse) msg;
+            // Interim responses don't complete a request
+            if (response.getStatus().getCode() != HttpResponseStatus.CONTINUE.getCode()) {
+                Boolean keepAlive = pending.poll();
+                if (keepAlive != null && keepAlive.booleanValue() &&
+                    !HttpHeaders.Values.CLOSE.equalsIgnoreCase(response.getHeader(CONNECTION))) {
+                    // The client can only find the end of the response from its length
+                    if (!response.isChunked() && !response.containsHeader(CONTENT_LENGTH)) {
+                        HttpHeaders.setContentLength(response, response.getContent().readableBytes());
+                    }
+                    response.setHeader(CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+                } else {
+                    response.setHeader(CONNECTION, HttpHeaders.Values.CLOSE);
+                    e.getFuture().addListener(ChannelFutureListener.CLOSE);
+                }
+            }
+        }
+        ctx.sendDownstream(e);
+    }
+
+    /**
+     * @return the number of requests received over this connection so far
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+}
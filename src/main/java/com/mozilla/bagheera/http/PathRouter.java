@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits a request URI into its path elements the same way PathDecoder does,
+ * in a single pass and without a regex. Only the offsets of the elements are
+ * recorded up front; the strings are cut out of the URI the first time they
+ * are asked for.
+ *
+ * The elements are an optional API version, then endpoint, namespace, id and
+ * any number of partitions.
+ */
+public class PathRouter {
+
+    private static final int ENDPOINT_IDX = 0;
+    private static final int NAMESPACE_IDX = 1;
+    private static final int ID_IDX = 2;
+    private static final int PARTITION_IDX = 3;
+
+    private final String uri;
+    // Start and end offsets of each element
+    private int[] bounds = new int[16];
+    private int size = 0;
+    // 1 when the first element is an API version
+    private final int offset;
+
+    private String apiVersion;
+    private String endpoint;
+    private String namespace;
+    private String id;
+    private List<String> partitions;
+
+    public PathRouter(String uri) {
+        this.uri = uri;
+        int len = uri.length();
+        int i = 0;
+        while (i < len) {
+            if (uri.charAt(i) != '/') {
+                i++;
+                continue;
+            }
+            int start = ++i;
+            while (i < len && uri.charAt(i) != '/') {
+                i++;
+            }
+            if (i > start) {
+                if (size * 2 == bounds.length) {
+                    int[] grown = new int[bounds.length * 2];
+                    System.arraycopy(bounds, 0, grown, 0, bounds.length);
+                    bounds = grown;
+                }
+                bounds[size * 2] = start;
+                bounds[size * 2 + 1] = i;
+                size++;
+            }
+        }
+        offset = size > 0 && isApiVersion(uri, bounds[0], bounds[1]) ? 1 : 0;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * @return true if s[start, end) is a number with an optional fraction, such as 1 or 1.0
+     */
+    static boolean isApiVersion(String s, int start, int end) {
+        int i = start;
+        while (i < end && isDigit(s.charAt(i))) {
+            i++;
+        }
+        if (i == start) {
+            return false;
+        }
+        if (i == end) {
+            return true;
+        }
+        if (s.charAt(i) != '.') {
+            return false;
+        }
+        int fractionStart = ++i;
+        while (i < end && isDigit(s.charAt(i))) {
+            i++;
+        }
+        return i == end && i > fractionStart;
+    }
+
+    /**
+     * @return the path element at idx counting from the start of the URI, or null
+     */
+    public String getPathElement(int idx) {
+        return idx < size ? uri.substring(bounds[idx * 2], bounds[idx * 2 + 1]) : null;
+    }
+
+    /**
+     * @return the number of path elements
+     */
+    public int size() {
+        return size;
+    }
+
+    public String getApiVersion() {
+        if (apiVersion == null && offset > 0) {
+            apiVersion = getPathElement(0);
+        }
+        return apiVersion;
+    }
+
+    public String getEndpoint() {
+        if (endpoint == null) {
+            endpoint = getPathElement(ENDPOINT_IDX + offset);
+        }
+        return endpoint;
+    }
+
+    public String getNamespace() {
+        if (namespace == null) {
+            namespace = getPathElement(NAMESPACE_IDX + offset);
+        }
+        return namespace;
+    }
+
+    /**
+     * @return the id in the path, or null if there isn't one
+     */
+    public String getId() {
+        if (id == null) {
+            id = getPathElement(ID_IDX + offset);
+        }
+        return id;
+    }
+
+    public List<String> getPartitions() {
+        if (partitions == null) {
+            int first = PARTITION_IDX + offset;
+            if (first >= size) {
+                partitions = Collections.emptyList();
+            } else {
+                List<String> list = new ArrayList<String>(size - first);
+                for (int i = first; i < size; i++) {
+                    list.add(getPathElement(i));
+                }
+                partitions = list;
+            }
+        }
+        return partitions;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.http;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+
+import com.mozilla.bagheera.http.RateLimiter.Decision;
+import com.mozilla.bagheera.metrics.MetricsManager;
+import com.mozilla.bagheera.util.CidrBlock;
+import com.mozilla.bagheera.util.HttpUtil;
+
+/**
+ * Applies the RateLimiter to each request head, after the AccessFilter has
+ * made sure the namespace is valid. Requests over a limit are answered with
+ * 429 by the SubmissionHandler and the rest of their body is dropped.
+ *
+ * Clients are told apart by the connection's peer. X-Forwarded-For is only
+ * followed when the peer is one of the trusted proxies, as anyone else could
+ * make up a new address for each request to get a fresh bucket.
+ */
+public class RateLimitFilter extends SimpleChannelUpstreamHandler {
+
+    private final RateLimiter rateLimiter;
+    private final MetricsManager metricsManager;
+    private final List<CidrBlock> trustedProxies;
+
+    // Set while the remaining chunks of a limited request are being dropped
+    private volatile boolean discardChunks = false;
+
+    public RateLimitFilter(RateLimiter rateLimiter, MetricsManager metricsManager) {
+        this(rateLimiter, metricsManager, HttpUtil.NO_TRUSTED_PROXIES);
+    }
+
+    public RateLimitFilter(RateLimiter rateLimiter, MetricsManager metricsManager, List<CidrBlock> trustedProxies) {
+        this.rateLimiter = rateLimiter;
+        this.metricsManager = metricsManager;
+        this.trustedProxies = trustedProxies;
+    }
+
+    private String getClientAddr(BagheeraHttpRequest request, Channel channel) {
+        if (trustedProxies == null || trustedProxies.isEmpty()) {
+            return HttpUtil.getClientAddress((String)null, (InetSocketAddress)channel.getRemoteAddress(),
+                                             trustedProxies).getHost();
+        }
+        // The ClientAddressFilter only followed the forwarded chain through trusted proxies
+        return ClientAddressFilter.getClientAddress(request, channel).getHost();
+    }
+
+    private void updateRateLimitOverflowMetrics(String namespace) {
+        if (metricsManager != null) {
+            metricsManager.getHttpMetricForNamespace(namespace).updateRateLimitOverflowMetrics();
+            metricsManager.getGlobalHttpMetric().updateRateLimitOverflowMetrics();
+        }
+    }
+
+    private void updateRateLimitMetrics(String namespace, boolean perClient) {
+        if (metricsManager != null) {
+            metricsManager.getHttpMetricForNamespace(namespace).updateRateLimitMetrics(perClient);
+            metricsManager.getGlobalHttpMetric().updateRateLimitMetrics(perClient);
+        }
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Object msg = e.getMessage();
+        if (msg instanceof BagheeraHttpRequest) {
+            BagheeraHttpRequest request = (BagheeraHttpRequest)msg;
+            String namespace = request.getNamespace();
+            String clientAddr = getClientAddr(request, e.getChannel());
+            Decision decision = rateLimiter.tryAcquire(namespace, clientAddr);
+            if (decision.isOverflow()) {
+                updateRateLimitOverflowMetrics(namespace);
+            }
+            if (!decision.isAllowed()) {
+                discardChunks = request.isChunked();
+                boolean perClient = decision != Decision.NAMESPACE_LIMITED;
+                updateRateLimitMetrics(namespace, perClient);
+                throw new TooManyRequestsException(String.format("Rate limit exceeded for %s: %s - \"%s\"",
+                                                                 perClient ? "client" : "namespace", request.getUri(), clientAddr),
+                                                   rateLimiter.getRetryAfterSeconds(namespace, clientAddr, decision));
+            }
+            discardChunks = false;
+            ctx.sendUpstream(e);
+        } else if (discardChunks && msg instanceof HttpChunk) {
+            if (((HttpChunk)msg).isLast()) {
+                discardChunks = false;
+            }
+        } else {
+            ctx.sendUpstream(e);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.http;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.mozilla.bagheera.util.TokenBucket;
+import com.mozilla.bagheera.util.WildcardProperties;
+import com.mozilla.bagheera.validation.NamespacePolicies;
+import com.mozilla.bagheera.validation.NamespacePolicy;
+import com.mozilla.bagheera.validation.NamespacePolicyStore;
+
+/**
+ * Token bucket rate limits per namespace and per client of a namespace,
+ * configured with wildcard properties:
+ *
+ *   &lt;namespace&gt;.rate.limit / .rate.burst - requests per second for the whole namespace
+ *   &lt;namespace&gt;.rate.limit.per.client / .rate.burst.per.client - requests per second for each client address
+ *
+ * A namespace keeps a bucket for at most rate.max.clients clients. Once it
+ * has that many and none of them is idle, further clients share a single
+ * overflow bucket with the per-client limits until room is made for them.
+ *
+ * Buckets are kept per entry of valid.namespaces, so all the namespaces
+ * matching a wildcard such as testpilot_* share its limits and its clients,
+ * however many names they come up with.
+ *
+ * A namespace without a rate.limit isn't limited. Shared by all connections;
+ * the buckets are lock-free so checking them costs an atomic operation or two.
+ * When the namespace policies are reloaded with different limits, the
+ * namespace's buckets start over.
+ */
+public class RateLimiter {
+
+    public static final String RATE_LIMIT = NamespacePolicy.RATE_LIMIT;
+    public static final String RATE_BURST = NamespacePolicy.RATE_BURST;
+    public static final String CLIENT_RATE_LIMIT = NamespacePolicy.CLIENT_RATE_LIMIT;
+    public static final String CLIENT_RATE_BURST = NamespacePolicy.CLIENT_RATE_BURST;
+    // Idle client buckets are dropped once a namespace has more than this many,
+    // and clients beyond it share the overflow bucket
+    public static final String MAX_CLIENTS = "rate.max.clients";
+
+    public enum Decision {
+        ALLOWED(true, false),
+        NAMESPACE_LIMITED(false, false),
+        CLIENT_LIMITED(false, false),
+        // The client had no bucket of its own and went through the overflow bucket
+        OVERFLOW_ALLOWED(true, true),
+        OVERFLOW_LIMITED(false, true);
+
+        private final boolean allowed;
+        private final boolean overflow;
+
+        private Decision(boolean allowed, boolean overflow) {
+            this.allowed = allowed;
+            this.overflow = overflow;
+        }
+
+        public boolean isAllowed() {
+            return allowed;
+        }
+
+        public boolean isOverflow() {
+            return overflow;
+        }
+    }
+
+    // Limits of namespaces without a policy
+    private static final NamespacePolicy NO_LIMITS = new NamespacePolicy(null);
+
+    private static class NamespaceLimits {
+        final NamespacePolicy policy;
+        final TokenBucket bucket;
+        final double clientRate;
+        final int clientBurst;
+        final ConcurrentMap<String, TokenBucket> clients = new ConcurrentHashMap<String, TokenBucket>();
+        // Shared by the clients that don't fit in clients
+        final TokenBucket overflow;
+        final AtomicBoolean sweeping = new AtomicBoolean();
+
+        NamespaceLimits(NamespacePolicy policy) {
+            this.policy = policy;
+            this.bucket = policy.getRateLimit() > 0 ? new TokenBucket(policy.getRateLimit(), policy.getRateBurst()) : null;
+            this.clientRate = policy.getClientRateLimit();
+            this.clientBurst = policy.getClientRateBurst();
+            this.overflow = clientRate > 0 ? new TokenBucket(clientRate, clientBurst) : null;
+        }
+
+        boolean hasLimitsOf(NamespacePolicy other) {
+            return policy == other ||
+                (policy.getRateLimit() == other.getRateLimit() && policy.getRateBurst() == other.getRateBurst() &&
+                 clientRate == other.getClientRateLimit() && clientBurst == other.getClientRateBurst());
+        }
+    }
+
+    private final NamespacePolicyStore policies;
+    private final int maxClients;
+    // Keyed by the valid.namespaces entry the namespace matched
+    private final ConcurrentMap<String, NamespaceLimits> limits = new ConcurrentHashMap<String, NamespaceLimits>();
+    // Namespaces without a policy have no buckets to keep
+    private final NamespaceLimits unlimited = new NamespaceLimits(NO_LIMITS);
+
+    public RateLimiter(WildcardProperties props) {
+        this(new NamespacePolicyStore(new NamespacePolicies(props, -1)),
+             Integer.parseInt(props.getProperty(MAX_CLIENTS, "100000")));
+    }
+
+    public RateLimiter(NamespacePolicyStore policies, int maxClients) {
+        this.policies = policies;
+        this.maxClients = maxClients;
+    }
+
+    private NamespaceLimits getLimits(String namespace) {
+        NamespacePolicy policy = policies.getPolicy(namespace);
+        if (policy == null) {
+            return unlimited;
+        }
+        String name = policy.getName();
+        NamespaceLimits nsLimits = limits.get(name);
+        if (nsLimits == null) {
+            nsLimits = new NamespaceLimits(policy);
+            NamespaceLimits existing = limits.putIfAbsent(name, nsLimits);
+            if (existing != null) {
+                nsLimits = existing;
+            }
+        } else if (!nsLimits.hasLimitsOf(policy)) {
+            NamespaceLimits updated = new NamespaceLimits(policy);
+            nsLimits = limits.replace(name, nsLimits, updated) ? updated : limits.get(name);
+        }
+        return nsLimits;
+    }
+
+    /**
+     * @return the client's bucket, or null when the namespace is tracking as
+     *         many clients as it may and none of them could be dropped
+     */
+    private TokenBucket getClientBucket(NamespaceLimits nsLimits, String clientAddr, long now) {
+        TokenBucket bucket = nsLimits.clients.get(clientAddr);
+        if (bucket == null) {
+            if (nsLimits.clients.size() >= maxClients) {
+                sweep(nsLimits, now);
+                if (nsLimits.clients.size() >= maxClients) {
+                    return null;
+                }
+            }
+            bucket = new TokenBucket(nsLimits.clientRate, nsLimits.clientBurst);
+            TokenBucket existing = nsLimits.clients.putIfAbsent(clientAddr, bucket);
+            if (existing != null) {
+                bucket = existing;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Drops the buckets of clients that have been quiet long enough for
+     * their bucket to fill up again.
+     */
+    private void sweep(NamespaceLimits nsLimits, long now) {
+        if (!nsLimits.sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Iterator<TokenBucket> iter = nsLimits.clients.values().iterator();
+            while (iter.hasNext()) {
+                if (iter.next().isIdle(now)) {
+                    iter.remove();
+                }
+            }
+        } finally {
+            nsLimits.sweeping.set(false);
+        }
+    }
+
+    /**
+     * Takes a token for a request to the namespace from the given client.
+     */
+    public Decision tryAcquire(String namespace, String clientAddr) {
+        NamespaceLimits nsLimits = getLimits(namespace);
+        long now = System.nanoTime();
+        boolean overflow = false;
+        // Check the client first so a flooding client doesn't use up the namespace's tokens
+        if (nsLimits.clientRate > 0 && clientAddr != null) {
+            TokenBucket clientBucket = getClientBucket(nsLimits, clientAddr, now);
+            if (clientBucket == null) {
+                overflow = true;
+                clientBucket = nsLimits.overflow;
+            }
+            if (!clientBucket.tryAcquire(now)) {
+                return overflow ? Decision.OVERFLOW_LIMITED : Decision.CLIENT_LIMITED;
+            }
+        }
+        if (nsLimits.bucket != null && !nsLimits.bucket.tryAcquire(now)) {
+            return Decision.NAMESPACE_LIMITED;
+        }
+        return overflow ? Decision.OVERFLOW_ALLOWED : Decision.ALLOWED;
+    }
+
+    /**
+     * @return roughly how many seconds until the namespace (or client) can send again
+     */
+    public int getRetryAfterSeconds(String namespace, String clientAddr, Decision decision) {
+        NamespaceLimits nsLimits = getLimits(namespace);
+        long now = System.nanoTime();
+        TokenBucket bucket;
+        if (decision == Decision.CLIENT_LIMITED) {
+            bucket = nsLimits.clients.get(clientAddr);
+        } else if (decision == Decision.OVERFLOW_LIMITED) {
+            bucket = nsLimits.overflow;
+        } else {
+            bucket = nsLimits.bucket;
+        }
+        long waitNanos = bucket == null ? 0 : bucket.getWaitNanos(now);
+        return (int)Math.max(1L, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+    }
+
+    /**
+     * @return the number of client buckets kept for the namespace
+     */
+    public int getClientCount(String namespace) {
+        return getLimits(namespace).clients.size();
+    }
+}
@@ -19,23 +19,36 @@
  */
 package com.mozilla.bagheera.http;
 
-import static org.jboss.netty.handler.codec.http.HttpResponseStatus.OK;
-import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_1;
-
-import org.jboss.netty.channel.ChannelFuture;
-import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
-import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpMessage;
 import org.jboss.netty.handler.codec.http.HttpRequest;
-import org.jboss.netty.handler.codec.http.HttpResponse;
 
+/**
+ * Picks out requests for / (load balancer health checks). They are passed on
+ * as ROOT_REQUEST, which the filters in between leave alone, and answered
+ * with an empty 200 by the SubmissionHandler, so the answer keeps its place
+ * behind pipelined requests that are still waiting for the producer.
+ */
 public class RootResponse extends SimpleChannelUpstreamHandler {
 
+    /**
+     * Stands in for a request for / on its way to the SubmissionHandler.
+     */
+    public static final class RootRequest {
+        private RootRequest() {
+        }
+    }
+
+    public static final RootRequest ROOT_REQUEST = new RootRequest();
+
     private static final String ROOT_PATH = "/";
+
+    // Set while the body of a request for / is being dropped
+    private volatile boolean discardChunks = false;
      
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
@@ -43,12 +56,15 @@ public class RootResponse extends SimpleChannelUpstreamHandler {
         if (msg instanceof HttpMessage) {
             HttpRequest request = (HttpRequest) msg;
             if (ROOT_PATH.equals(request.getUri()) || request.getUri().isEmpty()) {
-                HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
-                ChannelFuture future = e.getChannel().write(response);
-                future.addListener(ChannelFutureListener.CLOSE);
+                discardChunks = request.isChunked();
+                Channels.fireMessageReceived(ctx, ROOT_REQUEST, e.getRemoteAddress());
             } else {
                 Channels.fireMessageReceived(ctx, request, e.getRemoteAddress());
             }
+        } else if (discardChunks && msg instanceof HttpChunk) {
+            if (((HttpChunk)msg).isLast()) {
+                discardChunks = false;
+            }
         } else {
             ctx.sendUpstream(e);
         }
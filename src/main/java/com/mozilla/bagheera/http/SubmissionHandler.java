@@ -19,8 +19,11 @@
  */
 package com.mozilla.bagheera.http;
 
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONNECTION;
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONTENT_ENCODING;
 import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONTENT_LENGTH;
 import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.RETRY_AFTER;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.CREATED;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
@@ -29,16 +32,23 @@ import static org.jboss.netty.handler.codec.http.HttpResponseStatus.METHOD_NOT_A
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.OK;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+import static org.jboss.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
-import java.net.InetSocketAddress;
 import java.net.URI;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
 
 import org.apache.log4j.Logger;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -49,6 +59,7 @@ import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.handler.codec.frame.TooLongFrameException;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
@@ -57,10 +68,26 @@ import org.jboss.netty.util.CharsetUtil;
 import com.google.protobuf.ByteString;
 import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
 import com.mozilla.bagheera.BagheeraProto.BagheeraMessage.Operation;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage.PayloadEncoding;
+import com.mozilla.bagheera.accesslog.AccessLog;
+import com.mozilla.bagheera.accesslog.AccessLogRecord;
+import com.mozilla.bagheera.http.json.InvalidJsonException;
+import com.mozilla.bagheera.http.json.JsonFilter;
 import com.mozilla.bagheera.metrics.MetricsManager;
+import com.mozilla.bagheera.producer.AckMode;
 import com.mozilla.bagheera.producer.Producer;
-import com.mozilla.bagheera.util.HttpUtil;
+import com.mozilla.bagheera.producer.ProducerCallback;
+import com.mozilla.bagheera.serializer.EncodedMessage;
+import com.mozilla.bagheera.util.ClientAddress;
+import com.mozilla.bagheera.util.IdGenerator;
+import com.mozilla.bagheera.util.WildcardProperties;
+import com.mozilla.bagheera.validation.NamespacePolicies;
+import com.mozilla.bagheera.validation.NamespacePolicy;
+import com.mozilla.bagheera.validation.NamespacePolicyStore;
 import com.mozilla.bagheera.validation.Validator;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
 
 public class SubmissionHandler extends SimpleChannelUpstreamHandler {
 
@@ -68,20 +95,111 @@ public class SubmissionHandler extends SimpleChannelUpstreamHandler {
 
     private static final Logger LOG = Logger.getLogger(SubmissionHandler.class);
 
+    // Deletes of obsolete documents that couldn't be sent after their replacement was
+    private static final Meter FAILED_OBSOLETE_DELETES =
+        Metrics.newMeter(new MetricName("bagheera", "http", "obsolete.delete.failed"), "messages", TimeUnit.SECONDS);
+
     // REST endpoints
     public static final String ENDPOINT_SUBMIT = "submit";
 
+    // Batch submissions are posted in place of a document id
+    public static final String BATCH_ID = "_batch";
+    private static final byte BATCH_DOCUMENT_DELIMITER = '\n';
+    private static final byte BATCH_ID_DELIMITER = '\t';
+    private static final int DEFAULT_BATCH_MAX_DOCUMENTS = 1000;
+
+    // When submissions to a namespace are acknowledged (see AckMode)
+    public static final String ACK_MODE = NamespacePolicy.ACK_MODE;
+
+    private final Validator validator;
+    private final NamespacePolicyStore policies;
     private final Producer producer;
     private final ChannelGroup channelGroup;
     private final MetricsManager metricsManager;
+    private final int batchMaxDocuments;
+    private final AdmissionController admissionController;
+    private final AccessLog accessLog;
+
+    // Responses on this connection in request order; a response that is
+    // still waiting for the producer holds back the ones behind it.
+    private final LinkedList<PendingResponse> pendingResponses = new LinkedList<PendingResponse>();
+
+    private static class PendingResponse {
+        final Channel channel;
+        final String namespace;
+        // Handed back once the response is written, null if nothing was admitted
+        final AdmissionFilter.Admission admission;
+        HttpResponse response;
+        boolean close;
+
+        PendingResponse(Channel channel, String namespace, AdmissionFilter.Admission admission) {
+            this.channel = channel;
+            this.namespace = namespace;
+            this.admission = admission;
+        }
+    }
 
     public SubmissionHandler(Validator validator,
                              Producer producer,
                              ChannelGroup channelGroup,
                              MetricsManager metricsManager) {
+        this(validator, null, producer, channelGroup, metricsManager);
+    }
+
+    public SubmissionHandler(Validator validator,
+                             WildcardProperties props,
+                             Producer producer,
+                             ChannelGroup channelGroup,
+                             MetricsManager metricsManager) {
+        this(validator, props, producer, channelGroup, metricsManager, null);
+    }
+
+    /**
+     * @param admissionController is told how long sends take (may be null)
+     */
+    public SubmissionHandler(Validator validator,
+                             WildcardProperties props,
+                             Producer producer,
+                             ChannelGroup channelGroup,
+                             MetricsManager metricsManager,
+                             AdmissionController admissionController) {
+        this(validator, props, producer, channelGroup, metricsManager, admissionController,
+             props == null ? null : new NamespacePolicyStore(new NamespacePolicies(props, -1)));
+    }
+
+    /**
+     * @param policies the per-namespace settings, which may change while the handler is in use
+     */
+    public SubmissionHandler(Validator validator,
+                             WildcardProperties props,
+                             Producer producer,
+                             ChannelGroup channelGroup,
+                             MetricsManager metricsManager,
+                             AdmissionController admissionController,
+                             NamespacePolicyStore policies) {
+        this(validator, props, producer, channelGroup, metricsManager, admissionController, policies, null);
+    }
+
+    /**
+     * @param accessLog where requests are logged, or null to log them with log4j
+     */
+    public SubmissionHandler(Validator validator,
+                             WildcardProperties props,
+                             Producer producer,
+                             ChannelGroup channelGroup,
+                             MetricsManager metricsManager,
+                             AdmissionController admissionController,
+                             NamespacePolicyStore policies,
+                             AccessLog accessLog) {
+        this.validator = validator;
+        this.policies = policies;
         this.producer = producer;
         this.channelGroup = channelGroup;
         this.metricsManager = metricsManager;
+        this.batchMaxDocuments = props == null ? DEFAULT_BATCH_MAX_DOCUMENTS :
+            Integer.parseInt(props.getProperty("batch.max.documents", String.valueOf(DEFAULT_BATCH_MAX_DOCUMENTS)));
+        this.admissionController = admissionController;
+        this.accessLog = accessLog;
     }
 
     private void updateRequestMetrics(String namespace, String method, int size) {
@@ -96,31 +214,258 @@ public class SubmissionHandler extends SimpleChannelUpstreamHandler {
         this.metricsManager.getGlobalHttpMetric().updateResponseMetrics(status);
     }
 
+    private NamespacePolicy getPolicy(String namespace) {
+        return policies == null ? null : policies.getPolicy(namespace);
+    }
+
+    private AckMode getAckMode(String namespace) {
+        NamespacePolicy policy = getPolicy(namespace);
+        return policy == null ? AckMode.QUEUED : policy.getAckMode();
+    }
+
     private void handlePost(MessageEvent e, BagheeraHttpRequest request) {
-        HttpResponseStatus status = BAD_REQUEST;
         ChannelBuffer content = request.getContent();
-        String remoteIpAddress = HttpUtil.getRemoteAddr(request, ((InetSocketAddress)e.getChannel().getRemoteAddress()).getAddress().getHostAddress());
+        ClientAddress clientAddress = ClientAddressFilter.getClientAddress(request, e.getChannel());
+        updateRequestMetrics(request.getNamespace(), request.getMethod().getName(), content.readableBytes());
         if (content.readable() && content.readableBytes() > 0) {
             BagheeraMessage.Builder templateBuilder = BagheeraMessage.newBuilder();
             setMessageFields(request, e, templateBuilder, System.currentTimeMillis(), false);
             BagheeraMessage template = templateBuilder.buildPartial();
 
-            BagheeraMessage.Builder storeBuilder = BagheeraMessage.newBuilder(template);
-            storeBuilder.setPayload(ByteString.copyFrom(content.toByteBuffer()));
-            storeBuilder.setId(request.getId());
-            producer.send(storeBuilder.build());
+            // The payload is copied once, straight from the request buffer into the
+            // buffer that becomes the Kafka message
+            BagheeraMessage.Builder envelopeBuilder = BagheeraMessage.newBuilder(template);
+            envelopeBuilder.setId(request.getId());
+            // Still compressed if the namespace passes compressed documents through
+            PayloadEncoding payloadEncoding = getPayloadEncoding(request);
+            if (payloadEncoding != PayloadEncoding.IDENTITY) {
+                envelopeBuilder.setPayloadEncoding(payloadEncoding);
+            }
+            EncodedMessage msg = EncodedMessage.encode(envelopeBuilder.buildPartial(), content);
 
+            List<BagheeraMessage> obsoleteDeletes = null;
             if (request.containsHeader(HEADER_OBSOLETE_DOCUMENT)) {
-                handleObsoleteDocuments(request,remoteIpAddress,request.getHeaders(HEADER_OBSOLETE_DOCUMENT), template);
+                obsoleteDeletes = handleObsoleteDocuments(request,clientAddress,request.getHeaders(HEADER_OBSOLETE_DOCUMENT), template);
+            } else if (accessLog != null) {
+                accessLog.log(AccessLogRecord.PUT, clientAddress, request.getNamespace(), request.getId());
             } else {
-                LOG.info("IP "+remoteIpAddress+" "+request.getNamespace()+" HTTP_PUT "+request.getId());
+                LOG.info("IP "+clientAddress.getHost()+" "+request.getNamespace()+" HTTP_PUT "+request.getId());
             }
+            PendingResponse pending = reserveResponse(e, request.getNamespace());
+            send(msg, getAckMode(request.getNamespace()), pending, CREATED, URI.create(request.getId()).toString(), obsoleteDeletes);
+        } else {
+            writeResponse(BAD_REQUEST, e, request.getNamespace(), URI.create(request.getId()).toString());
+        }
+    }
 
-            status = CREATED;
+    private static PayloadEncoding getPayloadEncoding(BagheeraHttpRequest request) {
+        String contentEncoding = request.getHeader(CONTENT_ENCODING);
+        if (contentEncoding != null) {
+            contentEncoding = contentEncoding.trim();
+            if (ContentInflater.isGzip(contentEncoding)) {
+                return PayloadEncoding.GZIP;
+            } else if (ContentInflater.isDeflate(contentEncoding)) {
+                return PayloadEncoding.DEFLATE;
+            }
+        }
+        return PayloadEncoding.IDENTITY;
+    }
+
+    /**
+     * Sends msg and fills in the pending response once the producer has
+     * acknowledged it as far as ackMode asks for. The follow up messages (the
+     * deletes of obsolete documents) are only sent once msg has made it.
+     */
+    private void send(final EncodedMessage msg, AckMode ackMode, final PendingResponse pending,
+                      final HttpResponseStatus status, final String entity, final List<BagheeraMessage> followUps) {
+        final long start = System.currentTimeMillis();
+        ProducerCallback callback = new ProducerCallback() {
+            @Override
+            public void onCompletion() {
+                if (admissionController != null) {
+                    admissionController.recordLatency(System.currentTimeMillis() - start);
+                }
+                if (followUps != null) {
+                    sendFollowUps(msg, followUps);
+                }
+                respond(pending, buildResponse(status, entity), false);
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                LOG.error("Error sending message " + msg.getId() + ": " + cause.getMessage());
+                respond(pending, buildResponse(SERVICE_UNAVAILABLE, null), false);
+            }
+        };
+        try {
+            producer.send(msg, ackMode, callback);
+        } catch (RuntimeException ex) {
+            callback.onFailure(ex);
+        }
+    }
+
+    /**
+     * Sends the follow ups of a message that has been sent. The response
+     * only depends on the message itself, so a failure here is logged and
+     * counted but not passed on.
+     */
+    private void sendFollowUps(EncodedMessage msg, List<BagheeraMessage> followUps) {
+        for (BagheeraMessage followUp : followUps) {
+            try {
+                producer.send(followUp);
+            } catch (RuntimeException ex) {
+                LOG.error("Error sending delete of " + followUp.getId() + " obsoleted by " + msg.getId() + ": " + ex.getMessage());
+                FAILED_OBSOLETE_DELETES.mark();
+            }
+        }
+    }
+
+    /**
+     * Handles a batch of documents posted to /submit/namespace/_batch. Each line of the
+     * body holds a document id, a tab and the document itself. An empty id gets a generated
+     * one. All of the accepted documents are handed to the producer in one call, and the
+     * response lists the id and status code of every document in the order received.
+     */
+    private void handleBatchPost(MessageEvent e, BagheeraHttpRequest request) {
+        ChannelBuffer content = request.getContent();
+        ClientAddress clientAddress = ClientAddressFilter.getClientAddress(request, e.getChannel());
+        BagheeraMessage.Builder templateBuilder = BagheeraMessage.newBuilder();
+        setMessageFields(request, e, templateBuilder, System.currentTimeMillis(), false);
+        BagheeraMessage template = templateBuilder.buildPartial();
+
+        NamespacePolicy policy = getPolicy(request.getNamespace());
+        boolean validateId = validator != null && (policy == null || policy.isIdValidation());
+        boolean validateJson = validator != null && policy != null && policy.isJsonValidation();
+        List<BagheeraMessage> messages = new ArrayList<BagheeraMessage>();
+        // The id and status of each document, in request order
+        List<String> documentIds = new ArrayList<String>();
+        List<HttpResponseStatus> documentStatuses = new ArrayList<HttpResponseStatus>();
+        StringBuilder ids = new StringBuilder();
+        int documents = 0;
+        int end = content.writerIndex();
+        int lineStart = content.readerIndex();
+        while (lineStart < end) {
+            int lineEnd = content.indexOf(lineStart, end, BATCH_DOCUMENT_DELIMITER);
+            if (lineEnd < 0) {
+                lineEnd = end;
+            }
+            int nextLine = lineEnd + 1;
+            // Tolerate CRLF line endings
+            if (lineEnd > lineStart && content.getByte(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            if (lineEnd > lineStart) {
+                documents++;
+                String id = "";
+                HttpResponseStatus documentStatus = BAD_REQUEST;
+                int idEnd = content.indexOf(lineStart, lineEnd, BATCH_ID_DELIMITER);
+                if (documents > batchMaxDocuments) {
+                    documentStatus = REQUEST_ENTITY_TOO_LARGE;
+                } else if (idEnd >= 0) {
+                    id = idEnd == lineStart ? IdGenerator.getDefault().nextId() :
+                                              content.toString(lineStart, idEnd - lineStart, CharsetUtil.UTF_8);
+                    int documentLength = lineEnd - idEnd - 1;
+                    if (documentLength > 0 && (!validateId || validator.isValidId(id)) &&
+                        (!validateJson || JsonFilter.isValidJson(validator, policy, content, idEnd + 1, documentLength))) {
+                        BagheeraMessage.Builder storeBuilder = BagheeraMessage.newBuilder(template);
+                        storeBuilder.setPayload(ByteString.copyFrom(content.toByteBuffer(idEnd + 1, documentLength)));
+                        storeBuilder.setId(id);
+                        messages.add(storeBuilder.build());
+                        if (accessLog != null) {
+                            accessLog.log(AccessLogRecord.PUT_BATCH, clientAddress, request.getNamespace(), id);
+                        } else {
+                            ids.append(id).append(',');
+                        }
+                        documentStatus = CREATED;
+                    }
+                }
+                documentIds.add(id);
+                documentStatuses.add(documentStatus);
+            }
+            lineStart = nextLine;
         }
 
         updateRequestMetrics(request.getNamespace(), request.getMethod().getName(), content.readableBytes());
-        writeResponse(status, e, request.getNamespace(), URI.create(request.getId()).toString());
+        if (messages.isEmpty()) {
+            writeResponse(BAD_REQUEST, e, request.getNamespace(), formatStatuses(documentIds, documentStatuses));
+        } else if (getAckMode(request.getNamespace()) == AckMode.ACKED) {
+            sendAcked(messages, reserveResponse(e, request.getNamespace()), documentIds, documentStatuses);
+        } else {
+            // Queued and unacknowledged batches both go out in a single send,
+            // which takes on either all of the messages or none of them
+            try {
+                producer.send(messages);
+                writeResponse(CREATED, e, request.getNamespace(), formatStatuses(documentIds, documentStatuses));
+            } catch (RuntimeException ex) {
+                LOG.error("Error sending batch: " + ex.getMessage());
+                writeResponse(SERVICE_UNAVAILABLE, e, request.getNamespace(), null);
+            }
+        }
+        if (accessLog == null) {
+            LOG.info("IP "+clientAddress.getHost()+" "+request.getNamespace()+" HTTP_PUT_BATCH "+ids);
+        }
+    }
+
+    private static String formatStatuses(List<String> documentIds, List<HttpResponseStatus> documentStatuses) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < documentIds.size(); i++) {
+            sb.append(documentIds.get(i)).append('\t').append(documentStatuses.get(i).getCode()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Sends each message of a batch acked, responding once all of them have
+     * been acknowledged or have failed. Acknowledged messages can't be taken
+     * back, so when some fail the response is a 503 listing which documents
+     * were stored (201) and which should be sent again (503).
+     */
+    private void sendAcked(List<BagheeraMessage> messages, final PendingResponse pending,
+                           final List<String> documentIds, final List<HttpResponseStatus> documentStatuses) {
+        final AtomicInteger remaining = new AtomicInteger(messages.size());
+        final AtomicBoolean failed = new AtomicBoolean();
+        // Messages were built from the accepted documents, in order
+        int[] accepted = new int[messages.size()];
+        for (int document = 0, i = 0; i < accepted.length; document++) {
+            if (documentStatuses.get(document) == CREATED) {
+                accepted[i++] = document;
+            }
+        }
+        for (int i = 0; i < accepted.length; i++) {
+            final int index = accepted[i];
+            BagheeraMessage msg = messages.get(i);
+            ProducerCallback callback = new ProducerCallback() {
+                @Override
+                public void onCompletion() {
+                    done();
+                }
+
+                @Override
+                public void onFailure(Throwable cause) {
+                    LOG.error("Error sending batch document " + documentIds.get(index) + ": " + cause.getMessage());
+                    synchronized (documentStatuses) {
+                        documentStatuses.set(index, SERVICE_UNAVAILABLE);
+                    }
+                    failed.set(true);
+                    done();
+                }
+
+                private void done() {
+                    if (remaining.decrementAndGet() == 0) {
+                        String entity;
+                        synchronized (documentStatuses) {
+                            entity = formatStatuses(documentIds, documentStatuses);
+                        }
+                        respond(pending, buildResponse(failed.get() ? SERVICE_UNAVAILABLE : CREATED, entity), false);
+                    }
+                }
+            };
+            try {
+                producer.send(EncodedMessage.encode(msg), AckMode.ACKED, callback);
+            } catch (RuntimeException ex) {
+                callback.onFailure(ex);
+            }
+        }
     }
 
     protected void setMessageFields(BagheeraHttpRequest request, MessageEvent event, BagheeraMessage.Builder builder, long timestamp, boolean setId) {
@@ -134,7 +479,10 @@ public class SubmissionHandler extends SimpleChannelUpstreamHandler {
             builder.addAllPartition(partitions);
         }
 
-        builder.setIpAddr(ByteString.copyFrom(HttpUtil.getRemoteAddr(request, ((InetSocketAddress)event.getChannel().getRemoteAddress()).getAddress())));
+        byte[] addr = ClientAddressFilter.getClientAddress(request, event.getChannel()).getAddress();
+        if (addr != null) {
+            builder.setIpAddr(ByteString.copyFrom(addr));
+        }
         builder.setTimestamp(timestamp);
 
         if (setId) {
@@ -142,7 +490,11 @@ public class SubmissionHandler extends SimpleChannelUpstreamHandler {
         }
     }
 
-    private void handleObsoleteDocuments(BagheeraHttpRequest request, String remoteIpAddress,List<String> headers, BagheeraMessage template) {
+    /**
+     * @return the DELETE messages for the ids in the X-Obsolete-Document
+     *         headers, to be sent once the new document has been
+     */
+    private List<BagheeraMessage> handleObsoleteDocuments(BagheeraHttpRequest request, ClientAddress clientAddress, List<String> headers, BagheeraMessage template) {
         // According to RFC 2616, the standard for multi-valued document headers is
         // a comma-separated list:
         // http://www.w3.org/Protocols/rfc2616/rfc2616-sec4.html#sec4.2
@@ -159,34 +511,71 @@ public class SubmissionHandler extends SimpleChannelUpstreamHandler {
         //   combined field value, and thus a proxy MUST NOT change the order
         //   of these field values when a message is forwarded.
         //  ------------------------------------------------------------------
-        String deleteIDs = ""; 
+        // Namespaces with multi.delete send all of the ids in a single DELETE
+        // message. Consumers that don't read delete_id would only delete the
+        // first of them, so everyone else gets one DELETE per id.
+        NamespacePolicy policy = getPolicy(request.getNamespace());
+        boolean multiDelete = policy != null && policy.isMultiDelete();
+        List<String> obsoleteIds = new ArrayList<String>();
+        StringBuilder deleteIDs = new StringBuilder();
         for (String header : headers) {
             // Split on comma, delete each one.
             // The performance penalty for supporting multiple values is
             // tested in BagheeraHttpRequestTest.testSplitPerformance().
             if (header != null) {
                 for (String obsoleteIdRaw : header.split(",")) {
-                    deleteIDs += obsoleteIdRaw.trim()+",";
-                    // Use the given message as a base for creating each delete message.
-                    BagheeraMessage.Builder deleteBuilder = BagheeraMessage.newBuilder(template);
-                    deleteBuilder.setOperation(Operation.DELETE);
-                    deleteBuilder.setId(obsoleteIdRaw.trim());
-                    producer.send(deleteBuilder.build());
+                    String obsoleteId = obsoleteIdRaw.trim();
+                    if (obsoleteId.length() > 0) {
+                        obsoleteIds.add(obsoleteId);
+                        if (accessLog == null) {
+                            deleteIDs.append(obsoleteId).append(',');
+                        }
+                    }
                 }
             }
         }
-        LOG.info("IP "+remoteIpAddress+" "+request.getNamespace()+" HTTP_PUT "+request.getId()+" HTTP_DELETE "+deleteIDs);
+        List<BagheeraMessage> deletes = new ArrayList<BagheeraMessage>();
+        if (multiDelete && !obsoleteIds.isEmpty()) {
+            BagheeraMessage.Builder deleteBuilder = BagheeraMessage.newBuilder(template);
+            deleteBuilder.setOperation(Operation.DELETE);
+            // Keyed and partitioned like a single delete of the first id
+            deleteBuilder.setId(obsoleteIds.get(0));
+            deleteBuilder.addAllDeleteId(obsoleteIds);
+            deletes.add(deleteBuilder.build());
+        } else {
+            for (String obsoleteId : obsoleteIds) {
+                // Use the given message as a base for creating each delete message.
+                BagheeraMessage.Builder deleteBuilder = BagheeraMessage.newBuilder(template);
+                deleteBuilder.setOperation(Operation.DELETE);
+                deleteBuilder.setId(obsoleteId);
+                deletes.add(deleteBuilder.build());
+            }
+        }
+        if (accessLog != null) {
+            accessLog.log(AccessLogRecord.PUT, clientAddress, request.getNamespace(), request.getId());
+            for (String obsoleteId : obsoleteIds) {
+                accessLog.log(AccessLogRecord.DELETE, clientAddress, request.getNamespace(), obsoleteId);
+            }
+        } else {
+            LOG.info("IP "+clientAddress.getHost()+" "+request.getNamespace()+" HTTP_PUT "+request.getId()+" HTTP_DELETE "+deleteIDs);
+        }
+        return deletes;
     }
 
     private void handleDelete(MessageEvent e, BagheeraHttpRequest request) {
         BagheeraMessage.Builder bmsgBuilder = BagheeraMessage.newBuilder();
         setMessageFields(request, e, bmsgBuilder, System.currentTimeMillis(), true);
-        String remoteIpAddress = HttpUtil.getRemoteAddr(request, ((InetSocketAddress)e.getChannel().getRemoteAddress()).getAddress().getHostAddress());
-        LOG.info("IP "+remoteIpAddress+" "+request.getNamespace()+" HTTP_DELETE "+request.getId());
+        ClientAddress clientAddress = ClientAddressFilter.getClientAddress(request, e.getChannel());
+        if (accessLog != null) {
+            accessLog.log(AccessLogRecord.DELETE, clientAddress, request.getNamespace(), request.getId());
+        } else {
+            LOG.info("IP "+clientAddress.getHost()+" "+request.getNamespace()+" HTTP_DELETE "+request.getId());
+        }
         bmsgBuilder.setOperation(Operation.DELETE);
-        producer.send(bmsgBuilder.build());
         updateRequestMetrics(request.getNamespace(), request.getMethod().getName(), 0);
-        writeResponse(OK, e, request.getNamespace(), null);
+        // Answered as far as the namespace's ack.mode asks for, like a POST
+        send(EncodedMessage.encode(bmsgBuilder.build()), getAckMode(request.getNamespace()),
+             reserveResponse(e, request.getNamespace()), OK, null, null);
     }
 
     private void handleOptions(MessageEvent e, BagheeraHttpRequest request) {
@@ -194,25 +583,73 @@ public class SubmissionHandler extends SimpleChannelUpstreamHandler {
         response.addHeader("Access-Control-Allow-Origin", "*");
         response.addHeader("Access-Control-Allow-Methods", "POST,PUT,DELETE");
         response.addHeader("Access-Control-Allow-Headers", "X-Requested-With, Content-Type, Content-Length");
-        ChannelFuture future = e.getChannel().write(response);
-        future.addListener(ChannelFutureListener.CLOSE);
+        response.setHeader(CONTENT_LENGTH, 0);
+        // Whether the connection is closed afterwards is up to KeepAliveHandler
+        respond(reserveResponse(e, request.getNamespace()), response, false);
     }
-    
-    private void writeResponse(HttpResponseStatus status, MessageEvent e, String namespace, String entity) {
-        // Build the response object.
+
+    private HttpResponse buildResponse(HttpResponseStatus status, String entity) {
         HttpResponse response = new DefaultHttpResponse(HTTP_1_1, status);
         response.addHeader(CONTENT_TYPE, "plain/text");
         if (entity != null) {
             ChannelBuffer buf = ChannelBuffers.wrappedBuffer(entity.getBytes(CharsetUtil.UTF_8));
             response.setContent(buf);
-            response.setHeader(CONTENT_LENGTH, response.getContent().readableBytes());
         }
+        response.setHeader(CONTENT_LENGTH, response.getContent().readableBytes());
+        return response;
+    }
+    
+    private void writeResponse(HttpResponseStatus status, MessageEvent e, String namespace, String entity) {
+        respond(reserveResponse(e, namespace), buildResponse(status, entity), false);
+    }
+
+    /**
+     * Holds a place for the response to a request, so responses are written
+     * in request order even when some of them are only known later.
+     */
+    private PendingResponse reserveResponse(Channel channel, String namespace) {
+        return reserveResponse(channel, namespace, null);
+    }
+
+    /**
+     * Reserves the response to the request in the event, which hands back
+     * the request's admitted bytes once it is written.
+     */
+    private PendingResponse reserveResponse(MessageEvent e, String namespace) {
+        Object msg = e.getMessage();
+        return reserveResponse(e.getChannel(), namespace,
+                               msg instanceof BagheeraHttpRequest ? ((BagheeraHttpRequest)msg).getAdmission() : null);
+    }
 
-        // Write response
-        ChannelFuture future = e.getChannel().write(response);
-        future.addListener(ChannelFutureListener.CLOSE);
+    private PendingResponse reserveResponse(Channel channel, String namespace, AdmissionFilter.Admission admission) {
+        PendingResponse pending = new PendingResponse(channel, namespace, admission);
+        synchronized (pendingResponses) {
+            pendingResponses.add(pending);
+        }
+        return pending;
+    }
 
-        updateResponseMetrics(namespace, response.getStatus().getCode());
+    /**
+     * Fills in a reserved response and writes out every response that is
+     * ready, up to the first one that is still pending. May be called from
+     * producer threads.
+     */
+    private void respond(PendingResponse pending, HttpResponse response, boolean close) {
+        synchronized (pendingResponses) {
+            pending.response = response;
+            pending.close = close;
+            while (!pendingResponses.isEmpty() && pendingResponses.getFirst().response != null) {
+                PendingResponse ready = pendingResponses.removeFirst();
+                if (ready.admission != null) {
+                    ready.admission.release();
+                }
+                ChannelFuture future = ready.channel.write(ready.response);
+                if (ready.close) {
+                    future.addListener(ChannelFutureListener.CLOSE);
+                }
+                updateResponseMetrics(ready.namespace, ready.response.getStatus().getCode());
+            }
+        }
     }
 
     @Override
@@ -228,7 +665,11 @@ public class SubmissionHandler extends SimpleChannelUpstreamHandler {
             BagheeraHttpRequest request = (BagheeraHttpRequest)e.getMessage();
             if (ENDPOINT_SUBMIT.equals(request.getEndpoint())) {
                 if ((request.getMethod() == HttpMethod.POST || request.getMethod() == HttpMethod.PUT)) {
-                    handlePost(e, request);
+                    if (request.isBatch()) {
+                        handleBatchPost(e, request);
+                    } else {
+                        handlePost(e, request);
+                    }
                 } else if (request.getMethod() == HttpMethod.GET) {
                     writeResponse(METHOD_NOT_ALLOWED, e, request.getNamespace(), null);
                 } else if (request.getMethod() == HttpMethod.DELETE) {
@@ -237,10 +678,14 @@ public class SubmissionHandler extends SimpleChannelUpstreamHandler {
                     handleOptions(e,request);
                 }
             } else {
-                String remoteIpAddress = HttpUtil.getRemoteAddr(request, ((InetSocketAddress)e.getChannel().getRemoteAddress()).getAddress().getHostAddress());
+                String remoteIpAddress = ClientAddressFilter.getClientAddress(request, e.getChannel()).getHost();
                 LOG.warn(String.format("Tried to access invalid resource - \"%s\" \"%s\"", remoteIpAddress, request.getHeader("User-Agent")));
                 writeResponse(NOT_FOUND, e, null, null);
             }
+        } else if (msg instanceof RootResponse.RootRequest) {
+            HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+            response.setHeader(CONTENT_LENGTH, 0);
+            respond(reserveResponse(e.getChannel(), null), response, false);
         } else {
             writeResponse(INTERNAL_SERVER_ERROR, e, null, null);
         }
@@ -256,20 +701,35 @@ public class SubmissionHandler extends SimpleChannelUpstreamHandler {
             // NOOP
         } else if (cause instanceof TooLongFrameException) {
             response = new DefaultHttpResponse(HTTP_1_1, REQUEST_ENTITY_TOO_LARGE);
+        } else if (cause instanceof InvalidJsonException) {
+            LOG.warn(cause.getMessage());
+            response = new DefaultHttpResponse(HTTP_1_1, BAD_REQUEST);
+        } else if (cause instanceof DataFormatException) {
+            LOG.warn("Invalid compressed content: " + cause.getMessage());
+            response = new DefaultHttpResponse(HTTP_1_1, BAD_REQUEST);
         } else if (cause instanceof InvalidPathException) {
             response = new DefaultHttpResponse(HTTP_1_1, NOT_FOUND);
         } else if (cause instanceof HttpSecurityException) {
             LOG.error(cause.getMessage());
             response = new DefaultHttpResponse(HTTP_1_1, FORBIDDEN);
+        } else if (cause instanceof ServiceUnavailableException) {
+            LOG.warn(cause.getMessage());
+            response = new DefaultHttpResponse(HTTP_1_1, SERVICE_UNAVAILABLE);
+            response.setHeader(RETRY_AFTER, ((ServiceUnavailableException)cause).getRetryAfterSeconds());
+        } else if (cause instanceof TooManyRequestsException) {
+            LOG.warn(cause.getMessage());
+            response = new DefaultHttpResponse(HTTP_1_1, TooManyRequestsException.TOO_MANY_REQUESTS);
+            response.setHeader(RETRY_AFTER, ((TooManyRequestsException)cause).getRetryAfterSeconds());
         } else {
             LOG.error(cause.getMessage());
             response = new DefaultHttpResponse(HTTP_1_1, INTERNAL_SERVER_ERROR);
         }
 
         if (response != null) {
-            ChannelFuture future = e.getChannel().write(response);
-            future.addListener(ChannelFutureListener.CLOSE);
-            updateResponseMetrics(null, response.getStatus().getCode());
+            // The rest of the request may still be in flight so don't reuse the connection
+            response.setHeader(CONNECTION, HttpHeaders.Values.CLOSE);
+            response.setHeader(CONTENT_LENGTH, 0);
+            respond(reserveResponse(e.getChannel(), null), response, true);
         }
     }
 }
@@ -19,33 +19,69 @@
  */
 package com.mozilla.bagheera.http.json;
 
+import java.util.concurrent.TimeUnit;
+
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
-import org.jboss.netty.handler.codec.http.HttpRequest;
-import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
 
+import com.mozilla.bagheera.http.BagheeraHttpRequest;
+import com.mozilla.bagheera.validation.NamespacePolicy;
 import com.mozilla.bagheera.validation.Validator;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
 
+/**
+ * Rejects documents that aren't JSON, for namespaces with json.validation
+ * set, before anything is produced. The body is parsed straight from its
+ * bytes. Documents still compressed (compressed.passthrough) and batches,
+ * whose documents are checked one by one when they are split up, are let
+ * through.
+ */
 public class JsonFilter extends SimpleChannelUpstreamHandler {
  
     private final Validator validator;
+    private final Meter invalid;
     
     public JsonFilter(Validator validator) {
         this.validator = validator;
+        this.invalid = Metrics.newMeter(new MetricName("bagheera", "json", "invalid"), "requests", TimeUnit.SECONDS);
     }
-    
+
+    /**
+     * Checks length bytes of content from index against the namespace's JSON limits.
+     */
+    public static boolean isValidJson(Validator validator, NamespacePolicy policy, ChannelBuffer content, int index, int length) {
+        if (content.hasArray()) {
+            return validator.isValidJson(content.array(), content.arrayOffset() + index, length,
+                                         policy.getJsonMaxDepth(), policy.getJsonMaxTokens());
+        }
+        return validator.isValidJson(new ChannelBufferInputStream(content.slice(index, length)),
+                                     policy.getJsonMaxDepth(), policy.getJsonMaxTokens());
+    }
+
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
         Object msg = e.getMessage();
-        if (msg instanceof HttpRequest) {
-            HttpRequest request = (HttpRequest)e.getMessage();
+        if (msg instanceof BagheeraHttpRequest) {
+            BagheeraHttpRequest request = (BagheeraHttpRequest)msg;
             ChannelBuffer content = request.getContent();
-            if (content.readable()) {
-                if (!validator.isValidJson(content.toString(CharsetUtil.UTF_8))) {
-                    throw new InvalidJsonException("Invalid JSON");
+            String contentEncoding = request.getHeader(HttpHeaders.Names.CONTENT_ENCODING);
+            if (content.readable() &&
+                (request.getMethod() == HttpMethod.POST || request.getMethod() == HttpMethod.PUT) &&
+                !request.isBatch() &&
+                (contentEncoding == null || HttpHeaders.Values.IDENTITY.equalsIgnoreCase(contentEncoding.trim()))) {
+                NamespacePolicy policy = validator.getNamespacePolicy(request.getNamespace());
+                if (policy != null && policy.isJsonValidation() &&
+                    !isValidJson(validator, policy, content, content.readerIndex(), content.readableBytes())) {
+                    invalid.mark();
+                    throw new InvalidJsonException("Invalid JSON for namespace " + request.getNamespace());
                 }
             }
             Channels.fireMessageReceived(ctx, request, e.getRemoteAddress());
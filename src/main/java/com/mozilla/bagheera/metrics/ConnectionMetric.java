@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Connection level metrics for the HTTP server. Used to see how often
+ * persistent connections are actually being reused.
+ */
+public class ConnectionMetric {
+
+    private static final String DEFAULT_GROUP = "bagheera";
+    private static final String DEFAULT_TYPE = "connections";
+
+    private Counter open;
+    private Meter opened, closed, reused, idleClosed;
+    private Histogram requestsPerConnection;
+
+    ConnectionMetric() {
+        configureMetrics();
+    }
+
+    private void configureMetrics() {
+        open = Metrics.newCounter(new MetricName(DEFAULT_GROUP, DEFAULT_TYPE, "open"));
+        opened = Metrics.newMeter(new MetricName(DEFAULT_GROUP, DEFAULT_TYPE, "opened"), "connections", TimeUnit.SECONDS);
+        closed = Metrics.newMeter(new MetricName(DEFAULT_GROUP, DEFAULT_TYPE, "closed"), "connections", TimeUnit.SECONDS);
+        reused = Metrics.newMeter(new MetricName(DEFAULT_GROUP, DEFAULT_TYPE, "reused"), "requests", TimeUnit.SECONDS);
+        idleClosed = Metrics.newMeter(new MetricName(DEFAULT_GROUP, DEFAULT_TYPE, "idle.closed"), "connections", TimeUnit.SECONDS);
+        requestsPerConnection = Metrics.newHistogram(new MetricName(DEFAULT_GROUP, DEFAULT_TYPE, "requests.per.connection"), false);
+    }
+
+    public void connectionOpened() {
+        open.inc();
+        opened.mark();
+    }
+
+    /**
+     * @param requests the number of requests served over the connection
+     */
+    public void connectionClosed(int requests) {
+        open.dec();
+        closed.mark();
+        requestsPerConnection.update(requests);
+    }
+
+    /**
+     * Marks a request that arrived on a connection which had already served
+     * at least one other request.
+     */
+    public void connectionReused() {
+        reused.mark();
+    }
+
+    public void connectionIdleClosed() {
+        idleClosed.mark();
+    }
+}
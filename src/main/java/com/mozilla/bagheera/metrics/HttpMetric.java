@@ -34,7 +34,7 @@ public class HttpMetric {
     private static final String DEFAULT_TYPE = "http";
     private final String id;
     
-    private Meter requests, throughput;
+    private Meter requests, throughput, shed, namespaceRateLimited, clientRateLimited, rateLimitOverflow;
     private ConcurrentMap<String,Meter> methods;
     private ConcurrentMap<Integer,Counter> responseCodeCounts;
     
@@ -46,6 +46,10 @@ public class HttpMetric {
     private void configureMetrics() {
         requests = Metrics.newMeter(new MetricName(DEFAULT_GROUP, DEFAULT_TYPE, this.id + ".requests"), "requests", TimeUnit.SECONDS);
         throughput = Metrics.newMeter(new MetricName(DEFAULT_GROUP, DEFAULT_TYPE, this.id + ".throughput"), "bytes", TimeUnit.SECONDS);
+        shed = Metrics.newMeter(new MetricName(DEFAULT_GROUP, DEFAULT_TYPE, this.id + ".shed"), "requests", TimeUnit.SECONDS);
+        namespaceRateLimited = Metrics.newMeter(new MetricName(DEFAULT_GROUP, DEFAULT_TYPE, this.id + ".ratelimited.namespace"), "requests", TimeUnit.SECONDS);
+        clientRateLimited = Metrics.newMeter(new MetricName(DEFAULT_GROUP, DEFAULT_TYPE, this.id + ".ratelimited.client"), "requests", TimeUnit.SECONDS);
+        rateLimitOverflow = Metrics.newMeter(new MetricName(DEFAULT_GROUP, DEFAULT_TYPE, this.id + ".ratelimit.overflow"), "requests", TimeUnit.SECONDS);
         methods = new ConcurrentHashMap<String,Meter>();
         responseCodeCounts = new ConcurrentHashMap<Integer,Counter>();
     }
@@ -62,6 +66,32 @@ public class HttpMetric {
         }
     }
     
+    /**
+     * Marks a request that was turned away because the server was overloaded.
+     */
+    public void updateShedMetrics() {
+        shed.mark();
+    }
+
+    /**
+     * Marks a request that was over a namespace's (or a client's) rate limit.
+     */
+    public void updateRateLimitMetrics(boolean perClient) {
+        if (perClient) {
+            clientRateLimited.mark();
+        } else {
+            namespaceRateLimited.mark();
+        }
+    }
+
+    /**
+     * Marks a request from a client that went through the shared overflow
+     * bucket because its namespace was tracking rate.max.clients clients.
+     */
+    public void updateRateLimitOverflowMetrics() {
+        rateLimitOverflow.mark();
+    }
+
     public void updateResponseMetrics(int status) {
         if (responseCodeCounts.containsKey(status)) {
             responseCodeCounts.get(status).inc();
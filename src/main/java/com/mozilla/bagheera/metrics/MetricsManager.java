@@ -36,6 +36,7 @@ public class MetricsManager {
     private static final String GLOBAL_HTTP_METRIC_ID = "global";
 
     private ConcurrentMap<String, HttpMetric> httpMetrics = new ConcurrentHashMap<String, HttpMetric>();
+    private final ConnectionMetric connectionMetric;
 
     public static MetricsManager getDefaultMetricsManager() {
         final Properties properties = readProperties(DEFAULT_METRICS_PROPERTIES_RESOURCE_NAME);
@@ -50,6 +51,7 @@ public class MetricsManager {
         configureReporters(properties, propertiesPrefix);
         HttpMetric h = new HttpMetric(GLOBAL_HTTP_METRIC_ID);
         httpMetrics.put(GLOBAL_HTTP_METRIC_ID, h);
+        connectionMetric = new ConnectionMetric();
     }
 
     private static String getProp(final Properties props, final String prefix, final String key) {
@@ -103,6 +105,10 @@ public class MetricsManager {
         return getHttpMetricForNamespace(GLOBAL_HTTP_METRIC_ID);
     }
 
+    public ConnectionMetric getConnectionMetric() {
+        return connectionMetric;
+    }
+
     public HttpMetric getHttpMetricForNamespace(final String ns) {
         final HttpMetric metric = httpMetrics.get(ns);
         if (metric != null) {
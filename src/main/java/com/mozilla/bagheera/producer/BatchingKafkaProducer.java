@@ -0,0 +1,434 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.producer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import kafka.javaapi.producer.ProducerData;
+import kafka.message.Message;
+
+import org.apache.log4j.Logger;
+
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+import com.mozilla.bagheera.serializer.EncodedMessage;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * A KafkaProducer that groups messages into multi-message ProducerData sends.
+ *
+ * Messages are buffered per topic in a number of lock-striped batches. A
+ * message always lands in the batch picked by its id and keeps its id as its
+ * Kafka key, so messages are partitioned by id just as without batching, and
+ * all messages for an id still go to the same partition in the order they
+ * were sent. A batch is flushed once it holds enough messages or bytes, or
+ * once its oldest message has waited for the linger time. Kafka sends a
+ * flushed batch to each broker as a single produce request.
+ *
+ * The actual sends happen on sender threads (one per group of stripes) so the
+ * calling I/O threads never wait on Kafka. This works best with
+ * producer.type=sync, where each flush becomes a single produce request.
+ *
+ * A batch that fails to send is retried by its sender until it goes through,
+ * rather than dropped. While a sender's last batch has failed, or while too
+ * many batches are already waiting for it, send throws instead of accepting
+ * more messages, so that a SpoolingProducer spools them or the client is
+ * answered with 503.
+ */
+public class BatchingKafkaProducer extends KafkaProducer implements QueueingProducer {
+
+    private static final Logger LOG = Logger.getLogger(BatchingKafkaProducer.class);
+
+    public static final String BATCH_ENABLE = "bagheera.batch.enable";
+    public static final String BATCH_MAX_MESSAGES = "bagheera.batch.max.messages";
+    public static final String BATCH_MAX_BYTES = "bagheera.batch.max.bytes";
+    public static final String BATCH_LINGER_MS = "bagheera.batch.linger.ms";
+    public static final String BATCH_STRIPES = "bagheera.batch.stripes";
+    public static final String BATCH_SENDERS = "bagheera.batch.senders";
+    public static final String BATCH_SENDER_QUEUE_SIZE = "bagheera.batch.sender.queue.size";
+    public static final String BATCH_RETRY_MS = "bagheera.batch.retry.ms";
+
+    private final int maxMessages;
+    private final int maxBytes;
+    private final long lingerMillis;
+    private final int numStripes;
+    private final long retryMillis;
+
+    private final ConcurrentMap<String, Batch[]> batches = new ConcurrentHashMap<String, Batch[]>();
+    private final Sender[] senders;
+    private final ScheduledExecutorService lingerFlusher;
+    private final AtomicLong queueDepth = new AtomicLong();
+
+    private final Histogram batchMessages;
+    private final Histogram batchBytes;
+
+    /**
+     * Messages buffered for one stripe of a topic.
+     */
+    private static class Batch {
+        final String topic;
+        final int stripe;
+        List<ProducerData<String,Message>> messages = new ArrayList<ProducerData<String,Message>>();
+        // The callback of each message, null for messages that aren't acked
+        List<ProducerCallback> callbacks = new ArrayList<ProducerCallback>();
+        int acked = 0;
+        int bytes = 0;
+        long firstAppendMillis = 0;
+
+        Batch(String topic, int stripe) {
+            this.topic = topic;
+            this.stripe = stripe;
+        }
+    }
+
+    /**
+     * A thread sending the batches of a group of stripes, in order.
+     */
+    private static class Sender {
+        final ThreadPoolExecutor executor;
+        // Why the last batch failed, null once a batch has gone through
+        volatile RuntimeException failure;
+
+        Sender(int queueSize) {
+            executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                                              new ArrayBlockingQueue<Runnable>(queueSize));
+        }
+    }
+
+    public static boolean isEnabled(Properties props) {
+        return Boolean.parseBoolean(props.getProperty(BATCH_ENABLE, "false"));
+    }
+
+    public BatchingKafkaProducer(Properties props) {
+        super(props);
+        maxMessages = Integer.parseInt(props.getProperty(BATCH_MAX_MESSAGES, props.getProperty("batch.size", "200")));
+        maxBytes = Integer.parseInt(props.getProperty(BATCH_MAX_BYTES, "1048576"));
+        lingerMillis = Long.parseLong(props.getProperty(BATCH_LINGER_MS, "20"));
+        numStripes = Integer.parseInt(props.getProperty(BATCH_STRIPES, "16"));
+        int numSenders = Math.min(numStripes, Integer.parseInt(props.getProperty(BATCH_SENDERS, "1")));
+        int senderQueueSize = Integer.parseInt(props.getProperty(BATCH_SENDER_QUEUE_SIZE, "16"));
+        retryMillis = Long.parseLong(props.getProperty(BATCH_RETRY_MS, "1000"));
+        if (maxMessages <= 0 || maxBytes <= 0 || lingerMillis <= 0 || numStripes <= 0 || numSenders <= 0 ||
+            senderQueueSize <= 0 || retryMillis <= 0) {
+            throw new IllegalArgumentException("Batch sizes, linger time, stripes, senders, sender queue size and retry time must all be positive");
+        }
+
+        senders = new Sender[numSenders];
+        for (int i = 0; i < numSenders; i++) {
+            senders[i] = new Sender(senderQueueSize);
+        }
+        lingerFlusher = Executors.newSingleThreadScheduledExecutor();
+        long interval = Math.max(1L, lingerMillis / 2);
+        lingerFlusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flushExpired(false);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+
+        batchMessages = Metrics.newHistogram(new MetricName("bagheera", "producer", "batch.messages"), false);
+        batchBytes = Metrics.newHistogram(new MetricName("bagheera", "producer", "batch.bytes"), false);
+        Metrics.newGauge(new MetricName("bagheera", "producer", "queue.depth"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return queueDepth.get();
+            }
+        });
+    }
+
+    private Batch getBatch(String topic, String id) {
+        Batch[] stripes = batches.get(topic);
+        if (stripes == null) {
+            stripes = new Batch[numStripes];
+            for (int i = 0; i < numStripes; i++) {
+                stripes[i] = new Batch(topic, i);
+            }
+            Batch[] existing = batches.putIfAbsent(topic, stripes);
+            if (existing != null) {
+                stripes = existing;
+            }
+        }
+        int hash = id == null ? 0 : id.hashCode();
+        return stripes[(hash & Integer.MAX_VALUE) % numStripes];
+    }
+
+    private Sender getSender(Batch batch) {
+        return senders[batch.stripe % senders.length];
+    }
+
+    /**
+     * Hands the contents of the batch to its sender. Must be called while
+     * holding the batch's lock, which keeps sends of the batch in order.
+     *
+     * @return false if the sender has too many batches waiting already, in
+     *         which case the batch is left as it is
+     */
+    private boolean drain(final Batch batch) {
+        final Sender sender = getSender(batch);
+        final List<ProducerData<String,Message>> messages = batch.messages;
+        final List<ProducerCallback> callbacks = batch.callbacks;
+        final boolean acked = batch.acked > 0;
+        try {
+            sender.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendBatch(sender, batch.topic, messages, callbacks, acked);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        batchMessages.update(messages.size());
+        batchBytes.update(batch.bytes);
+        batch.messages = new ArrayList<ProducerData<String,Message>>(messages.size());
+        batch.callbacks = new ArrayList<ProducerCallback>(messages.size());
+        batch.acked = 0;
+        batch.bytes = 0;
+        return true;
+    }
+
+    /**
+     * Sends a batch, retrying it until it goes through or the sender is shut
+     * down. Runs on the batch's sender thread.
+     */
+    private void sendBatch(Sender sender, String topic, List<ProducerData<String,Message>> messages,
+                           List<ProducerCallback> callbacks, boolean acked) {
+        int count = messages.size();
+        try {
+            while (true) {
+                try {
+                    // A batch holding any acked messages is sent synchronously as a whole
+                    if (acked) {
+                        sendAckedProducerData(messages);
+                    } else {
+                        sendProducerData(messages);
+                    }
+                } catch (RuntimeException e) {
+                    sender.failure = e;
+                    if (acked) {
+                        // Clients waiting for an acknowledgement are told and can
+                        // retry themselves, the rest of the batch is retried here
+                        List<ProducerData<String,Message>> unacked = new ArrayList<ProducerData<String,Message>>(messages.size());
+                        for (int i = 0; i < messages.size(); i++) {
+                            ProducerCallback callback = callbacks.get(i);
+                            if (callback == null) {
+                                unacked.add(messages.get(i));
+                            } else {
+                                callback.onFailure(e);
+                            }
+                        }
+                        messages = unacked;
+                        acked = false;
+                        if (messages.isEmpty()) {
+                            return;
+                        }
+                    }
+                    LOG.warn("Error sending batch of " + messages.size() + " messages to " + topic +
+                             ", retrying in " + retryMillis + "ms", e);
+                    try {
+                        Thread.sleep(retryMillis);
+                    } catch (InterruptedException ie) {
+                        LOG.error("Shut down while retrying, dropped batch of " + messages.size() + " messages to " + topic);
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    continue;
+                }
+                sender.failure = null;
+                if (acked) {
+                    for (ProducerCallback callback : callbacks) {
+                        if (callback != null) {
+                            callback.onCompletion();
+                        }
+                    }
+                }
+                return;
+            }
+        } finally {
+            queueDepth.addAndGet(-count);
+        }
+    }
+
+    private void flushExpired(boolean all) {
+        long now = System.currentTimeMillis();
+        for (Batch[] stripes : batches.values()) {
+            for (Batch batch : stripes) {
+                synchronized (batch) {
+                    if (!batch.messages.isEmpty() && (all || now - batch.firstAppendMillis >= lingerMillis)) {
+                        // Tried again next time if the sender is behind
+                        if (!drain(batch) && all) {
+                            LOG.error("Too many batches waiting to be sent, dropped " + batch.messages.size() +
+                                      " messages to " + batch.topic);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the last batch of any sender failed to send
+     */
+    public boolean isFailing() {
+        for (Sender sender : senders) {
+            if (sender.failure != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* (non-Javadoc)
+     * @see com.mozilla.bagheera.producer.KafkaProducer#send(com.mozilla.bagheera.serializer.EncodedMessage)
+     */
+    @Override
+    public void send(EncodedMessage msg) {
+        append(msg, null, true);
+    }
+
+    /* (non-Javadoc)
+     * @see com.mozilla.bagheera.producer.KafkaProducer#send(com.mozilla.bagheera.serializer.EncodedMessage, com.mozilla.bagheera.producer.AckMode, com.mozilla.bagheera.producer.ProducerCallback)
+     */
+    @Override
+    public void send(EncodedMessage msg, AckMode ackMode, ProducerCallback callback) {
+        if (ackMode == AckMode.ACKED) {
+            try {
+                append(msg, callback, true);
+            } catch (RuntimeException e) {
+                callback.onFailure(e);
+            }
+        } else {
+            super.send(msg, ackMode, callback);
+        }
+    }
+
+    /**
+     * @param mayRefuse whether the message may be refused; if not (the caller
+     *        has checked the sender already), a full batch that can't be
+     *        handed to its sender yet is left to grow until the linger
+     *        flusher manages to hand it over
+     * @throws IllegalStateException if the message wasn't accepted because
+     *         sending to Kafka is failing or too far behind
+     */
+    private void append(EncodedMessage msg, ProducerCallback callback, boolean mayRefuse) {
+        Batch batch = getBatch(msg.getNamespace(), msg.getId());
+        RuntimeException failure = getSender(batch).failure;
+        if (failure != null && mayRefuse) {
+            throw new IllegalStateException("Sending to Kafka is failing, refused message " + msg.getId(), failure);
+        }
+        queueDepth.incrementAndGet();
+        synchronized (batch) {
+            if (batch.messages.isEmpty()) {
+                batch.firstAppendMillis = System.currentTimeMillis();
+            }
+            batch.messages.add(toProducerData(msg));
+            batch.callbacks.add(callback);
+            if (callback != null) {
+                batch.acked++;
+            }
+            batch.bytes += msg.getSerializedSize();
+            if ((batch.messages.size() >= maxMessages || batch.bytes >= maxBytes) && !drain(batch) && mayRefuse) {
+                // Take the message back out, the linger flusher retries the rest
+                int last = batch.messages.size() - 1;
+                batch.messages.remove(last);
+                batch.callbacks.remove(last);
+                if (callback != null) {
+                    batch.acked--;
+                }
+                batch.bytes -= msg.getSerializedSize();
+                queueDepth.decrementAndGet();
+                throw new IllegalStateException("Too many batches waiting to be sent to Kafka, refused message " + msg.getId());
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mozilla.bagheera.producer.KafkaProducer#send(java.util.List)
+     */
+    @Override
+    public void send(List<BagheeraMessage> msgs) {
+        List<EncodedMessage> encoded = new ArrayList<EncodedMessage>(msgs.size());
+        for (BagheeraMessage msg : msgs) {
+            encoded.add(EncodedMessage.encode(msg));
+        }
+        // The whole list is refused up front if any of its senders is failing
+        // or has no room, so that a list is never taken on only in part
+        for (EncodedMessage msg : encoded) {
+            Sender sender = getSender(getBatch(msg.getNamespace(), msg.getId()));
+            RuntimeException failure = sender.failure;
+            if (failure != null) {
+                throw new IllegalStateException("Sending to Kafka is failing, refused batch of " + msgs.size() + " messages",
+                                                failure);
+            }
+            if (sender.executor.getQueue().remainingCapacity() == 0) {
+                throw new IllegalStateException("Too many batches waiting to be sent to Kafka, refused batch of " +
+                                                msgs.size() + " messages");
+            }
+        }
+        for (EncodedMessage msg : encoded) {
+            append(msg, null, false);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mozilla.bagheera.producer.QueueingProducer#getQueueDepth()
+     */
+    @Override
+    public long getQueueDepth() {
+        return queueDepth.get() + super.getQueueDepth();
+    }
+
+    /* (non-Javadoc)
+     * @see com.mozilla.bagheera.producer.KafkaProducer#close()
+     */
+    @Override
+    public void close() {
+        lingerFlusher.shutdown();
+        flushExpired(true);
+        for (Sender sender : senders) {
+            sender.executor.shutdown();
+        }
+        try {
+            for (Sender sender : senders) {
+                if (!sender.executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                    // Stops a sender that is still retrying a batch
+                    List<Runnable> unsent = sender.executor.shutdownNow();
+                    LOG.error("Timed out waiting for batches to be sent, dropped " + unsent.size() + " batches");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        super.close();
+    }
+}
@@ -22,25 +22,103 @@ package com.mozilla.bagheera.producer;
 import java.util.Properties;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import kafka.javaapi.producer.Producer;
 import kafka.javaapi.producer.ProducerData;
+import kafka.message.Message;
 import kafka.producer.ProducerConfig;
+import kafka.serializer.DefaultEncoder;
+
+import org.apache.log4j.Logger;
 
 import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+import com.mozilla.bagheera.serializer.EncodedMessage;
+
+public class KafkaProducer implements QueueingProducer {
 
-public class KafkaProducer implements com.mozilla.bagheera.producer.Producer {
+    private static final Logger LOG = Logger.getLogger(KafkaProducer.class);
 
-    private final Producer<String,BagheeraMessage> producer;
+    public static final String ACK_THREADS = "bagheera.ack.threads";
+    public static final String ACK_QUEUE_SIZE = "bagheera.ack.queue.size";
+
+    private final Properties producerProps;
+    private final Producer<String,Message> producer;
+    private final boolean sync;
+    private final int ackThreads;
+    private final int ackQueueSize;
+    // Acked sends waiting for or on an ack sender
+    private final AtomicLong pendingAckedSends = new AtomicLong();
+
+    // Created on the first acked send
+    private Producer<String,Message> ackProducer;
+    private ThreadPoolExecutor ackSenders;
     
     public KafkaProducer(Properties props) {
-        ProducerConfig config = new ProducerConfig(props);
-        producer = new Producer<String,BagheeraMessage>(config);
+        // Messages are encoded before they get here (see EncodedMessage) so
+        // Kafka is given them as they are, whatever serializer.class says.
+        producerProps = new Properties();
+        producerProps.putAll(props);
+        producerProps.setProperty("serializer.class", DefaultEncoder.class.getName());
+        ProducerConfig config = new ProducerConfig(producerProps);
+        producer = new Producer<String,Message>(config);
+        sync = "sync".equals(producerProps.getProperty("producer.type", "sync"));
+        ackThreads = Integer.parseInt(producerProps.getProperty(ACK_THREADS, "4"));
+        ackQueueSize = Integer.parseInt(producerProps.getProperty(ACK_QUEUE_SIZE, "1000"));
+    }
+
+    /**
+     * Kafka 0.7 has no broker acknowledgements, so the closest we get is a
+     * sync send returning, which means the broker has been sent the request.
+     * When the main producer is async a second, sync one is used for that.
+     */
+    protected synchronized Producer<String,Message> getAckProducer() {
+        if (sync) {
+            return producer;
+        }
+        if (ackProducer == null) {
+            Properties ackProps = new Properties();
+            ackProps.putAll(producerProps);
+            ackProps.setProperty("producer.type", "sync");
+            ackProducer = new Producer<String,Message>(new ProducerConfig(ackProps));
+        }
+        return ackProducer;
+    }
+
+    /**
+     * A stalled broker makes acked sends wait here rather than pile up, the
+     * sends that don't fit are refused.
+     */
+    private synchronized ThreadPoolExecutor getAckSenders() {
+        if (ackSenders == null) {
+            ackSenders = new ThreadPoolExecutor(ackThreads, ackThreads, 0L, TimeUnit.MILLISECONDS,
+                                                new ArrayBlockingQueue<Runnable>(ackQueueSize));
+        }
+        return ackSenders;
     }
     
     /* (non-Javadoc)
      * @see com.mozilla.bagheera.producer.Producer#close()
      */
     public void close() {
+        synchronized (this) {
+            if (ackSenders != null) {
+                ackSenders.shutdown();
+                try {
+                    ackSenders.awaitTermination(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (ackProducer != null) {
+                ackProducer.close();
+            }
+        }
         if (producer != null) {
             producer.close();
         }
@@ -51,9 +129,109 @@ public class KafkaProducer implements com.mozilla.bagheera.producer.Producer {
      */
     @Override
     public void send(BagheeraMessage msg) {
-        List<BagheeraMessage> list = new ArrayList<BagheeraMessage>();
-        list.add(msg);
-        producer.send(new ProducerData<String,BagheeraMessage>(msg.getNamespace(), msg.getId(),list));
+        send(EncodedMessage.encode(msg));
+    }
+
+    /* (non-Javadoc)
+     * @see com.mozilla.bagheera.producer.Producer#send(com.mozilla.bagheera.serializer.EncodedMessage)
+     */
+    @Override
+    public void send(EncodedMessage msg) {
+        producer.send(toProducerData(msg));
+    }
+
+    /* (non-Javadoc)
+     * @see com.mozilla.bagheera.producer.Producer#send(com.mozilla.bagheera.serializer.EncodedMessage, com.mozilla.bagheera.producer.AckMode, com.mozilla.bagheera.producer.ProducerCallback)
+     */
+    @Override
+    public void send(final EncodedMessage msg, AckMode ackMode, final ProducerCallback callback) {
+        switch (ackMode) {
+            case NONE:
+                callback.onCompletion();
+                try {
+                    send(msg);
+                } catch (RuntimeException e) {
+                    LOG.error("Error sending unacknowledged message " + msg.getId(), e);
+                }
+                break;
+            case QUEUED:
+                try {
+                    send(msg);
+                } catch (RuntimeException e) {
+                    callback.onFailure(e);
+                    break;
+                }
+                callback.onCompletion();
+                break;
+            case ACKED:
+                pendingAckedSends.incrementAndGet();
+                try {
+                    getAckSenders().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                sendAckedProducerData(Collections.singletonList(toProducerData(msg)));
+                            } catch (RuntimeException e) {
+                                callback.onFailure(e);
+                                return;
+                            } finally {
+                                pendingAckedSends.decrementAndGet();
+                            }
+                            callback.onCompletion();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    pendingAckedSends.decrementAndGet();
+                    // Answered with 503 so the client retries later
+                    callback.onFailure(new IllegalStateException("Too many acked sends waiting, refused message " + msg.getId(), e));
+                }
+                break;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mozilla.bagheera.producer.Producer#send(java.util.List)
+     */
+    @Override
+    public void send(List<BagheeraMessage> msgs) {
+        // Keep one ProducerData per message so each is still partitioned by its id
+        List<ProducerData<String,Message>> data = new ArrayList<ProducerData<String,Message>>(msgs.size());
+        for (BagheeraMessage msg : msgs) {
+            data.add(toProducerData(EncodedMessage.encode(msg)));
+        }
+        producer.send(data);
+    }
+
+    protected ProducerData<String,Message> toProducerData(EncodedMessage msg) {
+        List<Message> list = new ArrayList<Message>(1);
+        list.add(msg.toKafkaMessage());
+        return new ProducerData<String,Message>(msg.getNamespace(), msg.getId(), list);
+    }
+
+    /**
+     * Messages sent without an acknowledgement are handed to Kafka straight
+     * away (and queued by its async producer if there is one), so only acked
+     * sends waiting for a sender thread are counted.
+     *
+     * @see com.mozilla.bagheera.producer.QueueingProducer#getQueueDepth()
+     */
+    @Override
+    public long getQueueDepth() {
+        return pendingAckedSends.get();
+    }
+
+    /**
+     * Sends the given data as it is.
+     */
+    protected void sendProducerData(List<ProducerData<String,Message>> data) {
+        producer.send(data);
+    }
+
+    /**
+     * Sends the given data, returning once it has been sent to the broker.
+     */
+    protected void sendAckedProducerData(List<ProducerData<String,Message>> data) {
+        getAckProducer().send(data);
     }
     
 }
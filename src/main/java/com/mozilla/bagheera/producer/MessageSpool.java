@@ -0,0 +1,398 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.producer;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.mozilla.bagheera.serializer.EncodedMessage;
+
+/**
+ * A FIFO of encoded messages kept in memory-mapped segment files.
+ *
+ * Each segment starts with a magic number and the position of the next record
+ * to read, followed by records of the form [length][crc32][body]. The body
+ * holds the namespace, the id and the serialized message. A zero length marks
+ * the end of the written part of a segment. The length is written last, so a
+ * record that was only partly written looks like the end of the segment.
+ *
+ * The spool never uses more than maxSegments * segmentBytes of disk. Read
+ * positions are stored in the segments themselves, so a restarted spool picks
+ * up about where the last one stopped (messages may be delivered twice, but
+ * are not lost).
+ */
+public class MessageSpool {
+
+    private static final Logger LOG = Logger.getLogger(MessageSpool.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SEGMENT_SUFFIX = ".spool";
+
+    static final int SEGMENT_MAGIC = 0x42535031;
+    static final int READ_POSITION_OFFSET = 4;
+    static final int SEGMENT_HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 8;
+
+    private final File dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private long nextSequence = 0;
+    private long records = 0;
+    private long bytes = 0;
+    private long corruptRecords = 0;
+    // Length of the record returned by the last peek()
+    private int peekedLength = 0;
+
+    private static class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        int readPosition;
+        int writePosition;
+        // Records between the read and the write position
+        int records;
+        // Set when the segment ends in a corrupt record found on recovery;
+        // nothing more is written to it, so the corrupt bytes are never
+        // mistaken for the end of a new record
+        boolean sealed;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        void setReadPosition(int position) {
+            readPosition = position;
+            buffer.putInt(READ_POSITION_OFFSET, position);
+        }
+    }
+
+    public MessageSpool(File dir, int segmentBytes, int maxSegments) throws IOException {
+        if (segmentBytes <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE || maxSegments <= 0) {
+            throw new IllegalArgumentException("Invalid spool segment size or count");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create spool directory: " + dir);
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        recover();
+    }
+
+    private File[] listSegmentFiles() {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        // Names are zero padded sequence numbers so they sort in order
+        Arrays.sort(files);
+        return files;
+    }
+
+    private MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            // The mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void recover() throws IOException {
+        for (File file : listSegmentFiles()) {
+            String name = file.getName();
+            long sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            if (file.length() <= SEGMENT_HEADER_SIZE) {
+                LOG.warn("Deleting truncated spool segment: " + file);
+                file.delete();
+                continue;
+            }
+
+            Segment segment = new Segment(file, map(file, (int)file.length()));
+            if (segment.buffer.getInt(0) != SEGMENT_MAGIC) {
+                // Nothing in it can be trusted, and left in place it would
+                // take up room the spool doesn't account for
+                LOG.error("Deleting spool segment with a bad header: " + file);
+                corruptRecords++;
+                if (!file.delete()) {
+                    LOG.warn("Could not delete spool segment: " + file);
+                }
+                continue;
+            }
+            int readPosition = segment.buffer.getInt(READ_POSITION_OFFSET);
+            if (readPosition < SEGMENT_HEADER_SIZE || readPosition > segment.buffer.capacity()) {
+                readPosition = SEGMENT_HEADER_SIZE;
+            }
+            segment.readPosition = readPosition;
+
+            // Find the end of the valid records
+            int position = readPosition;
+            int count = 0;
+            int length;
+            while ((length = readRecordLength(segment, position)) > 0) {
+                if (readRecordBody(segment, position, length) == null) {
+                    LOG.error("Corrupt record in spool segment " + file + " at " + position + ", ignoring the rest of it");
+                    corruptRecords++;
+                    segment.sealed = true;
+                    break;
+                }
+                position += RECORD_HEADER_SIZE + length;
+                count++;
+            }
+            segment.writePosition = position;
+            segment.records = count;
+            segments.add(segment);
+            records += count;
+            bytes += position - readPosition;
+        }
+        if (records > 0) {
+            LOG.info("Recovered " + records + " spooled messages from " + dir);
+        }
+    }
+
+    private Segment newSegment() throws IOException {
+        File file = new File(dir, String.format("%020d%s", nextSequence++, SEGMENT_SUFFIX));
+        Segment segment = new Segment(file, map(file, segmentBytes));
+        segment.buffer.putInt(0, SEGMENT_MAGIC);
+        segment.setReadPosition(SEGMENT_HEADER_SIZE);
+        segment.writePosition = SEGMENT_HEADER_SIZE;
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * @return the body length of the record at position, or 0 if there is none
+     */
+    private int readRecordLength(Segment segment, int position) {
+        if (position + RECORD_HEADER_SIZE > segment.buffer.capacity()) {
+            return 0;
+        }
+        int length = segment.buffer.getInt(position);
+        if (length <= 0 || position + RECORD_HEADER_SIZE + length > segment.buffer.capacity()) {
+            return 0;
+        }
+        return length;
+    }
+
+    /**
+     * @return the body of the record at position, or null if its checksum doesn't match
+     */
+    private byte[] readRecordBody(Segment segment, int position, int length) {
+        byte[] body = new byte[length];
+        ByteBuffer src = segment.buffer.duplicate();
+        src.position(position + RECORD_HEADER_SIZE);
+        src.get(body);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int)crc.getValue() != segment.buffer.getInt(position + 4)) {
+            return null;
+        }
+        return body;
+    }
+
+    /**
+     * Appends a message to the end of the spool.
+     *
+     * @return false if the spool is full or the message could never fit in a segment
+     */
+    public synchronized boolean append(EncodedMessage msg) throws IOException {
+        byte[] namespace = msg.getNamespace().getBytes(UTF8);
+        byte[] id = msg.getId().getBytes(UTF8);
+        int length = 2 + namespace.length + 2 + id.length + msg.getSerializedSize();
+        int recordLength = RECORD_HEADER_SIZE + length;
+        if (SEGMENT_HEADER_SIZE + recordLength > segmentBytes) {
+            return false;
+        }
+
+        Segment tail = segments.isEmpty() ? null : segments.getLast();
+        if (tail == null || tail.sealed || tail.writePosition + recordLength > tail.buffer.capacity()) {
+            if (segments.size() >= maxSegments) {
+                return false;
+            }
+            if (tail != null) {
+                tail.buffer.force();
+            }
+            tail = newSegment();
+        }
+
+        byte[] body = new byte[length];
+        ByteBuffer bb = ByteBuffer.wrap(body);
+        bb.putShort((short)namespace.length);
+        bb.put(namespace);
+        bb.putShort((short)id.length);
+        bb.put(id);
+        msg.writeTo(bb);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        ByteBuffer dst = tail.buffer.duplicate();
+        dst.position(tail.writePosition + 4);
+        dst.putInt((int)crc.getValue());
+        dst.put(body);
+        tail.buffer.putInt(tail.writePosition, length);
+        tail.writePosition += recordLength;
+        tail.records++;
+        records++;
+        bytes += recordLength;
+        return true;
+    }
+
+    /**
+     * Appends all of the messages to the end of the spool, or none of them.
+     *
+     * @return false if they don't all fit in the spool, in which case none was appended
+     */
+    public synchronized boolean append(List<EncodedMessage> msgs) throws IOException {
+        Segment tail = segments.isEmpty() || segments.getLast().sealed ? null : segments.getLast();
+        int position = tail == null ? 0 : tail.writePosition;
+        int capacity = tail == null ? 0 : tail.buffer.capacity();
+        int newSegments = 0;
+        for (EncodedMessage msg : msgs) {
+            int recordLength = RECORD_HEADER_SIZE + 2 + msg.getNamespace().getBytes(UTF8).length +
+                               2 + msg.getId().getBytes(UTF8).length + msg.getSerializedSize();
+            if (SEGMENT_HEADER_SIZE + recordLength > segmentBytes) {
+                return false;
+            }
+            if (position + recordLength > capacity) {
+                newSegments++;
+                position = SEGMENT_HEADER_SIZE;
+                capacity = segmentBytes;
+            }
+            position += recordLength;
+        }
+        if (segments.size() + newSegments > maxSegments) {
+            return false;
+        }
+        for (EncodedMessage msg : msgs) {
+            append(msg);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the message at the head of the spool without removing it.
+     * Segments that have been read completely are deleted along the way.
+     *
+     * @return the message or null if the spool is empty
+     */
+    public synchronized EncodedMessage peek() {
+        while (!segments.isEmpty()) {
+            Segment head = segments.getFirst();
+            if (head.readPosition < head.writePosition) {
+                int length = readRecordLength(head, head.readPosition);
+                byte[] body = length > 0 ? readRecordBody(head, head.readPosition, length) : null;
+                if (body == null) {
+                    LOG.error("Corrupt record in spool segment " + head.file + " at " + head.readPosition + ", skipping the rest of it");
+                    corruptRecords++;
+                    records -= head.records;
+                    bytes -= head.writePosition - head.readPosition;
+                    head.records = 0;
+                    head.setReadPosition(head.writePosition);
+                    continue;
+                }
+                ByteBuffer bb = ByteBuffer.wrap(body);
+                String namespace = readString(bb);
+                String id = readString(bb);
+                peekedLength = RECORD_HEADER_SIZE + length;
+                return EncodedMessage.fromSerialized(namespace, id, body, bb.position(), bb.remaining());
+            }
+            segments.removeFirst();
+            if (!head.file.delete()) {
+                LOG.warn("Could not delete spool segment: " + head.file);
+            }
+        }
+        return null;
+    }
+
+    private String readString(ByteBuffer bb) {
+        int length = bb.getShort() & 0xffff;
+        String s = new String(bb.array(), bb.position(), length, UTF8);
+        bb.position(bb.position() + length);
+        return s;
+    }
+
+    /**
+     * Removes the message returned by the last call to peek().
+     */
+    public synchronized void remove() {
+        if (peekedLength == 0) {
+            throw new IllegalStateException("Nothing to remove");
+        }
+        Segment head = segments.getFirst();
+        head.setReadPosition(head.readPosition + peekedLength);
+        head.records--;
+        records--;
+        bytes -= peekedLength;
+        peekedLength = 0;
+    }
+
+    /**
+     * @return the number of messages in the spool
+     */
+    public synchronized long size() {
+        return records;
+    }
+
+    /**
+     * @return the number of record bytes in the spool
+     */
+    public synchronized long byteSize() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of corrupt records found, counting a segment with a
+     *         bad header as one
+     */
+    public synchronized long getCorruptRecords() {
+        return corruptRecords;
+    }
+
+    /**
+     * Flushes all segments to disk. The spool can't be used afterwards.
+     */
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        segments.clear();
+    }
+}
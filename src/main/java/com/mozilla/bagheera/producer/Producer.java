@@ -20,11 +20,31 @@
 package com.mozilla.bagheera.producer;
 
 import java.io.Closeable;
+import java.util.List;
 
 import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+import com.mozilla.bagheera.serializer.EncodedMessage;
 
 public interface Producer extends Closeable {
 
     public void send(BagheeraMessage msg);
+
+    /**
+     * Sends a number of messages in one call. Producers that queue or spool
+     * messages take on all of them or throw without having taken on any.
+     */
+    public void send(List<BagheeraMessage> msgs);
+
+    /**
+     * Sends a message that has already been serialized.
+     */
+    public void send(EncodedMessage msg);
+
+    /**
+     * Sends a message that has already been serialized, calling back once it
+     * has been acknowledged as far as ackMode asks for. Never blocks waiting
+     * for a broker.
+     */
+    public void send(EncodedMessage msg, AckMode ackMode, ProducerCallback callback);
     
 }
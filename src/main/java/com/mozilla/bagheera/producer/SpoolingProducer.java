@@ -0,0 +1,346 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.producer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+import com.mozilla.bagheera.serializer.EncodedMessage;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * A Producer that writes messages to a local MessageSpool whenever the
+ * producer it wraps fails or already has too many sends in progress.
+ *
+ * Once a message has been spooled, all following messages are spooled as
+ * well until a drainer thread has sent the whole spool on to the wrapped
+ * producer. Messages therefore reach Kafka in the order they were accepted,
+ * apart from sends that were already in progress when spooling started.
+ * If the spool is full, send throws and the message is counted as dropped.
+ * A list of messages is spooled whole or not at all.
+ */
+public class SpoolingProducer implements QueueingProducer {
+
+    private static final Logger LOG = Logger.getLogger(SpoolingProducer.class);
+
+    public static final String SPOOL_ENABLE = "bagheera.spool.enable";
+    public static final String SPOOL_DIR = "bagheera.spool.dir";
+    public static final String SPOOL_SEGMENT_BYTES = "bagheera.spool.segment.bytes";
+    public static final String SPOOL_MAX_SEGMENTS = "bagheera.spool.max.segments";
+    public static final String SPOOL_MAX_PENDING_SENDS = "bagheera.spool.max.pending.sends";
+    public static final String SPOOL_RETRY_MS = "bagheera.spool.retry.ms";
+
+    private final Producer producer;
+    private final MessageSpool spool;
+    private final int maxPendingSends;
+    private final long retryMillis;
+
+    // Guarded by the spool's lock for writes
+    private volatile boolean spooling = false;
+    private volatile boolean closed = false;
+    private final AtomicInteger pendingSends = new AtomicInteger();
+    private final Thread drainer;
+
+    private final Meter spooled;
+    private final Meter drained;
+    private final Meter dropped;
+
+    public static boolean isEnabled(Properties props) {
+        return Boolean.parseBoolean(props.getProperty(SPOOL_ENABLE, "false"));
+    }
+
+    public SpoolingProducer(Producer producer, Properties props) throws IOException {
+        this(producer,
+             new MessageSpool(new File(props.getProperty(SPOOL_DIR, "spool")),
+                              Integer.parseInt(props.getProperty(SPOOL_SEGMENT_BYTES, "67108864")),
+                              Integer.parseInt(props.getProperty(SPOOL_MAX_SEGMENTS, "16"))),
+             Integer.parseInt(props.getProperty(SPOOL_MAX_PENDING_SENDS, "0")),
+             Long.parseLong(props.getProperty(SPOOL_RETRY_MS, "1000")));
+    }
+
+    public SpoolingProducer(Producer producer, final MessageSpool spool, int maxPendingSends, long retryMillis) {
+        this.producer = producer;
+        this.spool = spool;
+        this.maxPendingSends = maxPendingSends;
+        this.retryMillis = retryMillis;
+        // Anything left over from the last run goes out before new messages
+        this.spooling = spool.size() > 0;
+
+        spooled = Metrics.newMeter(new MetricName("bagheera", "spool", "spooled"), "messages", TimeUnit.SECONDS);
+        drained = Metrics.newMeter(new MetricName("bagheera", "spool", "drained"), "messages", TimeUnit.SECONDS);
+        dropped = Metrics.newMeter(new MetricName("bagheera", "spool", "dropped"), "messages", TimeUnit.SECONDS);
+        Metrics.newGauge(new MetricName("bagheera", "spool", "depth"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return spool.size();
+            }
+        });
+        Metrics.newGauge(new MetricName("bagheera", "spool", "bytes"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return spool.byteSize();
+            }
+        });
+        Metrics.newGauge(new MetricName("bagheera", "spool", "corrupt"), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return spool.getCorruptRecords();
+            }
+        });
+
+        drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "spool-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Tries the wrapped producer directly.
+     *
+     * @return false if the message should be spooled instead
+     */
+    private boolean trySend(EncodedMessage msg) {
+        if (spooling) {
+            return false;
+        }
+        if (maxPendingSends > 0 && pendingSends.get() >= maxPendingSends) {
+            return false;
+        }
+        pendingSends.incrementAndGet();
+        try {
+            producer.send(msg);
+            return true;
+        } catch (RuntimeException e) {
+            if (!spooling) {
+                LOG.warn("Producer failed, spooling messages", e);
+            }
+            return false;
+        } finally {
+            pendingSends.decrementAndGet();
+        }
+    }
+
+    private void spool(EncodedMessage msg) {
+        synchronized (spool) {
+            spooling = true;
+            boolean appended;
+            try {
+                appended = spool.append(msg);
+            } catch (IOException e) {
+                dropped.mark();
+                throw new IllegalStateException("Error spooling message " + msg.getId(), e);
+            }
+            if (!appended) {
+                dropped.mark();
+                throw new IllegalStateException("Spool is full, dropped message " + msg.getId());
+            }
+            spooled.mark();
+            spool.notifyAll();
+        }
+    }
+
+    private void spool(List<EncodedMessage> msgs) {
+        synchronized (spool) {
+            spooling = true;
+            boolean appended;
+            try {
+                appended = spool.append(msgs);
+            } catch (IOException e) {
+                // Part of the list may have been spooled before the error
+                dropped.mark(msgs.size());
+                throw new IllegalStateException("Error spooling batch of " + msgs.size() + " messages", e);
+            }
+            if (!appended) {
+                dropped.mark(msgs.size());
+                throw new IllegalStateException("Spool is full, dropped batch of " + msgs.size() + " messages");
+            }
+            spooled.mark(msgs.size());
+            spool.notifyAll();
+        }
+    }
+
+    private void drain() {
+        while (!closed) {
+            EncodedMessage msg;
+            synchronized (spool) {
+                msg = spool.peek();
+                if (msg == null) {
+                    if (spooling) {
+                        LOG.info("Spool drained, sending directly again");
+                        spooling = false;
+                    }
+                    try {
+                        spool.wait(retryMillis);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    continue;
+                }
+            }
+
+            try {
+                producer.send(msg);
+            } catch (RuntimeException e) {
+                LOG.warn("Error sending spooled message, retrying in " + retryMillis + "ms", e);
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                continue;
+            }
+            spool.remove();
+            drained.mark();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mozilla.bagheera.producer.Producer#send(com.mozilla.bagheera.BagheeraProto.BagheeraMessage)
+     */
+    @Override
+    public void send(BagheeraMessage msg) {
+        send(EncodedMessage.encode(msg));
+    }
+
+    /* (non-Javadoc)
+     * @see com.mozilla.bagheera.producer.Producer#send(com.mozilla.bagheera.serializer.EncodedMessage)
+     */
+    @Override
+    public void send(EncodedMessage msg) {
+        if (!trySend(msg)) {
+            spool(msg);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mozilla.bagheera.producer.Producer#send(com.mozilla.bagheera.serializer.EncodedMessage, com.mozilla.bagheera.producer.AckMode, com.mozilla.bagheera.producer.ProducerCallback)
+     */
+    @Override
+    public void send(EncodedMessage msg, AckMode ackMode, ProducerCallback callback) {
+        switch (ackMode) {
+            case NONE:
+                callback.onCompletion();
+                try {
+                    send(msg);
+                } catch (RuntimeException e) {
+                    LOG.error("Error sending unacknowledged message " + msg.getId(), e);
+                }
+                break;
+            case QUEUED:
+                // Being spooled counts as queued
+                try {
+                    send(msg);
+                } catch (RuntimeException e) {
+                    callback.onFailure(e);
+                    break;
+                }
+                callback.onCompletion();
+                break;
+            case ACKED:
+                // A spooled message isn't acknowledged by anyone, so let the
+                // client retry rather than pretend it was
+                if (spooling) {
+                    callback.onFailure(new IllegalStateException("Producer is spooling, can't acknowledge message " + msg.getId()));
+                } else {
+                    producer.send(msg, ackMode, callback);
+                }
+                break;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.mozilla.bagheera.producer.Producer#send(java.util.List)
+     */
+    @Override
+    public void send(List<BagheeraMessage> msgs) {
+        if (!spooling && (maxPendingSends <= 0 || pendingSends.get() < maxPendingSends)) {
+            pendingSends.incrementAndGet();
+            try {
+                producer.send(msgs);
+                return;
+            } catch (RuntimeException e) {
+                // A producer that queues messages refuses the whole list, so
+                // none of it has been sent
+                LOG.warn("Producer failed, spooling messages", e);
+            } finally {
+                pendingSends.decrementAndGet();
+            }
+        }
+        List<EncodedMessage> encoded = new ArrayList<EncodedMessage>(msgs.size());
+        for (BagheeraMessage msg : msgs) {
+            encoded.add(EncodedMessage.encode(msg));
+        }
+        spool(encoded);
+    }
+
+    public boolean isSpooling() {
+        return spooling;
+    }
+
+    /**
+     * Messages waiting in the spool aren't counted, the spool is there to
+     * keep accepting them.
+     *
+     * @see com.mozilla.bagheera.producer.QueueingProducer#getQueueDepth()
+     */
+    @Override
+    public long getQueueDepth() {
+        return producer instanceof QueueingProducer ? ((QueueingProducer)producer).getQueueDepth() : 0;
+    }
+
+    /**
+     * @return the number of messages waiting in the spool
+     */
+    public long getSpoolDepth() {
+        return spool.size();
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        // Whatever is still spooled is sent by the next instance
+        closed = true;
+        drainer.interrupt();
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        spool.close();
+        producer.close();
+    }
+}
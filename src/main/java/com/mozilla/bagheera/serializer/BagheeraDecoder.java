@@ -19,6 +19,8 @@
  */
 package com.mozilla.bagheera.serializer;
 
+import java.nio.ByteBuffer;
+
 import kafka.message.Message;
 import kafka.serializer.Decoder;
 
@@ -37,7 +39,15 @@ public class BagheeraDecoder implements Decoder<BagheeraMessage> {
     public BagheeraMessage toEvent(Message msg) {
         BagheeraMessage bmsg = null;
         try {
-            bmsg = BagheeraProto.BagheeraMessage.parseFrom(ByteString.copyFrom(msg.payload()));
+            ByteBuffer payload = msg.payload();
+            if (payload.hasArray()) {
+                // Parse straight from Kafka's buffer instead of copying it into a ByteString first
+                bmsg = BagheeraProto.BagheeraMessage.newBuilder()
+                           .mergeFrom(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining())
+                           .build();
+            } else {
+                bmsg = BagheeraProto.BagheeraMessage.parseFrom(ByteString.copyFrom(payload));
+            }
         } catch (InvalidProtocolBufferException e) {
             LOG.error("Received unparseable message", e);
         }
@@ -31,7 +31,8 @@ public class BagheeraEncoder implements Encoder<BagheeraMessage> {
      */
     @Override
     public Message toMessage(BagheeraMessage bmsg) {
-        return new Message(bmsg.toByteArray());
+        // Serializes straight into the Kafka message buffer rather than copying a byte array
+        return EncodedMessage.encode(bmsg).toKafkaMessage();
     }
     
 }
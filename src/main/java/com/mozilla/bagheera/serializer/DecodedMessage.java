@@ -0,0 +1,207 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.serializer;
+
+import java.nio.ByteBuffer;
+
+import kafka.message.Message;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+
+/**
+ * A BagheeraMessage parsed straight out of the buffer of a Kafka message
+ * without copying its payload. Everything but the payload is parsed into the
+ * envelope as usual; the payload is left where it is and exposed as a view of
+ * the message's buffer, which must not change while the view is in use (Kafka
+ * fetches every message set into a buffer of its own, so it doesn't).
+ *
+ * Protobuf 2.4 can't wrap an existing array in a ByteString, so the payload
+ * field is found by walking the wire format and the fields before and after
+ * it are merged into the envelope on their own.
+ */
+public class DecodedMessage {
+
+    private static final int TAG_TYPE_MASK = 7;
+    private static final int MAX_VARINT_LENGTH = 10;
+    // The payload field's tag: field number << 3 | wire type
+    private static final int PAYLOAD_TAG = (BagheeraMessage.PAYLOAD_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+    private final BagheeraMessage envelope;
+    private final byte[] payload;
+    private final int payloadOffset;
+    private final int payloadLength;
+
+    /**
+     * @param envelope the message without its payload
+     * @param payload the array holding the payload, or null if the message has none
+     */
+    public DecodedMessage(BagheeraMessage envelope, byte[] payload, int payloadOffset, int payloadLength) {
+        this.envelope = envelope;
+        this.payload = payload;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+    }
+
+    /**
+     * Decodes the serialized BagheeraMessage in a Kafka message.
+     */
+    public static DecodedMessage decode(Message message) throws InvalidProtocolBufferException {
+        return decode(message.payload());
+    }
+
+    /**
+     * Decodes the serialized BagheeraMessage between the buffer's position and
+     * limit, without moving them. Only a buffer without an accessible array is
+     * copied (once).
+     */
+    public static DecodedMessage decode(ByteBuffer buffer) throws InvalidProtocolBufferException {
+        if (buffer.hasArray()) {
+            return decode(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return decode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decodes the serialized BagheeraMessage in the given slice of bytes.
+     */
+    public static DecodedMessage decode(byte[] bytes, int offset, int length) throws InvalidProtocolBufferException {
+        BagheeraMessage.Builder builder = BagheeraMessage.newBuilder();
+        int end = offset + length;
+        // Start of the bytes not merged into the envelope yet
+        int mergeFrom = offset;
+        int payloadOffset = -1;
+        int payloadLength = 0;
+        int pos = offset;
+        while (pos < end) {
+            int fieldStart = pos;
+            int tagLength = varintLength(bytes, pos, end);
+            int tag = readVarint32(bytes, pos);
+            pos += tagLength;
+            switch (tag & TAG_TYPE_MASK) {
+            case WireFormat.WIRETYPE_VARINT:
+                pos += varintLength(bytes, pos, end);
+                break;
+            case WireFormat.WIRETYPE_FIXED64:
+                pos += 8;
+                break;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+                int sizeLength = varintLength(bytes, pos, end);
+                int size = readVarint32(bytes, pos);
+                pos += sizeLength;
+                if (size < 0 || size > end - pos) {
+                    throw new InvalidProtocolBufferException("Field of length " + size + " is truncated");
+                }
+                if (tag == PAYLOAD_TAG) {
+                    if (fieldStart > mergeFrom) {
+                        builder.mergeFrom(bytes, mergeFrom, fieldStart - mergeFrom);
+                    }
+                    mergeFrom = pos + size;
+                    // Like parseFrom, the last payload field wins
+                    payloadOffset = pos;
+                    payloadLength = size;
+                }
+                pos += size;
+                break;
+            case WireFormat.WIRETYPE_FIXED32:
+                pos += 4;
+                break;
+            default:
+                // Groups aren't used by BagheeraMessage
+                throw new InvalidProtocolBufferException("Unexpected wire type in tag " + tag);
+            }
+        }
+        if (pos > end) {
+            throw new InvalidProtocolBufferException("Message is truncated");
+        }
+        if (end > mergeFrom) {
+            builder.mergeFrom(bytes, mergeFrom, end - mergeFrom);
+        }
+        BagheeraMessage envelope = builder.build();
+        return payloadOffset < 0 ? new DecodedMessage(envelope, null, 0, 0) : new DecodedMessage(envelope, bytes, payloadOffset, payloadLength);
+    }
+
+    /**
+     * @return the number of bytes in the varint at pos
+     */
+    private static int varintLength(byte[] bytes, int pos, int end) throws InvalidProtocolBufferException {
+        for (int i = 0; i < MAX_VARINT_LENGTH && pos + i < end; i++) {
+            if (bytes[pos + i] >= 0) {
+                return i + 1;
+            }
+        }
+        throw new InvalidProtocolBufferException("Malformed or truncated varint");
+    }
+
+    /**
+     * @return the low 32 bits of the varint at pos, which varintLength has to check
+     */
+    private static int readVarint32(byte[] bytes, int pos) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = bytes[pos++];
+            result |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the message without its payload
+     */
+    public BagheeraMessage getEnvelope() {
+        return envelope;
+    }
+
+    public boolean hasPayload() {
+        return payload != null;
+    }
+
+    /**
+     * @return a read-only view of the payload, or null if the message has none
+     */
+    public ByteBuffer getPayload() {
+        if (payload == null) {
+            return null;
+        }
+        return ByteBuffer.wrap(payload, payloadOffset, payloadLength).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the array holding the payload, from {@link #getPayloadOffset()}
+     *         for {@link #getPayloadLength()} bytes. It is shared and must not be modified.
+     */
+    public byte[] getPayloadArray() {
+        return payload;
+    }
+
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+}
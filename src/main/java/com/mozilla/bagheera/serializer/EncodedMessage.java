@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.serializer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import kafka.message.Message;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+
+/**
+ * A BagheeraMessage that has already been serialized into the buffer backing
+ * a Kafka message. The buffer is allocated once at its final size, with room
+ * for the Kafka message header in front of the serialized message, so handing
+ * it to Kafka doesn't copy the payload again.
+ */
+public class EncodedMessage {
+
+    // Kafka 0.7 message header: magic byte, attributes byte and a CRC32 of the payload
+    static final byte KAFKA_MAGIC = 1;
+    static final int KAFKA_ATTRIBUTES_OFFSET = 1;
+    static final int KAFKA_CRC_OFFSET = 2;
+    static final int KAFKA_HEADER_SIZE = 6;
+
+    private final String namespace;
+    private final String id;
+    private final byte[] buffer;
+
+    private EncodedMessage(String namespace, String id, byte[] buffer) {
+        this.namespace = namespace;
+        this.id = id;
+        this.buffer = buffer;
+        writeHeader();
+    }
+
+    /**
+     * Serializes a complete message.
+     */
+    public static EncodedMessage encode(BagheeraMessage msg) {
+        int size = msg.getSerializedSize();
+        byte[] buffer = new byte[KAFKA_HEADER_SIZE + size];
+        CodedOutputStream out = CodedOutputStream.newInstance(buffer, KAFKA_HEADER_SIZE, size);
+        try {
+            msg.writeTo(out);
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            // Only happens if the buffer was sized wrong
+            throw new IllegalStateException("Error serializing message", e);
+        }
+        return new EncodedMessage(msg.getNamespace(), msg.getId(), buffer);
+    }
+
+    /**
+     * Serializes the envelope followed by the readable bytes of payload as the
+     * payload field. The payload bytes are copied exactly once, straight from
+     * the given buffer. The envelope must not have a payload of its own.
+     */
+    public static EncodedMessage encode(BagheeraMessage envelope, ChannelBuffer payload) {
+        int payloadLength = payload.readableBytes();
+        int headerSize = envelope.getSerializedSize() +
+                         CodedOutputStream.computeTagSize(BagheeraMessage.PAYLOAD_FIELD_NUMBER) +
+                         CodedOutputStream.computeRawVarint32Size(payloadLength);
+        byte[] buffer = new byte[KAFKA_HEADER_SIZE + headerSize + payloadLength];
+        CodedOutputStream out = CodedOutputStream.newInstance(buffer, KAFKA_HEADER_SIZE, headerSize);
+        try {
+            envelope.writeTo(out);
+            out.writeTag(BagheeraMessage.PAYLOAD_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            out.writeRawVarint32(payloadLength);
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new IllegalStateException("Error serializing message", e);
+        }
+        payload.getBytes(payload.readerIndex(), buffer, KAFKA_HEADER_SIZE + headerSize, payloadLength);
+        return new EncodedMessage(envelope.getNamespace(), envelope.getId(), buffer);
+    }
+
+    /**
+     * Wraps a message that was serialized elsewhere (copying it once).
+     */
+    public static EncodedMessage fromSerialized(String namespace, String id, byte[] bytes, int offset, int length) {
+        byte[] buffer = new byte[KAFKA_HEADER_SIZE + length];
+        System.arraycopy(bytes, offset, buffer, KAFKA_HEADER_SIZE, length);
+        return new EncodedMessage(namespace, id, buffer);
+    }
+
+    private void writeHeader() {
+        CRC32 crc = new CRC32();
+        crc.update(buffer, KAFKA_HEADER_SIZE, buffer.length - KAFKA_HEADER_SIZE);
+        long checksum = crc.getValue();
+        buffer[0] = KAFKA_MAGIC;
+        // No compression here, Kafka compresses whole message sets itself
+        buffer[KAFKA_ATTRIBUTES_OFFSET] = 0;
+        buffer[KAFKA_CRC_OFFSET] = (byte)(checksum >>> 24);
+        buffer[KAFKA_CRC_OFFSET + 1] = (byte)(checksum >>> 16);
+        buffer[KAFKA_CRC_OFFSET + 2] = (byte)(checksum >>> 8);
+        buffer[KAFKA_CRC_OFFSET + 3] = (byte)checksum;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the size of the serialized BagheeraMessage
+     */
+    public int getSerializedSize() {
+        return buffer.length - KAFKA_HEADER_SIZE;
+    }
+
+    /**
+     * Writes the serialized BagheeraMessage (without the Kafka header) to dst.
+     */
+    public void writeTo(ByteBuffer dst) {
+        dst.put(buffer, KAFKA_HEADER_SIZE, buffer.length - KAFKA_HEADER_SIZE);
+    }
+
+    /**
+     * @return a Kafka message sharing this message's buffer
+     */
+    public Message toKafkaMessage() {
+        return new Message(ByteBuffer.wrap(buffer));
+    }
+
+    /**
+     * Parses the message back. Only meant for the slow paths (tests, logging).
+     */
+    public BagheeraMessage decode() throws InvalidProtocolBufferException {
+        return BagheeraMessage.newBuilder().mergeFrom(buffer, KAFKA_HEADER_SIZE, buffer.length - KAFKA_HEADER_SIZE).build();
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.sink;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.mozilla.bagheera.util.BoundedRing;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Fans every record out to several sinks, so one consumer can feed e.g.
+ * HBase and HDFS from a single fetch, decode and validation of each message.
+ *
+ * Each sink is written by a thread of its own from a bounded queue of
+ * batches, so the sinks store in parallel and a slow sink only holds the
+ * consumer up once its queue is full. How many records each sink has
+ * waiting and how long the batch it is storing has waited are reported as
+ * gauges. Once a sink fails, the composite fails every following call.
+ */
+public class CompositeSink implements KeyValueSink {
+
+    private static final Logger LOG = Logger.getLogger(CompositeSink.class);
+
+    // Comma separated sinks: hbase, hdfs, logger, replay or the class name of a KeyValueSink
+    public static final String SINKS = "compositesink.sinks";
+    // Batches each sink can have waiting
+    public static final String QUEUE_SIZE = "compositesink.queue.size";
+
+    private static final Map<String, Class<? extends KeyValueSink>> SINK_NAMES = new HashMap<String, Class<? extends KeyValueSink>>();
+    static {
+        SINK_NAMES.put("hbase", HBaseSink.class);
+        SINK_NAMES.put("hdfs", SequenceFileSink.class);
+        SINK_NAMES.put("logger", LoggerSink.class);
+        SINK_NAMES.put("replay", ReplaySink.class);
+    }
+
+    private static class Task {
+        final RecordBatch batch;
+        final boolean deletes;
+        // Set on the tasks flush() queues instead of a batch
+        final CountDownLatch flushed;
+        final long queuedNanos = System.nanoTime();
+
+        Task(RecordBatch batch, boolean deletes, CountDownLatch flushed) {
+            this.batch = batch;
+            this.deletes = deletes;
+            this.flushed = flushed;
+        }
+    }
+
+    /**
+     * One of the sinks with its queue and the thread writing to it.
+     */
+    private class Branch implements Runnable {
+        final String name;
+        final KeyValueSink sink;
+        final BoundedRing<Task> ring;
+        final AtomicInteger queuedRecords = new AtomicInteger();
+        final Thread thread;
+        // When the task being stored was queued, 0 while idle
+        volatile long storingSince;
+        volatile Exception error;
+
+        Branch(String name, KeyValueSink sink, int queueSize) {
+            this.name = name;
+            this.sink = sink;
+            this.ring = new BoundedRing<Task>(queueSize);
+            this.thread = new Thread(this, "composite-sink-" + namespace + "-" + name);
+            this.thread.setDaemon(true);
+        }
+
+        void add(Task task) throws InterruptedException {
+            if (task.batch != null) {
+                queuedRecords.addAndGet(task.batch.size());
+            }
+            ring.put(task);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Task task = ring.take();
+                    do {
+                        storingSince = task.queuedNanos;
+                        run(task);
+                    } while ((task = ring.poll()) != null);
+                    storingSince = 0;
+                }
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }
+
+        private void run(Task task) {
+            try {
+                // After a failure batches are dropped, the composite fails on the next call
+                if (error == null) {
+                    if (task.flushed != null) {
+                        sink.flush();
+                    } else if (task.deletes) {
+                        sink.deleteBatch(task.batch);
+                    } else {
+                        sink.storeBatch(task.batch);
+                    }
+                }
+            } catch (Exception e) {
+                LOG.error("Error in sink " + name + " for namespace " + namespace, e);
+                error = e;
+            } finally {
+                if (task.flushed != null) {
+                    task.flushed.countDown();
+                } else {
+                    queuedRecords.addAndGet(-task.batch.size());
+                }
+            }
+        }
+
+        long getLagMillis() {
+            long since = storingSince;
+            return since == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+        }
+    }
+
+    private final String namespace;
+    private final List<Branch> branches;
+    private volatile boolean closed;
+
+    public CompositeSink(SinkConfiguration sinkConfiguration) {
+        this(sinkConfiguration.getString("namespace"),
+             createSinks(sinkConfiguration),
+             sinkConfiguration.getInt(QUEUE_SIZE, 64));
+    }
+
+    /**
+     * @param sinks the sinks by the name their metrics are reported under
+     * @param queueSize the number of batches each sink can have waiting
+     */
+    public CompositeSink(String namespace, Map<String, KeyValueSink> sinks, int queueSize) {
+        if (sinks.isEmpty()) {
+            throw new IllegalArgumentException("Composite sink needs at least one sink");
+        }
+        this.namespace = namespace;
+        this.branches = new ArrayList<Branch>(sinks.size());
+        for (Map.Entry<String, KeyValueSink> entry : sinks.entrySet()) {
+            final Branch branch = new Branch(entry.getKey(), entry.getValue(), queueSize);
+            branches.add(branch);
+            Metrics.newGauge(new MetricName("bagheera", "sink.composite", namespace + "." + branch.name + ".queued"), new Gauge<Integer>() {
+                @Override
+                public Integer value() {
+                    return branch.queuedRecords.get();
+                }
+            });
+            Metrics.newGauge(new MetricName("bagheera", "sink.composite", namespace + "." + branch.name + ".lag.ms"), new Gauge<Long>() {
+                @Override
+                public Long value() {
+                    return branch.getLagMillis();
+                }
+            });
+        }
+        for (Branch branch : branches) {
+            branch.thread.start();
+        }
+    }
+
+    /**
+     * Creates the sinks listed in compositesink.sinks, each with the whole configuration.
+     */
+    static Map<String, KeyValueSink> createSinks(SinkConfiguration sinkConfiguration) {
+        String names = sinkConfiguration.getString(SINKS);
+        if (names == null || names.trim().length() == 0) {
+            throw new IllegalArgumentException("No " + SINKS + " in sink configuration");
+        }
+        Map<String, KeyValueSink> sinks = new LinkedHashMap<String, KeyValueSink>();
+        try {
+            for (String name : names.split(",")) {
+                name = name.trim();
+                if (name.length() > 0 && !sinks.containsKey(name)) {
+                    sinks.put(name, createSink(name, sinkConfiguration));
+                }
+            }
+        } catch (RuntimeException e) {
+            for (KeyValueSink sink : sinks.values()) {
+                try {
+                    sink.close();
+                } catch (IOException ioe) {
+                    LOG.error("Error closing sink", ioe);
+                }
+            }
+            throw e;
+        }
+        return sinks;
+    }
+
+    private static KeyValueSink createSink(String name, SinkConfiguration sinkConfiguration) {
+        try {
+            Class<?> sinkClazz = SINK_NAMES.get(name);
+            if (sinkClazz == null) {
+                sinkClazz = Class.forName(name);
+            }
+            if (!KeyValueSink.class.isAssignableFrom(sinkClazz) || sinkClazz == CompositeSink.class) {
+                throw new IllegalArgumentException("Not a sink for a composite sink: " + name);
+            }
+            Constructor<?> constructor = sinkClazz.getConstructor(SinkConfiguration.class);
+            return (KeyValueSink)constructor.newInstance(sinkConfiguration);
+        } catch (InvocationTargetException e) {
+            throw new IllegalArgumentException("Error creating sink " + name, e.getCause());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Unknown sink " + name, e);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("Sink " + name + " can't be created from a sink configuration", e);
+        } catch (InstantiationException e) {
+            throw new IllegalArgumentException("Error creating sink " + name, e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Error creating sink " + name, e);
+        }
+    }
+
+    private void checkErrors() throws IOException {
+        if (closed) {
+            throw new IOException("Composite sink for namespace " + namespace + " is closed");
+        }
+        for (Branch branch : branches) {
+            Exception e = branch.error;
+            if (e != null) {
+                throw e instanceof IOException ? (IOException)e : new IOException("Sink " + branch.name + " failed", e);
+            }
+        }
+    }
+
+    private void add(RecordBatch batch, boolean deletes) throws IOException {
+        checkErrors();
+        if (batch.isEmpty()) {
+            return;
+        }
+        // The caller reuses its batch, the sinks all share one copy of it (but not of the data)
+        Task task = new Task(batch.copy(), deletes, null);
+        try {
+            for (Branch branch : branches) {
+                branch.add(task);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a sink's queue");
+        }
+    }
+
+    @Override
+    public void store(String key, byte[] data) throws IOException {
+        RecordBatch batch = new RecordBatch(1);
+        batch.add(key, data);
+        add(batch, false);
+    }
+
+    @Override
+    public void store(String key, byte[] data, long timestamp) throws IOException {
+        RecordBatch batch = new RecordBatch(1);
+        batch.add(key, data, timestamp);
+        add(batch, false);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        RecordBatch batch = new RecordBatch(1);
+        batch.addKey(key);
+        add(batch, true);
+    }
+
+    /**
+     * Queues the batch for every sink, waiting while a sink's queue is full.
+     */
+    @Override
+    public void storeBatch(RecordBatch batch) throws IOException {
+        add(batch, false);
+    }
+
+    @Override
+    public void deleteBatch(RecordBatch batch) throws IOException {
+        add(batch, true);
+    }
+
+    /**
+     * Waits until every sink has stored what was queued for it, then
+     * flushes the sinks in parallel.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkErrors();
+        CountDownLatch flushed = new CountDownLatch(branches.size());
+        Task task = new Task(null, false, flushed);
+        try {
+            for (Branch branch : branches) {
+                branch.add(task);
+            }
+            flushed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while flushing sinks");
+        }
+        checkErrors();
+    }
+
+    /**
+     * @return the number of records queued for the named sink
+     */
+    public int getQueuedRecords(String name) {
+        return getBranch(name).queuedRecords.get();
+    }
+
+    /**
+     * @return how long the batch the named sink is storing has waited, 0 if it is idle
+     */
+    public long getLagMillis(String name) {
+        return getBranch(name).getLagMillis();
+    }
+
+    private Branch getBranch(String name) {
+        for (Branch branch : branches) {
+            if (branch.name.equals(name)) {
+                return branch;
+            }
+        }
+        throw new IllegalArgumentException("No sink named " + name);
+    }
+
+    /**
+     * Stores what is still queued, stops the threads and closes the sinks.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            LOG.error("Error flushing sinks in close", e);
+        }
+        closed = true;
+        for (Branch branch : branches) {
+            branch.thread.interrupt();
+        }
+        for (Branch branch : branches) {
+            try {
+                branch.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                branch.sink.close();
+            } catch (IOException e) {
+                LOG.error("Error closing sink " + branch.name, e);
+            }
+        }
+    }
+}
@@ -29,6 +29,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.HTablePool;
@@ -67,6 +69,8 @@ public class HBaseSink implements KeyValueSink {
     protected long currentTimeMillis;
     protected AtomicInteger rowQueueSize = new AtomicInteger();
     protected ConcurrentLinkedQueue<Row> rowQueue = new ConcurrentLinkedQueue<Row>();
+    // Rows given up on since the last flush()
+    protected final AtomicInteger failedRows = new AtomicInteger();
 
     protected final Meter stored;
     protected final Meter storeFailed;
@@ -138,9 +142,38 @@ public class HBaseSink implements KeyValueSink {
     }
 
 
+    /**
+     * Writes out everything queued so far.
+     *
+     * @throws IOException if rows queued since the last call couldn't be
+     *         written, even if they were given up on in an earlier batch
+     */
+    @Override
     public void flush() throws IOException {
+        while (!rowQueue.isEmpty()) {
+            flushBatch();
+        }
+        int failed = failedRows.getAndSet(0);
+        if (failed > 0) {
+            throw new IOException(failed + " rows could not be written since the last flush");
+        }
+    }
+
+    /**
+     * Writes out up to batchSize queued rows.
+     */
+    protected void flushBatch() throws IOException {
         IOException lastException = null;
         this.currentTimeMillis = System.currentTimeMillis(); 
+        // Take the rows once so every attempt retries the same ones
+        List<Row> rows = new ArrayList<Row>(batchSize);
+        while (!rowQueue.isEmpty() && rows.size() < batchSize) {
+            Row row = rowQueue.poll();
+            if (row != null) {
+                rows.add(row);
+                rowQueueSize.decrementAndGet();
+            }
+        }
         int i;
         for (i = 0; i < getRetryCount(); i++) {
             HTableInterface table = hbasePool.getTable(tableName);
@@ -148,22 +181,16 @@ public class HBaseSink implements KeyValueSink {
                 table.setAutoFlush(false);
                 final TimerContext flushTimerContext = flushTimer.time();
                 try {
-                    List<Row> rows = new ArrayList<Row>(batchSize);
-                    while (!rowQueue.isEmpty() && rows.size() < batchSize) {
-                        Row row = rowQueue.poll();
-                        if (row != null) {
-                            rows.add(row);
-                            rowQueueSize.decrementAndGet();
-                        }
-                    }
                     try {
                         FlushResult result = flushTable(table, rows);
                         stored.mark(result.successfulPutCount);
                         storeFailed.mark(result.failedPutCount);
                         deleted.mark(result.successfulDeleteCount);
                         deleteFailed.mark(result.failedDeleteCount);
+                        failedRows.addAndGet(result.failedPutCount + result.failedDeleteCount);
                     } catch (InterruptedException e) {
                         LOG.error("Error flushing batch of " + batchSize + " messages", e);
+                        failedRows.addAndGet(rows.size());
                     }
                 } finally {
                     flushTimerContext.stop();
@@ -188,6 +215,7 @@ public class HBaseSink implements KeyValueSink {
         }
         if (i >= getRetryCount() && lastException != null) {
             LOG.error("Error in final flush attempt, giving up.");
+            failedRows.addAndGet(rows.size());
             throw lastException;
         }
         LOG.debug("Flush finished");
@@ -264,7 +292,7 @@ public class HBaseSink implements KeyValueSink {
             p.add(family, qualifier, data);
             rowQueue.add(p);
             if (rowQueueSize.incrementAndGet() >= batchSize) {
-                flush();
+                flushBatch();
             }
         }
     }
@@ -274,10 +302,14 @@ public class HBaseSink implements KeyValueSink {
     //   java.lang.IllegalArgumentException: KeyValue size too large
     // Detect, log, and reject it.
     private boolean isOversized(String key, byte[] data) {
+        return data != null && isOversized(key, data.length);
+    }
+
+    private boolean isOversized(String key, int length) {
         boolean tooBig = false;
-        if (data != null && data.length > maxKeyValueSize) {
+        if (length > maxKeyValueSize) {
             LOG.warn(String.format("Storing key '%s': Data exceeds max length (%d > %d)",
-                    key, data.length, maxKeyValueSize));
+                    key, length, maxKeyValueSize));
             oversized.mark();
             tooBig = true;
         }
@@ -292,7 +324,7 @@ public class HBaseSink implements KeyValueSink {
             p.add(family, qualifier, data);
             rowQueue.add(p);
             if (rowQueueSize.incrementAndGet() >= batchSize) {
-                flush();
+                flushBatch();
             }
         }
     }
@@ -303,7 +335,43 @@ public class HBaseSink implements KeyValueSink {
         Delete d = new Delete(Bytes.toBytes(key),timestamp);
         rowQueue.add(d);
         if (rowQueueSize.incrementAndGet() >= batchSize) {
-            flush();
+            flushBatch();
+        }
+    }
+
+    @Override
+    public void storeBatch(RecordBatch batch) throws IOException {
+        int queued = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            String key = batch.getKey(i);
+            int length = batch.getDataLength(i);
+            if (!isOversized(key, length)) {
+                byte[] k = prefixDate && batch.hasTimestamp(i) ? IdUtil.bucketizeId(key, batch.getTimestamp(i)) : Bytes.toBytes(key);
+                Put p = new Put(k);
+                // The KeyValue copies the data straight out of the batch's slice
+                p.add(new KeyValue(k, 0, k.length, family, 0, family.length, qualifier, 0, qualifier.length,
+                                   HConstants.LATEST_TIMESTAMP, KeyValue.Type.Put,
+                                   batch.getDataArray(i), batch.getDataOffset(i), length));
+                rowQueue.add(p);
+                queued++;
+            }
+        }
+        // Queue the whole batch before flushing so it goes to HBase in as few batches as possible
+        rowQueueSize.addAndGet(queued);
+        while (rowQueueSize.get() >= batchSize) {
+            flushBatch();
+        }
+    }
+
+    @Override
+    public void deleteBatch(RecordBatch batch) throws IOException {
+        long timestamp = currentTimeMillis + deleteDelay;
+        for (int i = 0; i < batch.size(); i++) {
+            rowQueue.add(new Delete(Bytes.toBytes(batch.getKey(i)), timestamp));
+        }
+        rowQueueSize.addAndGet(batch.size());
+        while (rowQueueSize.get() >= batchSize) {
+            flushBatch();
         }
     }
 
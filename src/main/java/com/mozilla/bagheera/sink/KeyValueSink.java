@@ -27,5 +27,10 @@ public interface KeyValueSink extends Closeable {
     public void store(String key, byte[] data) throws IOException;
     public void store(String key, byte[] data, long timestamp) throws IOException;
     public void delete(String key) throws IOException;
+    // Batches are handed over as a whole, so a sink locks, queues and counts once per batch
+    public void storeBatch(RecordBatch batch) throws IOException;
+    public void deleteBatch(RecordBatch batch) throws IOException;
+    // Returns once everything stored and deleted so far is durable, or throws if any of it was lost
+    public void flush() throws IOException;
     
 }
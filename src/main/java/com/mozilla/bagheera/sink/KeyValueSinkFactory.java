@@ -22,8 +22,10 @@ package com.mozilla.bagheera.sink;
 import java.io.Closeable;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -40,7 +42,7 @@ public class KeyValueSinkFactory implements Closeable {
      * @param sinkConfiguration
      */
     private KeyValueSinkFactory(Class<?> sinkClazz, SinkConfiguration sinkConfiguration) {
-        this.sinkMap = new HashMap<String,KeyValueSink>();
+        this.sinkMap = new ConcurrentHashMap<String,KeyValueSink>();
         this.sinkClazz = sinkClazz;
         this.sinkConfiguration = sinkConfiguration;
     }
@@ -85,6 +87,13 @@ public class KeyValueSinkFactory implements Closeable {
         return sinkMap.get(namespace);
     }
 
+    /**
+     * @return the sinks created so far
+     */
+    public Collection<KeyValueSink> getSinks() {
+        return new ArrayList<KeyValueSink>(sinkMap.values());
+    }
+
     /* (non-Javadoc)
      * @see java.io.Closeable#close()
      */
@@ -83,4 +83,32 @@ public class LoggerSink implements Sink, KeyValueSink {
         }
     }
 
+    @Override
+    public void storeBatch(RecordBatch batch) throws IOException {
+        LOG.info("Called storeBatch(batch)");
+        LOG.info("storeBatch(b) record count: " + batch.size());
+        if (logValues) {
+            for (int i = 0; i < batch.size(); i++) {
+                LOG.info("storeBatch(b) key: " + batch.getKey(i));
+                LOG.info("storeBatch(b) data: " + new String(batch.getDataArray(i), batch.getDataOffset(i), batch.getDataLength(i), "UTF-8"));
+            }
+        }
+    }
+
+    @Override
+    public void deleteBatch(RecordBatch batch) {
+        LOG.info("Called deleteBatch(batch)");
+        LOG.info("deleteBatch(b) key count: " + batch.size());
+        if (logValues) {
+            for (int i = 0; i < batch.size(); i++) {
+                LOG.info("deleteBatch(b) key: " + batch.getKey(i));
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        LOG.info("Called flush()");
+    }
+
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.sink;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Records handed to a {@link KeyValueSink} together. Keys, data and
+ * timestamps are kept in parallel arrays that grow as needed and are reused
+ * after {@link #clear()}, so filling a batch only allocates while it is
+ * still growing. Delete batches only have keys.
+ *
+ * Data is kept as a slice of an array the batch doesn't own (usually the
+ * Kafka message it was decoded from), so adding a record never copies it.
+ * Sinks read it with {@link #getData(int)} or, where an API wants an array,
+ * {@link #getDataArray(int)}, {@link #getDataOffset(int)} and
+ * {@link #getDataLength(int)}, and must not modify it.
+ *
+ * Not thread-safe; sinks must not keep a reference to a batch after
+ * storeBatch or deleteBatch returns.
+ */
+public class RecordBatch {
+
+    private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private String[] keys;
+    private byte[][] data;
+    private int[] offsets;
+    private int[] lengths;
+    private long[] timestamps;
+    private int size;
+
+    public RecordBatch() {
+        this(16);
+    }
+
+    public RecordBatch(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        keys = new String[capacity];
+        data = new byte[capacity][];
+        offsets = new int[capacity];
+        lengths = new int[capacity];
+        timestamps = new long[capacity];
+    }
+
+    private void append(String key, byte[] value, int offset, int length, long timestamp) {
+        if (size == keys.length) {
+            int capacity = size * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            data = Arrays.copyOf(data, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+        }
+        keys[size] = key;
+        data[size] = value;
+        offsets[size] = offset;
+        lengths[size] = length;
+        timestamps[size] = timestamp;
+        size++;
+    }
+
+    /**
+     * Adds a record to store without a timestamp.
+     */
+    public void add(String key, byte[] value) {
+        append(key, value, 0, value.length, NO_TIMESTAMP);
+    }
+
+    /**
+     * Adds a record to store with the time it was submitted.
+     */
+    public void add(String key, byte[] value, long timestamp) {
+        append(key, value, 0, value.length, timestamp);
+    }
+
+    /**
+     * Adds a record to store whose data is a slice of the given array, without a timestamp.
+     */
+    public void add(String key, byte[] value, int offset, int length) {
+        append(key, value, offset, length, NO_TIMESTAMP);
+    }
+
+    /**
+     * Adds a record to store whose data is a slice of the given array, with the time it was submitted.
+     */
+    public void add(String key, byte[] value, int offset, int length, long timestamp) {
+        append(key, value, offset, length, timestamp);
+    }
+
+    /**
+     * Adds a key to delete.
+     */
+    public void addKey(String key) {
+        append(key, null, 0, 0, NO_TIMESTAMP);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public String getKey(int i) {
+        return keys[i];
+    }
+
+    /**
+     * @return a read-only view of the record's data, or null for a key to delete
+     */
+    public ByteBuffer getData(int i) {
+        if (data[i] == null) {
+            return null;
+        }
+        return ByteBuffer.wrap(data[i], offsets[i], lengths[i]).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the array holding the record's data, from {@link #getDataOffset(int)}
+     *         for {@link #getDataLength(int)} bytes
+     */
+    public byte[] getDataArray(int i) {
+        return data[i];
+    }
+
+    public int getDataOffset(int i) {
+        return offsets[i];
+    }
+
+    public int getDataLength(int i) {
+        return lengths[i];
+    }
+
+    public boolean hasTimestamp(int i) {
+        return timestamps[i] != NO_TIMESTAMP;
+    }
+
+    public long getTimestamp(int i) {
+        return timestamps[i];
+    }
+
+    /**
+     * @return a batch of its own with the same records, sharing their data
+     */
+    public RecordBatch copy() {
+        RecordBatch copy = new RecordBatch(size);
+        for (int i = 0; i < size; i++) {
+            copy.append(keys[i], data[i], offsets[i], lengths[i], timestamps[i]);
+        }
+        return copy;
+    }
+
+    /**
+     * Empties the batch for reuse, dropping its references to keys and data.
+     */
+    public void clear() {
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(data, 0, size, null);
+        size = 0;
+    }
+}
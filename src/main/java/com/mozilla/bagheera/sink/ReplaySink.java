@@ -108,6 +108,10 @@ public class ReplaySink implements Sink, KeyValueSink {
 
     @Override
     public void store(String key, byte[] data) throws IOException {
+        store(key, data, 0, data == null ? 0 : data.length);
+    }
+
+    private void store(String key, byte[] data, int offset, int length) {
         boolean go = true;
         if (this.sample) {
             go = (Math.random() < sampleRate);
@@ -125,14 +129,14 @@ public class ReplaySink implements Sink, KeyValueSink {
             }
 
             // TODO: replay it.
-            replay("POST", newKey, data);
+            replay("POST", newKey, data, offset, length);
         } else {
             LOG.debug("Record skipped due to sampling.");
         }
     }
 
     // Connect to the specified server and replay the given request
-    private void replay(String method, String key, byte[] data) {
+    private void replay(String method, String key, byte[] data, int offset, int length) {
         URL url;
         HttpURLConnection connection = null;
         try {
@@ -146,10 +150,10 @@ public class ReplaySink implements Sink, KeyValueSink {
             connection.setDoOutput(true);
 
             // Send request (if need be)
-            if (data != null && data.length > 0) {
-                connection.setRequestProperty("Content-Length", String.valueOf(data.length));
+            if (data != null && length > 0) {
+                connection.setRequestProperty("Content-Length", String.valueOf(length));
                 DataOutputStream wr = new DataOutputStream(connection.getOutputStream());
-                wr.write(data);
+                wr.write(data, offset, length);
                 wr.flush();
                 wr.close();
             }
@@ -187,7 +191,27 @@ public class ReplaySink implements Sink, KeyValueSink {
 
         // Whether or not we process deletes is controlled by a config setting.
         if (replayDeletes) {
-            replay("DELETE", key, null);
+            replay("DELETE", key, null, 0, 0);
+        }
+    }
+
+    @Override
+    public void storeBatch(RecordBatch batch) throws IOException {
+        // Each record is its own request
+        for (int i = 0; i < batch.size(); i++) {
+            store(batch.getKey(i), batch.getDataArray(i), batch.getDataOffset(i), batch.getDataLength(i));
+        }
+    }
+
+    @Override
+    public void flush() {
+        // Every request has been sent by the time store or delete returns
+    }
+
+    @Override
+    public void deleteBatch(RecordBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            delete(batch.getKey(i));
         }
     }
 
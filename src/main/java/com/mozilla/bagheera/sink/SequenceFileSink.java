@@ -227,10 +227,76 @@ public class SequenceFileSink implements KeyValueSink {
         }
     }
 
+    @Override
+    public void storeBatch(RecordBatch batch) throws IOException {
+        try {
+            lock.acquire();
+            // The writer serializes each pair as it's appended, so one key and value do for the whole batch
+            Text key = new Text();
+            Text textValue = useBytesValue ? null : new Text();
+            BytesWritable bytesValue = useBytesValue ? new BytesWritable() : null;
+            for (int i = 0; i < batch.size(); i++) {
+                checkRollover();
+                byte[] data = batch.getDataArray(i);
+                int offset = batch.getDataOffset(i);
+                int length = batch.getDataLength(i);
+                if (addTimestamp && batch.hasTimestamp(i)) {
+                    data = addTimestampToJson(data, offset, length, batch.getTimestamp(i));
+                    offset = 0;
+                    length = data.length;
+                }
+                key.set(batch.getKey(i));
+                if (useBytesValue) {
+                    bytesValue.set(data, offset, length);
+                    writer.append(key, bytesValue);
+                } else {
+                    textValue.set(data, offset, length);
+                    writer.append(key, textValue);
+                }
+                bytesWritten.getAndAdd(batch.getKey(i).length() + length);
+            }
+            stored.mark(batch.size());
+        } catch (IOException e) {
+            LOG.error("IOException while writing key/value pairs", e);
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            LOG.error("Interrupted while writing key/value pairs", e);
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Writes out the records buffered by the writer and waits until the
+     * datanodes have them.
+     */
+    @Override
+    public void flush() throws IOException {
+        try {
+            lock.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while flushing writer");
+        }
+        try {
+            if (writer != null) {
+                // A block compressed writer only writes its buffered records out at a sync
+                writer.sync();
+                writer.syncFs();
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
     public byte[] addTimestampToJson(byte[] data, long timestamp) throws IOException {
+        return addTimestampToJson(data, 0, data.length, timestamp);
+    }
+
+    public byte[] addTimestampToJson(byte[] data, int offset, int length, long timestamp) throws IOException {
         // TODO: add metrics/counters for failures
         try {
-            ObjectNode document = jsonMapper.readValue(data, ObjectNode.class);
+            ObjectNode document = jsonMapper.readValue(data, offset, length, ObjectNode.class);
             document.put(SINK_TIMESTAMP_FIELD, timestamp);
             return(jsonMapper.writeValueAsBytes(document));
         } catch (JsonParseException e) {
@@ -250,4 +316,9 @@ public class SequenceFileSink implements KeyValueSink {
         // NOOP
     }
 
+    @Override
+    public void deleteBatch(RecordBatch batch) {
+        // NOOP
+    }
+
 }
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free ring for many producers and a single consumer. Each
+ * slot has a sequence number that says whether it is free for the producer
+ * claiming position p (sequence == p), holds an element (sequence == p + 1)
+ * or still holds an element from the last lap (the ring is full).
+ *
+ * The consumer parks while the ring is empty and is woken by the next
+ * producer. Producers that find the ring full park briefly and try again,
+ * which slows them down to the consumer's pace.
+ */
+public class BoundedRing<E> {
+
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    // Bounds how long a missed wakeup could delay the consumer
+    private static final long EMPTY_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final int capacity;
+    private final int mask;
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // Only advanced by the consumer; atomic so size() can be read by others
+    private final AtomicLong head = new AtomicLong();
+    private volatile Thread waitingConsumer;
+
+    /**
+     * @param capacity the most elements the ring holds, rounded up to a power of two
+     */
+    public BoundedRing(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        this.capacity = Integer.bitCount(capacity) == 1 ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.mask = this.capacity - 1;
+        this.elements = new Object[this.capacity];
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return roughly how many elements are waiting for the consumer
+     */
+    public int size() {
+        return (int)Math.max(0, Math.min(capacity, tail.get() - head.get()));
+    }
+
+    /**
+     * Adds an element unless the ring is full.
+     *
+     * @return false if the ring was full
+     */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long position;
+        while (true) {
+            position = tail.get();
+            long sequence = sequences.get((int)(position & mask));
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                return false;
+            }
+            // Otherwise another producer took the position first
+        }
+        int index = (int)(position & mask);
+        elements[index] = e;
+        // A full write so the consumer either sees the element or is seen waiting
+        sequences.set(index, position + 1);
+        Thread waiter = waitingConsumer;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return true;
+    }
+
+    /**
+     * Adds an element, waiting for room if the ring is full.
+     */
+    public void put(E e) throws InterruptedException {
+        while (!offer(e)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(this, FULL_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Takes the oldest element. Only called by the consumer.
+     *
+     * @return null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long position = head.get();
+        int index = (int)(position & mask);
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        E e = (E)elements[index];
+        elements[index] = null;
+        sequences.lazySet(index, position + capacity);
+        head.lazySet(position + 1);
+        return e;
+    }
+
+    /**
+     * Takes the oldest element, waiting for one if the ring is empty. Only
+     * called by the consumer.
+     */
+    public E take() throws InterruptedException {
+        E e = poll();
+        if (e != null) {
+            return e;
+        }
+        waitingConsumer = Thread.currentThread();
+        try {
+            while ((e = poll()) == null) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                LockSupport.parkNanos(this, EMPTY_PARK_NANOS);
+            }
+            return e;
+        } finally {
+            waitingConsumer = null;
+        }
+    }
+}
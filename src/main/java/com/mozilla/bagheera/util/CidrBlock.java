@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An IPv4 or IPv6 address range in CIDR notation, such as 10.0.0.0/8 or
+ * fd00::/8. A plain address is a range of one.
+ */
+public class CidrBlock {
+
+    private final byte[] network;
+    private final int prefixLength;
+
+    public CidrBlock(byte[] network, int prefixLength) {
+        if (prefixLength < 0 || prefixLength > network.length * 8) {
+            throw new IllegalArgumentException("Invalid prefix length: " + prefixLength);
+        }
+        this.network = network;
+        this.prefixLength = prefixLength;
+    }
+
+    public static CidrBlock parse(String cidr) {
+        String s = cidr.trim();
+        int slash = s.indexOf('/');
+        byte[] network = IpAddressParser.parse(s, 0, slash < 0 ? s.length() : slash);
+        if (network == null) {
+            throw new IllegalArgumentException("Invalid address range: " + cidr);
+        }
+        int prefixLength = network.length * 8;
+        if (slash >= 0) {
+            try {
+                prefixLength = Integer.parseInt(s.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid address range: " + cidr);
+            }
+        }
+        return new CidrBlock(network, prefixLength);
+    }
+
+    /**
+     * Parses a comma separated list of ranges.
+     */
+    public static List<CidrBlock> parseList(String cidrs) {
+        List<CidrBlock> blocks = new ArrayList<CidrBlock>();
+        if (cidrs != null) {
+            for (String cidr : cidrs.split(",")) {
+                if (cidr.trim().length() > 0) {
+                    blocks.add(parse(cidr));
+                }
+            }
+        }
+        return blocks;
+    }
+
+    public boolean contains(byte[] addr) {
+        if (addr == null || addr.length != network.length) {
+            return false;
+        }
+        int fullBytes = prefixLength / 8;
+        for (int i = 0; i < fullBytes; i++) {
+            if (addr[i] != network[i]) {
+                return false;
+            }
+        }
+        int remainingBits = prefixLength % 8;
+        if (remainingBits == 0) {
+            return true;
+        }
+        int mask = (0xff << (8 - remainingBits)) & 0xff;
+        return (addr[fullBytes] & mask) == (network[fullBytes] & mask);
+    }
+
+    @Override
+    public String toString() {
+        return IpAddressParser.format(network) + "/" + prefixLength;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.util;
+
+/**
+ * The address of the client that sent a request, as text and as bytes.
+ */
+public class ClientAddress {
+
+    private final byte[] address;
+    private String host;
+
+    public ClientAddress(String host, byte[] address) {
+        this.host = host;
+        this.address = address;
+    }
+
+    /**
+     * @return the address as text (only formatted when first asked for)
+     */
+    public String getHost() {
+        if (host == null && address != null) {
+            host = IpAddressParser.format(address);
+        }
+        return host;
+    }
+
+    /**
+     * @return the 4 or 16 address bytes, or null if the address isn't known
+     */
+    public byte[] getAddress() {
+        return address;
+    }
+
+    @Override
+    public String toString() {
+        return getHost();
+    }
+}
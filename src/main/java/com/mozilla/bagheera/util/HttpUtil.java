@@ -20,7 +20,9 @@
 package com.mozilla.bagheera.util;
 
 import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
 
 import org.jboss.netty.handler.codec.http.HttpRequest;
 
@@ -29,6 +31,8 @@ public class HttpUtil {
     // header fields
     public static final String USER_AGENT = "User-Agent";
     public static final String X_FORWARDED_FOR = "X-Forwarded-For";
+
+    public static final List<CidrBlock> NO_TRUSTED_PROXIES = Collections.emptyList();
     
     public static String getUserAgent(HttpRequest request) {
         return request.getHeader(USER_AGENT);
@@ -56,23 +60,84 @@ public class HttpUtil {
     }
     
     public static byte[] getRemoteAddr(HttpRequest request, InetAddress channelRemoteAddr) {
-        String forwardedAddr = getForwardedAddr(request.getHeader(X_FORWARDED_FOR));
-        byte[] addrBytes = null;
+        String forwardedAddr = request.getHeader(X_FORWARDED_FOR);
         if (forwardedAddr != null) {
-            InetAddress addr;
-            try {
-                addr = InetAddress.getByName(forwardedAddr);
-                addrBytes = addr.getAddress();
-            } catch (UnknownHostException e) {
-                // going to swallow this for now
+            int idx = forwardedAddr.indexOf(",");
+            byte[] addrBytes = IpAddressParser.parse(forwardedAddr, 0, idx > 0 ? idx : forwardedAddr.length());
+            if (addrBytes != null) {
+                return addrBytes;
             }
         }
-        // if we're still null here then use the remote addr bytes
-        if (addrBytes == null) {
-            addrBytes = channelRemoteAddr.getAddress();
+        return channelRemoteAddr.getAddress();
+    }
+
+    /**
+     * @see #getClientAddress(String, InetSocketAddress, List)
+     */
+    public static ClientAddress getClientAddress(HttpRequest request, InetSocketAddress channelRemoteAddr,
+                                                 List<CidrBlock> trustedProxies) {
+        return getClientAddress(request.getHeader(X_FORWARDED_FOR), channelRemoteAddr, trustedProxies);
+    }
+
+    /**
+     * Works out the client address from X-Forwarded-For in a single pass
+     * without any name lookups. Entries that aren't address literals are
+     * never trusted.
+     *
+     * Without trusted proxies the first forwarded address is taken, as anyone
+     * could have set the header. With trusted proxies the chain is followed
+     * back from the connection's peer for as long as the hops are trusted,
+     * and the first hop that isn't is the client.
+     */
+    public static ClientAddress getClientAddress(String forwardedFor, InetSocketAddress channelRemoteAddr,
+                                                 List<CidrBlock> trustedProxies) {
+        ClientAddress client = getPeerAddress(channelRemoteAddr);
+        if (forwardedFor == null) {
+            return client;
         }
-        
-        return addrBytes;
+        if (trustedProxies == null || trustedProxies.isEmpty()) {
+            int idx = forwardedFor.indexOf(',');
+            byte[] addrBytes = IpAddressParser.parse(forwardedFor, 0, idx >= 0 ? idx : forwardedFor.length());
+            return addrBytes != null ? new ClientAddress(null, addrBytes) : client;
+        }
+        if (!isTrusted(client.getAddress(), trustedProxies)) {
+            return client;
+        }
+        int end = forwardedFor.length();
+        while (end > 0) {
+            int idx = forwardedFor.lastIndexOf(',', end - 1);
+            byte[] addrBytes = IpAddressParser.parse(forwardedFor, idx + 1, end);
+            if (addrBytes == null) {
+                break;
+            }
+            client = new ClientAddress(null, addrBytes);
+            if (!isTrusted(addrBytes, trustedProxies)) {
+                break;
+            }
+            end = idx;
+        }
+        return client;
+    }
+
+    private static ClientAddress getPeerAddress(InetSocketAddress channelRemoteAddr) {
+        if (channelRemoteAddr == null) {
+            return new ClientAddress(null, null);
+        }
+        InetAddress addr = channelRemoteAddr.getAddress();
+        if (addr != null) {
+            return new ClientAddress(addr.getHostAddress(), addr.getAddress());
+        }
+        // Unresolved, so the host name is whatever it was created with
+        String host = channelRemoteAddr.getHostName();
+        return new ClientAddress(host, IpAddressParser.parse(host));
+    }
+
+    private static boolean isTrusted(byte[] addr, List<CidrBlock> trustedProxies) {
+        for (CidrBlock block : trustedProxies) {
+            if (block.contains(addr)) {
+                return true;
+            }
+        }
+        return false;
     }
-    
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.util;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Generates document ids for submissions that come without one.
+ *
+ * UUID.randomUUID shares a single SecureRandom between all threads, so every
+ * I/O thread queues up on its lock. Here each thread has a SecureRandom of
+ * its own. Ids are either random (version 4) UUIDs or, when time ordered,
+ * start with the time in milliseconds like version 7 UUIDs, which keeps
+ * documents received around the same time close together in sorted stores.
+ */
+public class IdGenerator {
+
+    public static final String TIME_ORDERED = "id.time.ordered";
+
+    private static final ThreadLocal<SecureRandom> RANDOM = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            try {
+                // Seeded from the system the first time it is used
+                return SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException e) {
+                return new SecureRandom();
+            }
+        }
+    };
+
+    private static volatile IdGenerator defaultGenerator = new IdGenerator(false);
+
+    private final boolean timeOrdered;
+
+    public IdGenerator(boolean timeOrdered) {
+        this.timeOrdered = timeOrdered;
+    }
+
+    /**
+     * @return the generator used for ids the server makes up
+     */
+    public static IdGenerator getDefault() {
+        return defaultGenerator;
+    }
+
+    public static void setDefault(IdGenerator generator) {
+        defaultGenerator = generator;
+    }
+
+    public boolean isTimeOrdered() {
+        return timeOrdered;
+    }
+
+    /**
+     * @return a new id in canonical UUID form
+     */
+    public String nextId() {
+        SecureRandom random = RANDOM.get();
+        long mostSigBits = random.nextLong();
+        long leastSigBits = random.nextLong();
+        if (timeOrdered) {
+            // 48 bits of milliseconds, version 7 and 12 random bits
+            mostSigBits = (System.currentTimeMillis() << 16) | 0x7000L | (mostSigBits & 0x0fffL);
+        } else {
+            mostSigBits = (mostSigBits & ~0xf000L) | 0x4000L;
+        }
+        // IETF variant
+        leastSigBits = (leastSigBits & 0x3fffffffffffffffL) | 0x8000000000000000L;
+        return UuidUtil.format(mostSigBits, leastSigBits);
+    }
+}
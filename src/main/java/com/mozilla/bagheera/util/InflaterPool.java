@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.util;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps Inflaters around for reuse, since each one holds on to a native
+ * zlib stream that is costly to set up and is only freed by end() (or
+ * eventually by the finalizer). Inflaters beyond maxIdle are ended when
+ * they are released.
+ */
+public class InflaterPool implements Closeable {
+
+    private final boolean nowrap;
+    private final int maxIdle;
+    private final Queue<Inflater> idle = new ConcurrentLinkedQueue<Inflater>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * @param nowrap whether the Inflaters read raw deflate data instead of the zlib format
+     * @param maxIdle the most Inflaters kept waiting for reuse
+     */
+    public InflaterPool(boolean nowrap, int maxIdle) {
+        this.nowrap = nowrap;
+        this.maxIdle = maxIdle;
+    }
+
+    public Inflater borrow() {
+        Inflater inflater = idle.poll();
+        if (inflater == null) {
+            return new Inflater(nowrap);
+        }
+        idleCount.decrementAndGet();
+        return inflater;
+    }
+
+    public void release(Inflater inflater) {
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            inflater.reset();
+            idle.add(inflater);
+        } else {
+            idleCount.decrementAndGet();
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return the number of Inflaters waiting for reuse
+     */
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() {
+        Inflater inflater;
+        while ((inflater = idle.poll()) != null) {
+            idleCount.decrementAndGet();
+            inflater.end();
+        }
+    }
+}
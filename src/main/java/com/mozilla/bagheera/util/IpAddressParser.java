@@ -0,0 +1,243 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.util;
+
+import java.util.Arrays;
+
+/**
+ * Parses IPv4 and IPv6 address literals without ever looking up a name, unlike
+ * InetAddress.getByName which resolves anything that isn't a literal.
+ */
+public class IpAddressParser {
+
+    private IpAddressParser() {
+    }
+
+    /**
+     * @see #parse(String, int, int)
+     */
+    public static byte[] parse(String s) {
+        return s == null ? null : parse(s, 0, s.length());
+    }
+
+    /**
+     * Parses the literal between start and end. Surrounding whitespace, a
+     * port after an IPv4 address or a bracketed IPv6 address, and an IPv6
+     * zone are ignored. IPv4-mapped IPv6 addresses come back as IPv4.
+     *
+     * @return the 4 or 16 address bytes, or null if this isn't a literal
+     */
+    public static byte[] parse(String s, int start, int end) {
+        while (start < end && Character.isWhitespace(s.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(s.charAt(end - 1))) {
+            end--;
+        }
+        if (start == end) {
+            return null;
+        }
+
+        if (s.charAt(start) == '[') {
+            int close = s.indexOf(']', start);
+            if (close < 0 || close >= end) {
+                return null;
+            }
+            if (close + 1 < end && (s.charAt(close + 1) != ':' || !isPort(s, close + 2, end))) {
+                return null;
+            }
+            return parseIPv6(s, start + 1, close);
+        }
+
+        int colon = s.indexOf(':', start);
+        if (colon < 0 || colon >= end) {
+            byte[] addr = new byte[4];
+            return parseIPv4(s, start, end, addr, 0) ? addr : null;
+        }
+        if (s.lastIndexOf(':', end - 1) == colon) {
+            // A single colon can only be an IPv4 address with a port
+            byte[] addr = new byte[4];
+            return isPort(s, colon + 1, end) && parseIPv4(s, start, colon, addr, 0) ? addr : null;
+        }
+        return parseIPv6(s, start, end);
+    }
+
+    private static boolean isPort(String s, int start, int end) {
+        if (start >= end || end - start > 5) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static boolean parseIPv4(String s, int start, int end, byte[] dst, int offset) {
+        int parts = 0;
+        int octet = 0;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = octet * 10 + (c - '0');
+                if (++digits > 3 || octet > 255) {
+                    return false;
+                }
+            } else if (c == '.') {
+                if (digits == 0 || parts == 3) {
+                    return false;
+                }
+                dst[offset + parts++] = (byte)octet;
+                octet = 0;
+                digits = 0;
+            } else {
+                return false;
+            }
+        }
+        if (digits == 0 || parts != 3) {
+            return false;
+        }
+        dst[offset + 3] = (byte)octet;
+        return true;
+    }
+
+    private static byte[] parseIPv6(String s, int start, int end) {
+        int zone = s.indexOf('%', start);
+        if (zone >= 0 && zone < end) {
+            end = zone;
+        }
+        byte[] addr = new byte[16];
+        int words = 0;
+        // Index of the word the :: stands in front of
+        int compressAt = -1;
+        int i = start;
+        if (i < end && s.charAt(i) == ':') {
+            if (i + 1 >= end || s.charAt(i + 1) != ':') {
+                return null;
+            }
+            compressAt = 0;
+            i += 2;
+        }
+        while (i < end) {
+            if (words == 8) {
+                return null;
+            }
+            int groupStart = i;
+            int value = 0;
+            int digits = 0;
+            int hex;
+            while (i < end && (hex = hexValue(s.charAt(i))) >= 0) {
+                value = (value << 4) | hex;
+                if (++digits > 4) {
+                    return null;
+                }
+                i++;
+            }
+            if (i < end && s.charAt(i) == '.') {
+                // Dotted IPv4 address in the last two words
+                if (words > 6 || !parseIPv4(s, groupStart, end, addr, words * 2)) {
+                    return null;
+                }
+                words += 2;
+                break;
+            }
+            if (digits == 0) {
+                return null;
+            }
+            addr[words * 2] = (byte)(value >> 8);
+            addr[words * 2 + 1] = (byte)value;
+            words++;
+            if (i < end) {
+                if (s.charAt(i) != ':') {
+                    return null;
+                }
+                i++;
+                if (i < end && s.charAt(i) == ':') {
+                    if (compressAt >= 0) {
+                        return null;
+                    }
+                    compressAt = words;
+                    i++;
+                } else if (i == end) {
+                    return null;
+                }
+            }
+        }
+        if (compressAt >= 0) {
+            if (words == 8) {
+                return null;
+            }
+            int tailBytes = (words - compressAt) * 2;
+            System.arraycopy(addr, compressAt * 2, addr, 16 - tailBytes, tailBytes);
+            Arrays.fill(addr, compressAt * 2, 16 - tailBytes, (byte)0);
+        } else if (words != 8) {
+            return null;
+        }
+
+        // Like InetAddress, treat ::ffff:a.b.c.d as an IPv4 address
+        for (int j = 0; j < 10; j++) {
+            if (addr[j] != 0) {
+                return addr;
+            }
+        }
+        if (addr[10] == (byte)0xff && addr[11] == (byte)0xff) {
+            return Arrays.copyOfRange(addr, 12, 16);
+        }
+        return addr;
+    }
+
+    /**
+     * Formats address bytes the way InetAddress.getHostAddress does, without
+     * creating an InetAddress.
+     */
+    public static String format(byte[] addr) {
+        StringBuilder sb = new StringBuilder(39);
+        if (addr.length == 4) {
+            for (int i = 0; i < 4; i++) {
+                if (i > 0) {
+                    sb.append('.');
+                }
+                sb.append(addr[i] & 0xff);
+            }
+        } else {
+            for (int i = 0; i < 16; i += 2) {
+                if (i > 0) {
+                    sb.append(':');
+                }
+                sb.append(Integer.toHexString(((addr[i] & 0xff) << 8) | (addr[i + 1] & 0xff)));
+            }
+        }
+        return sb.toString();
+    }
+}
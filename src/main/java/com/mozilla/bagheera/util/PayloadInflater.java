@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.util;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates gzip and deflate (zlib or raw deflate) payloads with pooled
+ * Inflaters, into a buffer that never grows much past the allowed size.
+ * Thread-safe.
+ */
+public class PayloadInflater implements Closeable {
+
+    private static final int MIN_BUFFER_SIZE = 4096;
+    // Guess at how much a payload inflates, to size the first buffer
+    private static final int EXPECTED_RATIO = 4;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    // gzip header flags (RFC 1952)
+    private static final int GZIP_HEADER_LENGTH = 10;
+    private static final int GZIP_TRAILER_LENGTH = 8;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final InflaterPool zlibPool;
+    private final InflaterPool rawPool;
+
+    /**
+     * @param poolSize the most Inflaters of each kind (zlib and raw deflate) kept for reuse
+     */
+    public PayloadInflater(int poolSize) {
+        this.zlibPool = new InflaterPool(false, poolSize);
+        this.rawPool = new InflaterPool(true, poolSize);
+    }
+
+    /**
+     * @param maxInflatedLength the most bytes the payload may inflate to, or -1 for no limit
+     * @return the inflated payload, between position 0 and the limit of a heap buffer
+     * @throws PayloadTooLargeException as soon as the payload inflates past maxInflatedLength
+     * @throws DataFormatException if the payload is corrupt or truncated
+     */
+    public ByteBuffer inflate(byte[] in, int offset, int length, boolean gzip, int maxInflatedLength)
+        throws DataFormatException {
+        int end = offset + length;
+        boolean nowrap;
+        if (gzip) {
+            offset = skipGzipHeader(in, offset, end);
+            nowrap = true;
+        } else {
+            // Some clients send raw deflate data for "deflate"
+            nowrap = !isZlibHeader(in, offset, end);
+        }
+
+        InflaterPool pool = nowrap ? rawPool : zlibPool;
+        Inflater inflater = pool.borrow();
+        try {
+            inflater.setInput(in, offset, end - offset);
+            // The buffer never grows past one byte more than the limit, which is
+            // enough to tell that the payload is too large
+            long maxBufferSize = maxInflatedLength < 0 ? MAX_ARRAY_SIZE : Math.min(MAX_ARRAY_SIZE, maxInflatedLength + 1L);
+            byte[] out = new byte[(int)Math.min(maxBufferSize, Math.max(MIN_BUFFER_SIZE, (long)length * EXPECTED_RATIO))];
+            int n = 0;
+            while (!inflater.finished()) {
+                if (n == out.length) {
+                    if (out.length >= maxBufferSize) {
+                        throw new PayloadTooLargeException("Inflated length exceeded: " + maxInflatedLength + " bytes.");
+                    }
+                    byte[] grown = new byte[(int)Math.min(maxBufferSize, out.length * 2L)];
+                    System.arraycopy(out, 0, grown, 0, n);
+                    out = grown;
+                }
+                int count = inflater.inflate(out, n, out.length - n);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Compressed data is truncated or needs a preset dictionary");
+                }
+                n += count;
+                if (maxInflatedLength >= 0 && n > maxInflatedLength) {
+                    throw new PayloadTooLargeException("Inflated length exceeded: " + maxInflatedLength + " bytes.");
+                }
+            }
+            if (gzip) {
+                checkGzipTrailer(in, end - inflater.getRemaining(), end, out, n);
+            }
+            return ByteBuffer.wrap(out, 0, n);
+        } finally {
+            pool.release(inflater);
+        }
+    }
+
+    /**
+     * @return the inflated payload in an array of its own size
+     */
+    public byte[] inflateToArray(byte[] in, int offset, int length, boolean gzip, int maxInflatedLength)
+        throws DataFormatException {
+        ByteBuffer inflated = inflate(in, offset, length, gzip, maxInflatedLength);
+        byte[] out = inflated.array();
+        if (out.length == inflated.remaining()) {
+            return out;
+        }
+        byte[] trimmed = new byte[inflated.remaining()];
+        System.arraycopy(out, 0, trimmed, 0, trimmed.length);
+        return trimmed;
+    }
+
+    /**
+     * @return whether the data starts with a zlib (RFC 1950) header
+     */
+    static boolean isZlibHeader(byte[] in, int offset, int end) {
+        if (end - offset < 2) {
+            return false;
+        }
+        int cmf = in[offset] & 0xff;
+        int flg = in[offset + 1] & 0xff;
+        return (cmf & 0x0f) == 8 && (cmf >> 4) <= 7 && ((cmf << 8) | flg) % 31 == 0;
+    }
+
+    /**
+     * @return the offset of the deflate data following the gzip (RFC 1952) header
+     */
+    static int skipGzipHeader(byte[] in, int offset, int end) throws DataFormatException {
+        if (end - offset < GZIP_HEADER_LENGTH ||
+            (in[offset] & 0xff) != 0x1f || (in[offset + 1] & 0xff) != 0x8b || in[offset + 2] != 8) {
+            throw new DataFormatException("Data is not in gzip format");
+        }
+        int flags = in[offset + 3] & 0xff;
+        int pos = offset + GZIP_HEADER_LENGTH;
+        if ((flags & FEXTRA) != 0) {
+            if (end - pos < 2) {
+                throw new DataFormatException("Truncated gzip header");
+            }
+            pos += 2 + ((in[pos] & 0xff) | ((in[pos + 1] & 0xff) << 8));
+        }
+        if ((flags & FNAME) != 0) {
+            pos = skipZeroTerminated(in, pos, end);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            pos = skipZeroTerminated(in, pos, end);
+        }
+        if ((flags & FHCRC) != 0) {
+            pos += 2;
+        }
+        if (pos > end) {
+            throw new DataFormatException("Truncated gzip header");
+        }
+        return pos;
+    }
+
+    private static int skipZeroTerminated(byte[] in, int pos, int end) throws DataFormatException {
+        while (pos < end) {
+            if (in[pos++] == 0) {
+                return pos;
+            }
+        }
+        throw new DataFormatException("Truncated gzip header");
+    }
+
+    private static void checkGzipTrailer(byte[] in, int pos, int end, byte[] out, int n) throws DataFormatException {
+        if (end - pos < GZIP_TRAILER_LENGTH) {
+            throw new DataFormatException("Truncated gzip trailer");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(out, 0, n);
+        if (readIntLE(in, pos) != (int)crc.getValue() || readIntLE(in, pos + 4) != n) {
+            throw new DataFormatException("Corrupt gzip data");
+        }
+    }
+
+    private static int readIntLE(byte[] in, int pos) {
+        return (in[pos] & 0xff) | ((in[pos + 1] & 0xff) << 8) | ((in[pos + 2] & 0xff) << 16) | ((in[pos + 3] & 0xff) << 24);
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() {
+        zlibPool.close();
+        rawPool.close();
+    }
+}
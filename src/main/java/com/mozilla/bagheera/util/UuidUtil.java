@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.util;
+
+/**
+ * Checks and formats UUIDs without going through java.util.UUID, which throws
+ * on bad input and allocates along the way.
+ */
+public class UuidUtil {
+
+    public static final int UUID_LENGTH = 36;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // Hex digit values by character, -1 for anything else
+    private static final byte[] HEX_VALUES = new byte[128];
+    static {
+        for (int i = 0; i < HEX_VALUES.length; i++) {
+            HEX_VALUES[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte)i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte)(10 + i);
+            HEX_VALUES['A' + i] = (byte)(10 + i);
+        }
+    }
+
+    private UuidUtil() {
+    }
+
+    /**
+     * @return true if s is a UUID in its canonical 8-4-4-4-12 hex form, in either case
+     */
+    public static boolean isValidUuid(String s) {
+        if (s == null || s.length() != UUID_LENGTH) {
+            return false;
+        }
+        if (s.charAt(8) != '-' || s.charAt(13) != '-' || s.charAt(18) != '-' || s.charAt(23) != '-') {
+            return false;
+        }
+        // OR together every digit's value; a non-hex character makes it negative
+        int bits = 0;
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                continue;
+            }
+            char c = s.charAt(i);
+            bits |= c < 128 ? HEX_VALUES[c] : -1;
+        }
+        return bits >= 0;
+    }
+
+    /**
+     * Formats the two halves of a UUID the way UUID.toString does.
+     */
+    public static String format(long mostSigBits, long leastSigBits) {
+        char[] chars = new char[UUID_LENGTH];
+        int pos = 0;
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            if (pos == 8 || pos == 13) {
+                chars[pos++] = '-';
+            }
+            chars[pos++] = HEX_DIGITS[(int)(mostSigBits >>> shift) & 0xf];
+        }
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            if (pos == 18 || pos == 23) {
+                chars[pos++] = '-';
+            }
+            chars[pos++] = HEX_DIGITS[(int)(leastSigBits >>> shift) & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.validation;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps namespaces to values by configured names, which are either literal
+ * names or contain a single * standing for one or more characters, such as
+ * testpilot_*.
+ *
+ * Literal names are looked up in a hash map and wildcard names in a trie of
+ * their prefixes, where the longest matching prefix wins. Results are then
+ * cached, so a namespace that has been seen before costs a single hash probe.
+ *
+ * Names are all added before the matcher is shared; after that it is safe
+ * to use from any thread.
+ */
+public class NamespaceMatcher<T> {
+
+    private static final int DEFAULT_MAX_CACHE_SIZE = 10000;
+    // Cached for namespaces that don't match anything
+    private static final Object NO_MATCH = new Object();
+
+    private static class Wildcard<T> {
+        final String suffix;
+        final T value;
+
+        Wildcard(String suffix, T value) {
+            this.suffix = suffix;
+            this.value = value;
+        }
+    }
+
+    private static class Node<T> {
+        final Map<Character, Node<T>> children = new HashMap<Character, Node<T>>();
+        Wildcard<T> wildcard;
+    }
+
+    private final Map<String, T> literals = new HashMap<String, T>();
+    private final Node<T> root = new Node<T>();
+    private final ConcurrentMap<String, Object> cache = new ConcurrentHashMap<String, Object>();
+    private final int maxCacheSize;
+
+    public NamespaceMatcher() {
+        this(DEFAULT_MAX_CACHE_SIZE);
+    }
+
+    /**
+     * @param maxCacheSize the most namespaces to remember results for, so
+     *        made up namespaces can't grow the cache without bound
+     */
+    public NamespaceMatcher(int maxCacheSize) {
+        this.maxCacheSize = maxCacheSize;
+    }
+
+    /**
+     * Adds a namespace name, which may contain one *. A name added before
+     * takes precedence.
+     */
+    public void add(String name, T value) {
+        int starIdx = name.indexOf('*');
+        if (starIdx < 0) {
+            if (!literals.containsKey(name)) {
+                literals.put(name, value);
+            }
+            return;
+        }
+        if (name.indexOf('*', starIdx + 1) >= 0) {
+            throw new IllegalArgumentException("Only one * is allowed in namespace " + name);
+        }
+        Node<T> node = root;
+        for (int i = 0; i < starIdx; i++) {
+            Character c = name.charAt(i);
+            Node<T> child = node.children.get(c);
+            if (child == null) {
+                child = new Node<T>();
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+        if (node.wildcard == null) {
+            node.wildcard = new Wildcard<T>(name.substring(starIdx + 1), value);
+        }
+    }
+
+    /**
+     * @return the value for the namespace, or null if it doesn't match any name
+     */
+    @SuppressWarnings("unchecked")
+    public T match(String namespace) {
+        Object cached = cache.get(namespace);
+        if (cached != null) {
+            return cached == NO_MATCH ? null : (T)cached;
+        }
+        T value = lookup(namespace);
+        if (cache.size() < maxCacheSize) {
+            cache.put(namespace, value == null ? NO_MATCH : value);
+        }
+        return value;
+    }
+
+    private T lookup(String namespace) {
+        T value = literals.get(namespace);
+        if (value != null) {
+            return value;
+        }
+        Node<T> node = root;
+        int len = namespace.length();
+        for (int i = 0; node != null; i++) {
+            Wildcard<T> wildcard = node.wildcard;
+            // The * has to stand for at least one character
+            if (wildcard != null && len - i > wildcard.suffix.length() && namespace.endsWith(wildcard.suffix)) {
+                value = wildcard.value;
+            }
+            node = i < len ? node.children.get(namespace.charAt(i)) : null;
+        }
+        return value;
+    }
+}
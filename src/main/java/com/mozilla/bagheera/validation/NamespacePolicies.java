@@ -0,0 +1,245 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.validation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.mozilla.bagheera.producer.AckMode;
+
+/**
+ * An immutable snapshot of the namespace configuration: which namespaces are
+ * valid and the policy of each. Policies are resolved from a private copy of
+ * the properties the first time a namespace is seen and cached after that, so
+ * looking one up takes no locks.
+ */
+public class NamespacePolicies {
+
+    public static final String VALID_NAMESPACES = "valid.namespaces";
+    // For namespaces without a max.inflated.length of their own
+    public static final String MAX_INFLATED_LENGTH = "max.inflated.length";
+    // Without any max.inflated.length a body can inflate to this many times
+    // the namespace's max.content.length
+    static final int DEFAULT_INFLATION_RATIO = 10;
+
+    // Made up namespaces that happen to match a wildcard can't grow the cache without bound
+    private static final int MAX_CACHED_POLICIES = 10000;
+    private static final char WILDCARD_CHAR = '*';
+    // Namespace settings that have to parse as numbers
+    private static final String[] INT_SUFFIXES = {
+        NamespacePolicy.MAX_CONTENT_LENGTH, NamespacePolicy.MAX_INFLATED_LENGTH, NamespacePolicy.JSON_MAX_DEPTH,
+        NamespacePolicy.JSON_MAX_TOKENS, NamespacePolicy.RATE_BURST, NamespacePolicy.CLIENT_RATE_BURST
+    };
+    private static final String[] DOUBLE_SUFFIXES = {
+        NamespacePolicy.RATE_LIMIT, NamespacePolicy.CLIENT_RATE_LIMIT
+    };
+
+    private final Map<String, String> properties = new HashMap<String, String>();
+    private final List<String> wildcardKeys = new ArrayList<String>();
+    // Null when every namespace is valid
+    private final NamespaceMatcher<String> validNamespaces;
+    private final int defaultMaxContentLength;
+    private final int largestMaxContentLength;
+    private final ConcurrentMap<String, NamespacePolicy> policies = new ConcurrentHashMap<String, NamespacePolicy>();
+
+    /**
+     * Every namespace setting is checked here and the policies of the
+     * namespaces listed by name are resolved right away, so a bad value
+     * fails the whole configuration (and a reload keeps the old one) rather
+     * than the first request to its namespace.
+     *
+     * @param props the namespace properties, with the valid namespaces in
+     *        valid.namespaces (every namespace is valid without it)
+     * @param defaultMaxContentLength for namespaces without a max.content.length
+     * @throws IllegalArgumentException if a namespace setting has a bad value
+     */
+    public NamespacePolicies(Properties props, int defaultMaxContentLength) {
+        this(splitNamespaces(props.getProperty(VALID_NAMESPACES)), props, defaultMaxContentLength);
+    }
+
+    public NamespacePolicies(String[] validNamespaces, Properties props, int defaultMaxContentLength) {
+        int largest = defaultMaxContentLength;
+        for (String key : props.stringPropertyNames()) {
+            checkValue(key, props.getProperty(key));
+            properties.put(key, props.getProperty(key));
+            if (key.indexOf(WILDCARD_CHAR) >= 0) {
+                wildcardKeys.add(key);
+            }
+            if (largest > 0 && key.endsWith(NamespacePolicy.MAX_CONTENT_LENGTH)) {
+                largest = Math.max(largest, Integer.parseInt(props.getProperty(key).trim()));
+            }
+        }
+        if (validNamespaces != null) {
+            this.validNamespaces = new NamespaceMatcher<String>();
+            for (String name : validNamespaces) {
+                name = name.trim();
+                if (name.length() > 0) {
+                    this.validNamespaces.add(name, name);
+                }
+            }
+        } else {
+            this.validNamespaces = null;
+        }
+        this.defaultMaxContentLength = defaultMaxContentLength;
+        this.largestMaxContentLength = largest;
+
+        if (validNamespaces != null) {
+            for (String name : validNamespaces) {
+                name = name.trim();
+                if (name.length() > 0 && name.indexOf(WILDCARD_CHAR) < 0) {
+                    getPolicy(name);
+                }
+            }
+        }
+    }
+
+    private static void checkValue(String key, String value) {
+        try {
+            if (key.equals(MAX_INFLATED_LENGTH)) {
+                Integer.parseInt(value.trim());
+            } else if (key.endsWith(NamespacePolicy.ACK_MODE)) {
+                AckMode.parse(value);
+            } else {
+                for (String suffix : INT_SUFFIXES) {
+                    if (key.endsWith(suffix)) {
+                        Integer.parseInt(value.trim());
+                    }
+                }
+                for (String suffix : DOUBLE_SUFFIXES) {
+                    if (key.endsWith(suffix)) {
+                        Double.parseDouble(value.trim());
+                    }
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException included
+            throw new IllegalArgumentException("Invalid value for " + key + ": " + value, e);
+        }
+    }
+
+    private static String[] splitNamespaces(String validNsStr) {
+        return validNsStr == null ? null : validNsStr.split(",");
+    }
+
+    public int getDefaultMaxContentLength() {
+        return defaultMaxContentLength;
+    }
+
+    /**
+     * @return the largest max.content.length of any namespace, or of the
+     *         default; what a request body may be before its namespace's own
+     *         limit is applied (-1 for no limit)
+     */
+    public int getLargestMaxContentLength() {
+        return largestMaxContentLength;
+    }
+
+    /**
+     * @return the inflated size limit of requests that don't belong to a namespace
+     */
+    public int getDefaultMaxInflatedLength() {
+        return getMaxInflatedLength(defaultMaxContentLength);
+    }
+
+    private int getMaxInflatedLength(int maxContentLength) {
+        String value = getProperty(MAX_INFLATED_LENGTH, null);
+        if (value != null) {
+            return Integer.parseInt(value);
+        }
+        return maxContentLength < 0 ? -1 : (int)Math.min(Integer.MAX_VALUE, (long)maxContentLength * DEFAULT_INFLATION_RATIO);
+    }
+
+    /**
+     * @return the namespace's policy, or null if it isn't a valid namespace
+     */
+    public NamespacePolicy getPolicy(String namespace) {
+        if (namespace == null) {
+            return null;
+        }
+        NamespacePolicy policy = policies.get(namespace);
+        if (policy == null) {
+            String name = validNamespaces == null ? namespace : validNamespaces.match(namespace);
+            if (name == null) {
+                return null;
+            }
+            policy = resolve(namespace, name);
+            if (policies.size() < MAX_CACHED_POLICIES) {
+                NamespacePolicy existing = policies.putIfAbsent(namespace, policy);
+                if (existing != null) {
+                    policy = existing;
+                }
+            }
+        }
+        return policy;
+    }
+
+    private NamespacePolicy resolve(String namespace, String name) {
+        double rateLimit = Double.parseDouble(getProperty(namespace + NamespacePolicy.RATE_LIMIT, "0"));
+        double clientRateLimit = Double.parseDouble(getProperty(namespace + NamespacePolicy.CLIENT_RATE_LIMIT, "0"));
+        int maxContentLength = Integer.parseInt(getProperty(namespace + NamespacePolicy.MAX_CONTENT_LENGTH,
+                                                            String.valueOf(defaultMaxContentLength)));
+        return new NamespacePolicy(name,
+                                   Boolean.parseBoolean(getProperty(namespace + NamespacePolicy.ID_VALIDATION, "true")),
+                                   Boolean.parseBoolean(getProperty(namespace + NamespacePolicy.ALLOW_DELETE_ACCESS, "false")),
+                                   maxContentLength,
+                                   Integer.parseInt(getProperty(namespace + NamespacePolicy.MAX_INFLATED_LENGTH,
+                                                                String.valueOf(getMaxInflatedLength(maxContentLength)))),
+                                   Boolean.parseBoolean(getProperty(namespace + NamespacePolicy.COMPRESSED_PASSTHROUGH, "false")),
+                                   Boolean.parseBoolean(getProperty(namespace + NamespacePolicy.JSON_VALIDATION, "false")),
+                                   Integer.parseInt(getProperty(namespace + NamespacePolicy.JSON_MAX_DEPTH, "0")),
+                                   Integer.parseInt(getProperty(namespace + NamespacePolicy.JSON_MAX_TOKENS, "0")),
+                                   rateLimit,
+                                   Integer.parseInt(getProperty(namespace + NamespacePolicy.RATE_BURST,
+                                                                String.valueOf(Math.max(1, (int)rateLimit)))),
+                                   clientRateLimit,
+                                   Integer.parseInt(getProperty(namespace + NamespacePolicy.CLIENT_RATE_BURST,
+                                                                String.valueOf(Math.max(1, (int)clientRateLimit)))),
+                                   AckMode.parse(getProperty(namespace + NamespacePolicy.ACK_MODE, "queued")),
+                                   Boolean.parseBoolean(getProperty(namespace + NamespacePolicy.MULTI_DELETE, "false")));
+    }
+
+    /**
+     * Looks a property up like WildcardProperties.getWildcardProperty, but
+     * without changing anything. When several wildcard keys match, the most
+     * specific (longest) one wins.
+     */
+    String getProperty(String key, String defaultValue) {
+        String value = properties.get(key);
+        if (value != null) {
+            return value.trim();
+        }
+        String bestKey = null;
+        for (String wildcardKey : wildcardKeys) {
+            int starIdx = wildcardKey.indexOf(WILDCARD_CHAR);
+            if (key.length() >= wildcardKey.length() - 1 &&
+                key.startsWith(wildcardKey.substring(0, starIdx)) &&
+                key.endsWith(wildcardKey.substring(starIdx + 1)) &&
+                (bestKey == null || wildcardKey.length() > bestKey.length())) {
+                bestKey = wildcardKey;
+            }
+        }
+        return bestKey == null ? defaultValue : properties.get(bestKey).trim();
+    }
+}
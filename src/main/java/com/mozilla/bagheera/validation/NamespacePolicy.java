@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.validation;
+
+import com.mozilla.bagheera.producer.AckMode;
+
+/**
+ * The settings of a valid namespace, resolved once from the namespace
+ * properties (&lt;namespace&gt;.id.validation and so on) and never changed
+ * afterwards. A new configuration comes with new policies.
+ */
+public class NamespacePolicy {
+
+    public static final String ID_VALIDATION = ".id.validation";
+    public static final String ALLOW_DELETE_ACCESS = ".allow.delete.access";
+    public static final String MAX_CONTENT_LENGTH = ".max.content.length";
+    public static final String MAX_INFLATED_LENGTH = ".max.inflated.length";
+    public static final String COMPRESSED_PASSTHROUGH = ".compressed.passthrough";
+    public static final String JSON_VALIDATION = ".json.validation";
+    public static final String JSON_MAX_DEPTH = ".json.max.depth";
+    public static final String JSON_MAX_TOKENS = ".json.max.tokens";
+    public static final String RATE_LIMIT = ".rate.limit";
+    public static final String RATE_BURST = ".rate.burst";
+    public static final String CLIENT_RATE_LIMIT = ".rate.limit.per.client";
+    public static final String CLIENT_RATE_BURST = ".rate.burst.per.client";
+    public static final String ACK_MODE = ".ack.mode";
+    public static final String MULTI_DELETE = ".multi.delete";
+
+    private final String name;
+    private final boolean idValidation;
+    private final boolean allowDeleteAccess;
+    private final int maxContentLength;
+    private final int maxInflatedLength;
+    private final boolean compressedPassthrough;
+    private final boolean jsonValidation;
+    private final int jsonMaxDepth;
+    private final int jsonMaxTokens;
+    private final double rateLimit;
+    private final int rateBurst;
+    private final double clientRateLimit;
+    private final int clientRateBurst;
+    private final AckMode ackMode;
+    private final boolean multiDelete;
+
+    /**
+     * A policy with all the defaults.
+     */
+    public NamespacePolicy(String name) {
+        this(name, true, false, -1, -1, false, false, 0, 0, 0, 1, 0, 1, AckMode.QUEUED, false);
+    }
+
+    public NamespacePolicy(String name, boolean idValidation, boolean allowDeleteAccess,
+                           int maxContentLength, int maxInflatedLength, boolean compressedPassthrough,
+                           boolean jsonValidation, int jsonMaxDepth, int jsonMaxTokens, double rateLimit, int rateBurst, double clientRateLimit, int clientRateBurst,
+                           AckMode ackMode, boolean multiDelete) {
+        this.name = name;
+        this.idValidation = idValidation;
+        this.allowDeleteAccess = allowDeleteAccess;
+        this.maxContentLength = maxContentLength;
+        this.maxInflatedLength = maxInflatedLength;
+        this.compressedPassthrough = compressedPassthrough;
+        this.jsonValidation = jsonValidation;
+        this.jsonMaxDepth = jsonMaxDepth;
+        this.jsonMaxTokens = jsonMaxTokens;
+        this.rateLimit = rateLimit;
+        this.rateBurst = rateBurst;
+        this.clientRateLimit = clientRateLimit;
+        this.clientRateBurst = clientRateBurst;
+        this.ackMode = ackMode;
+        this.multiDelete = multiDelete;
+    }
+
+    /**
+     * @return the configured namespace name, possibly with a wildcard
+     */
+    public String getName() {
+        return name;
+    }
+
+    public boolean isIdValidation() {
+        return idValidation;
+    }
+
+    public boolean isAllowDeleteAccess() {
+        return allowDeleteAccess;
+    }
+
+    /**
+     * @return the largest body accepted for the namespace, or -1 for no limit of its own
+     */
+    public int getMaxContentLength() {
+        return maxContentLength;
+    }
+
+    /**
+     * @return the largest body accepted for the namespace once it has been
+     *         decompressed, or -1 for no limit
+     */
+    public int getMaxInflatedLength() {
+        return maxInflatedLength;
+    }
+
+    /**
+     * @return whether compressed documents are stored as they were sent, to
+     *         be inflated by the consumers
+     */
+    public boolean isCompressedPassthrough() {
+        return compressedPassthrough;
+    }
+
+    /**
+     * @return whether documents are checked to be JSON before they are produced
+     */
+    public boolean isJsonValidation() {
+        return jsonValidation;
+    }
+
+    /**
+     * @return the deepest nesting of objects and arrays allowed in a document, 0 for no limit
+     */
+    public int getJsonMaxDepth() {
+        return jsonMaxDepth;
+    }
+
+    /**
+     * @return the most JSON tokens allowed in a document, 0 for no limit
+     */
+    public int getJsonMaxTokens() {
+        return jsonMaxTokens;
+    }
+
+    /**
+     * @return requests per second for the whole namespace, 0 for no limit
+     */
+    public double getRateLimit() {
+        return rateLimit;
+    }
+
+    public int getRateBurst() {
+        return rateBurst;
+    }
+
+    /**
+     * @return requests per second for each client, 0 for no limit
+     */
+    public double getClientRateLimit() {
+        return clientRateLimit;
+    }
+
+    public int getClientRateBurst() {
+        return clientRateBurst;
+    }
+
+    public AckMode getAckMode() {
+        return ackMode;
+    }
+
+    /**
+     * @return whether the ids in X-Obsolete-Document go out in one DELETE
+     *         message with a delete_id list, rather than one DELETE per id.
+     *         Only consumers that read delete_id can be fed such messages.
+     */
+    public boolean isMultiDelete() {
+        return multiDelete;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.validation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+import com.mozilla.bagheera.util.WildcardProperties;
+
+/**
+ * Holds the current NamespacePolicies. Readers always see a complete
+ * snapshot, and a new one can be swapped in at any time, for instance when
+ * the properties file changes on disk.
+ */
+public class NamespacePolicyStore implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(NamespacePolicyStore.class);
+
+    public static final String RELOAD_INTERVAL_MS = "policy.reload.interval.ms";
+
+    private final AtomicReference<NamespacePolicies> current;
+    private Thread reloader;
+
+    public NamespacePolicyStore(NamespacePolicies policies) {
+        this.current = new AtomicReference<NamespacePolicies>(policies);
+    }
+
+    public NamespacePolicies get() {
+        return current.get();
+    }
+
+    public void set(NamespacePolicies policies) {
+        current.set(policies);
+    }
+
+    /**
+     * @return the namespace's current policy, or null if it isn't a valid namespace
+     */
+    public NamespacePolicy getPolicy(String namespace) {
+        return current.get().getPolicy(namespace);
+    }
+
+    /**
+     * Reads the properties file and swaps its policies in.
+     */
+    public void reload(File file) throws IOException {
+        WildcardProperties props = new WildcardProperties();
+        InputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        String validNsStr = props.getProperty(NamespacePolicies.VALID_NAMESPACES);
+        if (validNsStr == null || validNsStr.trim().length() == 0) {
+            throw new IllegalArgumentException("No valid.namespaces in " + file);
+        }
+        set(new NamespacePolicies(props, current.get().getDefaultMaxContentLength()));
+    }
+
+    /**
+     * Starts a thread that reloads the file whenever it has been modified. A
+     * file that can't be read or parsed is logged and the old policies stay.
+     */
+    public synchronized void startReloading(final File file, final long intervalMillis) {
+        if (reloader != null) {
+            throw new IllegalStateException("Already reloading");
+        }
+        final long startModified = file.lastModified();
+        reloader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long lastModified = startModified;
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        Thread.sleep(intervalMillis);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    long modified = file.lastModified();
+                    if (modified == lastModified) {
+                        continue;
+                    }
+                    lastModified = modified;
+                    try {
+                        reload(file);
+                        LOG.info("Reloaded namespace policies from " + file);
+                    } catch (Exception e) {
+                        LOG.error("Error reloading namespace policies from " + file + ", keeping the old ones", e);
+                    }
+                }
+            }
+        }, "policy-reloader");
+        reloader.setDaemon(true);
+        reloader.start();
+    }
+
+    /**
+     * Stops reloading.
+     */
+    @Override
+    public synchronized void close() {
+        if (reloader != null) {
+            reloader.interrupt();
+            reloader = null;
+        }
+    }
+}
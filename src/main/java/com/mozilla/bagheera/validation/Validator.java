@@ -20,44 +20,52 @@
 package com.mozilla.bagheera.validation;
 
 import java.io.IOException;
-import java.util.UUID;
-import java.util.regex.Pattern;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
 
 import org.apache.log4j.Logger;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.mozilla.bagheera.util.UuidUtil;
 
 public class Validator {
 
     private static final Logger LOG = Logger.getLogger(Validator.class);
     
-    private final Pattern validNamespacePattern;
+    private final NamespacePolicyStore policies;
     private final JsonFactory jsonFactory;
     
     public Validator(final String[] validNamespaces) {
         if (validNamespaces == null || validNamespaces.length == 0) {
             throw new IllegalArgumentException("No valid namespace was specified");
         }
-        StringBuilder nsPatternBuilder = new StringBuilder("(");
-        int i=0, size=validNamespaces.length;
-        for (String name : validNamespaces) {
-            nsPatternBuilder.append(name.replaceAll("\\*", ".+"));
-            if ((i+1) < size) {
-                nsPatternBuilder.append("|");
-            }
-            i++;
-        }
-        nsPatternBuilder.append(")");
-        LOG.info("Namespace pattern: " + nsPatternBuilder.toString());
-        validNamespacePattern = Pattern.compile(nsPatternBuilder.toString());
-        
+        LOG.info("Valid namespaces: " + Arrays.toString(validNamespaces));
+        policies = new NamespacePolicyStore(new NamespacePolicies(validNamespaces, new Properties(), -1));
+        jsonFactory = new JsonFactory();
+    }
+    
+    /**
+     * Validates namespaces against the current policies of the store, so
+     * changes to the valid namespaces take effect straight away.
+     */
+    public Validator(NamespacePolicyStore policies) {
+        this.policies = policies;
         jsonFactory = new JsonFactory();
     }
     
+    /**
+     * @return the policy of the namespace, or null if it isn't valid
+     */
+    public NamespacePolicy getNamespacePolicy(String ns) {
+        return policies.getPolicy(ns);
+    }
+
     public boolean isValidNamespace(String ns) {
-        return validNamespacePattern.matcher(ns).find();
+        return getNamespacePolicy(ns) != null;
     }
 
     public boolean isValidJson(String json) {
@@ -85,16 +93,79 @@ public class Validator {
         
         return isValid;
     }
-    
-    public boolean isValidId(String id) {
+
+    /**
+     * Validates JSON straight from its UTF-8 bytes, without decoding it into
+     * a String first.
+     *
+     * @param maxDepth the deepest nesting of objects and arrays allowed, 0 for no limit
+     * @param maxTokens the most tokens (values, field names, object and array
+     *        starts and ends) allowed, 0 for no limit
+     */
+    public boolean isValidJson(byte[] data, int offset, int length, int maxDepth, int maxTokens) {
+        try {
+            return isValidJson(jsonFactory.createJsonParser(data, offset, length), maxDepth, maxTokens);
+        } catch (IOException e) {
+            LOG.error("JSON IO error");
+            return false;
+        }
+    }
+
+    /**
+     * Validates JSON streamed from its UTF-8 bytes.
+     *
+     * @see #isValidJson(byte[], int, int, int, int)
+     */
+    public boolean isValidJson(InputStream in, int maxDepth, int maxTokens) {
+        try {
+            return isValidJson(jsonFactory.createJsonParser(in), maxDepth, maxTokens);
+        } catch (IOException e) {
+            LOG.error("JSON IO error");
+            return false;
+        }
+    }
+
+    private boolean isValidJson(JsonParser parser, int maxDepth, int maxTokens) {
         boolean isValid = false;
         try {
-            UUID.fromString(id);
+            int depth = 0;
+            int tokens = 0;
+            JsonToken token;
+            // Values are skipped over rather than decoded since nothing asks for them
+            while ((token = parser.nextToken()) != null) {
+                if (maxTokens > 0 && ++tokens > maxTokens) {
+                    LOG.debug("JSON has more than " + maxTokens + " tokens");
+                    return false;
+                }
+                if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                    if (maxDepth > 0 && ++depth > maxDepth) {
+                        LOG.debug("JSON is nested deeper than " + maxDepth);
+                        return false;
+                    }
+                } else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                    depth--;
+                }
+            }
             isValid = true;
-        } catch (IllegalArgumentException e) {
-            LOG.error("Invalid ID: " + id);
+        } catch (JsonParseException ex) {
+            LOG.debug("JSON parse error: " + ex.getMessage());
+        } catch (IOException e) {
+            LOG.error("JSON IO error");
+        } finally {
+            try {
+                parser.close();
+            } catch (IOException e) {
+                LOG.error("Error closing JSON parser", e);
+            }
+        }
+        return isValid;
+    }
+    
+    public boolean isValidId(String id) {
+        boolean isValid = UuidUtil.isValidUuid(id);
+        if (!isValid && LOG.isDebugEnabled()) {
+            LOG.debug("Invalid ID: " + id);
         }
-        
         return isValid;
     }
 }
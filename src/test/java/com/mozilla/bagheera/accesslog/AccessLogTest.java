@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.accesslog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mozilla.bagheera.util.ClientAddress;
+import com.mozilla.bagheera.util.IpAddressParser;
+
+public class AccessLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ClientAddress address(String host) {
+        return new ClientAddress(host, IpAddressParser.parse(host));
+    }
+
+    private static List<AccessLogRecord> readAll(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        // Names sort in the order the files were written
+        Arrays.sort(files);
+        List<AccessLogRecord> records = new ArrayList<AccessLogRecord>();
+        for (File file : files) {
+            AccessLogReader reader = new AccessLogReader(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                AccessLogRecord record = new AccessLogRecord();
+                while (reader.next(record)) {
+                    records.add(record);
+                    record = new AccessLogRecord();
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return records;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File dir = folder.newFolder("accesslog");
+        AccessLog accessLog = new AccessLog(dir, 16, 256, 1 << 20);
+        long before = System.currentTimeMillis();
+        assertTrue(accessLog.log(AccessLogRecord.PUT, address("10.1.2.3"), "telemetry", "id1"));
+        assertTrue(accessLog.log(AccessLogRecord.PUT_BATCH, address("2001:db8::1"), "metrics", "id\u00e9\u4e2d"));
+        assertTrue(accessLog.log(AccessLogRecord.DELETE, null, "metrics", "id3"));
+        accessLog.close();
+        assertFalse(accessLog.log(AccessLogRecord.PUT, null, "telemetry", "late"));
+        assertEquals(0, accessLog.getDroppedCount());
+
+        List<AccessLogRecord> records = readAll(dir);
+        assertEquals(3, records.size());
+
+        AccessLogRecord record = records.get(0);
+        assertTrue(record.getTimestamp() >= before);
+        assertEquals(AccessLogRecord.PUT, record.getOperation());
+        assertEquals("telemetry", record.getNamespace());
+        assertEquals("id1", record.getId());
+        assertFalse(record.isTruncated());
+        assertEquals("IP 10.1.2.3 telemetry HTTP_PUT id1", record.toString());
+
+        record = records.get(1);
+        assertEquals(AccessLogRecord.PUT_BATCH, record.getOperation());
+        assertEquals(16, record.getAddress().length);
+        assertEquals("id\u00e9\u4e2d", record.getId());
+
+        record = records.get(2);
+        assertNull(record.getAddress());
+        assertEquals("IP - metrics HTTP_DELETE id3", record.toString());
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        File dir = folder.newFolder("accesslog");
+        AccessLog accessLog = new AccessLog(dir, 16, AccessLogRecord.MIN_SLOT_SIZE + 8, 1 << 20);
+        accessLog.log(AccessLogRecord.PUT, address("2001:db8::1"), "telemetry", UUID.randomUUID().toString());
+        // A multi-byte character is never split
+        accessLog.log(AccessLogRecord.PUT, address("2001:db8::1"), "ns", "abcde\u4e2d");
+        accessLog.close();
+
+        List<AccessLogRecord> records = readAll(dir);
+        assertTrue(records.get(0).isTruncated());
+        assertEquals("telemetr", records.get(0).getNamespace());
+        assertEquals("", records.get(0).getId());
+        assertTrue(records.get(1).isTruncated());
+        assertEquals("abcde", records.get(1).getId());
+    }
+
+    @Test
+    public void testRolling() throws IOException {
+        File dir = folder.newFolder("accesslog");
+        AccessLog accessLog = new AccessLog(dir, 1024, 256, 1024);
+        int numRecords = 200;
+        for (int i = 0; i < numRecords; i++) {
+            while (!accessLog.log(AccessLogRecord.PUT, address("10.1.2.3"), "telemetry", String.valueOf(i))) {
+                Thread.yield();
+            }
+            if (i % 20 == 0) {
+                // Let the writer catch up so the batches are small enough to roll on
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        accessLog.close();
+
+        File[] files = dir.listFiles();
+        assertTrue(files.length > 1);
+        List<AccessLogRecord> records = readAll(dir);
+        assertEquals(numRecords, records.size());
+        for (int i = 0; i < numRecords; i++) {
+            assertEquals(String.valueOf(i), records.get(i).getId());
+        }
+    }
+
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void testLogPerformance() throws IOException {
+        // Compares with building the log4j line that used to be logged for each request
+        File dir = folder.newFolder("accesslog");
+        AccessLog accessLog = new AccessLog(dir, 65536, 256, 1L << 30);
+        ClientAddress clientAddress = address("10.1.2.3");
+        String id = UUID.randomUUID().toString();
+        int numIterations = 1000000;
+
+        long start = System.nanoTime();
+        int length = 0;
+        for (int i = 0; i < numIterations; i++) {
+            length += ("IP " + clientAddress.getHost() + " telemetry HTTP_PUT " + id).length();
+        }
+        long concatDuration = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int logged = 0;
+        for (int i = 0; i < numIterations; i++) {
+            if (accessLog.log(AccessLogRecord.PUT, clientAddress, "telemetry", id)) {
+                logged++;
+            }
+        }
+        long duration = System.nanoTime() - start;
+        accessLog.close();
+
+        assertTrue(length > 0);
+        assertEquals(numIterations, logged + accessLog.getDroppedCount());
+        double nanosPerRecord = (double)duration / numIterations;
+        // Generous, it takes well under a microsecond
+        assertTrue(nanosPerRecord < 20000);
+        System.out.println(String.format("Access log: %.1f ns/record (%d dropped), string concatenation: %.1f ns/line",
+                                         nanosPerRecord, accessLog.getDroppedCount(),
+                                         (double)concatDuration / numIterations));
+    }
+}
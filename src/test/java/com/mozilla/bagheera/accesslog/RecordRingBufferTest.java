@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.accesslog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class RecordRingBufferTest {
+
+    private static void put(RecordRingBuffer ring, long position, String id) {
+        AccessLogRecord.encode(ring.getSlots(), ring.getOffset(position), ring.getSlotSize(),
+                               position, AccessLogRecord.PUT, null, "ns", id);
+        ring.publish(position);
+    }
+
+    private static AccessLogRecord read(ByteBuffer buf) throws Exception {
+        AccessLogRecord record = new AccessLogRecord();
+        record.decode(buf.array(), buf.position());
+        buf.position(buf.position() + AccessLogRecord.getLength(buf.array(), buf.position()));
+        return record;
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testCapacityPowerOfTwo() {
+        new RecordRingBuffer(100, 64);
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        RecordRingBuffer ring = new RecordRingBuffer(4, 64);
+        for (int i = 0; i < 4; i++) {
+            long position = ring.claim();
+            assertEquals(i, position);
+            put(ring, position, "id" + i);
+        }
+        assertEquals(-1, ring.claim());
+
+        ByteBuffer out = ByteBuffer.allocate(1024);
+        assertEquals(4, ring.drainTo(out));
+        out.flip();
+        for (int i = 0; i < 4; i++) {
+            assertEquals("id" + i, read(out).getId());
+        }
+
+        // Slots are free again after they have been read
+        long position = ring.claim();
+        assertEquals(4, position);
+        put(ring, position, "id4");
+        out.clear();
+        assertEquals(1, ring.drainTo(out));
+        out.flip();
+        assertEquals("id4", read(out).getId());
+    }
+
+    @Test
+    public void testUnpublishedHoldsBackReader() throws Exception {
+        RecordRingBuffer ring = new RecordRingBuffer(4, 64);
+        long first = ring.claim();
+        long second = ring.claim();
+        put(ring, second, "second");
+
+        ByteBuffer out = ByteBuffer.allocate(1024);
+        assertEquals(0, ring.drainTo(out));
+        put(ring, first, "first");
+        assertEquals(2, ring.drainTo(out));
+        out.flip();
+        assertEquals("first", read(out).getId());
+        assertEquals("second", read(out).getId());
+    }
+
+    @Test
+    public void testDrainStopsWhenOutIsFull() throws Exception {
+        RecordRingBuffer ring = new RecordRingBuffer(4, 64);
+        put(ring, ring.claim(), "a");
+        put(ring, ring.claim(), "b");
+        // Room for one 20 byte record, not two
+        ByteBuffer out = ByteBuffer.allocate(30);
+        assertEquals(1, ring.drainTo(out));
+        out.clear();
+        assertEquals(1, ring.drainTo(out));
+        out.flip();
+        assertEquals("b", read(out).getId());
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final RecordRingBuffer ring = new RecordRingBuffer(1024, 64);
+        final int numThreads = 4;
+        final int perThread = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final String id = String.valueOf(t);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        long position;
+                        while ((position = ring.claim()) < 0) {
+                            Thread.yield();
+                        }
+                        put(ring, position, id);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+
+        int[] counts = new int[numThreads];
+        int total = 0;
+        ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+        while (total < numThreads * perThread) {
+            out.clear();
+            int n = ring.drainTo(out);
+            out.flip();
+            for (int i = 0; i < n; i++) {
+                counts[Integer.parseInt(read(out).getId())]++;
+            }
+            total += n;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int count : counts) {
+            assertEquals(perThread, count);
+        }
+        out.clear();
+        assertEquals(0, ring.drainTo(out));
+        assertTrue(ring.claim() >= 0);
+    }
+}
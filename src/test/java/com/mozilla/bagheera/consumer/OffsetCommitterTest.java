@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class OffsetCommitterTest {
+
+    /**
+     * Fetches and hands over a message at a time, pausing whenever a
+     * checkpoint is requested.
+     */
+    private static class Fetcher extends Thread {
+        final OffsetCommitter committer;
+        final AtomicInteger fetched;
+        final AtomicInteger stored;
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+
+        Fetcher(OffsetCommitter committer, AtomicInteger fetched, AtomicInteger stored) {
+            this.committer = committer;
+            this.fetched = fetched;
+            this.stored = stored;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    if (committer.isRequested()) {
+                        committer.pause();
+                    } else {
+                        fetched.incrementAndGet();
+                        stored.incrementAndGet();
+                    }
+                }
+            } catch (Exception e) {
+                error.set(e);
+            } finally {
+                committer.deregister();
+            }
+        }
+    }
+
+    @Test
+    public void testCheckpointWhilePaused() throws Exception {
+        final AtomicInteger fetched = new AtomicInteger();
+        final AtomicInteger stored = new AtomicInteger();
+        final AtomicInteger commits = new AtomicInteger();
+        final AtomicInteger notPaused = new AtomicInteger();
+        OffsetCommitter committer = new OffsetCommitter("test", 0, new OffsetCommitter.Checkpoint() {
+            @Override
+            public void run() throws InterruptedException {
+                int before = fetched.get();
+                Thread.sleep(5);
+                if (fetched.get() != before || stored.get() != before) {
+                    notPaused.incrementAndGet();
+                }
+                commits.incrementAndGet();
+            }
+        });
+        Fetcher[] fetchers = new Fetcher[3];
+        for (int i = 0; i < fetchers.length; i++) {
+            committer.register();
+            fetchers[i] = new Fetcher(committer, fetched, stored);
+        }
+        for (Fetcher fetcher : fetchers) {
+            fetcher.start();
+        }
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(committer.checkpoint(0));
+        }
+        assertEquals(20, commits.get());
+        assertEquals(0, notPaused.get());
+        // The fetchers go on after each checkpoint
+        int before = fetched.get();
+        Thread.sleep(20);
+        assertTrue(fetched.get() > before);
+
+        // The last checkpoint leaves them paused
+        committer.close(1000);
+        assertEquals(21, commits.get());
+        before = fetched.get();
+        Thread.sleep(20);
+        assertEquals(before, fetched.get());
+        assertFalse(committer.checkpoint(0));
+
+        for (Fetcher fetcher : fetchers) {
+            fetcher.interrupt();
+            fetcher.join(1000);
+            assertTrue(fetcher.error.get() instanceof InterruptedException);
+        }
+    }
+
+    @Test
+    public void testFailedCheckpoint() throws Exception {
+        OffsetCommitter committer = new OffsetCommitter("test", 0, new OffsetCommitter.Checkpoint() {
+            @Override
+            public void run() throws IOException {
+                throw new IOException("flush failed");
+            }
+        });
+        committer.register();
+        Fetcher fetcher = new Fetcher(committer, new AtomicInteger(), new AtomicInteger());
+        fetcher.start();
+        try {
+            committer.checkpoint(0);
+            fail("Checkpoint should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+        // The paused fetcher is told, and nothing is committed anymore
+        fetcher.join(1000);
+        assertTrue(fetcher.error.get() instanceof IOException);
+        try {
+            committer.checkpoint(0);
+            fail("Nothing should be committed after a failed checkpoint");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testStoppedFetcher() throws Exception {
+        final AtomicInteger commits = new AtomicInteger();
+        OffsetCommitter committer = new OffsetCommitter("test", 0, new OffsetCommitter.Checkpoint() {
+            @Override
+            public void run() {
+                commits.incrementAndGet();
+            }
+        });
+        committer.register();
+        committer.register();
+        // One fetcher never pauses
+        assertFalse(committer.checkpoint(50));
+        // and when it stops it may have left messages behind
+        committer.deregister();
+        try {
+            committer.checkpoint(50);
+            fail("Nothing should be committed after a fetch thread stopped");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, commits.get());
+    }
+}
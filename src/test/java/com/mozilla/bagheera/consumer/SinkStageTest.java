@@ -0,0 +1,179 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+import com.mozilla.bagheera.serializer.DecodedMessage;
+import com.mozilla.bagheera.sink.KeyValueSink;
+
+public class SinkStageTest {
+
+    @Test
+    public void testOrderPerId() throws Exception {
+        final int numIds = 20;
+        final int perId = 500;
+        // The last sequence number stored for each id, and which thread stored it
+        final Map<String, Long> lastSequence = new ConcurrentHashMap<String, Long>();
+        final Map<String, Thread> storedBy = new ConcurrentHashMap<String, Thread>();
+        final AtomicInteger stored = new AtomicInteger();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final AtomicInteger flushed = new AtomicInteger();
+        final SinkStage.Handler handler = new SinkStage.Handler() {
+            @Override
+            public void handle(DecodedMessage msg, KeyValueSink sink) throws IOException {
+                BagheeraMessage bmsg = msg.getEnvelope();
+                Long last = lastSequence.get(bmsg.getId());
+                if (last != null && last >= bmsg.getTimestamp()) {
+                    outOfOrder.incrementAndGet();
+                }
+                Thread previous = storedBy.put(bmsg.getId(), Thread.currentThread());
+                if (previous != null && previous != Thread.currentThread()) {
+                    outOfOrder.incrementAndGet();
+                }
+                lastSequence.put(bmsg.getId(), bmsg.getTimestamp());
+                stored.incrementAndGet();
+            }
+
+            @Override
+            public void flush() {
+                flushed.incrementAndGet();
+            }
+        };
+        final SinkStage stage = new SinkStage("test", 4, 8, new SinkStage.HandlerFactory() {
+            @Override
+            public SinkStage.Handler newHandler() {
+                return handler;
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(stage.getThreadCount());
+        Future<?>[] workers = new Future<?>[stage.getThreadCount()];
+        int i = 0;
+        for (Callable<Void> worker : stage.getWorkers()) {
+            workers[i++] = executor.submit(worker);
+        }
+
+        // Two fetch threads, each with its own ids
+        Thread[] fetchers = new Thread[2];
+        for (int f = 0; f < fetchers.length; f++) {
+            final int fetcher = f;
+            fetchers[f] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (long seq = 0; seq < perId; seq++) {
+                            for (int id = fetcher; id < numIds; id += 2) {
+                                BagheeraMessage envelope = BagheeraMessage.newBuilder().setNamespace("test").setId("id" + id)
+                                                               .setTimestamp(seq).build();
+                                stage.put(new DecodedMessage(envelope, null, 0, 0), null);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // test fails on the counts
+                    }
+                }
+            };
+            fetchers[f].start();
+        }
+        for (Thread fetcher : fetchers) {
+            fetcher.join();
+        }
+
+        // Workers store what is still waiting when they are stopped
+        for (Future<?> worker : workers) {
+            worker.cancel(true);
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(numIds * perId, stored.get());
+        assertEquals(0, outOfOrder.get());
+        assertEquals(0, stage.getQueuedCount());
+        // Every worker flushes at least once it is stopped
+        assertTrue(flushed.get() >= stage.getThreadCount());
+        for (int id = 0; id < numIds; id++) {
+            assertEquals(Long.valueOf(perId - 1), lastSequence.get("id" + id));
+        }
+    }
+
+    @Test
+    public void testFlush() throws Exception {
+        final AtomicInteger handled = new AtomicInteger();
+        final AtomicInteger stored = new AtomicInteger();
+        final SinkStage stage = new SinkStage("test", 2, 4, new SinkStage.HandlerFactory() {
+            @Override
+            public SinkStage.Handler newHandler() {
+                return new SinkStage.Handler() {
+                    int held;
+
+                    @Override
+                    public void handle(DecodedMessage msg, KeyValueSink sink) {
+                        handled.incrementAndGet();
+                        held++;
+                    }
+
+                    @Override
+                    public void flush() {
+                        stored.addAndGet(held);
+                        held = 0;
+                    }
+                };
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(stage.getThreadCount());
+        for (Callable<Void> worker : stage.getWorkers()) {
+            executor.submit(worker);
+        }
+        for (int id = 0; id < 100; id++) {
+            stage.put(new DecodedMessage(BagheeraMessage.newBuilder().setId("id" + id).build(), null, 0, 0), null);
+        }
+        // Everything put before is handled and flushed once it returns
+        stage.flush();
+        assertEquals(100, handled.get());
+        assertEquals(100, stored.get());
+        executor.shutdownNow();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        // Nothing can be flushed once the workers have stopped
+        try {
+            stage.put(new DecodedMessage(BagheeraMessage.newBuilder().setId("id").build(), null, 0, 0), null);
+            stage.flush();
+            fail("Flush should fail without workers");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -34,18 +34,24 @@ import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.util.UUID;
 
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.DefaultChannelFuture;
 import org.jboss.netty.channel.FakeChannelHandlerContext;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.jboss.netty.handler.execution.ExecutionHandler;
 import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.Mockito;
 
 import com.mozilla.bagheera.util.WildcardProperties;
 import com.mozilla.bagheera.validation.Validator;
@@ -54,12 +60,13 @@ public class AccessFilterTest {
 
     private ChannelHandlerContext ctx;
     private InetSocketAddress remoteAddr;
+    private WildcardProperties props;
     private AccessFilter filter;
 
     @Before
     public void setup() throws IOException {
         String[] namespaces = new String[] { "foo_*", "bar" };
-        WildcardProperties props = new WildcardProperties();
+        props = new WildcardProperties();
         String propsFileStr = "foo_*.allow.delete.access=false\n" +
         		              "foo_*.id.validation=true\n" +
         		              "bar.allow.delete.access=true\n" +
@@ -145,4 +152,45 @@ public class AccessFilterTest {
         }
         assertTrue(success);
     }
+
+    @Test
+    public void testDeclaredLengthTooLarge() throws Exception {
+        AccessFilter lengthFilter = new AccessFilter(new Validator(new String[] { "bar" }), props, 10);
+        BagheeraHttpRequest request = new BagheeraHttpRequest(HTTP_1_1, POST, "/submit/bar/" + UUID.randomUUID().toString());
+        request.setHeader(HttpHeaders.Names.CONTENT_LENGTH, "11");
+        Channel channel = Mockito.mock(Channel.class);
+        Mockito.when(channel.getRemoteAddress()).thenReturn(remoteAddr);
+        boolean success = false;
+        try {
+            lengthFilter.messageReceived(ctx, new UpstreamMessageEvent(channel, request, remoteAddr));
+        } catch (TooLongFrameException e) {
+            success = true;
+        }
+        assertTrue(success);
+    }
+
+    @Test
+    public void testRejectedBodyDiscarded() throws Exception {
+        Channel channel = Mockito.mock(Channel.class);
+        Mockito.when(channel.getRemoteAddress()).thenReturn(remoteAddr);
+        ChannelHandlerContext mockCtx = Mockito.mock(ChannelHandlerContext.class);
+        BagheeraHttpRequest request = new BagheeraHttpRequest(HTTP_1_1, POST, "/submit/bad");
+        request.setChunked(true);
+        boolean success = false;
+        try {
+            filter.messageReceived(mockCtx, new UpstreamMessageEvent(channel, request, remoteAddr));
+        } catch (InvalidPathException e) {
+            success = true;
+        }
+        assertTrue(success);
+
+        // The body of the rejected request never makes it upstream
+        filter.messageReceived(mockCtx, new UpstreamMessageEvent(channel, new DefaultHttpChunk(ChannelBuffers.wrappedBuffer(new byte[] { 1 })), remoteAddr));
+        filter.messageReceived(mockCtx, new UpstreamMessageEvent(channel, HttpChunk.LAST_CHUNK, remoteAddr));
+        Mockito.verify(mockCtx, Mockito.never()).sendUpstream(Mockito.any(UpstreamMessageEvent.class));
+
+        // But anything after it does
+        filter.messageReceived(mockCtx, new UpstreamMessageEvent(channel, HttpChunk.LAST_CHUNK, remoteAddr));
+        Mockito.verify(mockCtx).sendUpstream(Mockito.any(UpstreamMessageEvent.class));
+    }
 }
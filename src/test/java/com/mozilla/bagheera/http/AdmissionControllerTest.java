@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.mozilla.bagheera.producer.QueueingProducer;
+import com.mozilla.bagheera.validation.NamespacePolicies;
+import com.mozilla.bagheera.validation.NamespacePolicyStore;
+
+public class AdmissionControllerTest {
+
+    @Test
+    public void testInFlightBytes() {
+        AdmissionController controller = new AdmissionController(100, 0, 0, 5, null);
+        assertTrue(controller.tryAcquire(60));
+        assertTrue(controller.tryAcquire(40));
+        assertFalse(controller.tryAcquire(1));
+        controller.release(40);
+        assertTrue(controller.tryAcquire(10));
+        assertEquals(70, controller.getInFlightBytes());
+        controller.release(70);
+
+        // A single oversized request is still let in when nothing else is in flight
+        assertTrue(controller.tryAcquire(500));
+        assertFalse(controller.tryAcquire(1));
+        controller.release(500);
+        assertEquals(0, controller.getInFlightBytes());
+    }
+
+    @Test
+    public void testQueueDepth() {
+        QueueingProducer producer = Mockito.mock(QueueingProducer.class);
+        AdmissionController controller = new AdmissionController(0, 1000, 0, 5, producer);
+        Mockito.when(producer.getQueueDepth()).thenReturn(999L);
+        assertTrue(controller.tryAcquire(1));
+        Mockito.when(producer.getQueueDepth()).thenReturn(1000L);
+        assertTrue(controller.isOverloaded());
+        assertFalse(controller.tryAcquire(1));
+    }
+
+    @Test
+    public void testLatency() throws InterruptedException {
+        AdmissionController controller = new AdmissionController(0, 0, 100, 5, null);
+        controller.recordLatency(10);
+        assertFalse(controller.isOverloaded());
+        for (int i = 0; i < 50; i++) {
+            controller.recordLatency(500);
+        }
+        assertTrue(controller.getLatencyMillis() >= 100);
+        assertFalse(controller.tryAcquire(1));
+
+        // Old samples stop counting, so requests get through again to take new ones
+        Thread.sleep(1100);
+        assertEquals(0, controller.getLatencyMillis());
+        assertTrue(controller.tryAcquire(1));
+    }
+
+    private BagheeraHttpRequest admit(AdmissionFilter filter, int contentLength) throws Exception {
+        BagheeraHttpRequest request = new BagheeraHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/submit/test/id");
+        HttpHeaders.setContentLength(request, contentLength);
+        MessageEvent event = Mockito.mock(MessageEvent.class);
+        Mockito.when(event.getMessage()).thenReturn(request);
+        filter.messageReceived(Mockito.mock(ChannelHandlerContext.class), event);
+        return request;
+    }
+
+    @Test
+    public void testFilterReleasesOnlyAdmittedRequests() throws Exception {
+        AdmissionController controller = new AdmissionController(0, 0, 0, 5, null);
+        AdmissionFilter filter = new AdmissionFilter(controller, null, null, 1000);
+        BagheeraHttpRequest first = admit(filter, 40);
+        BagheeraHttpRequest second = admit(filter, 60);
+        assertEquals(100, controller.getInFlightBytes());
+
+        // Something that wasn't admitted here, like GET /, carries nothing to release
+        MessageEvent root = Mockito.mock(MessageEvent.class);
+        Mockito.when(root.getMessage()).thenReturn(RootResponse.ROOT_REQUEST);
+        filter.messageReceived(Mockito.mock(ChannelHandlerContext.class), root);
+        assertEquals(100, controller.getInFlightBytes());
+
+        // Each admission is released once, by its own response
+        second.getAdmission().release();
+        second.getAdmission().release();
+        assertEquals(40, controller.getInFlightBytes());
+
+        // The rest is released when the connection closes
+        filter.channelClosed(Mockito.mock(ChannelHandlerContext.class), Mockito.mock(ChannelStateEvent.class));
+        assertEquals(0, controller.getInFlightBytes());
+        assertTrue(first.getAdmission().isReleased());
+        assertNull(new BagheeraHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/").getAdmission());
+    }
+
+    @Test
+    public void testFilterChargesChunkedRequestsByNamespaceLimit() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("valid.namespaces", "test,other");
+        props.setProperty("test.max.content.length", "200");
+        NamespacePolicyStore policies = new NamespacePolicyStore(new NamespacePolicies(props, 1000));
+        AdmissionController controller = new AdmissionController(0, 0, 0, 5, null);
+        AdmissionFilter filter = new AdmissionFilter(controller, null, null, policies, 1000);
+
+        BagheeraHttpRequest request = new BagheeraHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/submit/test/id");
+        request.setChunked(true);
+        MessageEvent event = Mockito.mock(MessageEvent.class);
+        Mockito.when(event.getMessage()).thenReturn(request);
+        filter.messageReceived(Mockito.mock(ChannelHandlerContext.class), event);
+        assertEquals(200, controller.getInFlightBytes());
+
+        // Namespaces without a limit of their own are charged the global one
+        request = new BagheeraHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/submit/other/id");
+        request.setChunked(true);
+        Mockito.when(event.getMessage()).thenReturn(request);
+        filter.messageReceived(Mockito.mock(ChannelHandlerContext.class), event);
+        assertEquals(1200, controller.getInFlightBytes());
+    }
+}
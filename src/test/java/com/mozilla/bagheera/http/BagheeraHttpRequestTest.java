@@ -29,6 +29,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
@@ -40,18 +41,27 @@ import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import scala.actors.threadpool.Arrays;
 
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
 import com.mozilla.bagheera.BagheeraProto.BagheeraMessage.Operation;
 import com.mozilla.bagheera.metrics.HttpMetric;
 import com.mozilla.bagheera.metrics.MetricsManager;
+import com.mozilla.bagheera.producer.AckMode;
 import com.mozilla.bagheera.producer.Producer;
+import com.mozilla.bagheera.producer.ProducerCallback;
+import com.mozilla.bagheera.serializer.EncodedMessage;
 import com.mozilla.bagheera.util.HttpUtil;
+import com.mozilla.bagheera.util.WildcardProperties;
+import com.mozilla.bagheera.validation.NamespacePolicy;
 import com.mozilla.bagheera.validation.Validator;
 
 
@@ -179,31 +189,50 @@ public class BagheeraHttpRequestTest {
         testMessage("multi-delete-id-list", true, 5, 1, "deadbeef", "livebeef, morebeef, potatoes", "oranges"); // 5 items
     }
 
+    @Test
+    public void testPostWithMultiDelete() throws Exception {
+        // With multi.delete all of the ids go out in one message
+        WildcardProperties props = new WildcardProperties();
+        props.setProperty("test" + NamespacePolicy.MULTI_DELETE, "true");
+        SubmissionHandler handler = new SubmissionHandler(validator, props, producer, channelGroup, manager);
+        testMessage(handler, "multi-delete-id-list", true, 5, 1, true, "deadbeef", "livebeef, morebeef, potatoes", "oranges");
+    }
+
     // Ensure that one invocation of the message results in the specified number of deletes and creates
     // and that two invocations results in double those numbers.
     private void testMessage(String id, boolean doDelete, int expectedDeletes, int expectedCreates, String... deletes) throws Exception {
         SubmissionHandler handler = new SubmissionHandler(validator, producer, channelGroup, manager);
+        testMessage(handler, id, doDelete, expectedDeletes, expectedCreates, false, deletes);
+    }
+
+    private void testMessage(SubmissionHandler handler, String id, boolean doDelete, int expectedDeletes, int expectedCreates,
+                             boolean multiDelete, String... deletes) throws Exception {
         ChannelHandlerContext context = Mockito.mock(ChannelHandlerContext.class);
         MessageEvent messageEvent = Mockito.mock(MessageEvent.class);
         Mockito.when(messageEvent.getChannel()).thenReturn(mockChannel);
         BagheeraHttpRequest mockMessage = getMockMessage(HttpMethod.POST, id, doDelete, deletes);
         Mockito.when(messageEvent.getMessage()).thenReturn(mockMessage);
 
-        testTwoInvocations(expectedDeletes, expectedCreates, handler, context,
+        testTwoInvocations(expectedDeletes, expectedCreates, multiDelete, handler, context,
                 messageEvent);
 
         producer.reset();
     }
 
-    private void testTwoInvocations(int expectedDeletes, int expectedCreates,
+    private void testTwoInvocations(int expectedDeletes, int expectedCreates, boolean multiDelete,
             SubmissionHandler handler, ChannelHandlerContext context,
             MessageEvent messageEvent) throws Exception {
+        // With multi.delete each request sends at most one delete message,
+        // otherwise one per id
+        int expectedDeleteMessages = multiDelete ? Math.min(1, expectedDeletes) : expectedDeletes;
         handler.messageReceived(context, messageEvent);
         assertEquals(expectedDeletes, producer.getDeleteCount());
+        assertEquals(expectedDeleteMessages, producer.getDeleteMessageCount());
         assertEquals(expectedCreates, producer.getCreateCount());
 
         handler.messageReceived(context, messageEvent);
         assertEquals(expectedDeletes * 2, producer.getDeleteCount());
+        assertEquals(expectedDeleteMessages * 2, producer.getDeleteMessageCount());
         assertEquals(expectedCreates * 2, producer.getCreateCount());
     }
 
@@ -217,11 +246,88 @@ public class BagheeraHttpRequestTest {
         BagheeraHttpRequest mockMessage = getMockMessage(HttpMethod.DELETE, "delete-id", false);
         Mockito.when(messageEvent.getMessage()).thenReturn(mockMessage);
 
-        testTwoInvocations(1, 0, handler, context, messageEvent);
+        testTwoInvocations(1, 0, false, handler, context, messageEvent);
 
         producer.reset();
     }
 
+    @Test
+    public void testRootAnsweredInOrder() throws Exception {
+        SubmissionHandler handler = new SubmissionHandler(validator, producer, channelGroup, manager);
+        ChannelHandlerContext context = Mockito.mock(ChannelHandlerContext.class);
+        MessageEvent postEvent = Mockito.mock(MessageEvent.class);
+        Mockito.when(postEvent.getChannel()).thenReturn(mockChannel);
+        BagheeraHttpRequest post = getMockMessage(HttpMethod.POST, "held-id", false);
+        Mockito.when(postEvent.getMessage()).thenReturn(post);
+        MessageEvent rootEvent = Mockito.mock(MessageEvent.class);
+        Mockito.when(rootEvent.getChannel()).thenReturn(mockChannel);
+        Mockito.when(rootEvent.getMessage()).thenReturn(RootResponse.ROOT_REQUEST);
+
+        producer.holdCallbacks = true;
+        handler.messageReceived(context, postEvent);
+        handler.messageReceived(context, rootEvent);
+        // The answer to a pipelined GET / waits for the submission ahead of it
+        Mockito.verify(mockChannel, Mockito.never()).write(Mockito.any());
+
+        producer.releaseCallbacks();
+        ArgumentCaptor<Object> responses = ArgumentCaptor.forClass(Object.class);
+        Mockito.verify(mockChannel, Mockito.times(2)).write(responses.capture());
+        assertEquals(HttpResponseStatus.CREATED, ((HttpResponse)responses.getAllValues().get(0)).getStatus());
+        assertEquals(HttpResponseStatus.OK, ((HttpResponse)responses.getAllValues().get(1)).getStatus());
+        producer.holdCallbacks = false;
+        producer.reset();
+    }
+
+    private List<Object> postWithObsoleteDocument() throws Exception {
+        SubmissionHandler handler = new SubmissionHandler(validator, producer, channelGroup, manager);
+        MessageEvent messageEvent = Mockito.mock(MessageEvent.class);
+        Mockito.when(messageEvent.getChannel()).thenReturn(mockChannel);
+        Mockito.when(messageEvent.getMessage()).thenReturn(getMockMessage(HttpMethod.POST, "new-id", true, "old-id"));
+        handler.messageReceived(Mockito.mock(ChannelHandlerContext.class), messageEvent);
+        ArgumentCaptor<Object> responses = ArgumentCaptor.forClass(Object.class);
+        Mockito.verify(mockChannel, Mockito.atLeastOnce()).write(responses.capture());
+        return responses.getAllValues();
+    }
+
+    @Test
+    public void testObsoleteDocumentKeptWhenStoreFails() throws Exception {
+        producer.failCallbacks = true;
+        List<Object> responses = postWithObsoleteDocument();
+        // One response, and the old document isn't deleted
+        assertEquals(1, responses.size());
+        assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, ((HttpResponse)responses.get(0)).getStatus());
+        assertEquals(0, producer.getDeleteCount());
+        producer.failCallbacks = false;
+        producer.reset();
+    }
+
+    @Test
+    public void testFailedObsoleteDeleteDoesNotRespond() throws Exception {
+        producer.throwOnDelete = true;
+        List<Object> responses = postWithObsoleteDocument();
+        // The document was stored, so that is the only answer
+        assertEquals(1, responses.size());
+        assertEquals(HttpResponseStatus.CREATED, ((HttpResponse)responses.get(0)).getStatus());
+        assertEquals(1, producer.getCreateCount());
+        producer.throwOnDelete = false;
+        producer.reset();
+    }
+
+    @Test
+    public void testDeleteWaitsForProducer() throws Exception {
+        SubmissionHandler handler = new SubmissionHandler(validator, producer, channelGroup, manager);
+        MessageEvent messageEvent = Mockito.mock(MessageEvent.class);
+        Mockito.when(messageEvent.getChannel()).thenReturn(mockChannel);
+        Mockito.when(messageEvent.getMessage()).thenReturn(getMockMessage(HttpMethod.DELETE, "delete-id", false));
+        producer.failCallbacks = true;
+        handler.messageReceived(Mockito.mock(ChannelHandlerContext.class), messageEvent);
+        ArgumentCaptor<Object> responses = ArgumentCaptor.forClass(Object.class);
+        Mockito.verify(mockChannel).write(responses.capture());
+        assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, ((HttpResponse)responses.getValue()).getStatus());
+        producer.failCallbacks = false;
+        producer.reset();
+    }
+
     private int dummyNoSplit(String msg) {
         return msg.length();
     }
@@ -269,13 +375,21 @@ public class BagheeraHttpRequestTest {
 
 class DummyProducer implements Producer {
     private int deleteCount = 0;
+    private int deleteMessageCount = 0;
     private int createCount = 0;
+    // Set to hold on to callbacks until releaseCallbacks()
+    boolean holdCallbacks = false;
+    // Set to fail acknowledged sends, or to throw on sends of deletes
+    boolean failCallbacks = false;
+    boolean throwOnDelete = false;
+    private final List<ProducerCallback> heldCallbacks = new ArrayList<ProducerCallback>();
 
     @Override
     public void close() throws IOException { }
 
     public void reset() {
         deleteCount = 0;
+        deleteMessageCount = 0;
         createCount = 0;
     }
 
@@ -284,8 +398,49 @@ class DummyProducer implements Producer {
         if (msg.getOperation() == Operation.CREATE_UPDATE) {
             setCreateCount(getCreateCount() + 1);
         } else if(msg.getOperation() == Operation.DELETE) {
-            setDeleteCount(getDeleteCount() + 1);
+            if (throwOnDelete) {
+                throw new IllegalStateException("Producer is failing");
+            }
+            setDeleteCount(getDeleteCount() + Math.max(1, msg.getDeleteIdCount()));
+            deleteMessageCount++;
+        }
+    }
+
+    @Override
+    public void send(List<BagheeraMessage> msgs) {
+        for (BagheeraMessage msg : msgs) {
+            send(msg);
+        }
+    }
+
+    @Override
+    public void send(EncodedMessage msg) {
+        try {
+            send(msg.decode());
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public void send(EncodedMessage msg, AckMode ackMode, ProducerCallback callback) {
+        if (failCallbacks) {
+            callback.onFailure(new IllegalStateException("Producer is failing"));
+            return;
         }
+        send(msg);
+        if (holdCallbacks) {
+            heldCallbacks.add(callback);
+        } else {
+            callback.onCompletion();
+        }
+    }
+
+    public void releaseCallbacks() {
+        for (ProducerCallback callback : heldCallbacks) {
+            callback.onCompletion();
+        }
+        heldCallbacks.clear();
     }
 
     public int getDeleteCount() {
@@ -296,6 +451,10 @@ class DummyProducer implements Producer {
         this.deleteCount = deleteCount;
     }
 
+    public int getDeleteMessageCount() {
+        return deleteMessageCount;
+    }
+
     public int getCreateCount() {
         return createCount;
     }
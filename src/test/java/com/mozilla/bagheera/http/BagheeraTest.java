@@ -22,9 +22,15 @@ package com.mozilla.bagheera.http;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotSame;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
 
@@ -32,10 +38,14 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
 import com.mozilla.bagheera.http.Bagheera.BagheeraServerState;
 import com.mozilla.bagheera.metrics.MetricsManager;
+import com.mozilla.bagheera.producer.AckMode;
 import com.mozilla.bagheera.producer.Producer;
+import com.mozilla.bagheera.producer.ProducerCallback;
+import com.mozilla.bagheera.serializer.EncodedMessage;
 import com.mozilla.bagheera.sink.ReplaySink;
 import com.mozilla.bagheera.util.WildcardProperties;
 
@@ -43,6 +53,7 @@ import com.mozilla.bagheera.util.WildcardProperties;
 public class BagheeraTest {
     private static final int BAGHEERA_PORT = 8999;
     private static final String TEST_NAMESPACE = "test";
+    private static final String ACKED_NAMESPACE = "acked";
     BagheeraServerState state;
     SimpleProducer producer = new SimpleProducer();
     WildcardProperties props = new WildcardProperties();
@@ -55,8 +66,9 @@ public class BagheeraTest {
 
     @Before
     public void setup() throws Exception {
-        props.put("valid.namespaces", TEST_NAMESPACE);
+        props.put("valid.namespaces", TEST_NAMESPACE + "," + ACKED_NAMESPACE);
         props.put(TEST_NAMESPACE + ".allow.delete.access", "true");
+        props.put(ACKED_NAMESPACE + ".ack.mode", "acked");
 
         state = Bagheera.startServer(BAGHEERA_PORT, false, props, producer,
                 Bagheera.getChannelFactory(), Bagheera.class.getName(), manager);
@@ -158,6 +170,79 @@ public class BagheeraTest {
         assertEquals("5.5", message.getApiVersion());
     }
 
+    @Test
+    public void testAckedMessage() throws IOException, InterruptedException {
+        props.put(TEST_NAMESPACE + SubmissionHandler.ACK_MODE, "acked");
+        String destPattern = String.format("http://localhost:%d/%s/%s/%s", BAGHEERA_PORT, SubmissionHandler.ENDPOINT_SUBMIT, TEST_NAMESPACE, ReplaySink.KEY_PLACEHOLDER);
+        ReplaySink sink = new ReplaySink(destPattern, "1", "true", "true");
+        sink.store(key, json.getBytes(), timestamp);
+
+        assertEquals(1, producer.queueSize());
+        BagheeraMessage message = producer.getQueue().poll();
+        assertEquals(key, message.getId());
+        assertEquals(json, message.getPayload().toStringUtf8());
+    }
+
+    @Test
+    public void testBatchMessage() throws IOException {
+        String otherKey = UUID.randomUUID().toString();
+        String body = key + "\t" + json + "\n" +
+                      "not-a-uuid\t" + json + "\r\n" +
+                      "\n" +
+                      otherKey + "\t" + json + "\n";
+
+        URL url = new URL(String.format("http://localhost:%d/%s/%s/%s", BAGHEERA_PORT, SubmissionHandler.ENDPOINT_SUBMIT, TEST_NAMESPACE, SubmissionHandler.BATCH_ID));
+        HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        OutputStream out = conn.getOutputStream();
+        out.write(body.getBytes("UTF-8"));
+        out.close();
+        assertEquals(201, conn.getResponseCode());
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+        assertEquals(key + "\t201", reader.readLine());
+        assertEquals("not-a-uuid\t400", reader.readLine());
+        assertEquals(otherKey + "\t201", reader.readLine());
+        assertEquals(null, reader.readLine());
+        reader.close();
+
+        assertEquals(2, producer.queueSize());
+        BagheeraMessage message = producer.getQueue().poll();
+        assertEquals(key, message.getId());
+        assertEquals(json, message.getPayload().toStringUtf8());
+        message = producer.getQueue().poll();
+        assertEquals(otherKey, message.getId());
+        assertEquals(json, message.getPayload().toStringUtf8());
+    }
+
+    @Test
+    public void testAckedBatchPartlyFailing() throws IOException {
+        String otherKey = UUID.randomUUID().toString();
+        producer.failId = otherKey;
+        String body = key + "\t" + json + "\n" +
+                      otherKey + "\t" + json + "\n";
+
+        URL url = new URL(String.format("http://localhost:%d/%s/%s/%s", BAGHEERA_PORT, SubmissionHandler.ENDPOINT_SUBMIT, ACKED_NAMESPACE, SubmissionHandler.BATCH_ID));
+        HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        OutputStream out = conn.getOutputStream();
+        out.write(body.getBytes("UTF-8"));
+        out.close();
+        assertEquals(503, conn.getResponseCode());
+
+        // The client can tell which document to send again
+        BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getErrorStream(), "UTF-8"));
+        assertEquals(key + "\t201", reader.readLine());
+        assertEquals(otherKey + "\t503", reader.readLine());
+        assertEquals(null, reader.readLine());
+        reader.close();
+
+        assertEquals(1, producer.queueSize());
+        assertEquals(key, producer.getQueue().poll().getId());
+    }
+
     @After
     public void tearDown() {
         state.close();
@@ -167,6 +252,8 @@ public class BagheeraTest {
 class SimpleProducer implements Producer {
     private final int maxQueueSize;
     private final LinkedList<BagheeraMessage> queue = new LinkedList<BagheeraMessage>();
+    // Acked sends of this id fail
+    volatile String failId;
 
     public SimpleProducer(int queueSize) {
         maxQueueSize = queueSize;
@@ -195,4 +282,40 @@ class SimpleProducer implements Producer {
         }
         queue.offer(msg);
     }
+
+    @Override
+    public void send(List<BagheeraMessage> msgs) {
+        for (BagheeraMessage msg : msgs) {
+            send(msg);
+        }
+    }
+
+    @Override
+    public void send(EncodedMessage msg) {
+        try {
+            send(msg.decode());
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public void send(EncodedMessage msg, AckMode ackMode, final ProducerCallback callback) {
+        if (ackMode == AckMode.ACKED && msg.getId().equals(failId)) {
+            callback.onFailure(new IllegalStateException("Broker unavailable"));
+            return;
+        }
+        send(msg);
+        if (ackMode == AckMode.ACKED) {
+            // Acknowledge from another thread, the way a real producer would
+            new Thread() {
+                @Override
+                public void run() {
+                    callback.onCompletion();
+                }
+            }.start();
+        } else {
+            callback.onCompletion();
+        }
+    }
 }
\ No newline at end of file
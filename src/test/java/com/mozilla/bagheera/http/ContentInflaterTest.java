@@ -0,0 +1,320 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.http;
+
+import static org.jboss.netty.handler.codec.http.HttpMethod.POST;
+import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.mozilla.bagheera.validation.NamespacePolicies;
+import com.mozilla.bagheera.validation.NamespacePolicy;
+import com.mozilla.bagheera.validation.NamespacePolicyStore;
+
+public class ContentInflaterTest {
+
+    private static final String JSON = "{\"ver\":1,\"info\":{\"reason\":\"idle-daily\",\"OS\":\"Linux\"},\"simpleMeasurements\":{\"uptime\":42}}";
+
+    private ContentInflater inflater;
+
+    @Before
+    public void setup() {
+        inflater = new ContentInflater(new NamespacePolicyStore(new NamespacePolicies(new Properties(), 1024)), 4);
+    }
+
+    @After
+    public void tearDown() {
+        inflater.releaseExternalResources();
+    }
+
+    private static byte[] repeat(String s, int times) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] deflate(byte[] data, boolean nowrap) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        while (!deflater.finished()) {
+            out.write(buf, 0, deflater.deflate(buf));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzipOut = new GZIPOutputStream(out);
+        gzipOut.write(data);
+        gzipOut.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] toBytes(ChannelBuffer buffer) {
+        byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testInflateZlib() throws Exception {
+        byte[] data = repeat(JSON, 100);
+        assertEquals(new String(data, "UTF-8"),
+                     new String(toBytes(inflater.inflate(ChannelBuffers.wrappedBuffer(deflate(data, false)), false, -1)), "UTF-8"));
+    }
+
+    @Test
+    public void testInflateRawDeflate() throws Exception {
+        byte[] data = repeat(JSON, 100);
+        assertEquals(new String(data, "UTF-8"),
+                     new String(toBytes(inflater.inflate(ChannelBuffers.wrappedBuffer(deflate(data, true)), false, -1)), "UTF-8"));
+    }
+
+    @Test
+    public void testInflateGzip() throws Exception {
+        byte[] data = repeat(JSON, 100);
+        // Inflate from the middle of a larger buffer, as the aggregator hands it over
+        byte[] gzipped = gzip(data);
+        ChannelBuffer content = ChannelBuffers.dynamicBuffer();
+        content.writeBytes(new byte[16]);
+        content.writeBytes(gzipped);
+        content.skipBytes(16);
+        assertEquals(new String(data, "UTF-8"), new String(toBytes(inflater.inflate(content, true, data.length)), "UTF-8"));
+
+        // Header with a file name and a comment
+        byte[] named = new byte[gzipped.length + 8];
+        System.arraycopy(gzipped, 0, named, 0, 10);
+        named[3] = 8 | 16;
+        System.arraycopy("a.js\0ok\0".getBytes("UTF-8"), 0, named, 10, 8);
+        System.arraycopy(gzipped, 10, named, 18, gzipped.length - 10);
+        assertEquals(data.length, inflater.inflate(ChannelBuffers.wrappedBuffer(named), true, -1).readableBytes());
+    }
+
+    @Test
+    public void testInflatedLengthLimit() throws Exception {
+        // A megabyte of zeros deflates to about a kilobyte
+        byte[] data = new byte[1024 * 1024];
+        byte[] compressed = deflate(data, false);
+        assertTrue(compressed.length < 4096);
+
+        assertEquals(data.length, inflater.inflate(ChannelBuffers.wrappedBuffer(compressed), false, data.length).readableBytes());
+        try {
+            inflater.inflate(ChannelBuffers.wrappedBuffer(compressed), false, data.length - 1);
+            fail("Expected TooLongFrameException");
+        } catch (TooLongFrameException e) {
+            // expected
+        }
+        try {
+            inflater.inflate(ChannelBuffers.wrappedBuffer(gzip(data)), true, 65536);
+            fail("Expected TooLongFrameException");
+        } catch (TooLongFrameException e) {
+            // expected
+        }
+    }
+
+    private void assertCorrupt(byte[] content, boolean gzip) throws TooLongFrameException {
+        try {
+            inflater.inflate(ChannelBuffers.wrappedBuffer(content), gzip, -1);
+            fail("Expected DataFormatException");
+        } catch (DataFormatException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCorruptContent() throws Exception {
+        byte[] data = repeat(JSON, 10);
+        assertCorrupt(data, true);
+        assertCorrupt(data, false);
+
+        byte[] compressed = deflate(data, false);
+        byte[] truncated = new byte[compressed.length / 2];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+        assertCorrupt(truncated, false);
+
+        byte[] gzipped = gzip(data);
+        truncated = new byte[gzipped.length - 4];
+        System.arraycopy(gzipped, 0, truncated, 0, truncated.length);
+        assertCorrupt(truncated, true);
+
+        // Bad CRC
+        gzipped[gzipped.length - 8] ^= 1;
+        assertCorrupt(gzipped, true);
+    }
+
+    @Test
+    public void testMessageReceived() throws Exception {
+        byte[] data = repeat(JSON, 10);
+        HttpRequest request = new DefaultHttpRequest(HTTP_1_1, POST, "/submit/foo");
+        request.setHeader(HttpHeaders.Names.CONTENT_ENCODING, "gzip");
+        request.setContent(ChannelBuffers.wrappedBuffer(gzip(data)));
+
+        ChannelHandlerContext ctx = Mockito.mock(ChannelHandlerContext.class);
+        Mockito.when(ctx.getChannel()).thenReturn(Mockito.mock(Channel.class));
+        MessageEvent event = Mockito.mock(MessageEvent.class);
+        Mockito.when(event.getMessage()).thenReturn(request);
+
+        inflater.messageReceived(ctx, event);
+
+        ArgumentCaptor<ChannelEvent> captor = ArgumentCaptor.forClass(ChannelEvent.class);
+        Mockito.verify(ctx).sendUpstream(captor.capture());
+        assertTrue(captor.getValue() instanceof MessageEvent);
+        HttpRequest inflated = (HttpRequest)((MessageEvent)captor.getValue()).getMessage();
+        assertNull(inflated.getHeader(HttpHeaders.Names.CONTENT_ENCODING));
+        assertEquals(String.valueOf(data.length), inflated.getHeader(HttpHeaders.Names.CONTENT_LENGTH));
+        assertEquals(new String(data, "UTF-8"), new String(toBytes(inflated.getContent()), "UTF-8"));
+    }
+
+    @Test
+    public void testInflatedBytesAdmitted() throws Exception {
+        byte[] data = repeat(JSON, 50);
+        byte[] compressed = gzip(data);
+        AdmissionController controller = new AdmissionController(0, 0, 0, 5, null);
+        assertTrue(controller.tryAcquire(compressed.length));
+        AdmissionFilter.Admission admission = new AdmissionFilter.Admission(controller, compressed.length);
+        BagheeraHttpRequest request = new BagheeraHttpRequest(HTTP_1_1, POST, "/submit/foo/" + UUID.randomUUID());
+        request.setAdmission(admission);
+        request.setHeader(HttpHeaders.Names.CONTENT_ENCODING, "gzip");
+        request.setContent(ChannelBuffers.wrappedBuffer(compressed));
+        ChannelHandlerContext ctx = Mockito.mock(ChannelHandlerContext.class);
+        Mockito.when(ctx.getChannel()).thenReturn(Mockito.mock(Channel.class));
+        MessageEvent event = Mockito.mock(MessageEvent.class);
+        Mockito.when(event.getMessage()).thenReturn(request);
+
+        inflater.messageReceived(ctx, event);
+        // The request now counts as big as its inflated body
+        assertEquals(data.length, controller.getInFlightBytes());
+        admission.release();
+        assertEquals(0, controller.getInFlightBytes());
+    }
+
+    @Test
+    public void testCompressedPassthrough() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("foo" + NamespacePolicy.COMPRESSED_PASSTHROUGH, "true");
+        ContentInflater passthrough = new ContentInflater(new NamespacePolicyStore(new NamespacePolicies(props, 1024)), 4);
+        byte[] compressed = deflate(repeat(JSON, 10), false);
+        try {
+            BagheeraHttpRequest request = new BagheeraHttpRequest(HTTP_1_1, POST, "/submit/foo/" + UUID.randomUUID());
+            request.setHeader(HttpHeaders.Names.CONTENT_ENCODING, "deflate");
+            request.setContent(ChannelBuffers.wrappedBuffer(compressed));
+            ChannelHandlerContext ctx = Mockito.mock(ChannelHandlerContext.class);
+            MessageEvent event = Mockito.mock(MessageEvent.class);
+            Mockito.when(event.getMessage()).thenReturn(request);
+
+            passthrough.messageReceived(ctx, event);
+            Mockito.verify(ctx).sendUpstream(event);
+            assertEquals("deflate", request.getHeader(HttpHeaders.Names.CONTENT_ENCODING));
+            assertEquals(compressed.length, request.getContent().readableBytes());
+
+            // Batches are always inflated since they are split up here
+            BagheeraHttpRequest batch = new BagheeraHttpRequest(HTTP_1_1, POST, "/submit/foo/" + SubmissionHandler.BATCH_ID);
+            batch.setHeader(HttpHeaders.Names.CONTENT_ENCODING, "deflate");
+            batch.setContent(ChannelBuffers.wrappedBuffer(compressed));
+            Mockito.when(event.getMessage()).thenReturn(batch);
+            Mockito.when(ctx.getChannel()).thenReturn(Mockito.mock(Channel.class));
+
+            passthrough.messageReceived(ctx, event);
+            assertNull(batch.getHeader(HttpHeaders.Names.CONTENT_ENCODING));
+        } finally {
+            passthrough.releaseExternalResources();
+        }
+    }
+
+    @Test
+    public void testIdentityPassesThrough() throws Exception {
+        HttpRequest request = new DefaultHttpRequest(HTTP_1_1, POST, "/submit/foo");
+        request.setContent(ChannelBuffers.wrappedBuffer(JSON.getBytes("UTF-8")));
+        ChannelHandlerContext ctx = Mockito.mock(ChannelHandlerContext.class);
+        MessageEvent event = Mockito.mock(MessageEvent.class);
+        Mockito.when(event.getMessage()).thenReturn(request);
+
+        inflater.messageReceived(ctx, event);
+        Mockito.verify(ctx).sendUpstream(event);
+        assertFalse(request.containsHeader(HttpHeaders.Names.CONTENT_LENGTH));
+    }
+
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void testPooledInflatePerformance() throws Exception {
+        // Pooled inflaters against a new Inflater for every (small) request
+        int numIterations = 20000;
+        byte[] data = repeat(JSON, 20);
+        byte[] compressed = deflate(data, false);
+        ChannelBuffer content = ChannelBuffers.wrappedBuffer(compressed);
+
+        long totalLength = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < numIterations; i++) {
+            Inflater fresh = new Inflater();
+            fresh.setInput(compressed);
+            byte[] out = new byte[data.length];
+            totalLength += fresh.inflate(out);
+            fresh.end();
+        }
+        long freshDuration = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < numIterations; i++) {
+            totalLength -= inflater.inflate(content, false, data.length).readableBytes();
+        }
+        long pooledDuration = System.nanoTime() - start;
+
+        assertEquals(0, totalLength);
+
+        System.out.println(String.format("New inflaters took %d ms, pooled inflaters took %d ms (%.05f ms per iteration)",
+                freshDuration / 1000000, pooledDuration / 1000000, (double)pooledDuration / 1000000 / numIterations));
+    }
+}
@@ -45,6 +45,11 @@ import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.mozilla.bagheera.util.WildcardProperties;
+import com.mozilla.bagheera.validation.NamespacePolicies;
+import com.mozilla.bagheera.validation.NamespacePolicy;
+import com.mozilla.bagheera.validation.NamespacePolicyStore;
+
 public class ContentLengthFilterTest {
 
     private ChannelHandlerContext ctx;
@@ -75,11 +80,14 @@ public class ContentLengthFilterTest {
     }
     
     private MessageEvent createMockEvent(Channel channel, HttpVersion protocolVersion, HttpMethod method, String uri, byte[] contentBytes) {    
+        return createMockEvent(channel, new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/"), contentBytes);
+    }
+
+    private MessageEvent createMockEvent(Channel channel, HttpRequest req, byte[] contentBytes) {
         MessageEvent event = createMock(UpstreamMessageEvent.class);
         expect(event.getChannel()).andReturn(channel).anyTimes();
         expect(event.getFuture()).andReturn(new DefaultChannelFuture(channel,false)).anyTimes();
         expect(event.getRemoteAddress()).andReturn(remoteAddr);
-        HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/");
         req.setChunked(false);
         req.setContent(ChannelBuffers.copiedBuffer(contentBytes));
         expect(event.getMessage()).andReturn(req);
@@ -118,4 +126,27 @@ public class ContentLengthFilterTest {
         }
         assertTrue(success);
     }
+
+    @Test
+    public void testNamespaceLimit() throws Exception {
+        WildcardProperties props = new WildcardProperties();
+        props.setProperty("valid.namespaces", "small,large");
+        props.setProperty("small" + NamespacePolicy.MAX_CONTENT_LENGTH, "2");
+        props.setProperty("large" + NamespacePolicy.MAX_CONTENT_LENGTH, "8");
+        NamespacePolicyStore policies = new NamespacePolicyStore(new NamespacePolicies(props, 4));
+        ContentLengthFilter filter = new ContentLengthFilter(policies, policies.get().getLargestMaxContentLength());
+        byte[] contentBytes = new String("foobar").getBytes();
+
+        // Over the default but within the namespace's own limit
+        filter.messageReceived(ctx, createMockEvent(ctx.getChannel(),
+                                                    new BagheeraHttpRequest(HTTP_1_1, POST, "/submit/large/id"), contentBytes));
+        boolean success = false;
+        try {
+            filter.messageReceived(ctx, createMockEvent(createMock(Channel.class),
+                                                        new BagheeraHttpRequest(HTTP_1_1, POST, "/submit/small/id"), contentBytes));
+        } catch (TooLongFrameException e) {
+            success = true;
+        }
+        assertTrue(success);
+    }
 }
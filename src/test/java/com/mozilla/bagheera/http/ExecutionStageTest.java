@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.http;
+
+import static org.jboss.netty.handler.codec.http.HttpMethod.POST;
+import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelSink;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.mozilla.bagheera.util.WildcardProperties;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+
+public class ExecutionStageTest {
+
+    /**
+     * Records the messages that made it through the stage, per channel.
+     */
+    private static class Recorder extends SimpleChannelUpstreamHandler {
+        final List<Object> first = Collections.synchronizedList(new ArrayList<Object>());
+        final List<Object> second = Collections.synchronizedList(new ArrayList<Object>());
+        final Channel firstChannel;
+        final CountDownLatch done;
+        // Holds up every message until released
+        final CountDownLatch release;
+
+        Recorder(Channel firstChannel, int messages, CountDownLatch release) {
+            this.firstChannel = firstChannel;
+            this.done = new CountDownLatch(messages);
+            this.release = release;
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            release.await();
+            (e.getChannel() == firstChannel ? first : second).add(e.getMessage());
+            done.countDown();
+        }
+    }
+
+    private WildcardProperties getProperties(int threads, long maxChannelMemory) {
+        WildcardProperties props = new WildcardProperties();
+        props.setProperty(ExecutionStage.EXECUTOR_THREADS, String.valueOf(threads));
+        props.setProperty(ExecutionStage.EXECUTOR_MAX_CHANNEL_MEMORY, String.valueOf(maxChannelMemory));
+        return props;
+    }
+
+    private Channel mockChannel() {
+        Channel channel = Mockito.mock(Channel.class);
+        Mockito.when(channel.isOpen()).thenReturn(true);
+        Mockito.when(channel.isReadable()).thenReturn(true);
+        Mockito.when(channel.getCloseFuture()).thenReturn(Mockito.mock(ChannelFuture.class));
+        return channel;
+    }
+
+    private ChannelPipeline getPipeline(ExecutionStage stage, Recorder recorder, Channel channel) {
+        ChannelPipeline pipeline = Channels.pipeline();
+        stage.addTo(pipeline);
+        pipeline.addLast("recorder", recorder);
+        pipeline.attach(channel, Mockito.mock(ChannelSink.class));
+        return pipeline;
+    }
+
+    private Timer getTimer(String name) {
+        return Metrics.newTimer(new MetricName("bagheera", "executor", name), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testEventsOfAChannelRunInOrder() throws Exception {
+        ExecutionStage stage = new ExecutionStage(getProperties(4, 0));
+        try {
+            Channel firstChannel = mockChannel();
+            Channel secondChannel = mockChannel();
+            Recorder recorder = new Recorder(firstChannel, 200, new CountDownLatch(0));
+            ChannelPipeline firstPipeline = getPipeline(stage, recorder, firstChannel);
+            ChannelPipeline secondPipeline = getPipeline(stage, recorder, secondChannel);
+            for (int i = 0; i < 100; i++) {
+                firstPipeline.sendUpstream(new UpstreamMessageEvent(firstChannel, i, null));
+                secondPipeline.sendUpstream(new UpstreamMessageEvent(secondChannel, i, null));
+            }
+            assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+            List<Object> expected = new ArrayList<Object>();
+            for (int i = 0; i < 100; i++) {
+                expected.add(i);
+            }
+            assertEquals(expected, recorder.first);
+            assertEquals(expected, recorder.second);
+        } finally {
+            stage.releaseExternalResources();
+        }
+    }
+
+    @Test
+    public void testTimersUpdated() throws Exception {
+        ExecutionStage stage = new ExecutionStage(getProperties(2, 0));
+        try {
+            Timer queueTime = getTimer("queue.time");
+            Timer serviceTime = getTimer("service.time");
+            long queued = queueTime.count();
+            long served = serviceTime.count();
+
+            Channel channel = mockChannel();
+            Recorder recorder = new Recorder(channel, 10, new CountDownLatch(0));
+            ChannelPipeline pipeline = getPipeline(stage, recorder, channel);
+            for (int i = 0; i < 10; i++) {
+                pipeline.sendUpstream(new UpstreamMessageEvent(channel, i, null));
+            }
+            assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+            // The service time is recorded once the handlers after the stage return
+            long deadline = System.currentTimeMillis() + 5000;
+            while (serviceTime.count() < served + 10 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(queued + 10, queueTime.count());
+            assertEquals(served + 10, serviceTime.count());
+        } finally {
+            stage.releaseExternalResources();
+        }
+    }
+
+    @Test
+    public void testReadingSuspendedWhenChannelQueueIsFull() throws Exception {
+        ExecutionStage stage = new ExecutionStage(getProperties(1, 4096));
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            Channel channel = mockChannel();
+            Recorder recorder = new Recorder(channel, 3, release);
+            ChannelPipeline pipeline = getPipeline(stage, recorder, channel);
+            for (int i = 0; i < 2; i++) {
+                HttpRequest request = new DefaultHttpRequest(HTTP_1_1, POST, "/submit/foo");
+                request.setContent(ChannelBuffers.wrappedBuffer(new byte[1024]));
+                pipeline.sendUpstream(new UpstreamMessageEvent(channel, request, null));
+            }
+            Mockito.verify(channel, Mockito.never()).setReadable(false);
+
+            // This one takes the channel over its limit, so reading from it stops
+            HttpRequest request = new DefaultHttpRequest(HTTP_1_1, POST, "/submit/foo");
+            request.setContent(ChannelBuffers.wrappedBuffer(new byte[4096]));
+            pipeline.sendUpstream(new UpstreamMessageEvent(channel, request, null));
+            Mockito.verify(channel).setReadable(false);
+
+            release.countDown();
+            assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+            assertEquals(3, recorder.first.size());
+        } finally {
+            release.countDown();
+            stage.releaseExternalResources();
+        }
+    }
+
+    @Test
+    public void testRequestSizeIncludesContent() {
+        ExecutionStage.HttpMessageSizeEstimator estimator = new ExecutionStage.HttpMessageSizeEstimator();
+        HttpRequest empty = new DefaultHttpRequest(HTTP_1_1, POST, "/submit/foo");
+        HttpRequest request = new DefaultHttpRequest(HTTP_1_1, POST, "/submit/foo");
+        request.setContent(ChannelBuffers.wrappedBuffer(new byte[65536]));
+
+        int emptySize = estimator.estimateSize(empty);
+        assertTrue(emptySize > 0);
+        assertEquals(emptySize + 65536, estimator.estimateSize(request));
+    }
+}
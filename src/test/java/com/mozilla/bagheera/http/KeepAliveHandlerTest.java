@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.http;
+
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONNECTION;
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONTENT_LENGTH;
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetSocketAddress;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class KeepAliveHandlerTest {
+
+    private Channel channel;
+    private ChannelHandlerContext ctx;
+    private InetSocketAddress remoteAddr = new InetSocketAddress("localhost", 51723);
+
+    @Before
+    public void setup() {
+        channel = Mockito.mock(Channel.class);
+        ctx = Mockito.mock(ChannelHandlerContext.class);
+        Mockito.when(ctx.getChannel()).thenReturn(channel);
+    }
+
+    private void receive(KeepAliveHandler handler, HttpVersion version, String connection) throws Exception {
+        HttpRequest request = new DefaultHttpRequest(version, HttpMethod.POST, "/submit/foo");
+        if (connection != null) {
+            request.setHeader(CONNECTION, connection);
+        }
+        handler.messageReceived(ctx, new UpstreamMessageEvent(channel, request, remoteAddr));
+    }
+
+    private HttpResponse respond(KeepAliveHandler handler) throws Exception {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CREATED);
+        ChannelFuture future = new DefaultChannelFuture(channel, false);
+        handler.writeRequested(ctx, new DownstreamMessageEvent(channel, future, response, remoteAddr));
+        future.setSuccess();
+        return response;
+    }
+
+    @Test
+    public void testDisabledAlwaysCloses() throws Exception {
+        KeepAliveHandler handler = new KeepAliveHandler(false, 0, null);
+        receive(handler, HttpVersion.HTTP_1_1, null);
+        HttpResponse response = respond(handler);
+        assertEquals(HttpHeaders.Values.CLOSE, response.getHeader(CONNECTION));
+        Mockito.verify(channel).close();
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        KeepAliveHandler handler = new KeepAliveHandler(true, 0, null);
+        receive(handler, HttpVersion.HTTP_1_1, null);
+        HttpResponse response = respond(handler);
+        assertEquals(HttpHeaders.Values.KEEP_ALIVE, response.getHeader(CONNECTION));
+        assertEquals("0", response.getHeader(CONTENT_LENGTH));
+        Mockito.verify(channel, Mockito.never()).close();
+    }
+
+    @Test
+    public void testClientRequestsClose() throws Exception {
+        KeepAliveHandler handler = new KeepAliveHandler(true, 0, null);
+        receive(handler, HttpVersion.HTTP_1_0, null);
+        respond(handler);
+        Mockito.verify(channel).close();
+    }
+
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        KeepAliveHandler handler = new KeepAliveHandler(true, 0, null);
+        receive(handler, HttpVersion.HTTP_1_1, null);
+        receive(handler, HttpVersion.HTTP_1_1, HttpHeaders.Values.CLOSE);
+        assertEquals(HttpHeaders.Values.KEEP_ALIVE, respond(handler).getHeader(CONNECTION));
+        Mockito.verify(channel, Mockito.never()).close();
+        assertEquals(HttpHeaders.Values.CLOSE, respond(handler).getHeader(CONNECTION));
+        Mockito.verify(channel).close();
+    }
+
+    @Test
+    public void testMaxRequests() throws Exception {
+        KeepAliveHandler handler = new KeepAliveHandler(true, 2, null);
+        receive(handler, HttpVersion.HTTP_1_1, null);
+        respond(handler);
+        Mockito.verify(channel, Mockito.never()).close();
+        receive(handler, HttpVersion.HTTP_1_1, null);
+        respond(handler);
+        Mockito.verify(channel).close();
+        assertEquals(2, handler.getRequestCount());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class PathRouterTest {
+
+    private static final Pattern VERSION_PATTERN = Pattern.compile("^[0-9]+([.][0-9]+)?$");
+
+    private static final String[] URIS = { "/submit/foo/fakeid", "/1.0/submit/foo/fakeid/a/b/c", "/submit/foo",
+                                           "/", "", "//submit//foo///id/", "/1/2/3/4/5/6/7/8/9/10/11/12/13/14/15/16/17/18",
+                                           "/submit/foo/id?query=1", "http://host/submit/foo", "/1./submit", "/.1/submit" };
+
+    @Test
+    public void testSameAsPathDecoder() {
+        for (String uri : URIS) {
+            PathDecoder pd = new PathDecoder(uri);
+            PathRouter router = new PathRouter(uri);
+            assertEquals(uri, pd.size(), router.size());
+            for (int i = 0; i <= pd.size(); i++) {
+                assertEquals(uri, pd.getPathElement(i), router.getPathElement(i));
+            }
+            boolean versioned = pd.size() > 0 && VERSION_PATTERN.matcher(pd.getPathElement(0)).matches();
+            int offset = versioned ? 1 : 0;
+            assertEquals(uri, versioned ? pd.getPathElement(0) : null, router.getApiVersion());
+            assertEquals(uri, pd.getPathElement(offset), router.getEndpoint());
+            assertEquals(uri, pd.getPathElement(offset + 1), router.getNamespace());
+            assertEquals(uri, pd.getPathElement(offset + 2), router.getId());
+            assertEquals(uri, Math.max(0, pd.size() - offset - 3), router.getPartitions().size());
+        }
+    }
+
+    @Test
+    public void testRoutes() {
+        PathRouter router = new PathRouter("/1.0/submit/foo/fakeid/a/b");
+        assertEquals("1.0", router.getApiVersion());
+        assertEquals("submit", router.getEndpoint());
+        assertEquals("foo", router.getNamespace());
+        assertEquals("fakeid", router.getId());
+        assertEquals("a", router.getPartitions().get(0));
+        assertEquals("b", router.getPartitions().get(1));
+
+        router = new PathRouter("/submit/foo");
+        assertNull(router.getApiVersion());
+        assertEquals("foo", router.getNamespace());
+        assertNull(router.getId());
+        assertTrue(router.getPartitions().isEmpty());
+    }
+
+    @Test
+    public void testRouterPerformance() {
+        // Compares routing a request with PathDecoder and the version regex, as
+        // BagheeraHttpRequest used to do, with the PathRouter
+        int numIterations = 1000000;
+        String uri = "/1.0/submit/telemetry/a1b2c3d4-e5f6-7890-abcd-ef1234567890/part1/part2";
+
+        long total = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < numIterations; i++) {
+            PathDecoder pd = new PathDecoder(uri);
+            int offset = VERSION_PATTERN.matcher(pd.getPathElement(0)).matches() ? 1 : 0;
+            List<String> partitions = new ArrayList<String>();
+            for (int j = offset + 3; j < pd.size(); j++) {
+                partitions.add(pd.getPathElement(j));
+            }
+            total += pd.getPathElement(offset + 1).length() + pd.getPathElement(offset + 2).length() + partitions.size();
+        }
+        long decoderDuration = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < numIterations; i++) {
+            PathRouter router = new PathRouter(uri);
+            total -= router.getNamespace().length() + router.getId().length() + router.getPartitions().size();
+        }
+        long routerDuration = System.nanoTime() - start;
+
+        assertEquals(0, total);
+        double nanosPerRequest = (double)routerDuration / numIterations;
+        // Generous, it takes a fraction of a microsecond
+        assertTrue(nanosPerRequest < 20000);
+
+        System.out.println(String.format("PathDecoder took %.01f ns per request, PathRouter %.01f ns per request",
+                                         (double)decoderDuration / numIterations, nanosPerRequest));
+    }
+}
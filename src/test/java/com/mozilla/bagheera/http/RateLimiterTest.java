@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.mozilla.bagheera.http.RateLimiter.Decision;
+import com.mozilla.bagheera.util.WildcardProperties;
+
+public class RateLimiterTest {
+
+    @Test
+    public void testNamespaceLimit() {
+        WildcardProperties props = new WildcardProperties();
+        props.setProperty("testpilot_foo" + RateLimiter.RATE_LIMIT, "1");
+        props.setProperty("testpilot_foo" + RateLimiter.RATE_BURST, "3");
+        RateLimiter limiter = new RateLimiter(props);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Decision.ALLOWED, limiter.tryAcquire("testpilot_foo", "10.0.0." + i));
+        }
+        assertEquals(Decision.NAMESPACE_LIMITED, limiter.tryAcquire("testpilot_foo", "10.0.0.4"));
+        assertTrue(limiter.getRetryAfterSeconds("testpilot_foo", "10.0.0.4", Decision.NAMESPACE_LIMITED) >= 1);
+
+        // Other namespaces aren't limited
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Decision.ALLOWED, limiter.tryAcquire("telemetry", "10.0.0.1"));
+        }
+    }
+
+    @Test
+    public void testClientLimit() {
+        WildcardProperties props = new WildcardProperties();
+        props.setProperty("telemetry" + RateLimiter.CLIENT_RATE_LIMIT, "1");
+        props.setProperty("telemetry" + RateLimiter.CLIENT_RATE_BURST, "2");
+        RateLimiter limiter = new RateLimiter(props);
+
+        assertEquals(Decision.ALLOWED, limiter.tryAcquire("telemetry", "10.0.0.1"));
+        assertEquals(Decision.ALLOWED, limiter.tryAcquire("telemetry", "10.0.0.1"));
+        assertEquals(Decision.CLIENT_LIMITED, limiter.tryAcquire("telemetry", "10.0.0.1"));
+        // Another client has its own bucket
+        assertEquals(Decision.ALLOWED, limiter.tryAcquire("telemetry", "10.0.0.2"));
+    }
+
+    @Test
+    public void testIdleClientsDropped() throws InterruptedException {
+        WildcardProperties props = new WildcardProperties();
+        props.setProperty("telemetry" + RateLimiter.CLIENT_RATE_LIMIT, "1000");
+        props.setProperty(RateLimiter.MAX_CLIENTS, "10");
+        RateLimiter limiter = new RateLimiter(props);
+
+        for (int i = 0; i < 10; i++) {
+            limiter.tryAcquire("telemetry", "192.168.0." + i);
+        }
+        assertEquals(10, limiter.getClientCount("telemetry"));
+        // Their buckets refill within a millisecond
+        Thread.sleep(10);
+        limiter.tryAcquire("telemetry", "10.0.0.1");
+        assertEquals(1, limiter.getClientCount("telemetry"));
+    }
+
+    @Test
+    public void testClientsBeyondMaxShareOverflowBucket() {
+        WildcardProperties props = new WildcardProperties();
+        props.setProperty("telemetry" + RateLimiter.CLIENT_RATE_LIMIT, "1");
+        props.setProperty("telemetry" + RateLimiter.CLIENT_RATE_BURST, "2");
+        props.setProperty(RateLimiter.MAX_CLIENTS, "3");
+        RateLimiter limiter = new RateLimiter(props);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Decision.ALLOWED, limiter.tryAcquire("telemetry", "192.168.0." + i));
+        }
+        // None of them is idle, so newcomers aren't tracked on their own
+        assertEquals(Decision.OVERFLOW_ALLOWED, limiter.tryAcquire("telemetry", "10.0.0.1"));
+        assertEquals(Decision.OVERFLOW_ALLOWED, limiter.tryAcquire("telemetry", "10.0.0.2"));
+        assertEquals(3, limiter.getClientCount("telemetry"));
+        Decision decision = limiter.tryAcquire("telemetry", "10.0.0.3");
+        assertEquals(Decision.OVERFLOW_LIMITED, decision);
+        assertFalse(decision.isAllowed());
+        assertTrue(limiter.getRetryAfterSeconds("telemetry", "10.0.0.3", decision) >= 1);
+    }
+
+    @Test
+    public void testWildcardNamespacesShareLimits() {
+        WildcardProperties props = new WildcardProperties();
+        props.setProperty("valid.namespaces", "telemetry,testpilot_*");
+        props.setProperty("testpilot_*" + RateLimiter.RATE_LIMIT, "1");
+        props.setProperty("testpilot_*" + RateLimiter.RATE_BURST, "3");
+        props.setProperty("testpilot_*" + RateLimiter.CLIENT_RATE_LIMIT, "1");
+        props.setProperty("testpilot_*" + RateLimiter.CLIENT_RATE_BURST, "3");
+        RateLimiter limiter = new RateLimiter(props);
+
+        // Making up a new namespace for each request doesn't get a new bucket
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Decision.ALLOWED, limiter.tryAcquire("testpilot_" + i, "10.0.0.1"));
+        }
+        assertEquals(Decision.CLIENT_LIMITED, limiter.tryAcquire("testpilot_new", "10.0.0.1"));
+        assertEquals(Decision.NAMESPACE_LIMITED, limiter.tryAcquire("testpilot_other", "10.0.0.2"));
+        assertEquals(2, limiter.getClientCount("testpilot_any"));
+        assertEquals(Decision.ALLOWED, limiter.tryAcquire("telemetry", "10.0.0.1"));
+    }
+}
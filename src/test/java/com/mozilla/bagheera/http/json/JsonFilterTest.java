@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.http.json;
+
+import static org.jboss.netty.handler.codec.http.HttpMethod.POST;
+import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+import java.util.UUID;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.mozilla.bagheera.http.BagheeraHttpRequest;
+import com.mozilla.bagheera.validation.NamespacePolicies;
+import com.mozilla.bagheera.validation.NamespacePolicy;
+import com.mozilla.bagheera.validation.NamespacePolicyStore;
+import com.mozilla.bagheera.validation.Validator;
+
+public class JsonFilterTest {
+
+    private static final String JSON = "{\"ver\":1,\"info\":{\"reason\":\"idle-daily\",\"OS\":\"Linux\"},\"data\":[1,2,3]}";
+
+    private Validator validator;
+    private JsonFilter filter;
+
+    @Before
+    public void setup() {
+        Properties props = new Properties();
+        props.setProperty(NamespacePolicies.VALID_NAMESPACES, "checked,unchecked");
+        props.setProperty("checked" + NamespacePolicy.JSON_VALIDATION, "true");
+        props.setProperty("checked" + NamespacePolicy.JSON_MAX_DEPTH, "2");
+        validator = new Validator(new NamespacePolicyStore(new NamespacePolicies(props, 1024)));
+        filter = new JsonFilter(validator);
+    }
+
+    private boolean isPassedOn(String namespace, String body, String contentEncoding) throws Exception {
+        BagheeraHttpRequest request = new BagheeraHttpRequest(HTTP_1_1, POST, "/submit/" + namespace + "/" + UUID.randomUUID());
+        request.setContent(ChannelBuffers.copiedBuffer(body, CharsetUtil.UTF_8));
+        if (contentEncoding != null) {
+            request.setHeader(HttpHeaders.Names.CONTENT_ENCODING, contentEncoding);
+        }
+        ChannelHandlerContext ctx = Mockito.mock(ChannelHandlerContext.class);
+        Mockito.when(ctx.getChannel()).thenReturn(Mockito.mock(Channel.class));
+        MessageEvent event = Mockito.mock(MessageEvent.class);
+        Mockito.when(event.getMessage()).thenReturn(request);
+        try {
+            filter.messageReceived(ctx, event);
+        } catch (InvalidJsonException e) {
+            Mockito.verify(ctx, Mockito.never()).sendUpstream(Mockito.any(ChannelEvent.class));
+            return false;
+        }
+        Mockito.verify(ctx).sendUpstream(Mockito.any(ChannelEvent.class));
+        return true;
+    }
+
+    @Test
+    public void testValidation() throws Exception {
+        assertTrue(isPassedOn("checked", JSON, null));
+        assertFalse(isPassedOn("checked", "{\"ver\":1", null));
+        assertFalse(isPassedOn("checked", "not json", null));
+        // Nested deeper than json.max.depth
+        assertFalse(isPassedOn("checked", "{\"a\":{\"b\":{}}}", null));
+        // Namespaces without json.validation aren't checked
+        assertTrue(isPassedOn("unchecked", "not json", null));
+        // Nor are documents that are still compressed
+        assertTrue(isPassedOn("checked", "not json", "deflate"));
+        assertFalse(isPassedOn("checked", "not json", "identity"));
+    }
+
+    @Test
+    public void testDirectBuffer() throws Exception {
+        NamespacePolicy policy = validator.getNamespacePolicy("checked");
+        ChannelBuffer direct = ChannelBuffers.directBuffer(64);
+        direct.writeBytes("xx".getBytes("UTF-8"));
+        direct.writeBytes("{\"a\":[1,2]}".getBytes("UTF-8"));
+        assertFalse(direct.hasArray());
+        assertTrue(JsonFilter.isValidJson(validator, policy, direct, 2, direct.writerIndex() - 2));
+        assertFalse(JsonFilter.isValidJson(validator, policy, direct, 0, direct.writerIndex()));
+        assertFalse(JsonFilter.isValidJson(validator, policy, direct, 2, direct.writerIndex() - 3));
+    }
+
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void testValidatePerformance() throws Exception {
+        // Parsing the bytes against decoding them to a String first
+        int numIterations = 100000;
+        NamespacePolicy policy = validator.getNamespacePolicy("checked");
+        ChannelBuffer content = ChannelBuffers.copiedBuffer(JSON, CharsetUtil.UTF_8);
+
+        int valid = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < numIterations; i++) {
+            if (validator.isValidJson(content.toString(CharsetUtil.UTF_8))) {
+                valid++;
+            }
+        }
+        long stringDuration = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < numIterations; i++) {
+            if (JsonFilter.isValidJson(validator, policy, content, content.readerIndex(), content.readableBytes())) {
+                valid--;
+            }
+        }
+        long bytesDuration = System.nanoTime() - start;
+
+        assertEquals(0, valid);
+
+        System.out.println(String.format("Validating from a String took %d ms, from bytes took %d ms (%.05f ms per iteration)",
+                stringDuration / 1000000, bytesDuration / 1000000, (double)bytesDuration / 1000000 / numIterations));
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.producer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import kafka.javaapi.producer.ProducerData;
+import kafka.message.Message;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+
+public class BatchingKafkaProducerTest {
+
+    private static class CapturingProducer extends BatchingKafkaProducer {
+        final LinkedBlockingQueue<List<ProducerData<String,Message>>> sent = new LinkedBlockingQueue<List<ProducerData<String,Message>>>();
+
+        CapturingProducer(Properties props) {
+            super(props);
+        }
+
+        @Override
+        protected void sendProducerData(List<ProducerData<String,Message>> data) {
+            sent.add(data);
+        }
+    }
+
+    private static class FailingProducer extends CapturingProducer {
+        volatile boolean failing = true;
+
+        FailingProducer(Properties props) {
+            super(props);
+        }
+
+        @Override
+        protected void sendProducerData(List<ProducerData<String,Message>> data) {
+            if (failing) {
+                throw new RuntimeException("Broker unavailable");
+            }
+            super.sendProducerData(data);
+        }
+    }
+
+    private Properties getProperties(int maxMessages, long lingerMillis) {
+        Properties props = new Properties();
+        props.setProperty("broker.list", "0:localhost:9092");
+        props.setProperty("producer.type", "sync");
+        props.setProperty(BatchingKafkaProducer.BATCH_MAX_MESSAGES, String.valueOf(maxMessages));
+        props.setProperty(BatchingKafkaProducer.BATCH_LINGER_MS, String.valueOf(lingerMillis));
+        props.setProperty(BatchingKafkaProducer.BATCH_STRIPES, "4");
+        return props;
+    }
+
+    private BagheeraMessage getMessage(String id) {
+        return BagheeraMessage.newBuilder().setNamespace("test").setId(id).setPayload(ByteString.copyFromUtf8("{}")).build();
+    }
+
+    @Test
+    public void testCountThreshold() throws Exception {
+        CapturingProducer producer = new CapturingProducer(getProperties(3, 60000));
+        try {
+            for (int i = 0; i < 3; i++) {
+                producer.send(getMessage("same-id"));
+            }
+            List<ProducerData<String,Message>> batch = producer.sent.poll(5, TimeUnit.SECONDS);
+            assertEquals(3, batch.size());
+            for (ProducerData<String,Message> data : batch) {
+                assertEquals("test", data.getTopic());
+                // Still partitioned by id
+                assertEquals("same-id", data.getKey());
+                assertEquals(1, data.getData().size());
+            }
+        } finally {
+            producer.close();
+        }
+    }
+
+    @Test
+    public void testLinger() throws Exception {
+        CapturingProducer producer = new CapturingProducer(getProperties(100, 10));
+        try {
+            producer.send(getMessage("some-id"));
+            List<ProducerData<String,Message>> batch = producer.sent.poll(5, TimeUnit.SECONDS);
+            assertEquals(1, batch.size());
+            ProducerData<String,Message> data = batch.get(0);
+            assertEquals("some-id", data.getKey());
+            assertEquals(1, data.getData().size());
+            BagheeraMessage msg = BagheeraMessage.parseFrom(ByteString.copyFrom(data.getData().get(0).payload()));
+            assertEquals("some-id", msg.getId());
+        } finally {
+            producer.close();
+        }
+    }
+
+    @Test
+    public void testCloseFlushes() throws Exception {
+        CapturingProducer producer = new CapturingProducer(getProperties(100, 60000));
+        producer.send(getMessage("id1"));
+        producer.send(getMessage("id2"));
+        assertEquals(2, producer.getQueueDepth());
+        producer.close();
+        int messages = 0;
+        for (List<ProducerData<String,Message>> batch : producer.sent) {
+            messages += batch.size();
+        }
+        assertEquals(2, messages);
+    }
+
+    @Test
+    public void testFailedBatchIsRetried() throws Exception {
+        Properties props = getProperties(1, 60000);
+        props.setProperty(BatchingKafkaProducer.BATCH_RETRY_MS, "10");
+        FailingProducer producer = new FailingProducer(props);
+        try {
+            producer.send(getMessage("id1"));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!producer.isFailing() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(producer.isFailing());
+            // Refused so a SpoolingProducer can spool it
+            try {
+                producer.send(getMessage("id2"));
+                fail("Messages should be refused while sends are failing");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+
+            // The failed batch goes out once Kafka is back
+            producer.failing = false;
+            List<ProducerData<String,Message>> batch = producer.sent.poll(5, TimeUnit.SECONDS);
+            assertEquals(1, batch.size());
+            assertEquals("id1", batch.get(0).getKey());
+            deadline = System.currentTimeMillis() + 5000;
+            while (producer.isFailing() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertFalse(producer.isFailing());
+            producer.send(getMessage("id3"));
+            batch = producer.sent.poll(5, TimeUnit.SECONDS);
+            assertEquals("id3", batch.get(0).getKey());
+        } finally {
+            producer.close();
+        }
+    }
+
+    @Test
+    public void testListRefusedWhole() throws Exception {
+        Properties props = getProperties(1, 20);
+        props.setProperty(BatchingKafkaProducer.BATCH_SENDER_QUEUE_SIZE, "1");
+        final CountDownLatch blocked = new CountDownLatch(1);
+        CapturingProducer producer = new CapturingProducer(props) {
+            @Override
+            protected void sendProducerData(List<ProducerData<String,Message>> data) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.sendProducerData(data);
+            }
+        };
+        try {
+            // One batch being sent and one waiting fill up the sender
+            producer.send(getMessage("id1"));
+            producer.send(getMessage("id2"));
+            List<BagheeraMessage> msgs = new ArrayList<BagheeraMessage>();
+            for (int i = 0; i < 3; i++) {
+                msgs.add(getMessage("list" + i));
+            }
+            try {
+                producer.send(msgs);
+                fail("The list should be refused while the sender is full");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            // None of the list was taken on
+            assertEquals(2, producer.getQueueDepth());
+
+            blocked.countDown();
+            for (int i = 0; i < 2; i++) {
+                assertEquals(1, producer.sent.poll(5, TimeUnit.SECONDS).size());
+            }
+            // Once accepted, the whole list goes out even if the sender falls behind again
+            producer.send(msgs);
+            int messages = 0;
+            while (messages < 3) {
+                List<ProducerData<String,Message>> batch = producer.sent.poll(5, TimeUnit.SECONDS);
+                assertTrue(batch != null);
+                messages += batch.size();
+            }
+            assertEquals(3, messages);
+        } finally {
+            producer.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.producer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kafka.javaapi.producer.ProducerData;
+import kafka.message.Message;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+import com.mozilla.bagheera.serializer.EncodedMessage;
+
+public class KafkaProducerTest {
+
+    private static class StalledProducer extends KafkaProducer {
+        final CountDownLatch stalled = new CountDownLatch(1);
+
+        StalledProducer(Properties props) {
+            super(props);
+        }
+
+        @Override
+        protected void sendAckedProducerData(List<ProducerData<String,Message>> data) {
+            try {
+                stalled.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class CountingCallback implements ProducerCallback {
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        @Override
+        public void onCompletion() {
+            completed.incrementAndGet();
+        }
+
+        @Override
+        public void onFailure(Throwable cause) {
+            failed.incrementAndGet();
+        }
+    }
+
+    private EncodedMessage getMessage(String id) {
+        return EncodedMessage.encode(BagheeraMessage.newBuilder().setNamespace("test").setId(id).setPayload(ByteString.copyFromUtf8("{}")).build());
+    }
+
+    @Test
+    public void testAckedSendsAreBounded() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("broker.list", "0:localhost:9092");
+        props.setProperty("producer.type", "sync");
+        props.setProperty(KafkaProducer.ACK_THREADS, "1");
+        props.setProperty(KafkaProducer.ACK_QUEUE_SIZE, "1");
+        StalledProducer producer = new StalledProducer(props);
+        CountingCallback callback = new CountingCallback();
+        try {
+            // One send on the stalled thread, one waiting, the third is refused
+            for (int i = 0; i < 3; i++) {
+                producer.send(getMessage("id" + i), AckMode.ACKED, callback);
+            }
+            assertEquals(1, callback.failed.get());
+            assertEquals(2, producer.getQueueDepth());
+
+            producer.stalled.countDown();
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+            while (callback.completed.get() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, callback.completed.get());
+            assertEquals(0, producer.getQueueDepth());
+        } finally {
+            producer.close();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.producer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.protobuf.ByteString;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+import com.mozilla.bagheera.serializer.EncodedMessage;
+
+public class SpoolingProducerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class FlakyProducer implements Producer {
+        final List<String> sent = new CopyOnWriteArrayList<String>();
+        volatile boolean failing = false;
+
+        @Override
+        public void send(BagheeraMessage msg) {
+            send(EncodedMessage.encode(msg));
+        }
+
+        @Override
+        public void send(List<BagheeraMessage> msgs) {
+            for (BagheeraMessage msg : msgs) {
+                send(msg);
+            }
+        }
+
+        @Override
+        public void send(EncodedMessage msg) {
+            if (failing) {
+                throw new RuntimeException("Broker unavailable");
+            }
+            sent.add(msg.getId());
+        }
+
+        @Override
+        public void send(EncodedMessage msg, AckMode ackMode, ProducerCallback callback) {
+            try {
+                send(msg);
+            } catch (RuntimeException e) {
+                callback.onFailure(e);
+                return;
+            }
+            callback.onCompletion();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private BagheeraMessage getBagheeraMessage(String id) {
+        return BagheeraMessage.newBuilder().setNamespace("test").setId(id)
+            .setPayload(ByteString.copyFromUtf8("{\"id\":\"" + id + "\"}")).build();
+    }
+
+    private EncodedMessage getMessage(String id) {
+        return EncodedMessage.encode(getBagheeraMessage(id));
+    }
+
+    private void waitForDrain(SpoolingProducer producer) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (producer.isSpooling() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(producer.isSpooling());
+    }
+
+    @Test
+    public void testSpoolAndDrainInOrder() throws Exception {
+        FlakyProducer flaky = new FlakyProducer();
+        MessageSpool spool = new MessageSpool(folder.newFolder("spool"), 4096, 4);
+        SpoolingProducer producer = new SpoolingProducer(flaky, spool, 0, 10);
+        try {
+            producer.send(getMessage("1"));
+            flaky.failing = true;
+            producer.send(getMessage("2"));
+            producer.send(getMessage("3"));
+            assertTrue(producer.isSpooling());
+            assertEquals(2, producer.getSpoolDepth());
+            flaky.failing = false;
+            // Spooled messages go out before anything sent later
+            producer.send(getMessage("4"));
+            waitForDrain(producer);
+            assertEquals("[1, 2, 3, 4]", flaky.sent.toString());
+            assertEquals(0, producer.getSpoolDepth());
+        } finally {
+            producer.close();
+        }
+    }
+
+    @Test
+    public void testAckedWhileSpooling() throws Exception {
+        FlakyProducer flaky = new FlakyProducer();
+        flaky.failing = true;
+        MessageSpool spool = new MessageSpool(folder.newFolder("spool"), 4096, 4);
+        SpoolingProducer producer = new SpoolingProducer(flaky, spool, 0, 10000);
+        try {
+            producer.send(getMessage("1"));
+            assertTrue(producer.isSpooling());
+            final AtomicBoolean failed = new AtomicBoolean();
+            producer.send(getMessage("2"), AckMode.ACKED, new ProducerCallback() {
+                @Override
+                public void onCompletion() {
+                }
+
+                @Override
+                public void onFailure(Throwable cause) {
+                    failed.set(true);
+                }
+            });
+            // Acked messages are never spooled
+            assertTrue(failed.get());
+            assertEquals(1, producer.getSpoolDepth());
+        } finally {
+            producer.close();
+        }
+    }
+
+    @Test
+    public void testSpoolFull() throws Exception {
+        FlakyProducer flaky = new FlakyProducer();
+        flaky.failing = true;
+        // Room for a single small record
+        MessageSpool spool = new MessageSpool(folder.newFolder("spool"), 64, 1);
+        SpoolingProducer producer = new SpoolingProducer(flaky, spool, 0, 10);
+        try {
+            producer.send(getMessage("1"));
+            try {
+                producer.send(getMessage("2"));
+                fail("Expected the spool to be full");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            assertEquals(1, producer.getSpoolDepth());
+        } finally {
+            producer.close();
+        }
+    }
+
+    @Test
+    public void testRecoverAfterRestart() throws Exception {
+        File dir = folder.newFolder("spool");
+        MessageSpool spool = new MessageSpool(dir, 4096, 4);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(spool.append(getMessage(String.valueOf(i))));
+        }
+        // Remove a couple so the read position has to be recovered too
+        for (int i = 0; i < 2; i++) {
+            spool.peek();
+            spool.remove();
+        }
+        spool.close();
+
+        spool = new MessageSpool(dir, 4096, 4);
+        assertEquals(8, spool.size());
+        FlakyProducer flaky = new FlakyProducer();
+        SpoolingProducer producer = new SpoolingProducer(flaky, spool, 0, 10);
+        try {
+            waitForDrain(producer);
+            assertEquals("[2, 3, 4, 5, 6, 7, 8, 9]", flaky.sent.toString());
+        } finally {
+            producer.close();
+        }
+        // The drained segment is gone
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    private void flipByte(File segment, long offset) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.seek(offset);
+        byte b = raf.readByte();
+        raf.seek(offset);
+        raf.writeByte(b ^ 0xff);
+        raf.close();
+    }
+
+    @Test
+    public void testCorruptRecord() throws Exception {
+        File dir = folder.newFolder("spool");
+        MessageSpool spool = new MessageSpool(dir, 4096, 4);
+        EncodedMessage first = getMessage("first");
+        spool.append(first);
+        spool.append(getMessage("second"));
+        spool.close();
+
+        // Flip a byte in the body of the second record
+        File segment = dir.listFiles()[0];
+        int recordLength = MessageSpool.RECORD_HEADER_SIZE + 2 + "test".length() + 2 + "first".length() + first.getSerializedSize();
+        flipByte(segment, MessageSpool.SEGMENT_HEADER_SIZE + recordLength + MessageSpool.RECORD_HEADER_SIZE + 3);
+
+        spool = new MessageSpool(dir, 4096, 4);
+        assertEquals(1, spool.size());
+        assertEquals(1, spool.getCorruptRecords());
+        assertEquals("first", spool.peek().getId());
+        spool.remove();
+        assertNull(spool.peek());
+        spool.close();
+    }
+
+    @Test
+    public void testAppendAfterCorruptRecord() throws Exception {
+        File dir = folder.newFolder("spool");
+        MessageSpool spool = new MessageSpool(dir, 4096, 4);
+        EncodedMessage first = getMessage("first");
+        spool.append(first);
+        spool.append(getMessage("second"));
+        spool.close();
+
+        int recordLength = MessageSpool.RECORD_HEADER_SIZE + 2 + "test".length() + 2 + "first".length() + first.getSerializedSize();
+        flipByte(dir.listFiles()[0], MessageSpool.SEGMENT_HEADER_SIZE + recordLength + MessageSpool.RECORD_HEADER_SIZE + 3);
+
+        // New records go to a segment of their own rather than over the corrupt one
+        spool = new MessageSpool(dir, 4096, 4);
+        assertTrue(spool.append(getMessage("third")));
+        assertEquals(2, dir.listFiles().length);
+        spool.close();
+
+        spool = new MessageSpool(dir, 4096, 4);
+        assertEquals(2, spool.size());
+        assertEquals("first", spool.peek().getId());
+        spool.remove();
+        assertEquals("third", spool.peek().getId());
+        spool.remove();
+        assertNull(spool.peek());
+        spool.close();
+    }
+
+    @Test
+    public void testBadSegmentHeader() throws Exception {
+        File dir = folder.newFolder("spool");
+        MessageSpool spool = new MessageSpool(dir, 4096, 4);
+        spool.append(getMessage("first"));
+        spool.close();
+        flipByte(dir.listFiles()[0], 0);
+
+        spool = new MessageSpool(dir, 4096, 4);
+        assertEquals(0, spool.size());
+        assertEquals(1, spool.getCorruptRecords());
+        // The segment is gone rather than left taking up room
+        assertEquals(0, dir.listFiles().length);
+        spool.close();
+    }
+
+    @Test
+    public void testCorruptRecordWhileReading() throws Exception {
+        File dir = folder.newFolder("spool");
+        MessageSpool spool = new MessageSpool(dir, 4096, 4);
+        EncodedMessage first = getMessage("first");
+        spool.append(first);
+        spool.append(getMessage("second"));
+        spool.append(getMessage("third"));
+        assertEquals(3, spool.size());
+
+        // The segment is mapped, so this shows up in the running spool
+        int recordLength = MessageSpool.RECORD_HEADER_SIZE + 2 + "test".length() + 2 + "first".length() + first.getSerializedSize();
+        flipByte(dir.listFiles()[0], MessageSpool.SEGMENT_HEADER_SIZE + recordLength + MessageSpool.RECORD_HEADER_SIZE + 3);
+
+        assertEquals("first", spool.peek().getId());
+        spool.remove();
+        // The rest of the segment is skipped and no longer counted
+        assertNull(spool.peek());
+        assertEquals(1, spool.getCorruptRecords());
+        assertEquals(0, spool.size());
+        assertEquals(0, spool.byteSize());
+        spool.close();
+    }
+
+    @Test
+    public void testListSpooledWhole() throws Exception {
+        FlakyProducer flaky = new FlakyProducer();
+        flaky.failing = true;
+        // Room for a single small record
+        MessageSpool spool = new MessageSpool(folder.newFolder("spool"), 64, 1);
+        SpoolingProducer producer = new SpoolingProducer(flaky, spool, 0, 10000);
+        try {
+            List<BagheeraMessage> msgs = new ArrayList<BagheeraMessage>();
+            msgs.add(getBagheeraMessage("1"));
+            msgs.add(getBagheeraMessage("2"));
+            try {
+                producer.send(msgs);
+                fail("Expected the spool to be full");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            // Neither of them was spooled
+            assertEquals(0, producer.getSpoolDepth());
+            producer.send(msgs.subList(0, 1));
+            assertEquals(1, producer.getSpoolDepth());
+        } finally {
+            producer.close();
+        }
+    }
+}
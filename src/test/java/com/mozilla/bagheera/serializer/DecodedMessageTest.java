@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.serializer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+import kafka.message.Message;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage.Operation;
+
+public class DecodedMessageTest {
+
+    private BagheeraMessage getEnvelope() {
+        BagheeraMessage.Builder builder = BagheeraMessage.newBuilder();
+        builder.setNamespace("test");
+        builder.setId(UUID.randomUUID().toString());
+        builder.setIpAddr(ByteString.copyFrom(new byte[] { 127, 0, 0, 1 }));
+        builder.setTimestamp(System.currentTimeMillis());
+        builder.addPartition("part1");
+        return builder.build();
+    }
+
+    private byte[] getPayload() {
+        byte[] payload = new byte[4096];
+        Arrays.fill(payload, (byte)'x');
+        return payload;
+    }
+
+    @Test
+    public void testDecodeKafkaMessage() throws Exception {
+        byte[] payload = getPayload();
+        // setPayload writes the payload in the middle of the message, between the envelope's fields
+        BagheeraMessage msg = BagheeraMessage.newBuilder(getEnvelope()).setPayload(ByteString.copyFrom(payload)).build();
+        Message message = new Message(msg.toByteArray());
+
+        DecodedMessage decoded = DecodedMessage.decode(message);
+        assertEquals(BagheeraMessage.newBuilder(msg).clearPayload().build(), decoded.getEnvelope());
+        assertTrue(decoded.hasPayload());
+        assertEquals(ByteBuffer.wrap(payload), decoded.getPayload());
+        assertTrue(decoded.getPayload().isReadOnly());
+        // The payload wasn't copied out of the message's buffer
+        assertSame(message.buffer().array(), decoded.getPayloadArray());
+        assertEquals(payload.length, decoded.getPayloadLength());
+        // The message's buffer is left alone
+        assertEquals(msg.getSerializedSize(), message.payload().remaining());
+    }
+
+    @Test
+    public void testDecodeEncodedMessage() throws Exception {
+        BagheeraMessage envelope = getEnvelope();
+        byte[] payload = getPayload();
+        Message message = EncodedMessage.encode(envelope, ChannelBuffers.wrappedBuffer(payload)).toKafkaMessage();
+
+        DecodedMessage decoded = DecodedMessage.decode(message);
+        assertEquals(envelope, decoded.getEnvelope());
+        assertEquals(ByteBuffer.wrap(payload), decoded.getPayload());
+    }
+
+    @Test
+    public void testDecodeWithoutPayload() throws Exception {
+        BagheeraMessage msg = BagheeraMessage.newBuilder(getEnvelope()).setOperation(Operation.DELETE)
+                                  .addDeleteId("a").addDeleteId("b").build();
+        DecodedMessage decoded = DecodedMessage.decode(ByteBuffer.wrap(msg.toByteArray()));
+        assertEquals(msg, decoded.getEnvelope());
+        assertFalse(decoded.hasPayload());
+        assertNull(decoded.getPayload());
+    }
+
+    @Test
+    public void testDecodeDirectBuffer() throws Exception {
+        byte[] payload = getPayload();
+        BagheeraMessage msg = BagheeraMessage.newBuilder(getEnvelope()).setPayload(ByteString.copyFrom(payload)).build();
+        byte[] bytes = msg.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+
+        DecodedMessage decoded = DecodedMessage.decode(buffer);
+        assertEquals(ByteBuffer.wrap(payload), decoded.getPayload());
+        assertEquals(0, buffer.position());
+    }
+
+    @Test(expected=InvalidProtocolBufferException.class)
+    public void testDecodeTruncated() throws Exception {
+        BagheeraMessage msg = BagheeraMessage.newBuilder(getEnvelope()).setPayload(ByteString.copyFrom(getPayload())).build();
+        byte[] bytes = msg.toByteArray();
+        DecodedMessage.decode(bytes, 0, bytes.length - 100);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.serializer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.UUID;
+
+import kafka.message.Message;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+import com.mozilla.bagheera.BagheeraProto.BagheeraMessage;
+
+public class EncodedMessageTest {
+
+    private static final int PAYLOAD_SIZE = 4096;
+
+    private BagheeraMessage getEnvelope() {
+        BagheeraMessage.Builder builder = BagheeraMessage.newBuilder();
+        builder.setNamespace("test");
+        builder.setId(UUID.randomUUID().toString());
+        builder.setIpAddr(ByteString.copyFrom(new byte[] { 127, 0, 0, 1 }));
+        builder.setTimestamp(System.currentTimeMillis());
+        builder.addPartition("part1");
+        return builder.buildPartial();
+    }
+
+    private ChannelBuffer getPayload() {
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        Arrays.fill(payload, (byte)'x');
+        return ChannelBuffers.wrappedBuffer(payload);
+    }
+
+    @Test
+    public void testEncodeMessage() throws Exception {
+        BagheeraMessage msg = BagheeraMessage.newBuilder(getEnvelope()).setPayload(ByteString.copyFromUtf8("{}")).build();
+        EncodedMessage encoded = EncodedMessage.encode(msg);
+        assertEquals(msg.getNamespace(), encoded.getNamespace());
+        assertEquals(msg.getId(), encoded.getId());
+        assertEquals(msg.getSerializedSize(), encoded.getSerializedSize());
+        assertEquals(msg, encoded.decode());
+    }
+
+    @Test
+    public void testEncodeEnvelopeAndPayload() throws Exception {
+        BagheeraMessage envelope = getEnvelope();
+        ChannelBuffer payload = getPayload();
+        EncodedMessage encoded = EncodedMessage.encode(envelope, payload);
+        BagheeraMessage expected = BagheeraMessage.newBuilder(envelope).setPayload(ByteString.copyFrom(payload.toByteBuffer())).build();
+        assertEquals(expected, encoded.decode());
+        // The reader index of the request buffer is left alone
+        assertEquals(PAYLOAD_SIZE, payload.readableBytes());
+    }
+
+    @Test
+    public void testKafkaMessage() throws Exception {
+        BagheeraMessage envelope = getEnvelope();
+        Message message = EncodedMessage.encode(envelope, getPayload()).toKafkaMessage();
+        assertTrue(message.isValid());
+        BagheeraMessage decoded = BagheeraMessage.parseFrom(ByteString.copyFrom(message.payload()));
+        assertEquals(envelope.getId(), decoded.getId());
+        assertEquals(PAYLOAD_SIZE, decoded.getPayload().size());
+
+        // Matches what Kafka would have built from the serialized bytes itself
+        Message expected = new Message(decoded.toByteArray());
+        assertEquals(expected.checksum(), message.checksum());
+        assertEquals(expected.payload(), message.payload());
+    }
+
+    private long allocatedBytes(com.sun.management.ThreadMXBean bean) {
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private Message copyingPath(BagheeraMessage envelope, ChannelBuffer content) {
+        BagheeraMessage.Builder storeBuilder = BagheeraMessage.newBuilder(envelope);
+        storeBuilder.setPayload(ByteString.copyFrom(content.toByteBuffer()));
+        return new Message(storeBuilder.build().toByteArray());
+    }
+
+    private Message encodedPath(BagheeraMessage envelope, ChannelBuffer content) {
+        return EncodedMessage.encode(envelope, content).toKafkaMessage();
+    }
+
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void testAllocationPerRequest() {
+        // Compare the bytes allocated per request by the old copying path
+        // (ByteString.copyFrom + toByteArray + new Message) and the encoded path.
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("Thread allocation counters not available, skipping");
+            return;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) {
+            System.out.println("Thread allocation counters not enabled, skipping");
+            return;
+        }
+
+        int numIterations = 10000;
+        BagheeraMessage envelope = getEnvelope();
+        ChannelBuffer content = getPayload();
+
+        // Warm up both paths
+        long total = 0;
+        for (int i = 0; i < numIterations; i++) {
+            total += copyingPath(envelope, content).size();
+            total += encodedPath(envelope, content).size();
+        }
+
+        long start = allocatedBytes(bean);
+        for (int i = 0; i < numIterations; i++) {
+            total += copyingPath(envelope, content).size();
+        }
+        long copyingBytes = (allocatedBytes(bean) - start) / numIterations;
+
+        start = allocatedBytes(bean);
+        for (int i = 0; i < numIterations; i++) {
+            total += encodedPath(envelope, content).size();
+        }
+        long encodedBytes = (allocatedBytes(bean) - start) / numIterations;
+
+        assertTrue(total > 0);
+        assertTrue(encodedBytes < copyingBytes);
+
+        System.out.println(String.format("Bytes allocated per %d byte request: copying %d, encoded %d (%.02fx less)",
+                PAYLOAD_SIZE, copyingBytes, encodedBytes, (double)copyingBytes / encodedBytes));
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.sink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class CompositeSinkTest {
+
+    /**
+     * Remembers what it was given, optionally holding up every batch until released.
+     */
+    public static class RecordingSink implements KeyValueSink {
+        final List<String> stored = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> deleted = Collections.synchronizedList(new ArrayList<String>());
+        volatile int flushes;
+        volatile CountDownLatch release;
+        volatile boolean fail;
+
+        public RecordingSink() {
+        }
+
+        public RecordingSink(SinkConfiguration sinkConfiguration) {
+        }
+
+        private void hold() throws IOException {
+            if (fail) {
+                throw new IOException("sink failed");
+            }
+            CountDownLatch latch = release;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+            }
+        }
+
+        @Override
+        public void store(String key, byte[] data) throws IOException {
+            stored.add(key + "=" + new String(data, "UTF-8"));
+        }
+
+        @Override
+        public void store(String key, byte[] data, long timestamp) throws IOException {
+            store(key, data);
+        }
+
+        @Override
+        public void delete(String key) {
+            deleted.add(key);
+        }
+
+        @Override
+        public void storeBatch(RecordBatch batch) throws IOException {
+            hold();
+            for (int i = 0; i < batch.size(); i++) {
+                stored.add(batch.getKey(i) + "=" + new String(batch.getDataArray(i), batch.getDataOffset(i),
+                                                              batch.getDataLength(i), "UTF-8"));
+            }
+        }
+
+        @Override
+        public void deleteBatch(RecordBatch batch) throws IOException {
+            hold();
+            for (int i = 0; i < batch.size(); i++) {
+                deleted.add(batch.getKey(i));
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            hold();
+            flushes++;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private CompositeSink newSink(RecordingSink... sinks) {
+        Map<String, KeyValueSink> named = new LinkedHashMap<String, KeyValueSink>();
+        for (int i = 0; i < sinks.length; i++) {
+            named.put("sink" + i, sinks[i]);
+        }
+        return new CompositeSink("test", named, 4);
+    }
+
+    @Test
+    public void testFanOut() throws IOException {
+        RecordingSink first = new RecordingSink();
+        RecordingSink second = new RecordingSink();
+        CompositeSink sink = newSink(first, second);
+
+        RecordBatch batch = new RecordBatch();
+        batch.add("a", "1".getBytes());
+        batch.add("b", "--2--".getBytes(), 2, 1, 1000L);
+        sink.storeBatch(batch);
+        // The caller's batch can be reused as soon as storeBatch returns
+        batch.clear();
+        batch.addKey("c");
+        sink.deleteBatch(batch);
+        sink.store("d", "4".getBytes());
+        sink.flush();
+
+        for (RecordingSink recording : Arrays.asList(first, second)) {
+            assertEquals(Arrays.asList("a=1", "b=2", "d=4"), recording.stored);
+            assertEquals(Arrays.asList("c"), recording.deleted);
+            assertEquals(1, recording.flushes);
+        }
+        sink.close();
+    }
+
+    @Test
+    public void testSlowSink() throws Exception {
+        RecordingSink fast = new RecordingSink();
+        RecordingSink slow = new RecordingSink();
+        slow.release = new CountDownLatch(1);
+        CompositeSink sink = newSink(fast, slow);
+
+        RecordBatch batch = new RecordBatch();
+        batch.add("a", "1".getBytes());
+        batch.add("b", "2".getBytes());
+        sink.storeBatch(batch);
+        sink.storeBatch(batch);
+        while (fast.stored.size() < 4) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(20);
+        // The fast sink has caught up while the slow one falls behind
+        assertEquals(0, sink.getQueuedRecords("sink0"));
+        assertEquals(0, sink.getLagMillis("sink0"));
+        assertEquals(4, sink.getQueuedRecords("sink1"));
+        assertTrue(sink.getLagMillis("sink1") >= 20);
+
+        slow.release.countDown();
+        sink.flush();
+        assertEquals(4, slow.stored.size());
+        assertEquals(0, sink.getQueuedRecords("sink1"));
+        assertEquals(0, sink.getLagMillis("sink1"));
+        sink.close();
+    }
+
+    @Test
+    public void testFailedSink() throws IOException {
+        RecordingSink good = new RecordingSink();
+        RecordingSink bad = new RecordingSink();
+        bad.fail = true;
+        CompositeSink sink = newSink(good, bad);
+
+        sink.store("a", "1".getBytes());
+        try {
+            sink.flush();
+            fail("Flush should report the failed sink");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            sink.store("b", "2".getBytes());
+            fail("Nothing should be stored after a sink failed");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(Arrays.asList("a=1"), good.stored);
+        sink.close();
+    }
+
+    @Test
+    public void testConfiguration() throws IOException {
+        SinkConfiguration config = new SinkConfiguration();
+        config.setString("namespace", "test");
+        config.setString(CompositeSink.SINKS, "logger, " + RecordingSink.class.getName());
+        CompositeSink sink = new CompositeSink(config);
+        sink.store("a", "1".getBytes());
+        sink.flush();
+        sink.close();
+
+        config.setString(CompositeSink.SINKS, "nosuchsink");
+        try {
+            new CompositeSink(config);
+            fail("Unknown sinks should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
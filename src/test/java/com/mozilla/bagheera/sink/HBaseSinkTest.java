@@ -21,18 +21,23 @@ package com.mozilla.bagheera.sink;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.commons.cli.ParseException;
 import org.apache.hadoop.hbase.HServerAddress;
+import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.HTablePool;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
 import org.apache.hadoop.hbase.client.Row;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -109,4 +114,111 @@ public class HBaseSinkTest {
         Mockito.verify(rowQueue, Mockito.times(2)).add((Put)Mockito.any());
     }
 
+    @Test
+    public void testMultiDelete() throws IOException {
+        HBaseSink sink = (HBaseSink) sinkFactory.getSink("test");
+
+        @SuppressWarnings("unchecked")
+        ConcurrentLinkedQueue<Row> rowQueue = Mockito.mock(ConcurrentLinkedQueue.class);
+        sink.rowQueue = rowQueue;
+        int queued = sink.rowQueueSize.get();
+
+        RecordBatch batch = new RecordBatch(2);
+        for (String key : Arrays.asList("delete1", "delete2", "delete3")) {
+            batch.addKey(key);
+        }
+        sink.deleteBatch(batch);
+        Mockito.verify(rowQueue, Mockito.times(3)).add((Delete)Mockito.any());
+        Assert.assertEquals(queued + 3, sink.rowQueueSize.get());
+    }
+
+    @Test
+    public void testStoreBatch() throws IOException {
+        HBaseSink sink = (HBaseSink) sinkFactory.getSink("test");
+
+        @SuppressWarnings("unchecked")
+        ConcurrentLinkedQueue<Row> rowQueue = Mockito.mock(ConcurrentLinkedQueue.class);
+        sink.rowQueue = rowQueue;
+        int queued = sink.rowQueueSize.get();
+
+        RecordBatch batch = new RecordBatch();
+        batch.add("test1", "acceptable".getBytes());
+        batch.add("test2", new byte[50*1000*1000]); // 50MB
+        batch.add("test3", "acceptable".getBytes(), new Date().getTime());
+        sink.storeBatch(batch);
+        // The oversized record is left out
+        Mockito.verify(rowQueue, Mockito.times(2)).add((Put)Mockito.any());
+        Assert.assertEquals(queued + 2, sink.rowQueueSize.get());
+
+        // The batch can be reused once it's cleared
+        batch.clear();
+        Assert.assertTrue(batch.isEmpty());
+        batch.add("test4", "acceptable".getBytes());
+        Assert.assertEquals("test4", batch.getKey(0));
+        Assert.assertFalse(batch.hasTimestamp(0));
+    }
+
+    @Test
+    public void testStoreBatchSlice() throws IOException {
+        HBaseSink sink = (HBaseSink) sinkFactory.getSink("test");
+
+        @SuppressWarnings("unchecked")
+        ConcurrentLinkedQueue<Row> rowQueue = Mockito.mock(ConcurrentLinkedQueue.class);
+        sink.rowQueue = rowQueue;
+
+        RecordBatch batch = new RecordBatch();
+        batch.add("test1", "--acceptable--".getBytes(), 2, 10);
+        sink.storeBatch(batch);
+        ArgumentCaptor<Put> put = ArgumentCaptor.forClass(Put.class);
+        Mockito.verify(rowQueue).add(put.capture());
+        // Only the slice is stored
+        Assert.assertArrayEquals("acceptable".getBytes(), put.getValue().get(sink.family, sink.qualifier).get(0).getValue());
+    }
+
+    @Test
+    public void testFlushReportsLostRows() throws Exception {
+        HBaseSink sink = (HBaseSink) sinkFactory.getSink("test");
+        sink.hbasePool = hbasePool;
+        sink.rowQueue = new ConcurrentLinkedQueue<Row>();
+        sink.failedRows.set(0);
+        // HBase gives up on the row every time
+        Mockito.when(htable.batch(Mockito.anyListOf(Row.class))).thenReturn(new Object[] { null });
+
+        sink.store("test1", "acceptable".getBytes());
+        try {
+            sink.flush();
+            Assert.fail("Flush should report the lost row");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertTrue(sink.rowQueue.isEmpty());
+        // Nothing has been lost since
+        sink.flush();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFlushRetriesSameRows() throws Exception {
+        HBaseSink sink = (HBaseSink) sinkFactory.getSink("test");
+        sink.setRetrySleepSeconds(0);
+        sink.hbasePool = hbasePool;
+        sink.rowQueue = new ConcurrentLinkedQueue<Row>();
+        sink.failedRows.set(0);
+        // The first attempt fails outright, the second stores the row
+        Mockito.when(htable.batch(Mockito.anyListOf(Row.class)))
+            .thenThrow(new IOException("region moved"))
+            .thenReturn(new Object[] { new Object() });
+
+        sink.store("test1", "acceptable".getBytes());
+        sink.flush();
+
+        ArgumentCaptor<List> rows = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(htable, Mockito.times(2)).batch(rows.capture());
+        for (List<?> attempt : rows.getAllValues()) {
+            Assert.assertEquals(1, attempt.size());
+        }
+        Assert.assertTrue(sink.rowQueue.isEmpty());
+        Assert.assertEquals(0, sink.failedRows.get());
+    }
+
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BoundedRingTest {
+
+    @Test
+    public void testCapacityRoundedUp() {
+        assertEquals(8, new BoundedRing<Integer>(5).getCapacity());
+        assertEquals(8, new BoundedRing<Integer>(8).getCapacity());
+    }
+
+    @Test
+    public void testOfferPoll() {
+        BoundedRing<Integer> ring = new BoundedRing<Integer>(4);
+        assertNull(ring.poll());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4));
+        assertEquals(4, ring.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i), ring.poll());
+        }
+        assertNull(ring.poll());
+        assertEquals(0, ring.size());
+
+        // Wraps around
+        assertTrue(ring.offer(4));
+        assertEquals(Integer.valueOf(4), ring.poll());
+    }
+
+    @Test
+    public void testTakeInterrupted() {
+        BoundedRing<Integer> ring = new BoundedRing<Integer>(4);
+        Thread.currentThread().interrupt();
+        try {
+            ring.take();
+            assertTrue(false);
+        } catch (InterruptedException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testProducersAndConsumer() throws InterruptedException {
+        final BoundedRing<Integer> ring = new BoundedRing<Integer>(16);
+        final int numThreads = 4;
+        final int perThread = 50000;
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int producer = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            ring.put(producer * perThread + i);
+                        }
+                    } catch (InterruptedException e) {
+                        // test fails on the counts
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        // Each producer's elements come out in the order they were put
+        int[] last = new int[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            last[t] = -1;
+        }
+        for (int n = 0; n < numThreads * perThread; n++) {
+            int value = ring.take();
+            int producer = value / perThread;
+            assertTrue(value % perThread > last[producer]);
+            last[producer] = value % perThread;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int t = 0; t < numThreads; t++) {
+            assertEquals(perThread - 1, last[t]);
+        }
+        assertNull(ring.poll());
+    }
+}
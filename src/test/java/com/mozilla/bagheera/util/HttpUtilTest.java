@@ -21,14 +21,18 @@ package com.mozilla.bagheera.util;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.List;
 
 import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 
 public class HttpUtilTest {
@@ -68,4 +72,70 @@ public class HttpUtilTest {
         assertEquals("127.0.0.2", addrStr);
     }
 
+    @Test
+    public void testGetRemoteAddrBytesNotLiteral() throws UnknownHostException {
+        // Names are never looked up
+        request.setHeader(HttpUtil.X_FORWARDED_FOR, "localhost, 127.0.0.3");
+        byte[] addrBytes = HttpUtil.getRemoteAddr(request, addr);
+        assertEquals(addr.getHostAddress(), InetAddress.getByAddress(addrBytes).getHostAddress());
+    }
+
+    @Test
+    public void testClientAddressWithoutTrustedProxies() {
+        InetSocketAddress peer = new InetSocketAddress("10.0.0.1", 51723);
+        assertEquals("127.0.0.2", HttpUtil.getClientAddress(request, peer, HttpUtil.NO_TRUSTED_PROXIES).getHost());
+        assertEquals("10.0.0.1", HttpUtil.getClientAddress((String)null, peer, HttpUtil.NO_TRUSTED_PROXIES).getHost());
+        assertEquals("10.0.0.1", HttpUtil.getClientAddress("unknown", peer, HttpUtil.NO_TRUSTED_PROXIES).getHost());
+    }
+
+    @Test
+    public void testClientAddressWithTrustedProxies() {
+        List<CidrBlock> trusted = CidrBlock.parseList("10.0.0.0/8,192.168.1.1");
+        InetSocketAddress proxy = new InetSocketAddress("10.0.0.1", 51723);
+        InetSocketAddress stranger = new InetSocketAddress("8.8.8.8", 51723);
+
+        // Spoofed entries to the left of the first untrusted hop are ignored
+        assertEquals("1.2.3.4", HttpUtil.getClientAddress("6.6.6.6, 1.2.3.4, 192.168.1.1, 10.1.1.1", proxy, trusted).getHost());
+        assertEquals("1.2.3.4", HttpUtil.getClientAddress("1.2.3.4", proxy, trusted).getHost());
+        // Only trusted peers can forward
+        assertEquals("8.8.8.8", HttpUtil.getClientAddress("1.2.3.4", stranger, trusted).getHost());
+        // A hop that isn't a literal ends the chain
+        assertEquals("10.1.1.1", HttpUtil.getClientAddress("1.2.3.4, garbage, 10.1.1.1", proxy, trusted).getHost());
+        // All of them trusted, so the first one it is
+        assertEquals("10.2.2.2", HttpUtil.getClientAddress("10.2.2.2, 10.1.1.1", proxy, trusted).getHost());
+        assertEquals(16, HttpUtil.getClientAddress("2001:db8::1", proxy, trusted).getAddress().length);
+    }
+
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void testClientAddressPerformance() throws UnknownHostException {
+        // Compares the single pass parse with finding the first forwarded address
+        // and handing it to InetAddress, as this used to do
+        List<CidrBlock> trusted = CidrBlock.parseList("10.0.0.0/8");
+        InetSocketAddress peer = new InetSocketAddress("10.0.0.1", 51723);
+        String forwardedFor = "203.0.113.195, 10.1.2.3, 10.4.5.6";
+        int numIterations = 1000000;
+
+        long total = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < numIterations; i++) {
+            String first = forwardedFor.substring(0, forwardedFor.indexOf(","));
+            total += InetAddress.getByName(first).getAddress()[0];
+        }
+        long inetAddressDuration = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < numIterations; i++) {
+            total -= HttpUtil.getClientAddress(forwardedFor, peer, trusted).getAddress()[0];
+        }
+        long parserDuration = System.nanoTime() - start;
+
+        assertEquals(0, total);
+        double nanosPerRequest = (double)parserDuration / numIterations;
+        // Generous, it takes well under a microsecond
+        assertTrue(nanosPerRequest < 20000);
+
+        System.out.println(String.format("InetAddress took %.01f ns per request, the parser with trusted proxies %.01f ns per request",
+                                         (double)inetAddressDuration / numIterations, nanosPerRequest));
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class IdGeneratorTest {
+
+    @Test
+    public void testRandomIds() {
+        IdGenerator generator = new IdGenerator(false);
+        Set<String> ids = new HashSet<String>();
+        for (int i = 0; i < 10000; i++) {
+            String id = generator.nextId();
+            assertTrue(UuidUtil.isValidUuid(id));
+            UUID uuid = UUID.fromString(id);
+            assertEquals(4, uuid.version());
+            assertEquals(2, uuid.variant());
+            ids.add(id);
+        }
+        assertEquals(10000, ids.size());
+    }
+
+    @Test
+    public void testTimeOrderedIds() throws InterruptedException {
+        IdGenerator generator = new IdGenerator(true);
+        long before = System.currentTimeMillis();
+        String first = generator.nextId();
+        Thread.sleep(5);
+        String second = generator.nextId();
+        long after = System.currentTimeMillis();
+
+        UUID uuid = UUID.fromString(first);
+        assertEquals(7, uuid.version());
+        assertEquals(2, uuid.variant());
+        long millis = uuid.getMostSignificantBits() >>> 16;
+        assertTrue(millis >= before && millis <= after);
+        // Later ids sort after earlier ones
+        assertTrue(first.compareTo(second) < 0);
+    }
+
+    private long timeThreads(int numThreads, final int idsPerThread, final boolean useGenerator) throws InterruptedException {
+        final IdGenerator generator = new IdGenerator(false);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(numThreads);
+        final AtomicLong length = new AtomicLong();
+        for (int t = 0; t < numThreads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long total = 0;
+                    for (int i = 0; i < idsPerThread; i++) {
+                        total += useGenerator ? generator.nextId().length() : UUID.randomUUID().toString().length();
+                    }
+                    length.addAndGet(total);
+                    doneLatch.countDown();
+                }
+            }).start();
+        }
+        long start = System.nanoTime();
+        startLatch.countDown();
+        doneLatch.await();
+        long duration = System.nanoTime() - start;
+        assertEquals((long)numThreads * idsPerThread * UuidUtil.UUID_LENGTH, length.get());
+        return duration;
+    }
+
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void testGeneratorPerformance() throws InterruptedException {
+        // Compares with UUID.randomUUID from as many threads as there are cores
+        int numThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        int idsPerThread = 50000;
+        int numIds = numThreads * idsPerThread;
+
+        long randomUuidDuration = timeThreads(numThreads, idsPerThread, false);
+        long generatorDuration = timeThreads(numThreads, idsPerThread, true);
+
+        double nanosPerId = (double)generatorDuration / numIds;
+        // Generous, it takes around a microsecond
+        assertTrue(nanosPerId < 50000);
+
+        System.out.println(String.format("UUID.randomUUID took %.01f ns per id, IdGenerator %.01f ns per id (%d threads)",
+                                         (double)randomUuidDuration / numIds, nanosPerId, numThreads));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+public class IpAddressParserTest {
+
+    private static void assertParsed(String literal) throws UnknownHostException {
+        assertArrayEquals(literal, InetAddress.getByName(literal).getAddress(), IpAddressParser.parse(literal));
+    }
+
+    @Test
+    public void testIPv4() throws UnknownHostException {
+        assertParsed("127.0.0.1");
+        assertParsed("0.0.0.0");
+        assertParsed("255.255.255.255");
+        assertParsed("10.1.22.133");
+        assertArrayEquals(InetAddress.getByName("10.0.0.1").getAddress(), IpAddressParser.parse(" 10.0.0.1:8080 "));
+    }
+
+    @Test
+    public void testIPv6() throws UnknownHostException {
+        assertParsed("::");
+        assertParsed("::1");
+        assertParsed("1::");
+        assertParsed("2001:db8::ff00:42:8329");
+        assertParsed("2001:0db8:0000:0000:0000:ff00:0042:8329");
+        assertParsed("fe80::1:2:3:4");
+        assertParsed("::192.168.1.1");
+        assertParsed("64:ff9b::192.0.2.33");
+        assertArrayEquals(InetAddress.getByName("::1").getAddress(), IpAddressParser.parse("[::1]:443"));
+        assertArrayEquals(InetAddress.getByName("fe80::1").getAddress(), IpAddressParser.parse("fe80::1%eth0"));
+        // Mapped addresses are IPv4 addresses, as with InetAddress
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, IpAddressParser.parse("::ffff:1.2.3.4"));
+    }
+
+    @Test
+    public void testNotLiterals() {
+        String[] invalid = { "", " ", "unknown", "localhost", "example.com", "1.2.3", "1.2.3.4.5", "256.1.1.1",
+                             "1.2.3.4:", "1.2.3.4:123456", "1..2.3", "1.2.3.4x", ":::", "1:2:3:4:5:6:7:8:9",
+                             "1::2::3", "12345::", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8::", "::1:", "[::1", "[::1]x",
+                             "g::1", "1:2:3:4:5:6:7:1.2.3.4" };
+        for (String s : invalid) {
+            assertNull(s, IpAddressParser.parse(s));
+        }
+        assertNull(IpAddressParser.parse(null));
+    }
+
+    @Test
+    public void testFormat() throws UnknownHostException {
+        String[] literals = { "1.2.3.4", "2001:db8::ff00:42:8329", "::1" };
+        for (String literal : literals) {
+            InetAddress addr = InetAddress.getByName(literal);
+            assertEquals(addr.getHostAddress(), IpAddressParser.format(addr.getAddress()));
+        }
+    }
+
+    @Test
+    public void testCidrBlock() {
+        CidrBlock block = CidrBlock.parse("10.0.0.0/8");
+        assertTrue(block.contains(IpAddressParser.parse("10.255.1.2")));
+        assertFalse(block.contains(IpAddressParser.parse("11.0.0.1")));
+        assertFalse(block.contains(IpAddressParser.parse("::a00:1")));
+
+        block = CidrBlock.parse("192.168.4.0/22");
+        assertTrue(block.contains(IpAddressParser.parse("192.168.7.255")));
+        assertFalse(block.contains(IpAddressParser.parse("192.168.8.0")));
+
+        block = CidrBlock.parse("fd00::/8");
+        assertTrue(block.contains(IpAddressParser.parse("fd12:3456::1")));
+        assertFalse(block.contains(IpAddressParser.parse("fe80::1")));
+
+        assertTrue(CidrBlock.parse("127.0.0.1").contains(IpAddressParser.parse("127.0.0.1")));
+        assertFalse(CidrBlock.parse("127.0.0.1").contains(IpAddressParser.parse("127.0.0.2")));
+        assertEquals(2, CidrBlock.parseList("10.0.0.0/8, ::1").size());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidCidrBlock() {
+        CidrBlock.parse("10.0.0.0/33");
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class UuidUtilTest {
+
+    @Test
+    public void testIsValidUuid() {
+        for (int i = 0; i < 100; i++) {
+            String uuid = UUID.randomUUID().toString();
+            assertTrue(uuid, UuidUtil.isValidUuid(uuid));
+            assertTrue(uuid, UuidUtil.isValidUuid(uuid.toUpperCase()));
+        }
+        String[] invalid = { null, "", "fakeid", "1-1-1-1-1", "a1b2c3d4-e5f6-7890-abcd-ef123456789",
+                             "a1b2c3d4-e5f6-7890-abcd-ef1234567890a", "a1b2c3d4e-5f6-7890-abcd-ef123456789",
+                             "g1b2c3d4-e5f6-7890-abcd-ef1234567890", "a1b2c3d4-e5f6-7890-abcd-ef123456789\u0660",
+                             "a1b2c3d4-e5f6-7890-abcd-ef12345678\u00e90" };
+        for (String s : invalid) {
+            assertFalse(s, UuidUtil.isValidUuid(s));
+        }
+    }
+
+    @Test
+    public void testFormat() {
+        for (int i = 0; i < 100; i++) {
+            UUID uuid = UUID.randomUUID();
+            assertEquals(uuid.toString(), UuidUtil.format(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+        }
+    }
+
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void testValidationPerformance() {
+        // Compares with UUID.fromString, as Validator used to do, for a mix
+        // of good and bad ids
+        String[] ids = { UUID.randomUUID().toString(), "not-a-uuid", UUID.randomUUID().toString(), "../../etc/passwd" };
+        int numIterations = 1000000;
+
+        int fromStringValid = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < numIterations; i++) {
+            try {
+                UUID.fromString(ids[i % ids.length]);
+                fromStringValid++;
+            } catch (IllegalArgumentException e) {
+                // invalid
+            }
+        }
+        long fromStringDuration = System.nanoTime() - start;
+
+        int valid = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < numIterations; i++) {
+            if (UuidUtil.isValidUuid(ids[i % ids.length])) {
+                valid++;
+            }
+        }
+        long duration = System.nanoTime() - start;
+
+        assertEquals(fromStringValid, valid);
+        double nanosPerId = (double)duration / numIterations;
+        // Generous, it takes a few dozen nanoseconds
+        assertTrue(nanosPerId < 20000);
+
+        System.out.println(String.format("UUID.fromString took %.01f ns per id, UuidUtil.isValidUuid %.01f ns per id",
+                                         (double)fromStringDuration / numIterations, nanosPerId));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.validation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class NamespaceMatcherTest {
+
+    @Test
+    public void testLiteralsAndWildcards() {
+        NamespaceMatcher<String> matcher = new NamespaceMatcher<String>();
+        matcher.add("telemetry", "telemetry");
+        matcher.add("testpilot_*", "testpilot");
+        matcher.add("testpilot_beta_*", "beta");
+        matcher.add("*_staging", "staging");
+        matcher.add("marketplace_*_v2", "marketplace");
+
+        assertEquals("telemetry", matcher.match("telemetry"));
+        assertNull(matcher.match("xtelemetryx"));
+        assertNull(matcher.match("telemetr"));
+        assertEquals("testpilot", matcher.match("testpilot_foo"));
+        assertNull(matcher.match("testpilot_"));
+        // The longest prefix wins
+        assertEquals("beta", matcher.match("testpilot_beta_foo"));
+        assertEquals("staging", matcher.match("foo_staging"));
+        assertNull(matcher.match("_staging"));
+        assertEquals("marketplace", matcher.match("marketplace_apps_v2"));
+        assertNull(matcher.match("marketplace_v2"));
+        // Cached results are the same
+        assertEquals("testpilot", matcher.match("testpilot_foo"));
+        assertNull(matcher.match("xtelemetryx"));
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        NamespaceMatcher<String> matcher = new NamespaceMatcher<String>(10);
+        matcher.add("ns_*", "ns");
+        for (int i = 0; i < 100; i++) {
+            assertEquals("ns", matcher.match("ns_" + i));
+            assertNull(matcher.match("other_" + i));
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testTwoWildcards() {
+        new NamespaceMatcher<String>().add("a_*_*", "a");
+    }
+
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void testMatcherPerformance() {
+        // Compares the alternation regex Validator used to build with the
+        // matcher, for several hundred configured namespaces
+        int numNamespaces = 500;
+        NamespaceMatcher<String> matcher = new NamespaceMatcher<String>();
+        StringBuilder nsPatternBuilder = new StringBuilder("(");
+        for (int i = 0; i < numNamespaces; i++) {
+            String name = i % 2 == 0 ? "namespace" + i : "wildcard" + i + "_*";
+            matcher.add(name, name);
+            if (i > 0) {
+                nsPatternBuilder.append("|");
+            }
+            nsPatternBuilder.append(name.replaceAll("\\*", ".+"));
+        }
+        nsPatternBuilder.append(")");
+        Pattern pattern = Pattern.compile(nsPatternBuilder.toString());
+        String[] namespaces = { "namespace498", "wildcard499_foo", "namespace0", "unknown" };
+
+        int numIterations = 100000;
+        int regexMatches = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < numIterations; i++) {
+            if (pattern.matcher(namespaces[i % namespaces.length]).find()) {
+                regexMatches++;
+            }
+        }
+        long regexDuration = System.nanoTime() - start;
+
+        int matcherMatches = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < numIterations; i++) {
+            if (matcher.match(namespaces[i % namespaces.length]) != null) {
+                matcherMatches++;
+            }
+        }
+        long matcherDuration = System.nanoTime() - start;
+
+        assertEquals(regexMatches, matcherMatches);
+        double nanosPerRequest = (double)matcherDuration / numIterations;
+        // Generous, a cached lookup takes well under a microsecond
+        assertTrue(nanosPerRequest < 20000);
+
+        System.out.println(String.format("Regex took %.01f ns per namespace, the matcher %.01f ns per namespace (%d namespaces configured)",
+                                         (double)regexDuration / numIterations, nanosPerRequest, numNamespaces));
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2013 Mozilla Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mozilla.bagheera.validation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mozilla.bagheera.producer.AckMode;
+
+public class NamespacePoliciesTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static Properties createProperties() {
+        Properties props = new Properties();
+        props.setProperty(NamespacePolicies.VALID_NAMESPACES, "telemetry,testpilot_*");
+        props.setProperty("testpilot_*" + NamespacePolicy.ID_VALIDATION, "false");
+        props.setProperty("testpilot_*" + NamespacePolicy.RATE_LIMIT, "100");
+        props.setProperty("testpilot_special" + NamespacePolicy.RATE_LIMIT, "5");
+        props.setProperty("telemetry" + NamespacePolicy.ALLOW_DELETE_ACCESS, "true");
+        props.setProperty("telemetry" + NamespacePolicy.MAX_CONTENT_LENGTH, "1024");
+        props.setProperty("telemetry" + NamespacePolicy.ACK_MODE, "acked");
+        return props;
+    }
+
+    private void writeProperties(File file, String contents) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testResolvePolicies() {
+        NamespacePolicies policies = new NamespacePolicies(createProperties(), 4096);
+
+        NamespacePolicy telemetry = policies.getPolicy("telemetry");
+        assertEquals("telemetry", telemetry.getName());
+        assertTrue(telemetry.isIdValidation());
+        assertTrue(telemetry.isAllowDeleteAccess());
+        assertEquals(1024, telemetry.getMaxContentLength());
+        assertEquals(AckMode.ACKED, telemetry.getAckMode());
+        assertEquals(0, telemetry.getRateLimit(), 0.0);
+
+        NamespacePolicy testpilot = policies.getPolicy("testpilot_foo");
+        assertEquals("testpilot_*", testpilot.getName());
+        assertFalse(testpilot.isIdValidation());
+        assertFalse(testpilot.isAllowDeleteAccess());
+        assertEquals(4096, testpilot.getMaxContentLength());
+        assertEquals(AckMode.QUEUED, testpilot.getAckMode());
+        assertEquals(100, testpilot.getRateLimit(), 0.0);
+        assertEquals(100, testpilot.getRateBurst());
+        // A namespace's own setting beats the wildcard one
+        assertEquals(5, policies.getPolicy("testpilot_special").getRateLimit(), 0.0);
+
+        // Resolved once
+        assertSame(testpilot, policies.getPolicy("testpilot_foo"));
+
+        assertNull(policies.getPolicy("metrics"));
+        assertNull(policies.getPolicy(null));
+    }
+
+    @Test
+    public void testAllNamespacesValidWithoutList() {
+        Properties props = createProperties();
+        props.remove(NamespacePolicies.VALID_NAMESPACES);
+        NamespacePolicies policies = new NamespacePolicies(props, -1);
+        assertNotNull(policies.getPolicy("anything"));
+        assertEquals(-1, policies.getPolicy("anything").getMaxContentLength());
+    }
+
+    @Test
+    public void testLargestMaxContentLength() {
+        Properties props = createProperties();
+        assertEquals(4096, new NamespacePolicies(props, 4096).getLargestMaxContentLength());
+        props.setProperty("testpilot_*" + NamespacePolicy.MAX_CONTENT_LENGTH, "65536");
+        NamespacePolicies policies = new NamespacePolicies(props, 4096);
+        assertEquals(65536, policies.getLargestMaxContentLength());
+        assertEquals(65536, policies.getPolicy("testpilot_foo").getMaxContentLength());
+        // Without a default limit there is no largest one either
+        assertEquals(-1, new NamespacePolicies(props, -1).getLargestMaxContentLength());
+    }
+
+    @Test
+    public void testMaxInflatedLength() {
+        Properties props = createProperties();
+        NamespacePolicies policies = new NamespacePolicies(props, 4096);
+        // Defaults to a multiple of the namespace's max.content.length
+        assertEquals(1024 * NamespacePolicies.DEFAULT_INFLATION_RATIO, policies.getPolicy("telemetry").getMaxInflatedLength());
+        assertEquals(4096 * NamespacePolicies.DEFAULT_INFLATION_RATIO, policies.getPolicy("testpilot_foo").getMaxInflatedLength());
+        assertEquals(4096 * NamespacePolicies.DEFAULT_INFLATION_RATIO, policies.getDefaultMaxInflatedLength());
+        assertEquals(-1, new NamespacePolicies(props, -1).getPolicy("testpilot_foo").getMaxInflatedLength());
+
+        props.setProperty(NamespacePolicies.MAX_INFLATED_LENGTH, "65536");
+        props.setProperty("testpilot_*" + NamespacePolicy.MAX_INFLATED_LENGTH, "8192");
+        policies = new NamespacePolicies(props, 4096);
+        assertEquals(65536, policies.getPolicy("telemetry").getMaxInflatedLength());
+        assertEquals(8192, policies.getPolicy("testpilot_foo").getMaxInflatedLength());
+        assertEquals(65536, policies.getDefaultMaxInflatedLength());
+    }
+
+    @Test
+    public void testReload() throws IOException {
+        File file = tempFolder.newFile("bagheera.properties");
+        writeProperties(file, "valid.namespaces=telemetry\ntelemetry.allow.delete.access=false\n");
+        NamespacePolicyStore store = new NamespacePolicyStore(new NamespacePolicies(createProperties(), 4096));
+        Validator validator = new Validator(store);
+        assertTrue(validator.isValidNamespace("testpilot_foo"));
+
+        store.reload(file);
+        assertFalse(validator.isValidNamespace("testpilot_foo"));
+        assertFalse(store.getPolicy("telemetry").isAllowDeleteAccess());
+        assertEquals(4096, store.getPolicy("telemetry").getMaxContentLength());
+
+        // A file without valid namespaces is refused and the old policies stay
+        writeProperties(file, "telemetry.allow.delete.access=true\n");
+        try {
+            store.reload(file);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertFalse(store.getPolicy("telemetry").isAllowDeleteAccess());
+
+        // So is one with a bad namespace setting, wildcard or not
+        String[] badSettings = { "telemetry.rate.limit=abc", "testpilot_*.rate.burst.per.client=1.5", "telemetry.ack.mode=maybe" };
+        for (String badSetting : badSettings) {
+            writeProperties(file, "valid.namespaces=telemetry,testpilot_*\ntelemetry.allow.delete.access=true\n" + badSetting + "\n");
+            try {
+                store.reload(file);
+                fail("Reloaded " + badSetting);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            assertFalse(store.getPolicy("telemetry").isAllowDeleteAccess());
+        }
+    }
+
+    @Test
+    public void testReloadOnChange() throws Exception {
+        File file = tempFolder.newFile("bagheera.properties");
+        writeProperties(file, "valid.namespaces=telemetry\n");
+        NamespacePolicyStore store = new NamespacePolicyStore(new NamespacePolicies(createProperties(), 4096));
+        store.startReloading(file, 10);
+        try {
+            writeProperties(file, "valid.namespaces=metrics\n");
+            // Make sure the modification time changes, it may only have second precision
+            file.setLastModified(file.lastModified() + 2000);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (store.getPolicy("metrics") == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertNotNull(store.getPolicy("metrics"));
+            assertNull(store.getPolicy("telemetry"));
+        } finally {
+            store.close();
+        }
+    }
+}
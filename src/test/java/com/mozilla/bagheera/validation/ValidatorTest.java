@@ -19,9 +19,11 @@
  */
 package com.mozilla.bagheera.validation;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.util.UUID;
 
 import org.junit.Before;
@@ -41,7 +43,7 @@ public class ValidatorTest {
         boolean success = false;
         try {
             @SuppressWarnings("unused")
-            Validator v = new Validator(null);
+            Validator v = new Validator((String[])null);
         } catch (IllegalArgumentException e) {
             success = true;
         }
@@ -66,10 +68,38 @@ public class ValidatorTest {
         assertFalse(validator.isValidJson("{ \"baz : 7 }"));
     }
     
+    @Test
+    public void testIsValidJsonBytes() throws Exception {
+        byte[] json = "xx{ \"baz\" : [1, 2, {\"a\": \"\u00e9t\u00e9\"}] }xx".getBytes("UTF-8");
+        assertTrue(validator.isValidJson(json, 2, json.length - 4, 0, 0));
+        assertFalse(validator.isValidJson(json, 2, json.length - 3, 0, 0));
+        assertFalse(validator.isValidJson(json, 2, json.length - 5, 0, 0));
+        assertTrue(validator.isValidJson(new ByteArrayInputStream(json, 2, json.length - 4), 0, 0));
+
+        // Depth and token limits
+        assertTrue(validator.isValidJson(json, 2, json.length - 4, 3, 0));
+        assertFalse(validator.isValidJson(json, 2, json.length - 4, 2, 0));
+        assertTrue(validator.isValidJson(json, 2, json.length - 4, 0, 11));
+        assertFalse(validator.isValidJson(json, 2, json.length - 4, 0, 10));
+    }
+
     @Test
     public void testIsValidNamespace() {
         assertTrue(validator.isValidNamespace("foo"));
         assertFalse(validator.isValidNamespace("baz"));
+        // Only whole names match
+        assertFalse(validator.isValidNamespace("xfoox"));
+        assertFalse(validator.isValidNamespace(null));
+    }
+
+    @Test
+    public void testWildcardNamespace() {
+        Validator v = new Validator(new String[] { "telemetry", "testpilot_*" });
+        assertTrue(v.isValidNamespace("testpilot_foo"));
+        assertFalse(v.isValidNamespace("testpilot_"));
+        assertFalse(v.isValidNamespace("xtestpilot_foo"));
+        assertEquals("testpilot_*", v.getNamespacePolicy("testpilot_foo").getName());
+        assertEquals("telemetry", v.getNamespacePolicy("telemetry").getName());
     }
 
     @Test